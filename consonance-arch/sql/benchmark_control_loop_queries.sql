@@ -0,0 +1,62 @@
+--
+-- Query plan benchmark for the control loop queries covered by the schema migrations in
+-- consonance-server-common/src/main/resources/db/migration.
+--
+-- Run against a migrated database with:
+--   psql -h 127.0.0.1 -U queue_user queue_status -f consonance-arch/sql/benchmark_control_loop_queries.sql
+--
+-- Everything runs in one transaction that is rolled back, so the synthetic history never becomes visible.
+-- The "before" plans disable index and bitmap scans for the transaction to reproduce the plans of the baseline schema,
+-- the "after" plans are what the planner picks with the indexes in place.
+-- With one million jobs, the "before" plans are a Seq Scan on job/provision for every query, the "after" plans should be
+-- Index Scan or Bitmap Index Scan on job_status_idx, job_job_uuid_idx, job_job_hash_idx, provision_status_idx,
+-- provision_job_uuid_idx, provision_provision_uuid_idx and provision_ip_address_provision_id_idx.
+--
+
+\timing on
+
+BEGIN;
+
+INSERT INTO job (create_timestamp, update_timestamp, end_user, flavour, job_hash, status, stdout, stderr, job_uuid, provision_uuid)
+SELECT now() - (i || ' minutes')::interval, now() - (i || ' minutes')::interval, 'player', 'm1.xlarge', md5(i::text),
+       CASE WHEN i % 1000 = 0 THEN 'RUNNING' WHEN i % 1000 = 1 THEN 'PENDING' WHEN i % 1000 = 2 THEN 'LOST' ELSE 'SUCCESS' END,
+       repeat('stdout line', 100), repeat('stderr line', 100), md5('job' || i::text), md5('vm' || i::text)
+FROM generate_series(1, 1000000) AS i;
+
+INSERT INTO provision (create_timestamp, update_timestamp, cores, ip_address, job_uuid, mem_gb, provision_uuid, status, storage_gb)
+SELECT now(), now(), 8, '10.0.' || (i % 250) || '.' || (i % 200), md5('job' || i::text), 128, md5('vm' || i::text),
+       CASE WHEN i % 1000 = 0 THEN 'RUNNING' WHEN i % 1000 = 1 THEN 'PENDING' ELSE 'SUCCESS' END, 1024
+FROM generate_series(1, 1000000) AS i;
+
+ANALYZE job;
+ANALYZE provision;
+
+\echo '==================== before: baseline schema (no secondary indexes) ===================='
+SET LOCAL enable_indexscan = off;
+SET LOCAL enable_bitmapscan = off;
+SET LOCAL enable_indexonlyscan = off;
+
+EXPLAIN ANALYZE SELECT * FROM job WHERE status = 'RUNNING';
+EXPLAIN ANALYZE UPDATE job SET status = 'RUNNING', update_timestamp = NOW() WHERE job_uuid = md5('job500000');
+EXPLAIN ANALYZE SELECT * FROM job WHERE job_hash = md5('500000') AND status != 'FAILED' AND status != 'LOST';
+EXPLAIN ANALYZE SELECT count(*) FROM provision WHERE status = 'PENDING';
+EXPLAIN ANALYZE UPDATE provision SET status = 'PENDING', update_timestamp = NOW() WHERE job_uuid = md5('job500000');
+EXPLAIN ANALYZE UPDATE provision SET status = 'SUCCESS', update_timestamp = NOW() WHERE provision_uuid = md5('vm500000');
+EXPLAIN ANALYZE SELECT * FROM provision WHERE provision_id IN (SELECT max(provision_id) FROM provision GROUP BY ip_address)
+    AND status = 'RUNNING';
+
+\echo '==================== after: with migration indexes ===================='
+SET LOCAL enable_indexscan = on;
+SET LOCAL enable_bitmapscan = on;
+SET LOCAL enable_indexonlyscan = on;
+
+EXPLAIN ANALYZE SELECT * FROM job WHERE status = 'RUNNING';
+EXPLAIN ANALYZE UPDATE job SET status = 'RUNNING', update_timestamp = NOW() WHERE job_uuid = md5('job500000');
+EXPLAIN ANALYZE SELECT * FROM job WHERE job_hash = md5('500000') AND status != 'FAILED' AND status != 'LOST';
+EXPLAIN ANALYZE SELECT count(*) FROM provision WHERE status = 'PENDING';
+EXPLAIN ANALYZE UPDATE provision SET status = 'PENDING', update_timestamp = NOW() WHERE job_uuid = md5('job500000');
+EXPLAIN ANALYZE UPDATE provision SET status = 'SUCCESS', update_timestamp = NOW() WHERE provision_uuid = md5('vm500000');
+EXPLAIN ANALYZE SELECT * FROM provision WHERE provision_id IN (SELECT max(provision_id) FROM provision GROUP BY ip_address)
+    AND status = 'RUNNING';
+
+ROLLBACK;
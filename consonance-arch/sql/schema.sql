@@ -98,7 +98,8 @@ CREATE TABLE job (
     stderr text,
     stdout text,
     job_uuid text,
-    provision_uuid text
+    provision_uuid text,
+    priority integer DEFAULT 0 NOT NULL
 );
 
 
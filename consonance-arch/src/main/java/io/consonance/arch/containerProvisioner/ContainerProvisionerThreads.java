@@ -23,7 +23,6 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.ConsumerCancelledException;
-import com.rabbitmq.client.MessageProperties;
 import com.rabbitmq.client.QueueingConsumer;
 import com.rabbitmq.client.ShutdownSignalException;
 import io.cloudbindle.youxia.deployer.Deployer;
@@ -31,12 +30,21 @@ import io.cloudbindle.youxia.reaper.Reaper;
 import io.consonance.arch.Base;
 import io.consonance.arch.beans.Job;
 import io.consonance.arch.beans.JobState;
+import io.consonance.arch.beans.JobSummary;
+import io.consonance.arch.beans.MessageCodec;
+import io.consonance.arch.beans.MessageCodecs;
 import io.consonance.arch.beans.Provision;
 import io.consonance.arch.beans.ProvisionState;
 import io.consonance.arch.beans.Status;
 import io.consonance.arch.beans.StatusState;
 import io.consonance.arch.persistence.PostgreSQL;
+import io.consonance.arch.persistence.SchemaMigrator;
+import io.consonance.arch.persistence.StateChangeListener;
+import io.consonance.arch.util.KeyOrderedConsumer;
+import io.consonance.arch.utils.AmqpConnectionManager;
 import io.consonance.arch.utils.CommonServerTestUtilities;
+import io.consonance.arch.utils.ResultRoutes;
+import io.consonance.arch.utils.RetryTopology;
 import io.consonance.common.CommonTestUtilities;
 import io.consonance.common.Constants;
 import io.consonance.arch.worker.WorkerRunnable;
@@ -57,6 +65,8 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -68,7 +78,7 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
 
 /**
  * This consumes vm requests and provisions VMs as needed.  It processes VM orders, provisions VMs, and cleans up VMs.
@@ -96,6 +106,7 @@ public class ContainerProvisionerThreads extends Base {
     }
 
     private void startThreads() throws InterruptedException {
+        new SchemaMigrator(CommonTestUtilities.parseConfig(configFile)).migrate();
         ExecutorService pool = Executors.newFixedThreadPool(DEFAULT_THREADS);
         ProcessVMOrders processVMOrders = new ProcessVMOrders(this.configFile, this.options.has(this.endlessSpec));
         ProvisionVMs provisionVMs = new ProvisionVMs(this.configFile, this.options.has(this.endlessSpec), this.options.has(testSpec));
@@ -132,8 +143,9 @@ public class ContainerProvisionerThreads extends Base {
         }
 
         @Override
-        public Void call() throws IOException, TimeoutException {
+        public Void call() throws IOException, InterruptedException {
             Channel vmChannel = null;
+            KeyOrderedConsumer<Provision> consumer = null;
             try {
 
                 HierarchicalINIConfiguration settings = CommonTestUtilities.parseConfig(config);
@@ -142,41 +154,49 @@ public class ContainerProvisionerThreads extends Base {
 
                 // read from
                 vmChannel = CommonServerTestUtilities.setupQueue(settings, queueName + "_vms");
+                vmChannel.basicQos(settings.getInt(Constants.PROVISION_VM_ORDER_PREFETCH, KeyOrderedConsumer.DEFAULT_PREFETCH));
+                // a request that cannot be staged, for example while the database is down, is retried by the broker after a delay
+                final RetryTopology retries = new RetryTopology(queueName + "_vms",
+                        settings.getInt(Constants.RABBIT_RETRY_TIERS, RetryTopology.DEFAULT_TIERS));
+                retries.declare(vmChannel);
 
                 // writes to DB as well
                 PostgreSQL db = new PostgreSQL(settings);
 
-                QueueingConsumer consumer = new QueueingConsumer(vmChannel);
+                // requests for different jobs are staged in parallel, requests for one job in the order they arrived
+                consumer = new KeyOrderedConsumer<>(vmChannel,
+                        settings.getInt(Constants.PROVISION_VM_ORDER_THREADS, KeyOrderedConsumer.DEFAULT_THREADS), "provisioner-vm-orders",
+                        (properties, body) -> {
+                            // now parse it as a VM order
+                            Provision p = MessageCodecs.decode(properties, body, Provision.class);
+                            if (LOG.isDebugEnabled()) {
+                                LOG.debug(" [x] Received New VM Request '" + p.toJSON() + "'");
+                            }
+                            return p;
+                        }, Provision::getJobUUID, (deliveryTag, p) -> {
+                            p.setState(ProvisionState.PENDING);
+                            // puts it into the DB so I can count it in another thread
+                            db.updateProvisionByJobUUID(p.getJobUUID(), p.getProvisionUUID(), p.getState(), p.getIpAddress());
+                            return true;
+                        }, retries);
                 vmChannel.basicConsume(queueName + "_vms", false, consumer);
 
-                // TODO: need threads that each read from orders and another that reads results
-                do {
+                if (endless) {
+                    consumer.awaitStop(Long.MAX_VALUE);
+                } else {
                     LOG.info("CHECKING FOR NEW VM ORDER!");
-                    QueueingConsumer.Delivery delivery = consumer.nextDelivery(FIVE_SECOND_IN_MILLISECONDS);
-                    if (delivery == null) {
-                        continue;
-                    }
-                    // jchannel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
-                    String message = new String(delivery.getBody(), StandardCharsets.UTF_8);
-                    LOG.debug(" [x] Received New VM Request '" + message + "'");
-
-                    // now parse it as a VM order
-                    Provision p = new Provision();
-                    p.fromJSON(message);
-                    p.setState(ProvisionState.PENDING);
-
-                    // puts it into the DB so I can count it in another thread
-                    db.updateProvisionByJobUUID(p.getJobUUID(),p.getProvisionUUID(),p.getState(),p.getIpAddress());
-                    vmChannel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
-                } while (endless);
+                    consumer.awaitFirstDelivery(FIVE_SECOND_IN_MILLISECONDS);
+                    consumer.shutdown(FIVE_SECOND_IN_MILLISECONDS);
+                    consumer.awaitStop(0);
+                }
 
-            } catch (IOException | InterruptedException | ShutdownSignalException | ConsumerCancelledException ex) {
+            } catch (IOException | InterruptedException | ShutdownSignalException ex) {
                 throw new RuntimeException(ex);
             } finally {
-                if (vmChannel != null) {
-                    vmChannel.close();
-                    vmChannel.getConnection().close();
+                if (consumer != null) {
+                    consumer.shutdown(FIVE_SECOND_IN_MILLISECONDS);
                 }
+                CommonServerTestUtilities.closeChannel(vmChannel);
             }
             return null;
         }
@@ -201,6 +221,7 @@ public class ContainerProvisionerThreads extends Base {
 
         @Override
         public Void call() throws Exception {
+            StateChangeListener listener = null;
             try {
 
                 HierarchicalINIConfiguration settings = CommonTestUtilities.parseConfig(configFile);
@@ -211,6 +232,10 @@ public class ContainerProvisionerThreads extends Base {
 
                 // writes to DB as well
                 PostgreSQL db = new PostgreSQL(settings);
+                // wakes us up when jobs are created or change state
+                listener = new StateChangeListener(settings, StateChangeListener.JOB_CHANNEL);
+                // start listening before the first check so that nothing falls in between
+                listener.awaitChanges(0);
 
                 // TODO: need threads that each read from orders and another that reads results
                 do {
@@ -218,13 +243,13 @@ public class ContainerProvisionerThreads extends Base {
                     LOG.info("Checking running VMs");
                     // System.out.println("CHECKING RUNNING VMs");
 
-                    // read from DB
-                    final List<Job> pendingJobs = db.getJobs(JobState.PENDING);
-                    long numberPendingContainers = pendingJobs.size();
-                    final List<Job> runningJobs = db.getJobs(JobState.RUNNING);
-                    long numberRunningContainers = runningJobs.size();
-                    final List<Job> lostJobs = db.getJobs(JobState.LOST);
-                    long numberLostContainers = lostJobs.size();
+                    // read from DB, only the summary columns are needed to size the fleet
+                    final List<JobSummary> activeJobs = db.getJobSummaries(JobState.PENDING, JobState.RUNNING, JobState.LOST);
+                    final Map<JobState, List<JobSummary>> jobsByState = activeJobs.stream()
+                            .collect(Collectors.groupingBy(JobSummary::getState));
+                    long numberPendingContainers = jobsByState.getOrDefault(JobState.PENDING, Collections.emptyList()).size();
+                    long numberRunningContainers = jobsByState.getOrDefault(JobState.RUNNING, Collections.emptyList()).size();
+                    long numberLostContainers = jobsByState.getOrDefault(JobState.LOST, Collections.emptyList()).size();
                     
                     LOG.info("Found " + numberRunningContainers + " pending containers, " + numberPendingContainers + " running containers, and " + numberLostContainers + " lost containers.");
 
@@ -248,27 +273,11 @@ public class ContainerProvisionerThreads extends Base {
                         }
                     } else {
                         long requiredVMs = numberRunningContainers + numberPendingContainers + numberLostContainers;
-                        // determine mix of VMs required
-                        Map<String, Integer> clientTypes = new HashMap<>();
-                        for(Job j : pendingJobs){
-                            clientTypes.compute(j.getFlavour(), (k, v) -> (v == null ? 1 : v + 1));
-                        }
-                        for(Job j : runningJobs){
-                            clientTypes.compute(j.getFlavour(), (k,v) -> (v == null? 1 : v+1));
-                        }
-                        for(Job j : lostJobs){
-                            clientTypes.compute(j.getFlavour(), (k,v) -> (v == null? 1 : v+1));
-                        }
-
-                        // cap the number of VMs
-                        LOG.info("  Desire for " + clientTypes + " VMs");
+                        LOG.info("  Desire for " + requiredVMs + " VMs");
+                        // cap the number of VMs, the most urgent pending jobs decide the mix of VMs when there are not enough for all
                         requiredVMs = Math
                                 .min(requiredVMs, settings.getLong(Constants.PROVISION_MAX_RUNNING_CONTAINERS, Integer.MAX_VALUE));
-                        // cap the types of VMs
-                        final long localRequiredVMs = requiredVMs;
-                        while(clientTypes.size() > requiredVMs){
-                            clientTypes.replaceAll((k,v) -> clientTypes.size() > localRequiredVMs? (v-1) : v);
-                        }
+                        Map<String, Integer> clientTypes = requiredVMsByFlavour(activeJobs, requiredVMs);
                         LOG.info("  Capped at " + clientTypes + " VMs");
                         if (requiredVMs > 0) {
                             // serialize clientTypes
@@ -297,14 +306,21 @@ public class ContainerProvisionerThreads extends Base {
                             }
                         }
                         if (endless) {
-                            // lengthen time to allow cleanup queue to purge
-                            Thread.sleep(TWO_MINUTE_IN_MILLISECONDS);
+                            // give the cleanup queue a moment to purge, then wait for jobs to change, re-checking every two minutes in
+                            // case a notification was missed
+                            Thread.sleep(FIVE_SECOND_IN_MILLISECONDS);
+                            List<StateChangeListener.StateChange> changes = listener.awaitChanges(TWO_MINUTE_IN_MILLISECONDS);
+                            LOG.info("Woke up after " + changes.size() + " job state changes");
                         }
                     }
                 } while (endless);
 
             } catch (ShutdownSignalException | ConsumerCancelledException ex) {
                 throw new RuntimeException(ex);
+            } finally {
+                if (listener != null) {
+                    listener.close();
+                }
             }
             return null;
         }
@@ -316,6 +332,7 @@ public class ContainerProvisionerThreads extends Base {
      */
     private static class CleanupVMs implements Callable<Void> {
         static final Logger LOG = LoggerFactory.getLogger(CleanupVMs.class);
+        private static final long LOST_JOB_SWEEP_INTERVAL_IN_MILLISECONDS = 5 * 60 * 1000L;
         private final String configFile;
         private final boolean endless;
         private Set<String> existingJobQueues = new HashSet<>();
@@ -328,68 +345,52 @@ public class ContainerProvisionerThreads extends Base {
         @Override
         public Void call() throws Exception {
             Channel resultsChannel = null;
-            Channel jobChannel = null;
+            StateChangeListener listener = null;
             try {
 
                 HierarchicalINIConfiguration settings = CommonTestUtilities.parseConfig(configFile);
 
                 String queueName = settings.getString(Constants.RABBIT_QUEUE_NAME);
-                final String exchangeName = queueName + "_results";
+                final String exchangeName = ResultRoutes.exchange(queueName);
 
                 // read from
-                resultsChannel = CommonServerTestUtilities.setupExchange(settings, exchangeName);
+                resultsChannel = CommonServerTestUtilities.setupExchange(settings, exchangeName, ResultRoutes.EXCHANGE_TYPE);
                 // this declares a queue exchange where multiple consumers get the same message:
-                // https://www.rabbitmq.com/tutorials/tutorial-three-java.html
+                // https://www.rabbitmq.com/tutorials/tutorial-five-java.html
                 String resultsQueue = CommonServerTestUtilities.setupQueueOnExchange(resultsChannel, queueName, "CleanupVMs");
-                resultsChannel.queueBind(resultsQueue, exchangeName, "");
+                // every change of state but none of the heartbeats, vms only change when a job does
+                resultsChannel.queueBind(resultsQueue, exchangeName, ResultRoutes.ALL_JOB_UPDATES);
                 QueueingConsumer resultsConsumer = new QueueingConsumer(resultsChannel);
                 resultsChannel.basicConsume(resultsQueue, false, resultsConsumer);
 
                 // create the job exchange for resubmission of lost jobs
-                jobChannel = CommonServerTestUtilities.setupExchange(settings, queueName + "_job_exchange", "direct");
+                final Channel jobChannel = CommonServerTestUtilities.leaseExchange(settings, queueName + "_job_exchange", "direct");
 
                 // writes to DB as well
                 PostgreSQL db = new PostgreSQL(settings);
 
                 boolean reapFailedWorkers = settings.getBoolean(Constants.PROVISION_REAP_FAILED_WORKERS, false);
+                long nextLostJobSweep = 0;
+                listener = new StateChangeListener(settings, StateChangeListener.JOB_CHANNEL);
 
                 // TODO: need threads that each read from orders and another that reads results
                 do {
 
                     LOG.info("CHECKING FOR VMs TO REAP!");
 
-                    LOG.info("CHECKING DB FOR LOST JOB VMS TO REAP");
-
-                    // TODO: this could be dangerous if we loose a job but the worker is in endless mode and has picked up another since the machine previously
-                    // running the lost job will be reaped
-
-                    final List<Job> lostJobs = db.getJobs(JobState.LOST);
-                    for(Job j : lostJobs){
-                        // if the VM assigned is running, reap it
-                        List<Provision> provisions = db.getProvisions(ProvisionState.RUNNING);
-                        for(Provision p : provisions) {
-                            if (j.getUuid().equals(p.getJobUUID())) {
-                                synchronized (ContainerProvisionerThreads.class) {
-                                    runReaper(settings, p.getIpAddress(), j.getVmUuid());
-                                }
-                            }
+                    // lost jobs are announced by the coordinator on the results exchange, this sweep only catches announcements that
+                    // were never sent, for example when the coordinator died between marking and publishing. A database notification
+                    // that a job went lost brings the sweep forward.
+                    final boolean jobsLost = listener.awaitChanges(0).stream()
+                            .anyMatch(change -> JobState.LOST.toString().equals(change.getState()));
+                    if (jobsLost || System.currentTimeMillis() >= nextLostJobSweep) {
+                        LOG.info("CHECKING DB FOR LOST JOB VMS TO REAP");
+                        // TODO: this could be dangerous if we loose a job but the worker is in endless mode and has picked up another since the machine previously
+                        // running the lost job will be reaped
+                        for (Job j : db.getJobs(JobState.LOST)) {
+                            requeueLostJob(settings, db, jobChannel, queueName, j);
                         }
-                        // now re-enqueue this job and update the DB state to pending
-                        db.updateJob(j.getUuid(), j.getVmUuid(), JobState.PENDING);
-                        j.setState(JobState.PENDING);
-                        final String routingKey = j.getFlavour();
-                        // see if a particular queue type exist yet
-                        if (!existingJobQueues.contains(routingKey)){
-                            existingJobQueues.add(routingKey);
-                            final String finalQueueName = CommonServerTestUtilities
-                                    .setupQueueOnExchange(jobChannel, queueName + "_jobs", j.getFlavour());
-                            jobChannel.queueBind(finalQueueName, queueName + "_job_exchange", j.getFlavour());
-                        }
-                        jobChannel.basicPublish(queueName + "_job_exchange", j.getFlavour() , MessageProperties.PERSISTENT_TEXT_PLAIN,
-                                j.toJSON().getBytes(StandardCharsets.UTF_8));
-
-                        LOG.info(" + message re-sent to job queue!\n" + j.toJSON() + "\n");
-
+                        nextLostJobSweep = System.currentTimeMillis() + LOST_JOB_SWEEP_INTERVAL_IN_MILLISECONDS;
                     }
 
                     // TODO: this logic isnt' quite right to find orphan workers VMs... the DB has none as RUNNING now... so I'm not sure what I will need to do to see if these are actually running
@@ -415,11 +416,21 @@ public class ContainerProvisionerThreads extends Base {
                     if (delivery == null) {
                         continue;
                     }
-                    String message = new String(delivery.getBody(), StandardCharsets.UTF_8);
-                    LOG.debug(" [x] RECEIVED RESULT MESSAGE - ContainerProvisioner: '" + message + "'");
+                    // now parse it with the codec it was sent with
+                    Status status = MessageCodecs.decode(delivery.getProperties(), delivery.getBody(), Status.class);
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug(" [x] RECEIVED RESULT MESSAGE - ContainerProvisioner: '" + status.toJSON() + "'");
+                    }
 
-                    // now parse it as JSONObj
-                    Status status = new Status().fromJSON(message);
+                    if (CommonServerTestUtilities.LOST_JOB_MESSAGE_TYPE.equals(status.getType())) {
+                        Job lostJob = db.getJob(status.getJobUuid());
+                        // the sweep may have got to it first
+                        if (lostJob != null && lostJob.getState() == JobState.LOST) {
+                            requeueLostJob(settings, db, jobChannel, queueName, lostJob);
+                        }
+                        resultsChannel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
+                        continue;
+                    }
 
                     // in end states, keep a copy of the results
                     if (status.getState() == StatusState.SUCCESS || status.getState() == StatusState.FAILED) {
@@ -461,17 +472,63 @@ public class ContainerProvisionerThreads extends Base {
                 LOG.error("CleanupVMs threw the following exception", ex);
                 throw new RuntimeException(ex);
             } finally {
-                if (resultsChannel != null) {
-                    resultsChannel.close();
-                    resultsChannel.getConnection().close();
-                }
-                // jobChannel.close();
-                if (jobChannel != null) {
-                    jobChannel.getConnection().close();
+                CommonServerTestUtilities.closeChannel(resultsChannel);
+                AmqpConnectionManager.releaseThreadChannels();
+                if (listener != null) {
+                    listener.close();
                 }
             }
             return null;
         }
+
+        /**
+         * Reap the VM that a lost job was assigned to, then put the job back on the job queue as pending.
+         */
+        private void requeueLostJob(HierarchicalINIConfiguration settings, PostgreSQL db, Channel jobChannel, String queueName, Job j)
+                throws IOException {
+            // if the VM assigned is running, reap it
+            List<Provision> provisions = db.getProvisions(ProvisionState.RUNNING);
+            for (Provision p : provisions) {
+                if (j.getUuid().equals(p.getJobUUID())) {
+                    synchronized (ContainerProvisionerThreads.class) {
+                        runReaper(settings, p.getIpAddress(), j.getVmUuid());
+                    }
+                }
+            }
+            // now re-enqueue this job and update the DB state to pending
+            db.updateJob(j.getUuid(), j.getVmUuid(), JobState.PENDING);
+            j.setState(JobState.PENDING);
+            final String routingKey = j.getFlavour();
+            // see if a particular queue type exist yet
+            if (!existingJobQueues.contains(routingKey)) {
+                existingJobQueues.add(routingKey);
+                final String finalQueueName = CommonServerTestUtilities.setupQueueOnExchange(jobChannel,
+                        queueName + CommonServerTestUtilities.JOB_QUEUE_INFIX, j.getFlavour(), Job.MAX_PRIORITY);
+                jobChannel.queueBind(finalQueueName, queueName + "_job_exchange", j.getFlavour());
+            }
+            final MessageCodec codec = MessageCodecs.fromSettings(settings);
+            jobChannel.basicPublish(queueName + "_job_exchange", j.getFlavour(), MessageCodecs.properties(codec, j.getPriority()),
+                    codec.encode(j));
+
+            LOG.info(" + message re-sent to job queue!\n" + j.toJSON() + "\n");
+        }
+    }
+
+    /**
+     * Decide how many VMs of each flavour to ask for. Running and lost jobs keep the VMs they have, the rest go to pending jobs from the
+     * highest priority down and from the oldest to the newest among jobs of the same priority.
+     *
+     * @param activeJobs pending, running and lost jobs
+     * @param maxVMs the most VMs to ask for
+     * @return the number of VMs needed by flavour
+     */
+    static Map<String, Integer> requiredVMsByFlavour(List<JobSummary> activeJobs, long maxVMs) {
+        final Comparator<JobSummary> mostDeserving = Comparator.comparing((JobSummary j) -> j.getState() == JobState.PENDING)
+                .thenComparing(Comparator.comparingInt(JobSummary::getPriority).reversed())
+                .thenComparing(JobSummary::getCreateTimestamp, Comparator.nullsLast(Comparator.naturalOrder()));
+        final Map<String, Integer> clientTypes = new HashMap<>();
+        activeJobs.stream().sorted(mostDeserving).limit(maxVMs).forEach(j -> clientTypes.merge(j.getFlavour(), 1, Integer::sum));
+        return clientTypes;
     }
 
     /**
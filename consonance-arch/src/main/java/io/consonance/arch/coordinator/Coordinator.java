@@ -19,19 +19,28 @@
 
 package io.consonance.arch.coordinator;
 
+import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.ConsumerCancelledException;
-import com.rabbitmq.client.MessageProperties;
-import com.rabbitmq.client.QueueingConsumer;
 import com.rabbitmq.client.ShutdownSignalException;
 import io.consonance.arch.Base;
 import io.consonance.arch.beans.Job;
 import io.consonance.arch.beans.JobState;
+import io.consonance.arch.beans.JobStateUpdate;
+import io.consonance.arch.beans.MessageCodec;
+import io.consonance.arch.beans.MessageCodecs;
 import io.consonance.arch.beans.Order;
+import io.consonance.arch.beans.Provision;
 import io.consonance.arch.beans.Status;
 import io.consonance.arch.beans.StatusState;
 import io.consonance.arch.persistence.PostgreSQL;
+import io.consonance.arch.persistence.SchemaMigrator;
+import io.consonance.arch.util.KeyOrderedConsumer;
+import io.consonance.arch.util.StagedPipeline;
 import io.consonance.arch.utils.CommonServerTestUtilities;
+import io.consonance.arch.utils.ConfirmingPublisher;
+import io.consonance.arch.utils.HeartbeatAssembler;
+import io.consonance.arch.utils.ResultRoutes;
+import io.consonance.arch.utils.RetryTopology;
 import io.consonance.common.CommonTestUtilities;
 import io.consonance.common.Constants;
 import org.apache.commons.configuration.HierarchicalINIConfiguration;
@@ -39,18 +48,18 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.sql.Timestamp;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 /**
@@ -83,6 +92,7 @@ public class Coordinator extends Base {
     }
 
     public void doWork() throws InterruptedException, ExecutionException {
+        new SchemaMigrator(CommonTestUtilities.parseConfig(configFile)).migrate();
         ExecutorService pool = Executors.newFixedThreadPool(DEFAULT_THREADS);
         CoordinatorOrders coordinatorOrders = new CoordinatorOrders(this.configFile, this.options.has(this.endlessSpec));
         CleanupJobs cleanupJobs = new CleanupJobs(this.configFile, this.options.has(this.endlessSpec));
@@ -105,18 +115,30 @@ public class Coordinator extends Base {
 
     /**
      * Reads from the Order queue and breaks it up into VMs for the VM queue and jobs for the job queue.
+     *
+     * Orders go through a pipeline: decode, persist marks the job as pending, vm_request and job_publish send the VM and the job on
+     * and ack waits for the broker to confirm both before acknowledging the order. Every stage has its own threads, set with
+     * coordinator.&lt;stage&gt;_threads, so a backlog keeps the database and the broker busy at the same time instead of one order at
+     * a time taking turns with both.
      */
     private static class CoordinatorOrders implements Callable<Void> {
 
-        private Channel vmChannel = null;
+        static final String DECODE = "decode";
+        static final String PERSIST = "persist";
+        static final String VM_REQUEST = "vm_request";
+        static final String JOB_PUBLISH = "job_publish";
+        static final String ACK = "ack";
+
         private Channel orderChannel = null;
         private String queueName = null;
         private final boolean endless;
         private String configFile = null;
         private final Logger log = LoggerFactory.getLogger(getClass());
-        private Channel jobChannel = null;
 
-        private Set<String> existingJobQueues = new HashSet<>();
+        private final Set<String> existingJobQueues = ConcurrentHashMap.newKeySet();
+        private volatile ConfirmingPublisher publisher = null;
+        private volatile KeyOrderedConsumer<OrderInFlight> consumer = null;
+        private volatile StagedPipeline<OrderInFlight> pipeline = null;
 
         CoordinatorOrders(String config, boolean endless) throws InterruptedException {
             this.endless = endless;
@@ -132,93 +154,115 @@ public class Coordinator extends Base {
                 queueName = settings.getString(Constants.RABBIT_QUEUE_NAME);
                 // read from
                 orderChannel = CommonServerTestUtilities.setupQueue(settings, queueName + "_orders");
-                // write to
-
-                // create the job exchange
-                String exchange = queueName + "_job_exchange";
-                jobChannel = CommonServerTestUtilities.setupExchange(settings, exchange, "direct");
-
-                // full
-                // info
-                // write to
-                vmChannel = CommonServerTestUtilities.setupQueue(settings, queueName + "_vms");
-                // read from
-
-                QueueingConsumer consumer = new QueueingConsumer(orderChannel);
+                orderChannel.basicQos(settings.getInt(Constants.COORDINATOR_ORDER_PREFETCH, KeyOrderedConsumer.DEFAULT_PREFETCH));
+                // orders that cannot be read or published are retried by the broker after a delay and quarantined in the end
+                final RetryTopology retries = new RetryTopology(queueName + "_orders",
+                        settings.getInt(Constants.RABBIT_RETRY_TIERS, RetryTopology.DEFAULT_TIERS));
+                retries.declare(orderChannel);
+
+                // write to the database, the job exchange and the vm queue, shared by every thread of the pipeline
+                final PostgreSQL db = new PostgreSQL(settings);
+                final String exchange = queueName + "_job_exchange";
+                final MessageCodec codec = MessageCodecs.fromSettings(settings);
+                publisher = CommonServerTestUtilities.publisherForExchange(settings, exchange, "direct");
+                CommonServerTestUtilities.publisherForQueue(settings, queueName + "_vms");
+
+                // orders for one job keep their order once decoded, orders for different jobs go through each stage in parallel
+                final int capacity = settings.getInt(Constants.COORDINATOR_STAGE_CAPACITY, StagedPipeline.DEFAULT_CAPACITY);
+                pipeline = new StagedPipeline<OrderInFlight>("coordinator-orders", OrderInFlight::getKey, this::acknowledge, this::reject)
+                        .stage(DECODE, threads(settings, DECODE), capacity, inFlight -> {
+                            inFlight.order = MessageCodecs.decode(inFlight.properties, inFlight.body, Order.class);
+                            log.debug(" [x] RECEIVED ORDER:\n'" + inFlight.order.toJSON() + "'\n");
+                        })
+                        .stage(PERSIST, threads(settings, PERSIST), capacity,
+                                inFlight -> db.updateJob(inFlight.getJob().getUuid(), inFlight.getJob().getVmUuid(), JobState.PENDING))
+                        .stage(VM_REQUEST, threads(settings, VM_REQUEST), capacity,
+                                inFlight -> inFlight.vmRequested = requestVm(codec, inFlight.order.getProvision()))
+                        .stage(JOB_PUBLISH, threads(settings, JOB_PUBLISH), capacity,
+                                inFlight -> inFlight.jobPublished = publishJob(settings, codec, exchange, inFlight.getJob()))
+                        // the confirms arrive in the order the messages went out, so waiting here holds up little
+                        .stage(ACK, threads(settings, ACK), capacity, inFlight -> CompletableFuture
+                                .allOf(inFlight.vmRequested, inFlight.jobPublished).get(ONE_MINUTE_IN_MILLISECONDS, TimeUnit.MILLISECONDS));
+                // the consumer only feeds the pipeline and keeps track of what can be acknowledged
+                consumer = new KeyOrderedConsumer<>(orderChannel, 1, "coordinator-orders", OrderInFlight::new, inFlight -> null,
+                        (deliveryTag, inFlight) -> {
+                            inFlight.deliveryTag = deliveryTag;
+                            pipeline.submit(inFlight);
+                            return false;
+                        }, retries);
                 orderChannel.basicConsume(queueName + "_orders", false, consumer);
 
-                // TODO: need threads that each read from orders and another that reads results
-                do {
-
-                    QueueingConsumer.Delivery delivery = consumer.nextDelivery(FIVE_SECOND_IN_MILLISECONDS);
-                    if (delivery == null) {
-                        continue;
+                if (endless) {
+                    while (!consumer.awaitStop(ONE_MINUTE_IN_MILLISECONDS)) {
+                        log.info(pipeline.toString());
                     }
-                    // jchannel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
-                    String message = new String(delivery.getBody(), StandardCharsets.UTF_8);
-                    log.debug(" [x] RECEIVED ORDER:\n'" + message + "'\n");
-
-                    // run the job
-                    Order order = new Order().fromJSON(message);
-
-                    requestVm(order.getProvision().toJSON());
-                    publishJob(settings, exchange, order.getJob().toJSON());
-
-                    log.info("acknowledging " + delivery.getEnvelope().toString());
-                    orderChannel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
-                } while (endless);
+                } else {
+                    consumer.awaitFirstDelivery(FIVE_SECOND_IN_MILLISECONDS);
+                    consumer.shutdown(FIVE_SECOND_IN_MILLISECONDS);
+                    pipeline.shutdown(FIVE_SECOND_IN_MILLISECONDS);
+                    consumer.awaitFinished(FIVE_SECOND_IN_MILLISECONDS);
+                    consumer.awaitStop(0);
+                }
 
             } catch (IOException ex) {
                 log.error(ex.getMessage(), ex);
                 throw new RuntimeException(ex);
-            } catch (InterruptedException | ShutdownSignalException | ConsumerCancelledException | NullPointerException ex) {
+            } catch (InterruptedException | ShutdownSignalException | NullPointerException ex) {
                 log.error(ex.getMessage(), ex);
             } finally {
-                // orderChannel.close();
-                if (orderChannel != null) {
-                    orderChannel.getConnection().close();
+                if (consumer != null) {
+                    consumer.shutdown(FIVE_SECOND_IN_MILLISECONDS);
                 }
-                // jobChannel.close();
-                if (jobChannel != null) {
-                    jobChannel.getConnection().close();
+                if (pipeline != null) {
+                    pipeline.shutdown(FIVE_SECOND_IN_MILLISECONDS);
+                    log.info(pipeline.toString());
                 }
-                // vmChannel.close();
-                if (vmChannel != null) {
-                    vmChannel.getConnection().close();
+                if (consumer != null) {
+                    consumer.awaitFinished(FIVE_SECOND_IN_MILLISECONDS);
                 }
+                CommonServerTestUtilities.closeChannel(orderChannel);
             }
             return null;
         }
 
+        private static int threads(HierarchicalINIConfiguration settings, String stage) {
+            return settings.getInt(String.format(Constants.COORDINATOR_STAGE_THREADS_FORMAT, stage),
+                    settings.getInt(Constants.COORDINATOR_ORDER_THREADS, StagedPipeline.DEFAULT_PARALLELISM));
+        }
+
+        private void acknowledge(OrderInFlight inFlight) {
+            log.info("acknowledging order for " + inFlight.getJob().getUuid());
+            consumer.finish(inFlight.deliveryTag);
+        }
+
+        private void reject(OrderInFlight inFlight, String stage, Exception cause) {
+            if (inFlight.order == null) {
+                log.error("Could not read order in delivery " + inFlight.deliveryTag + ", it will be quarantined", cause);
+                consumer.quarantine(inFlight.deliveryTag, cause);
+            } else {
+                log.error("Could not " + stage + " order for " + inFlight.getJob().getUuid() + ", it will be retried", cause);
+                consumer.retry(inFlight.deliveryTag, cause);
+            }
+        }
+
         /**
          * Requests a new VM from the VM queue.
          *
-         * @param message
-         *            a JSON representation of a Provision
-         * @return
+         * @param codec codec to encode the request with
+         * @param provision the VM to request
+         * @return completes once the broker has the request
          */
-        private String requestVm(String message) {
+        private CompletableFuture<Void> requestVm(MessageCodec codec, Provision provision) throws IOException, InterruptedException {
 
             // TODO: should save information to persistent storage
 
-            try {
-
-                log.info(" + SENDING VM ORDER! " + queueName + "_vms");
-
-                int messages = vmChannel.queueDeclarePassive(queueName + "_vms").getMessageCount();
-                log.debug("  + VM QUEUE SIZE: " + messages);
-
-                vmChannel.basicPublish("", queueName + "_vms", MessageProperties.PERSISTENT_TEXT_PLAIN,
-                        message.getBytes(StandardCharsets.UTF_8));
-                vmChannel.waitForConfirms();
-
-                log.debug(" + MESSAGE SENT!\n" + message + "\n");
-
-            } catch (IOException | InterruptedException ex) {
-                throw new RuntimeException(ex);
+            log.info(" + SENDING VM ORDER! " + queueName + "_vms");
+            CompletableFuture<Void> confirmed = publisher.publish("", queueName + "_vms", MessageCodecs.properties(codec),
+                    codec.encode(provision));
+            if (log.isDebugEnabled()) {
+                log.debug(" + MESSAGE SENT!\n" + provision.toJSON() + "\n");
             }
-
-            return null;
+            return confirmed;
 
         }
 
@@ -226,35 +270,64 @@ public class Coordinator extends Base {
          * This sends a Job message to the job exchange.
          *
          * @param settings consonance config file
-         * @param message a particular job to schedule
-         * @return
+         * @param codec codec to encode the job with
+         * @param newJob a particular job to schedule
+         * @return completes once the broker has the job
          */
-        private String publishJob(HierarchicalINIConfiguration settings, String exchangeName, String message) {
+        private CompletableFuture<Void> publishJob(HierarchicalINIConfiguration settings, MessageCodec codec, String exchangeName, Job newJob)
+                throws InterruptedException {
 
             try {
-                log.info(" + sending job order! " + queueName + "_jobs");
+                log.info(" + sending job order! " + queueName + CommonServerTestUtilities.JOB_QUEUE_INFIX);
 
-                PostgreSQL db = new PostgreSQL(settings);
-                Job newJob = new Job().fromJSON(message);
-                db.updateJob(newJob.getUuid(), newJob.getVmUuid(), JobState.PENDING);
                 final String routingKey = newJob.getFlavour();
                 // see if a particular queue type exist yet
-                if (!existingJobQueues.contains(routingKey)){
-                    existingJobQueues.add(routingKey);
+                if (existingJobQueues.add(routingKey)) {
+                    final Channel jobChannel = CommonServerTestUtilities.leaseExchange(settings, exchangeName, "direct");
                     final String finalQueueName = CommonServerTestUtilities
-                            .setupQueueOnExchange(jobChannel, queueName + "_jobs", newJob.getFlavour());
+                            .setupQueueOnExchange(jobChannel, queueName + CommonServerTestUtilities.JOB_QUEUE_INFIX, newJob.getFlavour(),
+                                    Job.MAX_PRIORITY);
                     jobChannel.queueBind(finalQueueName, exchangeName, newJob.getFlavour());
                 }
-                jobChannel.basicPublish(exchangeName, newJob.getFlavour() , MessageProperties.PERSISTENT_TEXT_PLAIN,
-                        message.getBytes(StandardCharsets.UTF_8));
+                CompletableFuture<Void> confirmed = publisher.publish(exchangeName, newJob.getFlavour(),
+                        MessageCodecs.properties(codec, newJob.getPriority()), codec.encode(newJob));
 
-                log.debug(" + message sent!\n" + message + "\n");
-                return message;
+                if (log.isDebugEnabled()) {
+                    log.debug(" + message sent!\n" + newJob.toJSON() + "\n");
+                }
+                return confirmed;
             } catch (IOException ex) {
                 throw new RuntimeException(ex);
             }
         }
 
+        /**
+         * One order on its way through the pipeline, the stages fill it in.
+         */
+        private static final class OrderInFlight {
+            private final AMQP.BasicProperties properties;
+            private final byte[] body;
+            private long deliveryTag;
+            private Order order = null;
+            private CompletableFuture<Void> vmRequested = null;
+            private CompletableFuture<Void> jobPublished = null;
+
+            OrderInFlight(AMQP.BasicProperties properties, byte[] body) {
+                this.properties = properties;
+                this.body = body;
+            }
+
+            Job getJob() {
+                return order.getJob();
+            }
+
+            /**
+             * @return the job once the order is decoded, until then the delivery so that decoding is spread over every thread
+             */
+            Object getKey() {
+                return order == null ? Long.valueOf(deliveryTag) : order.getJob().getUuid();
+            }
+        }
     }
 
     /**
@@ -266,6 +339,8 @@ public class Coordinator extends Base {
         static final Logger LOG = LoggerFactory.getLogger(CleanupJobs.class);
         private final boolean endless;
         private String configFile = null;
+        private volatile JobStatusWriter writer = null;
+        private final HeartbeatAssembler assembler = new HeartbeatAssembler(HeartbeatAssembler.DEFAULT_TAIL_LINES);
 
         CleanupJobs(String config, boolean endless) throws InterruptedException {
             this.endless = endless;
@@ -273,77 +348,103 @@ public class Coordinator extends Base {
         }
 
         @Override
-        public Void call() throws IOException, TimeoutException {
+        public Void call() throws IOException, InterruptedException {
             Channel resultsChannel = null;
+            KeyOrderedConsumer<Status> consumer = null;
             try {
 
                 HierarchicalINIConfiguration settings = CommonTestUtilities.parseConfig(configFile);
                 String queueName = settings.getString(Constants.RABBIT_QUEUE_NAME);
-                final String resultQueueName = queueName + "_results";
+                final String resultsExchange = ResultRoutes.exchange(queueName);
 
                 // read from
-                resultsChannel = CommonServerTestUtilities.setupExchange(settings, resultQueueName);
+                resultsChannel = CommonServerTestUtilities.setupExchange(settings, resultsExchange, ResultRoutes.EXCHANGE_TYPE);
                 // this declares a queue exchange where multiple consumers get the same message:
-                // https://www.rabbitmq.com/tutorials/tutorial-three-java.html
+                // https://www.rabbitmq.com/tutorials/tutorial-five-java.html
                 String resultsQueue = CommonServerTestUtilities.setupQueueOnExchange(resultsChannel, queueName, "CleanupJobs");
-                resultsChannel.queueBind(resultsQueue, resultQueueName, "");
-                QueueingConsumer resultsConsumer = new QueueingConsumer(resultsChannel);
-                resultsChannel.basicConsume(resultsQueue, false, resultsConsumer);
+                // lost jobs are announced by FlagJobs, this side has no need to hear about them
+                final StatusState[] handled = { StatusState.SUCCESS, StatusState.RUNNING, StatusState.FAILED, StatusState.PENDING };
+                for (StatusState state : handled) {
+                    resultsChannel.queueBind(resultsQueue, resultsExchange, ResultRoutes.jobUpdates(state));
+                }
+                resultsChannel.queueBind(resultsQueue, resultsExchange, ResultRoutes.HEARTBEATS);
+                // status changes are written behind in batches, so let enough deliveries through to fill a batch
+                final long flushMillis = settings.getLong(Constants.COORDINATOR_STATUS_FLUSH_MILLIS, JobStatusWriter.DEFAULT_FLUSH_MILLIS);
+                final int batchSize = settings.getInt(Constants.COORDINATOR_STATUS_BATCH_SIZE, JobStatusWriter.DEFAULT_BATCH_SIZE);
+                resultsChannel.basicQos(settings.getInt(Constants.COORDINATOR_RESULT_PREFETCH, 2 * batchSize));
+
+                // a status replayed later could undo a newer one, so statuses that cannot be handled are quarantined without retries
+                final RetryTopology quarantine = new RetryTopology(resultsQueue, 0);
+                quarantine.declare(resultsChannel);
 
                 // writes to DB as well
                 PostgreSQL db = new PostgreSQL(settings);
-
-                // TODO: need threads that each read from orders and another that reads results
+                // results for different jobs are read in parallel, the writer keeps the newest state per job
+                consumer = new KeyOrderedConsumer<>(resultsChannel,
+                        settings.getInt(Constants.COORDINATOR_RESULT_THREADS, KeyOrderedConsumer.DEFAULT_THREADS), "coordinator-results",
+                        (properties, body) -> MessageCodecs.decode(properties, body, Status.class), Status::getJobUuid,
+                        (deliveryTag, status) -> {
+                            handleResult(deliveryTag, status);
+                            // finished by the writer once the change is in the database
+                            return false;
+                        }, quarantine);
+                writer = new JobStatusWriter(db, consumer::finish, flushMillis, batchSize);
+                resultsChannel.basicConsume(resultsQueue, false, consumer);
+
+                // this thread only flushes, the consumer's threads fill the writer
+                boolean stopped;
                 do {
-
-                    QueueingConsumer.Delivery delivery = resultsConsumer.nextDelivery(FIVE_SECOND_IN_MILLISECONDS);
-                    if (delivery == null) {
-                        continue;
+                    stopped = consumer.awaitStop(Math.min(FIVE_SECOND_IN_MILLISECONDS, Math.max(1, writer.millisUntilFlush())));
+                    if (writer.isFlushDue()) {
+                        writer.flush();
                     }
-                    // jchannel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
-                    String message = new String(delivery.getBody(), StandardCharsets.UTF_8);
-                    LOG.debug(" [x] RECEIVED RESULT MESSAGE - Coordinator: '" + message + "'");
-
-                    // now parse it as JSONObj
-                    Status status = new Status().fromJSON(message);
-
-                    // now update that DB record to be exited
-                    // this is actually finishing the VM and not the work
-                    if (status.getState() == StatusState.SUCCESS && CommonServerTestUtilities.JOB_MESSAGE_TYPE.equals(status.getType())) {
-                        // this is where it reaps, the job status message also contains the UUID for the VM
-                        LOG.info("\n\n\nFINISHING THE JOB!!!!!!!!!!!!!!!\n\n");
-                        db.finishJob(status.getJobUuid());
-                    } else if ((status.getState() == StatusState.RUNNING || status.getState() == StatusState.FAILED || status.getState() == StatusState.PENDING)
-                            && CommonServerTestUtilities.JOB_MESSAGE_TYPE.equals(status.getType())) {
-                        // this is where it reaps, the job status message also contains the UUID for the VM
-                        // convert from StatusState to JobState
-                        JobState valueOf = JobState.valueOf(status.getState().toString());
-                        db.updateJob(status.getJobUuid(), status.getVmUuid(), valueOf);
-                    }
-
-                    // TODO: deal with other situations here like
-
-                    /*
-                     * try { // pause Thread.sleep(5000); } catch (InterruptedException ex) { //log.error(ex.toString()); }
-                     */
-                    resultsChannel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
-                } while (endless);
+                } while (endless && !stopped);
+                consumer.shutdown(FIVE_SECOND_IN_MILLISECONDS);
+                writer.flush();
 
             } catch (IOException ex) {
                 throw new RuntimeException(ex);
-            } catch (InterruptedException | ShutdownSignalException | ConsumerCancelledException ex) {
+            } catch (InterruptedException | ShutdownSignalException ex) {
                 throw new RuntimeException(ex);
             } finally {
-                if (resultsChannel != null) {
-                    resultsChannel.close();
-                    resultsChannel.getConnection().close();
+                if (consumer != null) {
+                    consumer.shutdown(FIVE_SECOND_IN_MILLISECONDS);
                 }
+                CommonServerTestUtilities.closeChannel(resultsChannel);
             }
             // log.error(ex.toString());
             // log.error(ex.toString());
             return null;
         }
 
+        private void handleResult(long deliveryTag, Status status) {
+            LOG.debug(" [x] RECEIVED RESULT MESSAGE - Coordinator: '" + status.toJSON() + "'");
+
+            // now update that DB record to be exited
+            // this is actually finishing the VM and not the work
+            if (status.getState() == StatusState.SUCCESS && CommonServerTestUtilities.JOB_MESSAGE_TYPE.equals(status.getType())) {
+                // this is where it reaps, the job status message also contains the UUID for the VM
+                LOG.info("\n\n\nFINISHING THE JOB!!!!!!!!!!!!!!!\n\n");
+                assembler.forget(status.getJobUuid());
+                writer.add(deliveryTag, status.getJobUuid(), null, JobState.SUCCESS);
+            } else if (status.getState() == StatusState.RUNNING && CommonServerTestUtilities.JOB_MESSAGE_TYPE.equals(status.getType())) {
+                // heartbeats only carry the lines the worker has not had confirmed yet, fold them into the tail we keep per job
+                Status assembled = assembler.assemble(status);
+                writer.add(deliveryTag, status.getJobUuid(), status.getVmUuid(), JobState.RUNNING, assembled.getStdout(), assembled.getStderr());
+            } else if ((status.getState() == StatusState.FAILED || status.getState() == StatusState.PENDING)
+                    && CommonServerTestUtilities.JOB_MESSAGE_TYPE.equals(status.getType())) {
+                if (status.getState() == StatusState.FAILED) {
+                    assembler.forget(status.getJobUuid());
+                }
+                // convert from StatusState to JobState
+                JobState valueOf = JobState.valueOf(status.getState().toString());
+                writer.add(deliveryTag, status.getJobUuid(), status.getVmUuid(), valueOf);
+            } else {
+                // TODO: deal with other situations here
+                writer.acknowledgeLater(deliveryTag);
+            }
+        }
+
     }
 
     /**
@@ -361,60 +462,63 @@ public class Coordinator extends Base {
         }
 
         @Override
-        public Void call() {
+        public Void call() throws IOException, TimeoutException {
             HierarchicalINIConfiguration settings = CommonTestUtilities.parseConfig(configFile);
 
             // writes to DB as well
             PostgreSQL db = new PostgreSQL(settings);
+            String queueName = settings.getString(Constants.RABBIT_QUEUE_NAME);
+            final String resultsExchange = ResultRoutes.exchange(queueName);
 
-            // TODO: need threads that each read from orders and another that reads results
-            do {
-
-                try {
-                    // checks the jobs in the database and sees if any have become "lost"
-                    List<Job> jobs = db.getJobs(JobState.RUNNING);
-                    log.info("CHECKING FOR LOST JOBS!!: Number of jobs: "+jobs.size());
-
-                    // how long before we call something lost?
-                    // it is tempting to un-lose jobs here, but the problem is that we only have the update timestamp and that is modified when
-                    // jobs are lost, meaning they instantly flip back
-                    long secBeforeLost = settings.getLong(Constants.COORDINATOR_SECONDS_BEFORE_LOST);
-
-                    log.info("CHECKING FOR LOST JOBS 2!!: Number of jobs: "+jobs.size());
-
-                    for (Job job : jobs) {
-                        Timestamp nowTs = new Timestamp(new Date().getTime());
-                        Timestamp updateTs = job.getUpdateTimestamp();
-
-                        log.info("TIMES!!: nowTs: " + nowTs.toString() + " updateTs: " + updateTs.toString());
-
-                        long diff = nowTs.getTime() - updateTs.getTime();
-                        long diffSec = Math.abs(diff / Base.ONE_SECOND_IN_MILLISECONDS);
-
-                        log.info(job.getUuid() + " DIFF SEC: " + diffSec + " MAX: " + secBeforeLost);
+            try {
+                // lost jobs are announced on the results exchange so that the container provisioner can react to them right away
+                final ConfirmingPublisher publisher = CommonServerTestUtilities.publisherForExchange(settings, resultsExchange,
+                        ResultRoutes.EXCHANGE_TYPE);
+                final MessageCodec codec = MessageCodecs.fromSettings(settings);
+                do {
 
-                        JobState state = job.getState();
-                        // if this is true need to mark the job as lost!
-                        if (state == JobState.RUNNING && diffSec > secBeforeLost) {
-                            // it must be lost
-                            log.error("Running job " + job.getUuid().toString() + " not seen in " + diffSec + " > " + secBeforeLost + " MARKING AS LOST!");
-                            db.updateJob(job.getUuid(), job.getVmUuid(), JobState.LOST);
+                    // if the check fails, try again shortly
+                    long waitMillis = Base.FIVE_SECOND_IN_MILLISECONDS;
+                    try {
+                        // how long before we call something lost?
+                        // liveness comes from the job_heartbeat table, falling back to the last state change for jobs that have not sent a
+                        // heartbeat yet
+                        long secBeforeLost = settings.getLong(Constants.COORDINATOR_SECONDS_BEFORE_LOST);
+                        final Duration maxSilence = Duration.ofSeconds(secBeforeLost);
+                        List<JobStateUpdate> lostJobs = db.markLostJobs(maxSilence);
+                        log.info("CHECKING FOR LOST JOBS!!: Number of jobs marked as lost: " + lostJobs.size());
+
+                        List<CompletableFuture<Void>> announced = new ArrayList<>();
+                        for (JobStateUpdate lost : lostJobs) {
+                            log.error("Running job " + lost.getUuid() + " not seen in over " + secBeforeLost + " seconds, MARKED AS LOST!");
+                            Status status = new Status(lost.getVmUuid(), lost.getUuid(), StatusState.LOST,
+                                    CommonServerTestUtilities.LOST_JOB_MESSAGE_TYPE, "job not seen in over " + secBeforeLost + " seconds", null);
+                            // the flavour is not known here, bindings for lost jobs match with or without it
+                            announced.add(publisher.publish(resultsExchange, ResultRoutes.jobKey(status, null), MessageCodecs.properties(codec),
+                                    codec.encode(status)));
                         }
-                    }
+                        // the announcements are confirmed together rather than one round trip each
+                        CompletableFuture.allOf(announced.toArray(new CompletableFuture[announced.size()])).get();
 
-                } catch (Exception e) {
-                    log.info(" ERROR WITH LOST JOB CHECK!!!! "+e.getMessage(), e);
+                        // sleep until the quietest running job could cross the limit rather than scanning on a timer, a job that starts
+                        // running in the meantime cannot be lost any sooner than maxSilence from now
+                        Duration untilNext = db.timeUntilNextLostJob(maxSilence);
+                        waitMillis = untilNext == null ? maxSilence.toMillis() : Math.min(untilNext.toMillis(), maxSilence.toMillis());
+                        waitMillis = Math.max(waitMillis, Base.ONE_SECOND_IN_MILLISECONDS);
+                    } catch (Exception e) {
+                        log.info(" ERROR WITH LOST JOB CHECK!!!! " + e.getMessage(), e);
 
-                }
+                    }
 
-                try {
                     // pause
-                    Thread.sleep(Base.FIVE_SECOND_IN_MILLISECONDS);
-                } catch (InterruptedException ex) {
-                    throw new RuntimeException(ex);
-                }
+                    if (endless) {
+                        Thread.sleep(waitMillis);
+                    }
 
-            } while (endless);
+                } while (endless);
+            } catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
             return null;
         }
 
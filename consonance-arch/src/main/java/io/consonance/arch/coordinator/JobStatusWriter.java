@@ -0,0 +1,199 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.coordinator;
+
+import io.consonance.arch.beans.JobState;
+import io.consonance.arch.beans.JobStateUpdate;
+import io.consonance.arch.persistence.PostgreSQL;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongConsumer;
+
+/**
+ * Write-behind buffer for job state changes coming off the results exchange.
+ *
+ * Updates are coalesced per job uuid so that only the newest state for each job is written. A flush writes the buffer as one JDBC
+ * batch in a single transaction and only then finishes every delivery seen so far, which lets the consumer acknowledge them. If the
+ * flush fails nothing is finished, the changes stay buffered and the next flush is put off with an exponential backoff. If the process
+ * stops before a flush succeeds, RabbitMQ redelivers the messages once the channel goes away.
+ *
+ * The consumer's worker threads add to the writer while the consuming thread flushes it, callers must add the changes for one job in
+ * order. The database write happens outside of the writer's monitor so that adding is never held up by a slow transaction.
+ */
+final class JobStatusWriter {
+
+    static final long DEFAULT_FLUSH_MILLIS = 1000;
+    static final int DEFAULT_BATCH_SIZE = 500;
+    static final long MIN_RETRY_MILLIS = 1000;
+    static final long MAX_RETRY_MILLIS = 60000;
+
+    private static final Logger LOG = LoggerFactory.getLogger(JobStatusWriter.class);
+
+    private final PostgreSQL db;
+    private final LongConsumer finisher;
+    private final long flushMillis;
+    private final int maxBatchSize;
+    private final Map<String, JobStateUpdate> pending = new LinkedHashMap<>();
+    /** deliveries seen but not yet finished */
+    private final List<Long> deliveryTags = new ArrayList<>();
+    /** when the oldest unfinished delivery arrived */
+    private long windowStart;
+    /** how long to wait after the last failed flush, zero while flushes succeed */
+    private long retryMillis = 0;
+    /** when the next flush may be tried after a failure */
+    private long retryAt = 0;
+    /** only one flush at a time, held while the database is written without blocking {@link #add} */
+    private final Object flushLock = new Object();
+
+    JobStatusWriter(PostgreSQL db, LongConsumer finisher, long flushMillis, int maxBatchSize) {
+        this.db = db;
+        this.finisher = finisher;
+        this.flushMillis = flushMillis;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Buffer a state change, replacing any earlier change for the same job that has not been flushed yet.
+     *
+     * @param deliveryTag the delivery that carried the change
+     * @param jobUuid the job
+     * @param vmUuid the vm running the job, null to leave it unchanged
+     * @param state the new state
+     */
+    synchronized void add(long deliveryTag, String jobUuid, String vmUuid, JobState state) {
+        add(deliveryTag, jobUuid, vmUuid, state, null, null);
+    }
+
+    /**
+     * Buffer a state change along with the tail of the job's output. A null tail keeps a tail buffered by an earlier change.
+     *
+     * @param deliveryTag the delivery that carried the change
+     * @param jobUuid the job
+     * @param vmUuid the vm running the job, null to leave it unchanged
+     * @param state the new state
+     * @param stdoutTail the last lines of standard output, null to leave them unchanged
+     * @param stderrTail the last lines of standard error, null to leave them unchanged
+     */
+    synchronized void add(long deliveryTag, String jobUuid, String vmUuid, JobState state, String stdoutTail, String stderrTail) {
+        pending.put(jobUuid, coalesce(pending.get(jobUuid), new JobStateUpdate(jobUuid, vmUuid, state, stdoutTail, stderrTail)));
+        acknowledgeLater(deliveryTag);
+    }
+
+    private static JobStateUpdate coalesce(JobStateUpdate earlier, JobStateUpdate later) {
+        if (earlier == null) {
+            return later;
+        }
+        final String stdout = later.getStdoutTail() == null ? earlier.getStdoutTail() : later.getStdoutTail();
+        final String stderr = later.getStderrTail() == null ? earlier.getStderrTail() : later.getStderrTail();
+        return new JobStateUpdate(later.getUuid(), later.getVmUuid(), later.getState(), stdout, stderr);
+    }
+
+    /**
+     * Record a delivery that needs no database write so that it is finished with the next flush.
+     *
+     * @param deliveryTag the delivery
+     */
+    synchronized void acknowledgeLater(long deliveryTag) {
+        if (deliveryTags.isEmpty()) {
+            windowStart = System.currentTimeMillis();
+        }
+        deliveryTags.add(deliveryTag);
+    }
+
+    /**
+     * @return how long the caller can wait for more deliveries before a flush is due, zero when it is due now and
+     * {@link Long#MAX_VALUE} when nothing is buffered
+     */
+    synchronized long millisUntilFlush() {
+        if (deliveryTags.isEmpty()) {
+            return Long.MAX_VALUE;
+        }
+        final long now = System.currentTimeMillis();
+        if (retryAt > now) {
+            return retryAt - now;
+        }
+        if (pending.size() >= maxBatchSize) {
+            return 0;
+        }
+        return Math.max(0, windowStart + flushMillis - now);
+    }
+
+    synchronized boolean isFlushDue() {
+        return !deliveryTags.isEmpty() && millisUntilFlush() == 0;
+    }
+
+    /**
+     * Write all buffered state changes in one transaction, then finish the deliveries that carried them. If the write fails, the changes
+     * are kept for the next flush, merged with anything that was added in the meantime.
+     *
+     * @return false if the write failed
+     */
+    boolean flush() {
+        synchronized (flushLock) {
+            final Map<String, JobStateUpdate> flushing;
+            final List<Long> finishing;
+            final long flushingWindowStart;
+            synchronized (this) {
+                if (deliveryTags.isEmpty()) {
+                    return true;
+                }
+                flushing = new LinkedHashMap<>(pending);
+                finishing = new ArrayList<>(deliveryTags);
+                flushingWindowStart = windowStart;
+                pending.clear();
+                deliveryTags.clear();
+            }
+            try {
+                if (!flushing.isEmpty()) {
+                    db.updateJobs(new ArrayList<>(flushing.values()));
+                    LOG.debug("flushed " + flushing.size() + " job state changes");
+                }
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    retryMillis = retryMillis == 0 ? Math.max(MIN_RETRY_MILLIS, flushMillis) : Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+                    retryAt = System.currentTimeMillis() + retryMillis;
+                    LOG.error("Could not write " + flushing.size() + " job state changes, trying again in " + retryMillis + " ms", e);
+                    // changes added while writing are newer than the ones that failed
+                    for (Map.Entry<String, JobStateUpdate> entry : pending.entrySet()) {
+                        flushing.put(entry.getKey(), coalesce(flushing.remove(entry.getKey()), entry.getValue()));
+                    }
+                    pending.clear();
+                    pending.putAll(flushing);
+                    finishing.addAll(deliveryTags);
+                    deliveryTags.clear();
+                    deliveryTags.addAll(finishing);
+                    windowStart = flushingWindowStart;
+                }
+                return false;
+            }
+            synchronized (this) {
+                retryMillis = 0;
+                retryAt = 0;
+            }
+            finishing.forEach(finisher::accept);
+            return true;
+        }
+    }
+}
@@ -19,13 +19,14 @@
 
 package io.consonance.arch.jobGenerator;
 
-import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.MessageProperties;
 import io.consonance.arch.Base;
 import io.consonance.arch.beans.Job;
+import io.consonance.arch.beans.MessageCodec;
+import io.consonance.arch.beans.MessageCodecs;
 import io.consonance.arch.beans.Order;
 import io.consonance.arch.beans.Provision;
 import io.consonance.arch.utils.CommonServerTestUtilities;
+import io.consonance.arch.utils.ConfirmingPublisher;
 import io.consonance.common.CommonTestUtilities;
 import io.consonance.common.Constants;
 import joptsimple.ArgumentAcceptingOptionSpec;
@@ -37,10 +38,12 @@ import org.apache.tools.ant.DirectoryScanner;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Submits orders into the queue system.
@@ -56,7 +59,10 @@ public class JobGenerator extends Base {
     private final String user;
     // variables
     private HierarchicalINIConfiguration settings = null;
-    private Channel jchannel = null;
+    private ConfirmingPublisher publisher = null;
+    private MessageCodec codec = MessageCodecs.JSON;
+    /** orders sent that the broker has not confirmed yet */
+    private final List<CompletableFuture<Void>> unconfirmed = new ArrayList<>();
     private String queueName = null;
     private int currIterations = 0;
 
@@ -108,10 +114,11 @@ public class JobGenerator extends Base {
 
         // CONFIG
         queueName = settings.getString(Constants.RABBIT_QUEUE_NAME);
+        codec = MessageCodecs.fromSettings(settings);
         log.info("queue name: " + queueName);
         try {
             // SETUP QUEUE
-            this.jchannel = CommonServerTestUtilities.setupQueue(settings, queueName + "_orders");
+            this.publisher = CommonServerTestUtilities.publisherForQueue(settings, queueName + "_orders");
         } catch (InterruptedException ex) {
             throw new RuntimeException(ex);
         }
@@ -139,10 +146,11 @@ public class JobGenerator extends Base {
             }
         }
 
+        // every order was sent without waiting, make sure the broker has them all before exiting
         try {
-            jchannel.getConnection().close(FIVE_SECOND_IN_MILLISECONDS);
-        } catch (IOException ex) {
-            log.error(ex.toString());
+            CompletableFuture.allOf(unconfirmed.toArray(new CompletableFuture[unconfirmed.size()])).get();
+        } catch (InterruptedException | ExecutionException ex) {
+            log.error("Not every order reached the broker: " + ex.getMessage(), ex);
         }
 
     }
@@ -156,7 +164,7 @@ public class JobGenerator extends Base {
         Order o = generateNewJob(iniFile, extraFiles);
         // enqueue new job
         if (o != null) {
-            enqueueNewJobs(o.toJSON());
+            enqueueNewJobs(o);
         }
         try {
             // pause
@@ -208,14 +216,21 @@ public class JobGenerator extends Base {
         return newOrder;
     }
 
-    private void enqueueNewJobs(String job) {
+    private void enqueueNewJobs(Order order) {
 
         try {
-            log.info("\nSENDING JOB:\n '" + job + "'\n" + this.jchannel + " \n");
-            this.jchannel.basicPublish("", queueName + "_orders", MessageProperties.PERSISTENT_TEXT_PLAIN,
-                    job.getBytes(StandardCharsets.UTF_8));
-            jchannel.waitForConfirms();
-        } catch (IOException | InterruptedException ex) {
+            log.info("\nSENDING JOB:\n '" + order.toJSON() + "'\n" + this.publisher + " \n");
+            CompletableFuture<Void> confirmed = this.publisher.publish("", queueName + "_orders", MessageCodecs.properties(codec),
+                    codec.encode(order));
+            confirmed.whenComplete((ignored, error) -> {
+                if (error != null) {
+                    log.error("Order was not confirmed by the broker: " + error.getMessage(), error);
+                }
+            });
+            // in endless mode this would grow forever, only keep what is still in flight
+            unconfirmed.removeIf(CompletableFuture::isDone);
+            unconfirmed.add(confirmed);
+        } catch (InterruptedException | IOException ex) {
             log.error(ex.toString());
         }
 
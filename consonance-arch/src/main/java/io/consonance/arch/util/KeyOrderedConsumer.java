@@ -0,0 +1,404 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.util;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+import io.consonance.arch.utils.AmqpConnectionManager;
+import io.consonance.arch.utils.RetryTopology;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Push-based consumer that hands deliveries to a fixed number of worker threads.
+ *
+ * Messages with the same key always go to the same thread, so the messages for one job are handled in the order they arrived while
+ * messages for different jobs are handled in parallel. Acknowledgements are coalesced, once every delivery up to some tag is finished
+ * they are acknowledged together with one multiple ack.
+ *
+ * Without a {@link RetryTopology}, a message that cannot be read is dropped and a failed handler puts its message back on the queue and
+ * stops the consumer. With one, unreadable messages are quarantined, failed messages are retried after a delay by the broker and the
+ * consumer keeps going, so one bad message does not hold up the rest.
+ *
+ * @param <T> the decoded message
+ */
+public class KeyOrderedConsumer<T> extends DefaultConsumer {
+
+    public static final int DEFAULT_THREADS = 4;
+    public static final int DEFAULT_PREFETCH = 32;
+
+    private static final Logger LOG = LoggerFactory.getLogger(KeyOrderedConsumer.class);
+
+    /**
+     * Reads a message body, on the connection thread.
+     *
+     * @param <T> the decoded message
+     */
+    @FunctionalInterface
+    public interface Decoder<T> {
+        /**
+         * @param properties properties of the message, they name its codec
+         * @param body the message body
+         * @return the decoded message
+         * @throws IOException if the body cannot be read, the message is rejected without requeueing or quarantined
+         */
+        T decode(AMQP.BasicProperties properties, byte[] body) throws IOException;
+    }
+
+    /**
+     * Handles one message on a worker thread.
+     *
+     * @param <T> the decoded message
+     */
+    @FunctionalInterface
+    public interface Handler<T> {
+        /**
+         * @param deliveryTag the delivery that carried the message
+         * @param message the decoded message
+         * @return true if the delivery is finished, false if the handler will call {@link KeyOrderedConsumer#finish(long)} later
+         * @throws Exception if the message could not be handled, it is requeued and the consumer stops, or retried later
+         */
+        boolean handle(long deliveryTag, T message) throws Exception;
+    }
+
+    private final Decoder<T> decoder;
+    private final Function<T, String> keyFunction;
+    private final Handler<T> handler;
+    private final ExecutorService[] lanes;
+    private final RetryTopology retries;
+    /** deliveries kept for publishing to the retry queues, only with a retry topology */
+    private final Map<Long, Retained> retained = new HashMap<>();
+    /** deliveries handed to a worker thread that are not finished yet */
+    private final SortedSet<Long> outstanding = new TreeSet<>();
+    /** finished deliveries waiting for everything before them to finish */
+    private final SortedSet<Long> unacknowledged = new TreeSet<>();
+    private final CountDownLatch firstDelivery = new CountDownLatch(1);
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final AtomicBoolean shutdown = new AtomicBoolean(false);
+    private volatile Exception failure = null;
+
+    /**
+     * @param channel channel to consume from, set its prefetch with {@link Channel#basicQos(int)}
+     * @param threads number of worker threads
+     * @param name used to name the worker threads
+     * @param decoder turns a message body into a message, messages it cannot read are rejected without requeueing
+     * @param keyFunction the key that messages are kept in order by
+     * @param handler does the work
+     */
+    public KeyOrderedConsumer(Channel channel, int threads, String name, Decoder<T> decoder, Function<T, String> keyFunction,
+            Handler<T> handler) {
+        this(channel, threads, name, decoder, keyFunction, handler, null);
+    }
+
+    /**
+     * @param channel channel to consume from, set its prefetch with {@link Channel#basicQos(int)}
+     * @param threads number of worker threads
+     * @param name used to name the worker threads
+     * @param decoder turns a message body into a message, messages it cannot read are quarantined
+     * @param keyFunction the key that messages are kept in order by
+     * @param handler does the work
+     * @param retries where failed messages go, declared already, null to requeue them instead
+     */
+    public KeyOrderedConsumer(Channel channel, int threads, String name, Decoder<T> decoder, Function<T, String> keyFunction,
+            Handler<T> handler, RetryTopology retries) {
+        super(channel);
+        this.retries = retries;
+        this.decoder = decoder;
+        this.keyFunction = keyFunction;
+        this.handler = handler;
+        this.lanes = new ExecutorService[Math.max(1, threads)];
+        for (int i = 0; i < lanes.length; i++) {
+            final String threadName = name + "-" + i;
+            lanes[i] = Executors.newSingleThreadExecutor(r -> new Thread(r, threadName));
+        }
+    }
+
+    @Override
+    public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+        final long deliveryTag = envelope.getDeliveryTag();
+        firstDelivery.countDown();
+        final T message;
+        final String key;
+        try {
+            message = decoder.decode(properties, body);
+            key = keyFunction.apply(message);
+        } catch (IOException | RuntimeException e) {
+            if (retries == null) {
+                LOG.error("Discarding a message that could not be read: " + new String(body, StandardCharsets.UTF_8), e);
+                settle(deliveryTag, false);
+            } else {
+                LOG.error("Quarantining a message that could not be read: " + e.getMessage(), e);
+                deadLetter(deliveryTag, new Retained(properties, body), e, true);
+            }
+            return;
+        }
+        synchronized (this) {
+            outstanding.add(deliveryTag);
+            if (retries != null) {
+                retained.put(deliveryTag, new Retained(properties, body));
+            }
+        }
+        try {
+            lanes[key == null ? 0 : Math.floorMod(key.hashCode(), lanes.length)].execute(() -> {
+                try {
+                    if (handler.handle(deliveryTag, message)) {
+                        finish(deliveryTag);
+                    }
+                } catch (Exception e) {
+                    if (retries == null) {
+                        LOG.error("Could not handle message for " + key + ", it will be requeued: " + e.getMessage(), e);
+                        failure = e;
+                        settle(deliveryTag, true);
+                        stopped.countDown();
+                    } else {
+                        retry(deliveryTag, e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shutting down, let the broker hand the message to someone else
+            settle(deliveryTag, true);
+        }
+    }
+
+    /**
+     * Mark a delivery as finished, it is acknowledged as soon as every earlier delivery is finished as well.
+     *
+     * @param deliveryTag the delivery
+     */
+    public synchronized void finish(long deliveryTag) {
+        retained.remove(deliveryTag);
+        if (outstanding.remove(deliveryTag)) {
+            unacknowledged.add(deliveryTag);
+            acknowledge();
+        }
+    }
+
+    /**
+     * Give up on a delivery the handler left unfinished, the broker hands the message out again. The consumer keeps running.
+     *
+     * @param deliveryTag the delivery
+     */
+    public synchronized void requeue(long deliveryTag) {
+        if (outstanding.contains(deliveryTag)) {
+            settle(deliveryTag, true);
+        }
+    }
+
+    /**
+     * Give up on a delivery for now, the broker hands the message out again after a delay or quarantines it once it has been retried
+     * too often. Without a retry topology this is the same as {@link #requeue(long)}. The consumer keeps running.
+     *
+     * @param deliveryTag the delivery
+     * @param cause why the delivery failed
+     */
+    public synchronized void retry(long deliveryTag, Throwable cause) {
+        final Retained delivery = retained.remove(deliveryTag);
+        if (delivery == null) {
+            requeue(deliveryTag);
+        } else if (outstanding.contains(deliveryTag)) {
+            deadLetter(deliveryTag, delivery, cause, false);
+        }
+    }
+
+    /**
+     * Give up on a delivery for good, for messages that turn out to be unreadable after the decoder let them through. With a retry
+     * topology the message is quarantined, without one it is rejected without requeueing. The consumer keeps running.
+     *
+     * @param deliveryTag the delivery
+     * @param cause why the message is no good
+     */
+    public synchronized void quarantine(long deliveryTag, Throwable cause) {
+        final Retained delivery = retained.remove(deliveryTag);
+        if (delivery == null) {
+            if (outstanding.contains(deliveryTag)) {
+                LOG.error("Discarding delivery " + deliveryTag + ": " + cause);
+                settle(deliveryTag, false);
+            }
+        } else if (outstanding.contains(deliveryTag)) {
+            deadLetter(deliveryTag, delivery, cause, true);
+        }
+    }
+
+    private synchronized void deadLetter(long deliveryTag, Retained delivery, Throwable cause, boolean poison) {
+        final boolean quarantined;
+        try {
+            quarantined = retries.deadLetter(getChannel(), delivery.properties, delivery.body, String.valueOf(cause), poison);
+        } catch (IOException | ShutdownSignalException e) {
+            // the broker will hand it out again, which is the best we can do without the retry queues
+            LOG.warn("Could not set delivery " + deliveryTag + " aside, requeueing it: " + e.getMessage());
+            settle(deliveryTag, true);
+            return;
+        }
+        if (quarantined) {
+            LOG.error("Quarantined delivery " + deliveryTag + " after " + RetryTopology.attempts(delivery.properties) + " retries: " + cause);
+        } else {
+            LOG.warn("Delivery " + deliveryTag + " will be retried later: " + cause);
+        }
+        // the copy is on its way, the original is done with
+        outstanding.remove(deliveryTag);
+        unacknowledged.add(deliveryTag);
+        acknowledge();
+    }
+
+    private synchronized void settle(long deliveryTag, boolean requeue) {
+        retained.remove(deliveryTag);
+        outstanding.remove(deliveryTag);
+        try {
+            getChannel().basicReject(deliveryTag, requeue);
+        } catch (IOException e) {
+            LOG.warn("Could not reject delivery " + deliveryTag + ": " + e.getMessage());
+        }
+        acknowledge();
+    }
+
+    private void acknowledge() {
+        // wake up awaitFinished, something just left outstanding
+        notifyAll();
+        final SortedSet<Long> ready = outstanding.isEmpty() ? unacknowledged : unacknowledged.headSet(outstanding.first());
+        if (ready.isEmpty()) {
+            return;
+        }
+        try {
+            getChannel().basicAck(ready.last(), true);
+        } catch (IOException e) {
+            // the messages will be redelivered
+            LOG.warn("Could not acknowledge deliveries up to " + ready.last() + ": " + e.getMessage());
+        }
+        ready.clear();
+    }
+
+    @Override
+    public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+        synchronized (this) {
+            // unacknowledged deliveries are requeued by the broker and their tags mean nothing on a new channel
+            outstanding.clear();
+            unacknowledged.clear();
+            retained.clear();
+            notifyAll();
+        }
+        if (sig.isHardError() && !sig.isInitiatedByApplication()) {
+            LOG.warn("Connection lost, consumer " + consumerTag + " will resume once it recovers: " + sig.getMessage());
+        } else {
+            stopped.countDown();
+        }
+    }
+
+    @Override
+    public void handleCancel(String consumerTag) {
+        LOG.warn("Consumer " + consumerTag + " was cancelled by the broker");
+        stopped.countDown();
+    }
+
+    /**
+     * @param timeoutMillis how long to wait
+     * @return true if a message arrived in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitFirstDelivery(long timeoutMillis) throws InterruptedException {
+        return firstDelivery.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Wait until the consumer is cancelled, its channel closes or a handler fails.
+     *
+     * @param timeoutMillis how long to wait
+     * @return true if the consumer stopped, false if the wait timed out
+     * @throws InterruptedException if interrupted while waiting
+     * @throws IOException wrapping the exception of a failed handler
+     */
+    public boolean awaitStop(long timeoutMillis) throws InterruptedException, IOException {
+        final boolean stop = stopped.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        if (failure != null) {
+            throw new IOException(failure);
+        }
+        return stop;
+    }
+
+    /**
+     * Wait for handlers that finish their deliveries later to finish them, call after {@link #shutdown(long)}.
+     *
+     * @param timeoutMillis how long to wait
+     * @return true if every delivery was finished in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized boolean awaitFinished(long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!outstanding.isEmpty() && System.currentTimeMillis() < deadline) {
+            wait(Math.max(1, deadline - System.currentTimeMillis()));
+        }
+        return outstanding.isEmpty();
+    }
+
+    /**
+     * Stop consuming and wait for the worker threads to finish the messages they already have.
+     *
+     * @param timeoutMillis how long to wait for the worker threads
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void shutdown(long timeoutMillis) throws InterruptedException {
+        if (!shutdown.compareAndSet(false, true)) {
+            return;
+        }
+        final String consumerTag = getConsumerTag();
+        if (consumerTag != null && getChannel().isOpen()) {
+            try {
+                getChannel().basicCancel(consumerTag);
+            } catch (IOException | ShutdownSignalException e) {
+                LOG.debug("Could not cancel consumer " + consumerTag, e);
+            }
+        }
+        for (ExecutorService lane : lanes) {
+            // worker threads may have leased publishing channels, hand them back before the threads go away
+            lane.execute(AmqpConnectionManager::releaseThreadChannels);
+            lane.shutdown();
+        }
+        for (ExecutorService lane : lanes) {
+            lane.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static final class Retained {
+        private final AMQP.BasicProperties properties;
+        private final byte[] body;
+
+        Retained(AMQP.BasicProperties properties, byte[] body) {
+            this.properties = properties;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.util;
+
+import io.consonance.arch.utils.AmqpConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Runs items through a chain of stages, each with its own threads and a bounded queue in front of every thread.
+ *
+ * A stage that falls behind fills its queues and then blocks the stage before it, so a backlog waits where it came from rather than in
+ * memory. Like {@link KeyOrderedConsumer}, items with the same key always go to the same thread of a stage, so items for one key leave
+ * every stage in the order they entered it. Each stage keeps count of how long items wait for it and how long it takes with them, see
+ * {@link #getMetrics()}.
+ *
+ * @param <T> the item, stages usually fill it in as it goes
+ */
+public class StagedPipeline<T> {
+
+    public static final int DEFAULT_PARALLELISM = 4;
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private static final Logger LOG = LoggerFactory.getLogger(StagedPipeline.class);
+    private static final double NANOS_PER_MILLISECOND = 1_000_000.0;
+
+    /**
+     * The work of one stage.
+     *
+     * @param <T> the item
+     */
+    @FunctionalInterface
+    public interface Step<T> {
+        /**
+         * @param item the item
+         * @throws Exception if the item cannot go on, it leaves the pipeline through the failure handler
+         */
+        void apply(T item) throws Exception;
+    }
+
+    /**
+     * Told about items that a stage failed on.
+     *
+     * @param <T> the item
+     */
+    @FunctionalInterface
+    public interface FailureHandler<T> {
+        /**
+         * @param item the item
+         * @param stage name of the stage that failed
+         * @param cause why it failed
+         */
+        void failed(T item, String stage, Exception cause);
+    }
+
+    private final String name;
+    private final Function<T, Object> keyFunction;
+    private final Consumer<T> completion;
+    private final FailureHandler<T> failure;
+    private final List<Stage> stages = new CopyOnWriteArrayList<>();
+    private volatile boolean shutdown = false;
+
+    /**
+     * @param name used to name the threads
+     * @param keyFunction the key that items are kept in order by
+     * @param completion told about items that made it through every stage, on the thread of the last stage
+     * @param failure told about items that a stage failed on, on the thread of that stage
+     */
+    public StagedPipeline(String name, Function<T, Object> keyFunction, Consumer<T> completion, FailureHandler<T> failure) {
+        this.name = name;
+        this.keyFunction = keyFunction;
+        this.completion = completion;
+        this.failure = failure;
+    }
+
+    /**
+     * Add a stage after the ones added so far, before the first item is submitted.
+     *
+     * @param stageName names the stage in metrics and logs
+     * @param parallelism number of threads
+     * @param capacity how many items may wait for each thread
+     * @param step the work
+     * @return this pipeline
+     */
+    public StagedPipeline<T> stage(String stageName, int parallelism, int capacity, Step<T> step) {
+        final Stage stage = new Stage(stageName, Math.max(1, parallelism), Math.max(1, capacity), step, stages.size());
+        stages.add(stage);
+        stage.start();
+        return this;
+    }
+
+    /**
+     * Hand an item to the first stage, waiting for room in its queue.
+     *
+     * @param item the item
+     * @throws InterruptedException if interrupted while waiting for room
+     * @throws IllegalStateException if the pipeline has no stages or was shut down
+     */
+    public void submit(T item) throws InterruptedException {
+        if (shutdown || stages.isEmpty()) {
+            throw new IllegalStateException("Pipeline " + name + " is not accepting items");
+        }
+        stages.get(0).put(item);
+    }
+
+    /**
+     * @return the metrics of every stage, in pipeline order
+     */
+    public List<StageMetrics> getMetrics() {
+        final List<StageMetrics> metrics = new ArrayList<>();
+        for (Stage stage : stages) {
+            metrics.add(stage.metrics);
+        }
+        return Collections.unmodifiableList(metrics);
+    }
+
+    /**
+     * Stop taking items and let every stage finish the items it already has, a stage stops once the stage before it has stopped.
+     *
+     * @param timeoutMillis how long to wait for each stage
+     * @return true if every stage finished in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean shutdown(long timeoutMillis) throws InterruptedException {
+        shutdown = true;
+        boolean finished = true;
+        for (Stage stage : stages) {
+            finished &= stage.stop(timeoutMillis);
+        }
+        return finished;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder(name);
+        for (Stage stage : stages) {
+            builder.append("\n  ").append(stage.metrics);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * What one stage has been up to.
+     */
+    public static final class StageMetrics {
+        private final String name;
+        private final List<BlockingQueue<?>> queues;
+        private final LongAdder completed = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private final LongAdder waitNanos = new LongAdder();
+        private final LongAdder workNanos = new LongAdder();
+        private final AtomicLong maxWorkNanos = new AtomicLong();
+
+        StageMetrics(String name, List<BlockingQueue<?>> queues) {
+            this.name = name;
+            this.queues = queues;
+        }
+
+        void record(long queuedAt, long startedAt, long finishedAt, boolean succeeded) {
+            (succeeded ? completed : failed).increment();
+            waitNanos.add(startedAt - queuedAt);
+            workNanos.add(finishedAt - startedAt);
+            maxWorkNanos.accumulateAndGet(finishedAt - startedAt, Math::max);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return items the stage finished with and passed on
+         */
+        public long getCompleted() {
+            return completed.sum();
+        }
+
+        /**
+         * @return items the stage failed on
+         */
+        public long getFailed() {
+            return failed.sum();
+        }
+
+        /**
+         * @return items waiting for the stage right now
+         */
+        public int getQueued() {
+            int queued = 0;
+            for (BlockingQueue<?> queue : queues) {
+                queued += queue.size();
+            }
+            return queued;
+        }
+
+        /**
+         * @return mean time an item waited in the queue of the stage, in milliseconds
+         */
+        public double getMeanWaitMillis() {
+            return mean(waitNanos.sum());
+        }
+
+        /**
+         * @return mean time the stage took with an item, in milliseconds
+         */
+        public double getMeanWorkMillis() {
+            return mean(workNanos.sum());
+        }
+
+        /**
+         * @return longest time the stage took with an item, in milliseconds
+         */
+        public double getMaxWorkMillis() {
+            return maxWorkNanos.get() / NANOS_PER_MILLISECOND;
+        }
+
+        private double mean(long nanos) {
+            final long items = completed.sum() + failed.sum();
+            return items == 0 ? 0 : nanos / NANOS_PER_MILLISECOND / items;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d done, %d failed, %d queued, %.2f ms waiting and %.2f ms working on average, %.2f ms at most",
+                    name, getCompleted(), getFailed(), getQueued(), getMeanWaitMillis(), getMeanWorkMillis(), getMaxWorkMillis());
+        }
+    }
+
+    /**
+     * An item on its way through a stage.
+     */
+    private static final class Entry<T> {
+        private final T item;
+        private final long queuedAt;
+
+        Entry(T item, long queuedAt) {
+            this.item = item;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    private final class Stage {
+        private final String stageName;
+        private final Step<T> step;
+        private final int index;
+        private final List<BlockingQueue<Entry<T>>> lanes = new ArrayList<>();
+        private final List<Thread> threads = new ArrayList<>();
+        private final StageMetrics metrics;
+        /** put on a lane to stop its thread once it has worked through everything before it */
+        private final Entry<T> stop = new Entry<>(null, 0);
+
+        Stage(String stageName, int parallelism, int capacity, Step<T> step, int index) {
+            this.stageName = stageName;
+            this.step = step;
+            this.index = index;
+            for (int i = 0; i < parallelism; i++) {
+                lanes.add(new ArrayBlockingQueue<>(capacity));
+            }
+            this.metrics = new StageMetrics(stageName, Collections.unmodifiableList(new ArrayList<BlockingQueue<?>>(lanes)));
+        }
+
+        void start() {
+            for (int i = 0; i < lanes.size(); i++) {
+                final BlockingQueue<Entry<T>> lane = lanes.get(i);
+                final Thread thread = new Thread(() -> work(lane), name + "-" + stageName + "-" + i);
+                thread.setDaemon(true);
+                threads.add(thread);
+                thread.start();
+            }
+        }
+
+        void put(T item) throws InterruptedException {
+            final Object key = keyFunction.apply(item);
+            lanes.get(key == null ? 0 : Math.floorMod(key.hashCode(), lanes.size())).put(new Entry<>(item, System.nanoTime()));
+        }
+
+        private void work(BlockingQueue<Entry<T>> lane) {
+            try {
+                while (true) {
+                    final Entry<T> entry = lane.take();
+                    if (entry == stop) {
+                        return;
+                    }
+                    final long startedAt = System.nanoTime();
+                    boolean succeeded = false;
+                    try {
+                        step.apply(entry.item);
+                        succeeded = true;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        fail(entry.item, e);
+                        return;
+                    } catch (Exception e) {
+                        fail(entry.item, e);
+                    } finally {
+                        metrics.record(entry.queuedAt, startedAt, System.nanoTime(), succeeded);
+                    }
+                    if (succeeded) {
+                        handOn(entry.item);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                // the step may have leased publishing channels, hand them back before the thread goes away
+                AmqpConnectionManager.releaseThreadChannels();
+            }
+        }
+
+        private void handOn(T item) throws InterruptedException {
+            if (index + 1 < stages.size()) {
+                stages.get(index + 1).put(item);
+            } else {
+                try {
+                    completion.accept(item);
+                } catch (RuntimeException e) {
+                    LOG.error("Could not complete an item leaving " + name, e);
+                }
+            }
+        }
+
+        private void fail(T item, Exception cause) {
+            try {
+                failure.failed(item, stageName, cause);
+            } catch (RuntimeException e) {
+                LOG.error("Could not report the failure of an item in " + name + "-" + stageName, e);
+            }
+        }
+
+        boolean stop(long timeoutMillis) throws InterruptedException {
+            final long deadline = System.currentTimeMillis() + timeoutMillis;
+            for (int i = 0; i < lanes.size(); i++) {
+                final BlockingQueue<Entry<T>> lane = lanes.get(i);
+                // shutting down twice must not wait for room on a lane whose thread is gone or already told to stop
+                if (threads.get(i).isAlive() && !lane.contains(stop)
+                        && !lane.offer(stop, Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+                    LOG.warn("Stage " + stageName + " of " + name + " did not make room to stop in time");
+                }
+            }
+            boolean stopped = true;
+            for (Thread thread : threads) {
+                thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+                stopped &= !thread.isAlive();
+            }
+            return stopped;
+        }
+    }
+}
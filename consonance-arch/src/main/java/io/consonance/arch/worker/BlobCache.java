@@ -0,0 +1,246 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.worker;
+
+import io.consonance.arch.utils.Blobs;
+import io.consonance.common.Constants;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Descriptors and extra files that orders refer to by SHA-256, kept on disk so that content shared by many jobs is fetched from the
+ * webservice once per worker rather than once per job.
+ *
+ * Each blob is a file named for its hash. The cache is bounded in size, the least recently used blobs are deleted once it grows past
+ * the bound. Use is recorded in the modification time of the files, so the order survives a restart of the worker. Everything fetched is
+ * checked against its hash before it is used. Blobs are fetched with the token that the order carries for each of them, so workers need
+ * no credentials for the webservice.
+ */
+class BlobCache {
+
+    static final long DEFAULT_MEGABYTES = 1024;
+    private static final long BYTES_PER_MEGABYTE = 1024L * 1024L;
+    private static final String PARTIAL_SUFFIX = ".partial";
+    private static final int INITIAL_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.75f;
+    private static final Logger LOG = LoggerFactory.getLogger(BlobCache.class);
+
+    private final File directory;
+    private final long maxBytes;
+    private final BlobSource source;
+    /** blob sizes by hash, least recently used first */
+    private final LinkedHashMap<String, Long> blobs = new LinkedHashMap<>(INITIAL_CAPACITY, LOAD_FACTOR, true);
+    private long bytes = 0;
+
+    /**
+     * Where blobs that are not cached yet come from.
+     */
+    @FunctionalInterface
+    interface BlobSource {
+        /**
+         * @param hash the blob
+         * @param token the token for the blob from the order that refers to it
+         * @return the content of the blob
+         * @throws IOException if the blob cannot be fetched
+         */
+        InputStream open(String hash, String token) throws IOException;
+    }
+
+    /**
+     * @param directory where blobs are kept, blobs already there are picked up
+     * @param maxBytes how large the cache may grow
+     * @param source where to fetch blobs that are not cached
+     */
+    BlobCache(File directory, long maxBytes, BlobSource source) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.source = source;
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+            for (File file : files) {
+                if (Blobs.isHash(file.getName())) {
+                    blobs.put(file.getName(), file.length());
+                    bytes += file.length();
+                } else if (file.getName().endsWith(PARTIAL_SUFFIX)) {
+                    // left behind by a fetch that did not finish
+                    FileUtils.deleteQuietly(file);
+                }
+            }
+            evict(null);
+        }
+    }
+
+    /**
+     * Set up the cache of a worker, blobs are fetched from the webservice the worker's config points to.
+     *
+     * @param settings consonance config file
+     * @return the cache
+     */
+    static BlobCache fromSettings(HierarchicalINIConfiguration settings) {
+        final String configuredDirectory = settings.getString(Constants.WORKER_BLOB_CACHE_DIRECTORY);
+        final File directory = configuredDirectory == null ? new File(System.getProperty("user.dir"), "blobs")
+                : new File(configuredDirectory);
+        final long maxBytes = BYTES_PER_MEGABYTE * settings.getLong(Constants.WORKER_BLOB_CACHE_MEGABYTES, DEFAULT_MEGABYTES);
+        return new BlobCache(directory, maxBytes, webservice(settings.getString(Constants.WEBSERVICE_BASE_PATH)));
+    }
+
+    /**
+     * @param basePath base path of the webservice, may be null if it is not configured
+     * @return a source that fetches blobs from the webservice with the token of each blob rather than a user's credentials
+     */
+    static BlobSource webservice(String basePath) {
+        return (hash, token) -> {
+            if (basePath == null) {
+                throw new IOException("No webservice configured to fetch blob " + hash + " from, see " + Constants.WEBSERVICE_BASE_PATH);
+            }
+            final HttpURLConnection connection = (HttpURLConnection) new URL(
+                    (basePath.endsWith("/") ? basePath : basePath + "/") + "blob/" + hash).openConnection();
+            if (token != null) {
+                connection.setRequestProperty(Blobs.TOKEN_HEADER, token);
+            }
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                final int code = connection.getResponseCode();
+                connection.disconnect();
+                throw new IOException("Could not fetch blob " + hash + ": " + code);
+            }
+            return connection.getInputStream();
+        };
+    }
+
+    /**
+     * Write a blob to a file, fetching it first if it is not cached.
+     *
+     * @param hash the blob
+     * @param token the token for the blob from the order that refers to it, only needed if it is not cached
+     * @param target where to write it
+     * @throws IOException if the blob cannot be fetched or written
+     */
+    void copyTo(String hash, String token, File target) throws IOException {
+        if (!Blobs.isHash(hash)) {
+            throw new IOException("Not a blob: " + hash);
+        }
+        if (copyCached(hash, target)) {
+            return;
+        }
+        // fetched without holding the cache so that other jobs can use what is cached meanwhile, two jobs needing the same new blob at
+        // once both fetch it and the second one in wins
+        final File partial = File.createTempFile(hash, PARTIAL_SUFFIX, mkdirs());
+        try {
+            final MessageDigest digest = Blobs.newDigest();
+            try (InputStream in = new DigestInputStream(source.open(hash, token), digest); OutputStream out = new FileOutputStream(partial)) {
+                final long copied = IOUtils.copyLarge(in, out);
+                LOG.info("Fetched blob " + hash + ", " + copied + " bytes");
+            }
+            final String actual = Blobs.hex(digest.digest());
+            if (!hash.equals(actual)) {
+                throw new IOException("Fetched blob " + hash + " has the wrong content, its hash is " + actual);
+            }
+            synchronized (this) {
+                final File file = new File(directory, hash);
+                Files.move(partial.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                final Long replaced = blobs.put(hash, file.length());
+                bytes += file.length() - (replaced == null ? 0 : replaced);
+                evict(hash);
+                FileUtils.copyFile(file, target);
+            }
+        } finally {
+            FileUtils.deleteQuietly(partial);
+        }
+    }
+
+    /**
+     * @return the number of bytes cached
+     */
+    synchronized long size() {
+        return bytes;
+    }
+
+    /**
+     * @param hash a blob
+     * @return true if the blob is cached
+     */
+    synchronized boolean contains(String hash) {
+        return blobs.containsKey(hash);
+    }
+
+    private synchronized boolean copyCached(String hash, File target) throws IOException {
+        if (blobs.get(hash) == null) {
+            return false;
+        }
+        final File file = new File(directory, hash);
+        try {
+            FileUtils.copyFile(file, target);
+        } catch (FileNotFoundException e) {
+            // deleted behind our back, fetch it again
+            bytes -= blobs.remove(hash);
+            return false;
+        }
+        if (!file.setLastModified(System.currentTimeMillis())) {
+            LOG.debug("Could not record use of blob " + hash);
+        }
+        return true;
+    }
+
+    private synchronized File mkdirs() throws IOException {
+        FileUtils.forceMkdir(directory);
+        return directory;
+    }
+
+    /**
+     * Delete the least recently used blobs until the cache fits its bound.
+     *
+     * @param keep a blob to keep even if it does not fit by itself, it is about to be used
+     */
+    private synchronized void evict(String keep) {
+        final Iterator<Map.Entry<String, Long>> oldest = blobs.entrySet().iterator();
+        while (bytes > maxBytes && oldest.hasNext()) {
+            final Map.Entry<String, Long> entry = oldest.next();
+            if (entry.getKey().equals(keep)) {
+                continue;
+            }
+            FileUtils.deleteQuietly(new File(directory, entry.getKey()));
+            bytes -= entry.getValue();
+            oldest.remove();
+            LOG.debug("Evicted blob " + entry.getKey());
+        }
+    }
+}
@@ -20,25 +20,73 @@
 package io.consonance.arch.worker;
 
 import org.apache.commons.exec.LogOutputStream;
-import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * A log output stream to use with Apache Exec.
  *
+ * Lines are read by heartbeat threads while the process is still writing them. The latest lines are kept in a ring buffer that readers
+ * go through without locking, older lines are spilled to a {@link MappedLineFile} so that a chatty workflow cannot run the worker out
+ * of memory. Reading n lines costs the same whether they are in memory or on disk, however many lines came before them. Workers spill
+ * into the directory of the job, so that whatever a crash leaves behind goes when the job directory is cleaned up.
+ *
  * @author sshorser
  *
  */
 public class CollectingLogOutputStream extends LogOutputStream {
-    private final List<String> lines = new LinkedList<>();
+
+    /** lines kept in memory, a power of two */
+    static final int DEFAULT_CAPACITY = 4096;
+    /** what a reader gets for a line that could not be spilled to disk */
+    static final String LOST_LINE = "[line lost, could not spill it to disk]";
+    private static final Logger LOG = LoggerFactory.getLogger(CollectingLogOutputStream.class);
+
+    private final AtomicReferenceArray<String> ring;
+    private final int mask;
+    private final File spillDirectory;
+    private final int spillChunkSize;
+    private volatile MappedLineFile spill = null;
+    private boolean spillFailed = false;
+    /** lines before this are only in the spill file, it moves on before their slots are reused */
+    private volatile int evicted = 0;
+    /** lines written so far */
+    private volatile int count = 0;
+
+    public CollectingLogOutputStream() {
+        this(new File(System.getProperty("java.io.tmpdir")));
+    }
+
+    /**
+     * @param spillDirectory where to spill older lines, created when the first line is spilled
+     */
+    public CollectingLogOutputStream(File spillDirectory) {
+        this(DEFAULT_CAPACITY, spillDirectory, MappedLineFile.DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param capacity lines to keep in memory, rounded up to a power of two
+     * @param spillDirectory where to spill older lines
+     * @param spillChunkSize bytes of the spill file to map at a time
+     */
+    CollectingLogOutputStream(int capacity, File spillDirectory, int spillChunkSize) {
+        this.ring = new AtomicReferenceArray<>(capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1);
+        this.mask = ring.length() - 1;
+        this.spillDirectory = spillDirectory;
+        this.spillChunkSize = spillChunkSize;
+    }
 
     /**
-     * Process a line.
+     * Process a line. Only the thread pumping the output of the process writes, the lock is only there in case close() flushes from
+     * another one.
      * 
      * @param line
      *            - A line.
@@ -46,29 +94,85 @@ public class CollectingLogOutputStream extends LogOutputStream {
      *            - a logging level. Not used in this implementation.
      */
     @Override
-    protected void processLine(String line, int level) {
-        Lock lock = new ReentrantLock();
-        lock.lock();
+    protected synchronized void processLine(String line, int level) {
         // workaround for dcc-storage, break up on carriage returns as well
         String[] splitLines = line.split("\r");
         for(String lineSegment: splitLines){
-            lines.add(lineSegment);
+            add(lineSegment);
+        }
+    }
+
+    private void add(String line) {
+        final int next = count;
+        if (next >= ring.length()) {
+            final int oldest = next - ring.length();
+            spill(ring.get(oldest & mask));
+            evicted = oldest + 1;
+        }
+        ring.set(next & mask, line);
+        count = next + 1;
+    }
+
+    private void spill(String line) {
+        if (spillFailed) {
+            return;
+        }
+        try {
+            if (spill == null) {
+                FileUtils.forceMkdir(spillDirectory);
+                spill = new MappedLineFile(spillDirectory, "consonance-output", spillChunkSize);
+            }
+            spill.append(line);
+        } catch (IOException | RuntimeException e) {
+            // keep collecting, only the older lines are gone
+            LOG.error("Could not spill output to " + spillDirectory + ", older lines will be lost: " + e.getMessage(), e);
+            spillFailed = true;
         }
-        lock.unlock();
     }
 
     /**
-     * Get all the lines concatenated into a single string, with \n between each line.
+     * Get all the lines concatenated into a single string, with \n between each line. This holds the whole log in memory, use
+     * {@link #writeLines(int, int, Appendable)} for anything that may be long.
      * 
      * @return
      */
     public String getAllLinesAsString() {
-        Lock lock = new ReentrantLock();
-        lock.lock();
         // TODO: Add functionality to allow other join characters besides \n ? (not urgent)
-        String allTheLines = StringUtils.join(this.lines, "\n");
-        lock.unlock();
-        return allTheLines;
+        final StringBuilder builder = new StringBuilder();
+        try {
+            writeLines(0, this.count, builder);
+        } catch (IOException e) {
+            // a StringBuilder does not throw
+            throw new IllegalStateException(e);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Write a range of lines with \n between each line, reading no more than the lines kept in memory at a time.
+     *
+     * @param from
+     *            - offset of the first line, inclusive.
+     * @param to
+     *            - offset of the last line, exclusive.
+     * @param out
+     *            - where to write the lines.
+     * @throws IOException if out cannot be written to
+     */
+    public void writeLines(int from, int to, Appendable out) throws IOException {
+        if (from < 0 || from > to || to > this.count) {
+            throw new IndexOutOfBoundsException("lines " + from + " to " + to + " of " + this.count);
+        }
+        boolean first = true;
+        for (int start = from; start < to; start += ring.length()) {
+            for (String line : getLines(start, Math.min(to, start + ring.length()))) {
+                if (!first) {
+                    out.append('\n');
+                }
+                out.append(line);
+                first = false;
+            }
+        }
     }
 
     /**
@@ -79,16 +183,60 @@ public class CollectingLogOutputStream extends LogOutputStream {
      * @return A list of strings.
      */
     public List<String> getLastNLines(int n) {
-        Lock lock = new ReentrantLock();
-        lock.lock();
-        List<String> nlines = new ArrayList<String>(n);
-        int start, end;
-        end = this.lines.size();
-        start = Math.max(0, this.lines.size() - n);
-        if (end > start && start >= 0) {
-            nlines = this.lines.subList(start, end);
+        if (n <= 0) {
+            return new ArrayList<>();
+        }
+        final int end = this.count;
+        return getLines(Math.max(0, end - n), end);
+    }
+
+    /**
+     * Get the number of lines collected so far, which is also the offset of the next line.
+     *
+     * @return the number of lines.
+     */
+    public int getLineCount() {
+        return this.count;
+    }
+
+    /**
+     * Get a range of lines by their offset.
+     *
+     * @param from
+     *            - offset of the first line, inclusive.
+     * @param to
+     *            - offset of the last line, exclusive.
+     * @return A copy of the lines in the range.
+     */
+    public List<String> getLines(int from, int to) {
+        if (from < 0 || from > to || to > this.count) {
+            throw new IndexOutOfBoundsException("lines " + from + " to " + to + " of " + this.count);
+        }
+        final String[] lines = new String[to - from];
+        for (int i = Math.max(from, this.evicted); i < to; i++) {
+            lines[i - from] = ring.get(i & mask);
+        }
+        // a slot is only reused after its line was spilled, anything that moved on while we were reading is on disk by now
+        final int spilled = Math.min(to, this.evicted);
+        final MappedLineFile spillFile = this.spill;
+        for (int i = from; i < spilled; i++) {
+            lines[i - from] = spillFile != null && i < spillFile.size() ? spillFile.get(i) : LOST_LINE;
+        }
+        return new ArrayList<>(Arrays.asList(lines));
+    }
+
+    /**
+     * Flush what is left of the output and delete the spill file, lines already spilled can still be read.
+     *
+     * @throws IOException if the last line cannot be flushed
+     */
+    @Override
+    public void close() throws IOException {
+        super.close();
+        synchronized (this) {
+            if (spill != null) {
+                spill.close();
+            }
         }
-        lock.unlock();
-        return nlines;
     }
 }
@@ -0,0 +1,203 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.worker;
+
+import io.consonance.arch.beans.Job;
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The directory a job runs in. Everything the job needs is written into it by {@link #stage}, which can happen while another job is
+ * still running since nothing outside the directory is touched until {@link #install()}.
+ *
+ * Extra files with an absolute path go where the job expects them. Extra files with a relative path are kept under the files directory
+ * of the job rather than the working directory of the worker, where jobs running side by side would overwrite each other's copies.
+ */
+class JobWorkspace {
+
+    /** where dockstore-launcher provisions inputs and outputs */
+    static final String LAUNCHER_WORKING_DIRECTORY = "working-directory";
+    private static final String EXTRA_FILES_DIRECTORY = "extra-files";
+    /** where extra files with a relative path end up */
+    static final String RELATIVE_FILES_DIRECTORY = "files";
+    /** where output that does not fit in memory is spilled while the job runs */
+    static final String OUTPUT_DIRECTORY = "output";
+
+    private final File directory;
+    private final File launcherConfig;
+    private final File imageDescriptor;
+    private final File runDescriptor;
+    /** staged copies of the extra files, by where the job expects them */
+    private final Map<File, File> extraFiles = new LinkedHashMap<>();
+
+    private JobWorkspace(File directory) {
+        this.directory = directory;
+        this.launcherConfig = new File(directory, "cwl-launcher.config");
+        this.imageDescriptor = new File(directory, "image-descriptor.cwl");
+        this.runDescriptor = new File(directory, "run-descriptor.json");
+    }
+
+    /**
+     * Write out the descriptors, the dockstore-launcher config and the extra files of a job into a directory of its own.
+     *
+     * @param job the job to stage
+     * @param jobDirectory where each job gets a directory, named for its uuid
+     * @param launcherTemplate dockstore-launcher config shared by all jobs, may not exist
+     * @return the staged workspace
+     * @throws IOException if a file cannot be written
+     * @throws ConfigurationException if the launcher config cannot be read or written
+     */
+    static JobWorkspace stage(Job job, File jobDirectory, File launcherTemplate) throws IOException, ConfigurationException {
+        return stage(job, jobDirectory, launcherTemplate, null);
+    }
+
+    /**
+     * Write out the descriptors, the dockstore-launcher config and the extra files of a job into a directory of its own, taking the ones
+     * the job refers to by hash from a blob cache.
+     *
+     * @param job the job to stage
+     * @param jobDirectory where each job gets a directory, named for its uuid
+     * @param launcherTemplate dockstore-launcher config shared by all jobs, may not exist
+     * @param blobs where to get content the job refers to by hash, may be null if it carries everything inline
+     * @return the staged workspace
+     * @throws IOException if a file cannot be written or a blob cannot be fetched
+     * @throws ConfigurationException if the launcher config cannot be read or written
+     */
+    static JobWorkspace stage(Job job, File jobDirectory, File launcherTemplate, BlobCache blobs)
+            throws IOException, ConfigurationException {
+        final JobWorkspace workspace = new JobWorkspace(new File(jobDirectory, job.getUuid()));
+        try {
+            FileUtils.forceMkdir(workspace.directory);
+            writeLauncherConfig(launcherTemplate, workspace.directory);
+            final Map<String, String> tokens = job.getBlobTokens() == null ? Collections.emptyMap() : job.getBlobTokens();
+            write(workspace.imageDescriptor, job.getContainerImageDescriptor(), job.getContainerImageDescriptorHash(), tokens, blobs);
+            write(workspace.runDescriptor, job.getContainerRuntimeDescriptor(), job.getContainerRuntimeDescriptorHash(), tokens, blobs);
+            int i = 0;
+            for (Map.Entry<String, Job.ExtraFile> entry : job.getExtraFiles().entrySet()) {
+                final File staged = new File(new File(workspace.directory, EXTRA_FILES_DIRECTORY), String.valueOf(i++));
+                write(staged, entry.getValue().getContents(), entry.getValue().getContentsHash(), tokens, blobs);
+                workspace.extraFiles.put(workspace.resolve(entry.getKey()), staged);
+            }
+        } catch (IOException | ConfigurationException e) {
+            workspace.delete();
+            throw e;
+        }
+        return workspace;
+    }
+
+    /**
+     * @param path where a job expects an extra file
+     * @return the file to install it to, relative paths are taken relative to the files directory of the job
+     * @throws IOException if a relative path points outside of the files directory
+     */
+    private File resolve(String path) throws IOException {
+        final File file = new File(path);
+        if (file.isAbsolute()) {
+            return file;
+        }
+        final File files = new File(directory, RELATIVE_FILES_DIRECTORY).getCanonicalFile();
+        final File resolved = new File(files, path).getCanonicalFile();
+        if (!resolved.toPath().startsWith(files.toPath())) {
+            throw new IOException("Extra file " + path + " is outside of the files directory of the job");
+        }
+        return resolved;
+    }
+
+    private static void write(File file, String contents, String hash, Map<String, String> tokens, BlobCache blobs)
+            throws IOException {
+        if (contents == null && hash != null) {
+            if (blobs == null) {
+                throw new IOException("No blob cache to get " + hash + " from for " + file.getName());
+            }
+            blobs.copyTo(hash, tokens.get(hash), file);
+        } else {
+            FileUtils.writeStringToFile(file, contents, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Write the dockstore-launcher config for one job, pointing its working directory into the directory of the job.
+     *
+     * @param template config shared by all jobs, may not exist
+     * @param jobWorkDir directory of the job
+     * @return the config for the job
+     * @throws ConfigurationException if the template cannot be read or the config cannot be written
+     */
+    static File writeLauncherConfig(File template, File jobWorkDir) throws ConfigurationException {
+        final HierarchicalINIConfiguration config = template.exists() ? new HierarchicalINIConfiguration(template)
+                : new HierarchicalINIConfiguration();
+        final String sharedWorkingDirectory = config.getString(LAUNCHER_WORKING_DIRECTORY);
+        config.setProperty(LAUNCHER_WORKING_DIRECTORY, sharedWorkingDirectory == null ? new File(jobWorkDir, "datastore").getAbsolutePath()
+                : new File(sharedWorkingDirectory, jobWorkDir.getName()).getAbsolutePath());
+        final File launcherConfig = new File(jobWorkDir, "cwl-launcher.config");
+        config.save(launcherConfig);
+        return launcherConfig;
+    }
+
+    /**
+     * Put the extra files where the job expects them, right before it starts.
+     *
+     * @throws IOException if a file cannot be copied
+     */
+    void install() throws IOException {
+        for (Map.Entry<File, File> entry : extraFiles.entrySet()) {
+            FileUtils.copyFile(entry.getValue(), entry.getKey());
+        }
+    }
+
+    /**
+     * Remove the directory of the job, the output has gone where the run descriptor said.
+     */
+    void delete() {
+        FileUtils.deleteQuietly(directory);
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    File getFilesDirectory() {
+        return new File(directory, RELATIVE_FILES_DIRECTORY);
+    }
+
+    File getOutputDirectory() {
+        return new File(directory, OUTPUT_DIRECTORY);
+    }
+
+    File getLauncherConfig() {
+        return launcherConfig;
+    }
+
+    File getImageDescriptor() {
+        return imageDescriptor;
+    }
+
+    File getRunDescriptor() {
+        return runDescriptor;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.worker;
+
+import com.rabbitmq.client.AMQP;
+import io.consonance.arch.Base;
+import io.consonance.arch.beans.LogChunk;
+import io.consonance.arch.beans.MessageCodec;
+import io.consonance.arch.beans.MessageCodecs;
+import io.consonance.arch.persistence.PostgreSQL;
+import io.consonance.arch.utils.ConfirmingPublisher;
+import io.consonance.arch.utils.LogRoutes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.function.IntSupplier;
+
+/**
+ * Publishes the output of a running job to the log exchange in batches, for clients following the job live.
+ *
+ * Each pass sends the lines written since the last one, at most {@link #MAX_LINES_PER_CHUNK} to a chunk. Chunks are sent once and not
+ * written to disk by the broker, a follower that misses one can tell from the sequence numbers and the lines still reach the job log with
+ * the heartbeats. {@link #finish()} sends what is left, marked as the last chunk of each stream.
+ */
+class LogStreamer implements Runnable {
+
+    static final double DEFAULT_DELAY = 1.0;
+    static final int MAX_LINES_PER_CHUNK = 1000;
+    private static final Logger LOG = LoggerFactory.getLogger(LogStreamer.class);
+
+    private final ConfirmingPublisher publisher;
+    private final String exchange;
+    private final MessageCodec codec;
+    private final AMQP.BasicProperties properties;
+    private final String jobUuid;
+    private final String vmUuid;
+    private final WorkflowRunner source;
+    private final long delayMillis;
+    private long sequence = 0;
+    private int sentStdOut = 0;
+    private int sentStdErr = 0;
+    private boolean finished = false;
+
+    /**
+     * @param publisher publisher to send chunks with, the log exchange must exist
+     * @param exchange the log exchange
+     * @param codec codec to encode chunks with
+     * @param jobUuid the job
+     * @param vmUuid the vm running the job
+     * @param source where the output comes from
+     * @param secondsDelay how long to collect lines for before sending them
+     */
+    LogStreamer(ConfirmingPublisher publisher, String exchange, MessageCodec codec, String jobUuid, String vmUuid, WorkflowRunner source,
+            double secondsDelay) {
+        this.publisher = publisher;
+        this.exchange = exchange;
+        this.codec = codec;
+        this.properties = MessageCodecs.transientProperties(codec);
+        this.jobUuid = jobUuid;
+        this.vmUuid = vmUuid;
+        this.source = source;
+        this.delayMillis = (long) (Base.ONE_SECOND_IN_MILLISECONDS * secondsDelay);
+    }
+
+    @Override
+    public void run() {
+        LOG.info("streaming output of " + jobUuid + " every " + delayMillis + " ms");
+        try {
+            while (!Thread.interrupted()) {
+                Thread.sleep(delayMillis);
+                publishNewLines(false);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Send the lines that are left and tell followers there are no more, once the job is done.
+     */
+    void finish() {
+        publishNewLines(true);
+    }
+
+    private synchronized void publishNewLines(boolean last) {
+        if (finished) {
+            return;
+        }
+        finished = last;
+        sentStdOut = publish(PostgreSQL.LOG_STREAM_STDOUT, sentStdOut, source::getStdOutLineCount, source::getStdOutLines, last);
+        sentStdErr = publish(PostgreSQL.LOG_STREAM_STDERR, sentStdErr, source::getStdErrLineCount, source::getStdErrLines, last);
+    }
+
+    private int publish(String stream, int sent, IntSupplier lineCount, LineRange lines, boolean last) {
+        final int end = lineCount.getAsInt();
+        int from = sent;
+        do {
+            final int to = Math.min(end, from + MAX_LINES_PER_CHUNK);
+            if (to > from || last) {
+                final LogChunk chunk = new LogChunk(jobUuid, vmUuid, stream, ++sequence, from, to > from ? lines.get(from, to) : "",
+                        last && to == end);
+                try {
+                    publisher.publish(exchange, LogRoutes.jobKey(jobUuid), properties, codec.encode(chunk))
+                            .whenComplete((ignored, error) -> {
+                                if (error != null) {
+                                    LOG.debug("Could not stream output of " + jobUuid + ": " + error.getMessage());
+                                }
+                            });
+                } catch (IOException e) {
+                    LOG.debug("Could not stream output of " + jobUuid + ": " + e.getMessage());
+                } catch (InterruptedException e) {
+                    // the lines still reach the job log with the heartbeats, followers only miss them live
+                    Thread.currentThread().interrupt();
+                    return end;
+                }
+            }
+            from = to;
+        } while (from < end);
+        return end;
+    }
+
+    /**
+     * Lines of one stream of output.
+     */
+    @FunctionalInterface
+    private interface LineRange {
+        String get(int from, int to);
+    }
+}
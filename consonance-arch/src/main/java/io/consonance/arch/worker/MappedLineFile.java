@@ -0,0 +1,147 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.worker;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An append-only file of lines, mapped into memory a chunk at a time.
+ *
+ * Each line is stored as its length followed by its UTF-8 bytes, and a second file holds where each line starts so that any line can be
+ * read without going through the ones before it. One thread appends while any number of threads read the lines it has already appended.
+ */
+final class MappedLineFile implements Closeable {
+
+    static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int CHUNK_SHIFT = 32;
+    private static final long OFFSET_MASK = 0xFFFFFFFFL;
+
+    private final File dataFile;
+    private final File indexFile;
+    private final FileChannel data;
+    private final FileChannel index;
+    private final int chunkSize;
+    private final List<MappedByteBuffer> dataChunks = new CopyOnWriteArrayList<>();
+    private final List<MappedByteBuffer> indexChunks = new CopyOnWriteArrayList<>();
+    /** bytes of the data file mapped so far */
+    private long dataMapped = 0;
+    private volatile int size = 0;
+
+    /**
+     * Create the file, it is deleted again on {@link #close()}.
+     *
+     * @param directory where to put the file
+     * @param prefix start of the file name
+     * @param chunkSize bytes to map at a time, a multiple of 8
+     * @throws IOException if the file cannot be created
+     */
+    MappedLineFile(File directory, String prefix, int chunkSize) throws IOException {
+        if (chunkSize <= 0 || chunkSize % Long.BYTES != 0) {
+            throw new IllegalArgumentException("chunk size must be a positive multiple of " + Long.BYTES + ", not " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        this.dataFile = File.createTempFile(prefix, ".log", directory);
+        this.indexFile = File.createTempFile(prefix, ".idx", directory);
+        this.data = new RandomAccessFile(dataFile, "rw").getChannel();
+        this.index = new RandomAccessFile(indexFile, "rw").getChannel();
+    }
+
+    /**
+     * Add a line to the end of the file, only ever called by one thread at a time.
+     *
+     * @param line the line to add
+     * @throws IOException if the file cannot grow
+     */
+    void append(String line) throws IOException {
+        final byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        final int recordSize = Integer.BYTES + bytes.length;
+        MappedByteBuffer chunk = dataChunks.isEmpty() ? null : dataChunks.get(dataChunks.size() - 1);
+        if (chunk == null || chunk.remaining() < recordSize) {
+            // a line longer than a chunk gets a chunk of its own
+            final int newChunkSize = Math.max(chunkSize, recordSize);
+            chunk = data.map(FileChannel.MapMode.READ_WRITE, dataMapped, newChunkSize);
+            dataMapped += newChunkSize;
+            dataChunks.add(chunk);
+        }
+        final long address = ((long) (dataChunks.size() - 1) << CHUNK_SHIFT) | chunk.position();
+        chunk.putInt(bytes.length);
+        chunk.put(bytes);
+
+        final long indexPosition = (long) size * Long.BYTES;
+        final int indexChunk = (int) (indexPosition / chunkSize);
+        if (indexChunk == indexChunks.size()) {
+            indexChunks.add(index.map(FileChannel.MapMode.READ_WRITE, (long) indexChunk * chunkSize, chunkSize));
+        }
+        indexChunks.get(indexChunk).putLong((int) (indexPosition % chunkSize), address);
+        size++;
+    }
+
+    /**
+     * Read back a line.
+     *
+     * @param line number of the line, from 0
+     * @return the line
+     */
+    String get(int line) {
+        if (line < 0 || line >= size) {
+            throw new IndexOutOfBoundsException("line " + line + " of " + size);
+        }
+        final long indexPosition = (long) line * Long.BYTES;
+        final long address = indexChunks.get((int) (indexPosition / chunkSize)).getLong((int) (indexPosition % chunkSize));
+        final MappedByteBuffer chunk = dataChunks.get((int) (address >>> CHUNK_SHIFT));
+        final int offset = (int) (address & OFFSET_MASK);
+        final byte[] bytes = new byte[chunk.getInt(offset)];
+        // the appending thread moves the position of the chunk, read through a view of our own
+        final ByteBuffer view = chunk.duplicate();
+        view.position(offset + Integer.BYTES);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the number of lines appended so far
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Delete the files. Lines already appended can still be read, the mapping outlives the file on the platforms we run on.
+     */
+    @Override
+    public void close() {
+        IOUtils.closeQuietly(data);
+        IOUtils.closeQuietly(index);
+        FileUtils.deleteQuietly(dataFile);
+        FileUtils.deleteQuietly(indexFile);
+    }
+}
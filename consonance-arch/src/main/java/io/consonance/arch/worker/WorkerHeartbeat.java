@@ -19,128 +19,290 @@
 
 package io.consonance.arch.worker;
 
-import com.rabbitmq.client.AlreadyClosedException;
-import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.MessageProperties;
+import com.rabbitmq.client.AMQP;
 import io.consonance.arch.Base;
+import io.consonance.arch.beans.MessageCodec;
+import io.consonance.arch.beans.MessageCodecs;
 import io.consonance.arch.beans.Status;
 import io.consonance.arch.beans.StatusState;
+import io.consonance.arch.utils.Backoff;
 import io.consonance.arch.utils.CommonServerTestUtilities;
+import io.consonance.arch.utils.ConfirmingPublisher;
+import io.consonance.arch.utils.ResultRoutes;
 import org.apache.commons.configuration.HierarchicalINIConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.util.concurrent.TimeoutException;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * This class will send a "heartbeat" message. How often it is sent can be configured via setSecondsDelay. The default delay is 2 seconds.
- * The destination queue for the messages, and the body of the messages can also be configured via setter methods.
+ * This class sends the "heartbeat" messages of a running job. The destination exchange and routing key for the messages, and the body of
+ * the messages can be configured via setter methods.
+ *
+ * Heartbeats are sent from an executor shared by every job on the worker rather than a thread per job. A heartbeat never waits for room
+ * in the publisher's confirm window, that would hold up the heartbeats of every other job as well, it is skipped and the next one goes
+ * out after the shortest delay. They go out every
+ * {@link #setSecondsDelay} seconds while the job starts up and whenever it writes more output. While the job is quiet the delay doubles
+ * after each heartbeat, up to a third of the time the coordinator waits before it calls a job lost (see
+ * {@link #setSecondsBeforeLost}), so that a heartbeat or two can go missing without the job being lost. Without that limit the delay
+ * stays where it is.
+ *
+ * A heartbeat is only useful until the next one, so they are not written to disk by the broker and expire if nobody picks them up within
+ * a minute. Each heartbeat carries the last few lines of output along with the offset of the first one and a sequence number, so that
+ * the coordinator can put the tail back together. A confirm from the broker does not mean the coordinator has seen a heartbeat, it may
+ * still expire in the queue, so lines are sent again with every heartbeat until one carrying them is older than the expiry and has either
+ * been read or dropped. Lines older than that are only sent again if no heartbeat carrying them was confirmed. A quiet job sends no
+ * output at all once its last lines have been out for a minute, while the tail only has a gap if the coordinator read nothing for the
+ * whole minute. The final status of a job carries all of its output either way.
  *
  * @author sshorser
  *
  */
-class WorkerHeartbeat implements Runnable {
+class WorkerHeartbeat {
 
-    private String queueName;
+    private String exchange;
+    private String routingKey;
     private double secondsDelay = DEFAULT_DELAY;
+    private long secondsBeforeLost = 0;
     static final double DEFAULT_DELAY = 2.0;
+    /** heartbeats sent at the shortest delay while the job starts up */
+    static final int STARTUP_BEATS = 5;
+    /** how many heartbeats in a row can go missing before the coordinator calls the job lost */
+    static final int LOST_MARGIN = 3;
     private static final int DEFAULT_SNIP_SIZE = 10;
+    /** how long the broker keeps a heartbeat that nobody picked up */
+    static final long EXPIRY_MILLIS = Base.ONE_MINUTE_IN_MILLISECONDS;
     private WorkflowRunner statusSource;
     private String networkID;
     private String vmUuid;
     private String jobUuid;
     private HierarchicalINIConfiguration settings;
+    /** the last heartbeat the broker did not take, if any */
+    private volatile Throwable failure = null;
+    private long sequence = 0;
+    /** offsets of the first lines of output that no confirmed heartbeat carried */
+    private final AtomicInteger confirmedStdOut = new AtomicInteger();
+    private final AtomicInteger confirmedStdErr = new AtomicInteger();
+    /** when recent heartbeats went out and where the output ended at the time, oldest first */
+    private final Deque<long[]> sent = new ArrayDeque<>();
+    private int lastStdOutEnd = 0;
+    private int lastStdErrEnd = 0;
+    private int beats = 0;
+    private long currentDelayMillis = 0;
+    private ScheduledExecutorService executor = null;
+    private ScheduledFuture<?> next = null;
+    private boolean stopped = false;
+    private ConfirmingPublisher publisher;
+    private MessageCodec codec;
+    private AMQP.BasicProperties properties;
+    private final Backoff backoff = new Backoff();
 
     private static final Logger LOG = LoggerFactory.getLogger(WorkerHeartbeat.class);
 
-    @Override
-    public void run() {
+    /**
+     * Send the first heartbeat right away and keep sending them on an executor until {@link #stop()}.
+     *
+     * @param heartbeatExecutor executor shared by the heartbeats of every job on this worker
+     * @throws InterruptedException if interrupted while waiting for the results exchange
+     */
+    synchronized void start(ScheduledExecutorService heartbeatExecutor) throws InterruptedException {
+        codec = MessageCodecs.fromSettings(settings);
+        publisher = CommonServerTestUtilities.publisherForExchange(settings, this.exchange, ResultRoutes.EXCHANGE_TYPE);
+        // a heartbeat that sat in a queue for long is of no use to anyone, a newer one is right behind it
+        properties = MessageCodecs.transientProperties(codec).builder().expiration(String.valueOf(EXPIRY_MILLIS)).build();
+        if (Base.ONE_SECOND_IN_MILLISECONDS * secondsDelay > longestDelayMillis()) {
+            LOG.warn("heartbeat rate of " + secondsDelay + " seconds is too slow for a job to be lost after " + secondsBeforeLost
+                    + " seconds, using " + longestDelayMillis() + " ms");
+        }
+        LOG.info("starting heartbeat of " + jobUuid + ", will send heartbeat messages every " + shortestDelayMillis() + " to "
+                + longestDelayMillis() + " ms.");
+        executor = heartbeatExecutor;
+        next = executor.schedule(this::beat, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop sending heartbeats, the one being sent right now if any still goes out.
+     */
+    synchronized void stop() {
+        stopped = true;
+        if (next != null) {
+            next.cancel(false);
+        }
+    }
 
-        Channel reportingChannel;
+    private void beat() {
+        long delayMillis;
         try {
-            reportingChannel = CommonServerTestUtilities.setupExchange(settings, this.queueName);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            LOG.error("Caught interrupt signal, heartbeat shutting down.", e);
-            return;
+            if (failure != null) {
+                final Throwable cause = failure;
+                failure = null;
+                LOG.error("Heartbeat may not have been published. Exception is: " + cause.getMessage(), cause);
+                // back off, do not die simply because the launcher is unavailable, it may come back
+                delayMillis = backoff.nextDelay();
+            } else {
+                backoff.reset();
+                delayMillis = -1;
+            }
+            final boolean outputChanged = send();
+            if (delayMillis < 0) {
+                delayMillis = nextDelayMillis(outputChanged);
+            }
+        } catch (IOException e) {
+            // reported and backed off from on the next beat like a heartbeat the broker did not take
+            failure = e;
+            delayMillis = shortestDelayMillis();
+        } catch (RuntimeException e) {
+            // an exception would end the schedule for good, keep the job alive in the coordinator's eyes
+            LOG.error("Could not send heartbeat: " + e.getMessage(), e);
+            delayMillis = shortestDelayMillis();
+        }
+        synchronized (this) {
+            if (!stopped) {
+                next = executor.schedule(this::beat, delayMillis, TimeUnit.MILLISECONDS);
+            }
         }
+    }
+
+    /**
+     * @return true if the job wrote output since the last heartbeat, or the heartbeat was skipped
+     */
+    private boolean send() throws IOException {
+        Status heartbeatStatus = new Status();
+        heartbeatStatus.setJobUuid(this.jobUuid);
+        heartbeatStatus.setMessage("job is running; IP address: " + networkID);
+        heartbeatStatus.setState(StatusState.RUNNING);
+        heartbeatStatus.setType(CommonServerTestUtilities.JOB_MESSAGE_TYPE);
+        heartbeatStatus.setVmUuid(this.vmUuid);
+        heartbeatStatus.setIpAddress(networkID);
 
-        LOG.info("starting heartbeat thread, will send heartbeat message ever " + secondsDelay + " seconds.");
-        while (!Thread.interrupted()) {
-            // byte[] stdOut = this.getMessageBody().getBytes(StandardCharsets.UTF_8);
-            try {
-                try {
-                    Status heartbeatStatus = new Status();
-                    heartbeatStatus.setJobUuid(this.jobUuid);
-                    heartbeatStatus.setMessage("job is running; IP address: " + networkID);
-                    heartbeatStatus.setState(StatusState.RUNNING);
-                    heartbeatStatus.setType(CommonServerTestUtilities.JOB_MESSAGE_TYPE);
-                    heartbeatStatus.setVmUuid(this.vmUuid);
-                    heartbeatStatus.setIpAddress(networkID);
-
-                    // String stdOut = this.statusSource.getStdOut();
-                    Lock lock = new ReentrantLock();
-                    lock.lock();
-                    String stdOut = this.statusSource.getStdOut(DEFAULT_SNIP_SIZE);
-                    String stdErr = this.statusSource.getStdErr(DEFAULT_SNIP_SIZE);
-                    lock.unlock();
-                    heartbeatStatus.setStdout(stdOut);
-                    heartbeatStatus.setStderr(stdErr);
-                    String heartBeatMessage = heartbeatStatus.toJSON();
-                    LOG.debug("Sending heartbeat message to " + queueName + ", with body: " + heartBeatMessage);
-                    reportingChannel.basicPublish(queueName, queueName, MessageProperties.PERSISTENT_TEXT_PLAIN,
-                            heartBeatMessage.getBytes(StandardCharsets.UTF_8));
-                    reportingChannel.waitForConfirms();
-
-                    Thread.sleep(Base.ONE_SECOND_IN_MILLISECONDS * (long)secondsDelay);
-
-                } catch (IOException | AlreadyClosedException e) {
-                    LOG.error("IOException caught! Message may not have been published. Exception is: " + e.getMessage(), e);
-                    // retry after a minute, do not die simply because the launcher is unavailable, it may come back
-                    Thread.sleep(Base.ONE_MINUTE_IN_MILLISECONDS);
-                }
-            } catch (InterruptedException e) {
-                LOG.error("Heartbeat shutting down.");
-                if (reportingChannel.getConnection().isOpen()) {
-                    try {
-                        reportingChannel.getConnection().close();
-                    } catch (IOException e1) {
-                        LOG.error("Error closing reportingChannel connection: " + e1.getMessage(), e1);
-                    }
-                }
-                if (reportingChannel.isOpen()) {
-                    try {
-                        reportingChannel.close();
-                    } catch (IOException e1) {
-                        LOG.error("Error (IOException) closing reportingChannel: " + e1.getMessage(), e1);
-                    } catch (TimeoutException e1) {
-                        LOG.error("Error (TimeoutException) closing reportingChannel: " + e1.getMessage(), e1);
-                    }
-                }
-                LOG.debug("reporting channel open: "+reportingChannel.isOpen());
-                LOG.debug("reporting channel connection open: "+reportingChannel.getConnection().isOpen());
-
-                Thread.currentThread().interrupt();
+        heartbeatStatus.setSequence(++sequence);
+        final long now = System.currentTimeMillis();
+        final int[] resend = resendFrom(now);
+        final int stdOutEnd = this.statusSource.getStdOutLineCount();
+        final int stdOutStart = Math.max(Math.min(confirmedStdOut.get(), resend[0]), stdOutEnd - DEFAULT_SNIP_SIZE);
+        final int stdErrEnd = this.statusSource.getStdErrLineCount();
+        final int stdErrStart = Math.max(Math.min(confirmedStdErr.get(), resend[1]), stdErrEnd - DEFAULT_SNIP_SIZE);
+        if (stdOutEnd > stdOutStart) {
+            heartbeatStatus.setStdout(this.statusSource.getStdOutLines(stdOutStart, stdOutEnd));
+            heartbeatStatus.setStdoutOffset((long) stdOutStart);
+        }
+        if (stdErrEnd > stdErrStart) {
+            heartbeatStatus.setStderr(this.statusSource.getStdErrLines(stdErrStart, stdErrEnd));
+            heartbeatStatus.setStderrOffset((long) stdErrStart);
+        }
+        String heartBeatMessage = heartbeatStatus.toJSON();
+        LOG.debug("Sending heartbeat message to " + exchange + " as " + routingKey + ", with body: " + heartBeatMessage);
+        // the next heartbeat does not wait for this one to be confirmed, a failure is noticed on the next beat
+        final CompletableFuture<Void> confirmed = publisher.tryPublish(exchange, routingKey, properties, codec.encode(heartbeatStatus));
+        if (confirmed == null) {
+            LOG.warn("Too many messages are waiting for the broker, skipped heartbeat " + sequence + " of " + jobUuid);
+            return true;
+        }
+        sent(now, stdOutEnd, stdErrEnd);
+        confirmed.whenComplete((ignored, error) -> {
+            if (error != null) {
+                failure = error;
+            } else {
+                // confirms can arrive out of order, never move back
+                confirmedStdOut.accumulateAndGet(stdOutEnd, Math::max);
+                confirmedStdErr.accumulateAndGet(stdErrEnd, Math::max);
             }
+        });
+        final boolean outputChanged = stdOutEnd != lastStdOutEnd || stdErrEnd != lastStdErrEnd;
+        lastStdOutEnd = stdOutEnd;
+        lastStdErrEnd = stdErrEnd;
+        return outputChanged;
+    }
+
+    /**
+     * Record a heartbeat that went out.
+     *
+     * @param millis when it was sent
+     * @param stdOutEnd the number of lines of standard output at the time
+     * @param stdErrEnd the number of lines of standard error at the time
+     */
+    void sent(long millis, int stdOutEnd, int stdErrEnd) {
+        sent.addLast(new long[] { millis, stdOutEnd, stdErrEnd });
+    }
+
+    /**
+     * Work out which lines may still be on their way to the coordinator. Lines from before the newest heartbeat that has had time to
+     * expire were either read or are lost, the ones after it are in heartbeats that may still be in the queue.
+     *
+     * @param now the current time in milliseconds
+     * @return the first line of standard output and of standard error to send again
+     */
+    int[] resendFrom(long now) {
+        long[] settled = null;
+        while (!sent.isEmpty() && sent.peekFirst()[0] + EXPIRY_MILLIS <= now) {
+            settled = sent.removeFirst();
+        }
+        if (settled == null) {
+            // every heartbeat so far may still be in the queue
+            return new int[] { 0, 0 };
+        }
+        // still needed as the boundary until a newer heartbeat expires
+        sent.addFirst(settled);
+        return new int[] { (int) settled[1], (int) settled[2] };
+    }
+
+    /**
+     * Work out how long to wait before the next heartbeat, after sending one.
+     *
+     * @param outputChanged whether the job wrote output since the heartbeat before
+     * @return the delay in milliseconds
+     */
+    long nextDelayMillis(boolean outputChanged) {
+        if (++beats <= STARTUP_BEATS || outputChanged) {
+            currentDelayMillis = shortestDelayMillis();
+        } else {
+            currentDelayMillis = Math.min(currentDelayMillis * 2, longestDelayMillis());
         }
+        return currentDelayMillis;
+    }
+
+    private long shortestDelayMillis() {
+        return Math.min((long) (Base.ONE_SECOND_IN_MILLISECONDS * secondsDelay), longestDelayMillis());
+    }
+
+    private long longestDelayMillis() {
+        final long configured = (long) (Base.ONE_SECOND_IN_MILLISECONDS * secondsDelay);
+        if (secondsBeforeLost <= 0) {
+            return configured;
+        }
+        return Math.max(Base.ONE_SECOND_IN_MILLISECONDS, Base.ONE_SECOND_IN_MILLISECONDS * secondsBeforeLost / LOST_MARGIN);
     }
 
     void setStatusSource(WorkflowRunner runner) {
         this.statusSource = runner;
     }
 
-    void setQueueName(String queueName) {
-        this.queueName = queueName;
+    void setExchange(String exchange) {
+        this.exchange = exchange;
+    }
+
+    void setRoutingKey(String routingKey) {
+        this.routingKey = routingKey;
     }
 
     void setSecondsDelay(double secondsDelay) {
         this.secondsDelay = secondsDelay;
     }
 
+    /**
+     * @param secondsBeforeLost how long the coordinator waits for a heartbeat before it calls a job lost, 0 if not known
+     */
+    void setSecondsBeforeLost(long secondsBeforeLost) {
+        this.secondsBeforeLost = secondsBeforeLost;
+    }
+
     void setNetworkID(String networkID) {
         this.networkID = networkID;
     }
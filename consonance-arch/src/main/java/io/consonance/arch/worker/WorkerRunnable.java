@@ -19,20 +19,24 @@
 
 package io.consonance.arch.worker;
 
-import com.rabbitmq.client.AlreadyClosedException;
 import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.MessageProperties;
 import com.rabbitmq.client.QueueingConsumer;
 import io.cloudbindle.youxia.util.Log;
 import io.consonance.arch.Base;
 import io.consonance.arch.beans.Job;
+import io.consonance.arch.beans.MessageCodec;
+import io.consonance.arch.beans.MessageCodecs;
 import io.consonance.arch.beans.Status;
 import io.consonance.arch.beans.StatusState;
+import io.consonance.arch.utils.Backoff;
 import io.consonance.arch.utils.CommonServerTestUtilities;
+import io.consonance.arch.utils.ConfirmingPublisher;
+import io.consonance.arch.utils.LogRoutes;
+import io.consonance.arch.utils.ResultRoutes;
 import io.consonance.common.CommonTestUtilities;
 import io.consonance.common.Constants;
+import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.HierarchicalINIConfiguration;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
@@ -44,18 +48,25 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 
 /**
  * This class represents a WorkerRunnable, in the Architecture 3 design.
@@ -68,18 +79,34 @@ public class WorkerRunnable implements Runnable {
     private static final String NO_MESSAGE_FROM_QUEUE_MESSAGE = " [x] Job request came back null/empty! ";
     protected final Logger log = LoggerFactory.getLogger(getClass());
     private HierarchicalINIConfiguration settings = null;
-    private Channel resultsChannel = null;
+    private ConfirmingPublisher resultsPublisher = null;
+    private MessageCodec codec = MessageCodecs.JSON;
     private String queueName = null;
     private String jobQueueName;
-    private String resultsQueueName;
+    private String resultsExchange;
+    private String logExchange;
     private String vmUuid = null;
     private int maxRuns = 1;
     private boolean testMode;
     private boolean endless = false;
     public static final int DEFAULT_PRESLEEP = 1;
     public static final int DEFAULT_POSTSLEEP = 1;
+    /** the workflow and its live output, heartbeats go out from {@link #heartbeats} */
+    private static final int THREADS_PER_JOB = 2;
+    private static final long BYTES_PER_GB = 1024L * 1024L * 1024L;
+    /** the dockstore-launcher config next to the worker, copied for each job */
+    private static final String LAUNCHER_CONFIG_TEMPLATE = "cwl-launcher.config";
+    /** how long a job taken ahead of time may wait for its slot before it goes back to the queue */
+    public static final int DEFAULT_PREFETCH_LEASE_SECONDS = 600;
     private String networkAddress;
     private String flavour = null;
+    private int slots = 1;
+    private File jobDirectory = null;
+    private boolean prefetch = false;
+    private long prefetchLeaseMillis = Base.ONE_SECOND_IN_MILLISECONDS * DEFAULT_PREFETCH_LEASE_SECONDS;
+    private BlobCache blobCache = null;
+    /** sends the heartbeats of the jobs in every slot */
+    private ScheduledExecutorService heartbeats = null;
 
     /**
      * Create a new Worker.
@@ -136,14 +163,16 @@ public class WorkerRunnable implements Runnable {
             // appender.setFile("SomePath");
 
             this.queueName = settings.getString(Constants.RABBIT_QUEUE_NAME);
+            this.codec = MessageCodecs.fromSettings(settings);
             if (this.queueName == null) {
                 //throw new NullPointerException(
                 //        "Queue name was null! Please ensure that you have properly configured \"rabbitMQQueueName\" in your config file.");
                 // FIXME: this is a problem since an exception here would cause the worker daemon to exit with no info being sent back to the master
                 log.error("Queue name was null! Please ensure that you have properly configured \"rabbitMQQueueName\" in your config file.");
             }
-            this.jobQueueName = this.queueName + "_jobs";
-            this.resultsQueueName = this.queueName + "_results";
+            this.jobQueueName = this.queueName + CommonServerTestUtilities.JOB_QUEUE_INFIX;
+            this.resultsExchange = ResultRoutes.exchange(this.queueName);
+            this.logExchange = LogRoutes.exchange(this.queueName);
             /*
              * If the user specified "--endless" on the CLI, then this.endless=true Else: check to see if "endless" is in the config file, and
              * if it is, parse the value of it and use that. If not in the config file, then use "false".
@@ -156,6 +185,19 @@ public class WorkerRunnable implements Runnable {
             this.maxRuns = maxRuns;
             this.testMode = testMode;
             this.flavour = flavourOverride;
+            this.slots = slotCount(settings, Runtime.getRuntime().availableProcessors(), physicalMemoryGb());
+            if (!this.endless) {
+                // a slot without a run left to do would only wait on the queue
+                this.slots = Math.max(1, Math.min(this.slots, maxRuns));
+            }
+            final String configuredJobDirectory = settings.getString(Constants.WORKER_JOB_DIRECTORY);
+            this.jobDirectory = configuredJobDirectory == null ? new File(System.getProperty("user.dir"), "jobs")
+                    : new File(configuredJobDirectory);
+            this.blobCache = BlobCache.fromSettings(settings);
+            // only an endless worker is sure to run another job after this one
+            this.prefetch = this.endless && settings.getBoolean(Constants.WORKER_PREFETCH, false);
+            this.prefetchLeaseMillis = Base.ONE_SECOND_IN_MILLISECONDS
+                    * settings.getLong(Constants.WORKER_PREFETCH_LEASE_SECONDS, DEFAULT_PREFETCH_LEASE_SECONDS);
 
         } catch (Exception e) {
             log.error("There was a problem in the WorkerRunnable constructor!!! The worker daemon is likely to not work properly!!! "+e.getMessage(), e);
@@ -167,7 +209,6 @@ public class WorkerRunnable implements Runnable {
 
         int max = maxRuns;
         WorkflowResult workflowResult = null;
-        String statusJSON = null;
         Job job = null;
 
         try {
@@ -202,33 +243,51 @@ public class WorkerRunnable implements Runnable {
             // TODO: Add some sort of "local debug" mode so that developers working on their local
             // workstation can declare the queue if it doesn't exist. Normally, the results queue is
             // created by the Coordinator.
-            resultsChannel = CommonServerTestUtilities.setupExchange(settings, this.resultsQueueName);
+            resultsPublisher = CommonServerTestUtilities.publisherForExchange(settings, this.resultsExchange, ResultRoutes.EXCHANGE_TYPE);
+            if (settings.getDouble(Constants.WORKER_LOG_RATE, LogStreamer.DEFAULT_DELAY) > 0) {
+                // the same publisher, the output of a job just goes to an exchange of its own
+                CommonServerTestUtilities.publisherForExchange(settings, this.logExchange, LogRoutes.EXCHANGE_TYPE);
+            }
 
             // variables
             job = null;
 
-            while ((max > 0 || this.endless)) {
-                log.debug(max + " remaining jobs will be executed");
-                log.info(" WORKER IS PREPARING TO PULL JOB FROM QUEUE " + this.jobQueueName);
-
-                if (!endless) {
-                    max--;
+            // every slot takes jobs off the queue by itself until the runs are used up, the first one runs on this thread
+            final AtomicInteger remaining = new AtomicInteger(max);
+            final AtomicInteger slotThreads = new AtomicInteger(1);
+            final ExecutorService otherSlots = Executors.newFixedThreadPool(Math.max(1, slots - 1),
+                    r -> new Thread(r, "worker-slot-" + slotThreads.getAndIncrement()));
+            final List<Future<?>> slotFutures = new ArrayList<>();
+            heartbeats = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "worker-heartbeat");
+                thread.setDaemon(true);
+                return thread;
+            });
+            if (slots > 1) {
+                log.info(" WORKER RUNS UP TO " + slots + " JOBS AT A TIME");
+            }
+            try {
+                for (int i = 1; i < slots; i++) {
+                    final int slot = i;
+                    slotFutures.add(otherSlots.submit(() -> {
+                        runSlot(slot, remaining);
+                        return null;
+                    }));
                 }
-
-                // Do the actual work
-                processJobMessage(workflowResult, statusJSON, job);
-
+                runSlot(0, remaining);
+                for (Future<?> slotFuture : slotFutures) {
+                    slotFuture.get();
+                }
+            } finally {
+                otherSlots.shutdown();
+                heartbeats.shutdownNow();
             }
 
             log.info(" \n\n\nWORKER FOR VM UUID HAS FINISHED!!!: '" + vmUuid + "'\n\n");
             // turns out this is needed when multiple threads are reading from the same
             // queue otherwise you end up with multiple unacknowledged messages being undeliverable to other workers!!!
-            if (resultsChannel != null && resultsChannel.isOpen()) {
-                resultsChannel.close();
-                resultsChannel.getConnection().close();
-            }
-            log.debug("result channel open: " + (resultsChannel != null ? resultsChannel.isOpen() : null));
-            log.debug("result channel connection open: " + (resultsChannel != null ? resultsChannel.getConnection().isOpen() : null));
+            // the publisher is shared, leave it open but give the last heartbeats a chance to reach the broker
+            resultsPublisher.awaitConfirms(Base.FIVE_SECOND_IN_MILLISECONDS);
 
         } catch (Exception ex) {
 
@@ -242,11 +301,10 @@ public class WorkerRunnable implements Runnable {
                         "job is failed", networkAddress);
                 status.setStderr(workflowResult.getWorkflowStdErr());
                 status.setStdout(workflowResult.getWorkflowStdout());
-                statusJSON = status.toJSON();
 
                 log.error(" WORKER FAILED JOB");
 
-                finishJob(statusJSON);
+                finishJob(status);
             } catch (Exception e) {
                 log.error("EXCEPTION IN WORKER THREAD ATTEMPTING TO WRITE BACK FAILURE TO DB!!!  THE WORKER DAEMON WAS ATTEMPTING TO REPORT BACK A FAILED WORKFLOW AND THIS HAPPENED: " + ex.getMessage(), ex);
             }
@@ -255,15 +313,144 @@ public class WorkerRunnable implements Runnable {
     }
 
     /**
-     * The method for actually processing a job
-     * @param workflowResult
-     * @param statusJSON
-     * @param job
-     * @throws Exception
+     * Take jobs off the queue one at a time until the runs are used up.
+     *
+     * @param slot which slot this is, for the logs
+     * @param remaining runs left for all slots together
+     * @throws Exception if a job could not be taken or reported
+     */
+    private void runSlot(int slot, AtomicInteger remaining) throws Exception {
+        if (prefetch) {
+            runSlotWithLookAhead(slot);
+            return;
+        }
+        while (this.endless || remaining.getAndDecrement() > 0) {
+            log.debug(Math.max(0, remaining.get()) + " remaining jobs will be executed");
+            log.info(" WORKER SLOT " + slot + " IS PREPARING TO PULL JOB FROM QUEUE " + this.jobQueueName);
+
+            // Do the actual work
+            runReservedJob(reserveJob(null));
+        }
+    }
+
+    /**
+     * Take jobs off the queue endlessly, reserving and staging the next job while the current one runs so that it can start as soon as
+     * the slot frees up.
+     *
+     * @param slot which slot this is, for the logs
+     * @throws Exception if a job could not be taken or reported
+     */
+    private void runSlotWithLookAhead(int slot) throws Exception {
+        final ExecutorService lookAheadExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "worker-look-ahead-" + slot);
+            thread.setDaemon(true);
+            return thread;
+        });
+        Reservation next = null;
+        try {
+            while (true) {
+                Reservation current = next;
+                next = null;
+                if (current == null) {
+                    log.info(" WORKER SLOT " + slot + " IS PREPARING TO PULL JOB FROM QUEUE " + this.jobQueueName);
+                    current = reserveJob(null);
+                } else {
+                    log.info(" WORKER SLOT " + slot + " STARTS JOB RESERVED AHEAD OF TIME " + current.delivery.getEnvelope());
+                }
+                final CountDownLatch slotFree = new CountDownLatch(1);
+                final Future<Reservation> lookAhead = lookAheadExecutor.submit(() -> lookAhead(slotFree));
+                try {
+                    runReservedJob(current);
+                } finally {
+                    slotFree.countDown();
+                    try {
+                        next = lookAhead.get();
+                    } catch (ExecutionException e) {
+                        log.error("Could not take the next job ahead of time: " + e.getCause().getMessage(), e.getCause());
+                    }
+                }
+            }
+        } finally {
+            // a job reserved for a slot that is going away goes back to the queue
+            if (next != null) {
+                next.release();
+            }
+            lookAheadExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Reserve the next job and stage it, then hold it until the slot frees up or the lease runs out.
+     *
+     * @param slotFree counted down when the current job of the slot is done
+     * @return the staged job, null if there was none before the slot freed up or its lease ran out
+     * @throws Exception if the queue could not be read
+     */
+    private Reservation lookAhead(CountDownLatch slotFree) throws Exception {
+        final Reservation reservation = reserveJob(() -> slotFree.getCount() == 0);
+        if (reservation == null) {
+            return null;
+        }
+        final long leaseEnd = System.currentTimeMillis() + prefetchLeaseMillis;
+        try {
+            reservation.job = decodeJob(reservation.delivery);
+            if (reservation.job != null) {
+                reservation.workspace = JobWorkspace.stage(reservation.job, jobDirectory, new File(LAUNCHER_CONFIG_TEMPLATE), blobCache);
+                log.info(" [x] Staged next job " + reservation.job.getUuid() + " in " + reservation.workspace.getDirectory());
+            }
+        } catch (Exception e) {
+            // the job is still reserved, it gets staged the usual way when it starts
+            log.warn("Could not stage the next job ahead of time: " + e.getMessage(), e);
+        }
+        if (!slotFree.await(Math.max(0, leaseEnd - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+            log.info("Lease on the next job ran out before the slot freed up, handing it back to the queue");
+            reservation.release();
+            return null;
+        }
+        return reservation;
+    }
+
+    /**
+     * Work out how many jobs to run at a time. An explicit number of slots wins, otherwise there are as many slots as both the cores and
+     * the memory have room for, and one when there is nothing to go on.
+     *
+     * @param settings consonance config file
+     * @param cores cores on this machine
+     * @param memoryGb memory on this machine, 0 if unknown
+     * @return the number of slots, at least one
+     */
+    static int slotCount(HierarchicalINIConfiguration settings, int cores, long memoryGb) {
+        if (settings.containsKey(Constants.WORKER_SLOTS)) {
+            return Math.max(1, settings.getInt(Constants.WORKER_SLOTS));
+        }
+        long slotCount = Long.MAX_VALUE;
+        if (settings.containsKey(Constants.WORKER_CORES_PER_SLOT)) {
+            slotCount = Math.min(slotCount, cores / Math.max(1, settings.getInt(Constants.WORKER_CORES_PER_SLOT)));
+        }
+        if (settings.containsKey(Constants.WORKER_MEMORY_GB_PER_SLOT) && memoryGb > 0) {
+            slotCount = Math.min(slotCount, memoryGb / Math.max(1, settings.getLong(Constants.WORKER_MEMORY_GB_PER_SLOT)));
+        }
+        return slotCount == Long.MAX_VALUE ? 1 : (int) Math.max(1, slotCount);
+    }
+
+    private static long physicalMemoryGb() {
+        final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getTotalPhysicalMemorySize() / BYTES_PER_GB;
+        }
+        return 0;
+    }
+
+    /**
+     * Take a job off the queue without acknowledging it, the broker hands it to someone else if the channel closes first.
+     *
+     * @param giveUp when to stop waiting for a job, null to wait for as long as it takes
+     * @return the reserved job, null if there was none before giving up
+     * @throws Exception if the queue could not be read
      */
-    private void processJobMessage(WorkflowResult workflowResult, String statusJSON, Job job) throws Exception {
+    private Reservation reserveJob(BooleanSupplier giveUp) throws Exception {
 
-        // jobChannel needs to be created inside the loop because it is closed inside the loop, and it is closed inside this loop to
+        // jobChannel needs to be created for each job because it is closed once the job is acknowledged, and it is closed to
         // prevent pre-fetching.
 
         // create the job exchange
@@ -273,27 +460,63 @@ public class WorkerRunnable implements Runnable {
             throw new NullPointerException("jobChannel is null for queue: " + this.jobQueueName
                     + ". Something bad must have happened while trying to set up the queue connections. Please ensure that your configuration is correct.");
         }
-        final String finalQueueName = CommonServerTestUtilities.setupQueueOnExchange(jobChannel, queueName + "_jobs", flavour);
-        jobChannel.queueBind(finalQueueName, exchange,flavour);
+        try {
+            final String finalQueueName = CommonServerTestUtilities.setupQueueOnExchange(jobChannel, jobQueueName, flavour,
+                    Job.MAX_PRIORITY);
+            jobChannel.queueBind(finalQueueName, exchange,flavour);
+
+            // take one job and leave the rest to the other slots and workers
+            jobChannel.basicQos(1);
+            QueueingConsumer consumer = new QueueingConsumer(jobChannel);
+            jobChannel.basicConsume(finalQueueName, false, consumer);
+
+            QueueingConsumer.Delivery delivery;
+            if (giveUp == null) {
+                delivery = consumer.nextDelivery();
+            } else {
+                do {
+                    delivery = consumer.nextDelivery(Base.ONE_SECOND_IN_MILLISECONDS);
+                } while (delivery == null && !giveUp.getAsBoolean());
+                if (delivery == null) {
+                    CommonServerTestUtilities.closeChannel(jobChannel);
+                    return null;
+                }
+            }
+            log.info(vmUuid + "  received " + delivery.getEnvelope().toString());
+            return new Reservation(jobChannel, delivery);
+        } catch (Exception e) {
+            CommonServerTestUtilities.closeChannel(jobChannel);
+            throw e;
+        }
+    }
 
-        QueueingConsumer consumer = new QueueingConsumer(jobChannel);
-        jobChannel.basicConsume(finalQueueName, false, consumer);
+    private Job decodeJob(QueueingConsumer.Delivery delivery) throws IOException {
+        if (delivery.getBody() == null || delivery.getBody().length == 0) {
+            return null;
+        }
+        return MessageCodecs.decode(delivery.getProperties(), delivery.getBody(), Job.class);
+    }
 
-        QueueingConsumer.Delivery delivery = consumer.nextDelivery();
-        log.info(vmUuid + "  received " + delivery.getEnvelope().toString());
+    /**
+     * Acknowledge a reserved job and run it.
+     *
+     * @param reservation the job to run
+     * @throws Exception if the job message is empty
+     */
+    private void runReservedJob(Reservation reservation) throws Exception {
+        final Channel jobChannel = reservation.channel;
+        final QueueingConsumer.Delivery delivery = reservation.delivery;
+        WorkflowResult workflowResult;
         if (delivery.getBody() != null) {
-            String message = new String(delivery.getBody(), StandardCharsets.UTF_8);
-            if (message.trim().length() > 0) {
-
-                log.info(" [x] Received JOBS REQUEST '" + message + "' @ " + vmUuid);
+            if (delivery.getBody().length > 0) {
 
-                job = new Job().fromJSON(message);
+                final Job job = reservation.job != null ? reservation.job : decodeJob(delivery);
+                log.info(" [x] Received JOBS REQUEST '" + job.toJSON() + "' @ " + vmUuid);
 
                 Status status = new Status(vmUuid, job.getUuid(), StatusState.RUNNING, CommonServerTestUtilities.JOB_MESSAGE_TYPE,
                         "job is starting", this.networkAddress);
                 status.setStderr("");
                 status.setStdout("");
-                statusJSON = status.toJSON();
 
                 log.info(" WORKER LAUNCHING JOB");
 
@@ -303,15 +526,16 @@ public class WorkerRunnable implements Runnable {
                 jobChannel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
                 // we need to close the channel IMMEDIATELY to complete the ACK.
                 jobChannel.close();
-                // Close the connection object as well, or the main thread may not exit because of still-open-and-in-use resources.
-                jobChannel.getConnection().close();
 
                 workflowResult = new WorkflowResult();
                 if (testMode) {
                     workflowResult.setWorkflowStdout("everything is awesome");
                     workflowResult.setExitCode(0);
+                    if (reservation.workspace != null) {
+                        reservation.workspace.delete();
+                    }
                 } else {
-                    workflowResult = launchJob(statusJSON, job);
+                    workflowResult = launchJob(status, job, reservation.workspace);
                 }
 
                 status = new Status(vmUuid, job.getUuid(),
@@ -319,23 +543,16 @@ public class WorkerRunnable implements Runnable {
                         "job is finished", networkAddress);
                 status.setStderr(workflowResult.getWorkflowStdErr());
                 status.setStdout(workflowResult.getWorkflowStdout());
-                statusJSON = status.toJSON();
 
                 log.info(" WORKER FINISHING JOB");
 
-                finishJob(statusJSON);
+                finishJob(status);
             } else {
                 log.error(NO_MESSAGE_FROM_QUEUE_MESSAGE);
                 throw new Exception("NO MESSAGE FROM JOB QUEUE!!!  MESSAGE SHOULD NOT BE NULL!!!");
             }
-            // we need to close the channel *conditionally*
-            if (jobChannel.isOpen()) {
-                jobChannel.close();
-            }
-            // Close the connection object as well, or the main thread may not exit because of still-open-and-in-use resources.
-            if (jobChannel.getConnection().isOpen()) {
-                jobChannel.getConnection().close();
-            }
+            // we need to close the channel *conditionally*, the shared connection stays open for the next job
+            CommonServerTestUtilities.closeChannel(jobChannel);
         } else {
 
             log.error(NO_MESSAGE_FROM_QUEUE_MESSAGE);
@@ -348,70 +565,77 @@ public class WorkerRunnable implements Runnable {
     /**
      * This function will execute a workflow, based on the content of the Job object that is passed in.
      *
-     * @param message
-     *            - The message that will be published on the queue when the worker starts running the job.
+     * @param status
+     *            - The status that will be published on the queue when the worker starts running the job.
      * @param job
      *            - The job contains information about what workflow to execute, and how.
+     * @param staged
+     *            - The workspace of the job if it was staged ahead of time, null to stage it now.
      * @return The complete stdout and stderr from the workflow execution will be returned.
      */
-    private WorkflowResult launchJob(String message, Job job) {
+    private WorkflowResult launchJob(Status status, Job job, JobWorkspace staged) {
         WorkflowResult workflowResult = null;
-        ExecutorService exService = Executors.newFixedThreadPool(2);
-        WorkflowRunner workflowRunner = new WorkflowRunner();
+        ExecutorService exService = Executors.newFixedThreadPool(THREADS_PER_JOB);
+        JobWorkspace workspace = staged;
+        LogStreamer logStreamer = null;
+        WorkerHeartbeat heartbeat = null;
         try {
 
-            resultsChannel.basicPublish(this.resultsQueueName, this.resultsQueueName, MessageProperties.PERSISTENT_TEXT_PLAIN,
-                    message.getBytes(StandardCharsets.UTF_8));
-            resultsChannel.waitForConfirms();
-
-            WorkerHeartbeat heartbeat = new WorkerHeartbeat();
-            heartbeat.setQueueName(this.resultsQueueName);
+            // no need to wait for the broker before starting, messages on one channel arrive in the order they were sent
+            resultsPublisher.publish(this.resultsExchange, ResultRoutes.jobKey(status, flavour), MessageCodecs.properties(codec),
+                    codec.encode(status)).whenComplete((ignored, error) -> {
+                        if (error != null) {
+                            log.error("Could not report that job " + job.getUuid() + " is running: " + error.getMessage(), error);
+                        }
+                    });
+
+            heartbeat = new WorkerHeartbeat();
+            heartbeat.setExchange(this.resultsExchange);
+            heartbeat.setRoutingKey(ResultRoutes.heartbeatKey(flavour));
             // channels should not be shared between threads https://www.rabbitmq.com/api-guide.html#channel-threads
             // heartbeat.setReportingChannel(resultsChannel);
             heartbeat.setSettings(settings);
             heartbeat.setSecondsDelay(settings.getDouble(Constants.WORKER_HEARTBEAT_RATE, WorkerHeartbeat.DEFAULT_DELAY));
+            // workers usually share the config file with the coordinator, heartbeats can slow down as far as its patience allows
+            heartbeat.setSecondsBeforeLost(settings.getLong(Constants.COORDINATOR_SECONDS_BEFORE_LOST, 0));
             heartbeat.setJobUuid(job.getUuid());
             heartbeat.setVmUuid(this.vmUuid);
             heartbeat.setNetworkID(this.networkAddress);
-            heartbeat.setStatusSource(workflowRunner);
 
             long presleep = settings.getLong(Constants.WORKER_PREWORKER_SLEEP, WorkerRunnable.DEFAULT_PRESLEEP);
             long postsleep = settings.getLong(Constants.WORKER_POSTWORKER_SLEEP, WorkerRunnable.DEFAULT_POSTSLEEP);
             long presleepMillis = Base.ONE_SECOND_IN_MILLISECONDS * presleep;
             long postsleepMillis = Base.ONE_SECOND_IN_MILLISECONDS * postsleep;
 
-            // dockstore-launcher has a separate config file
-            File dockstoreLauncherConfig = new File("cwl-launcher.config");
-            if (!dockstoreLauncherConfig.exists()){
-                // if it doesn't exist, just create an empty one
-                dockstoreLauncherConfig.createNewFile();
-            }
-            workflowRunner.setConfigFilePath(dockstoreLauncherConfig.getAbsolutePath());
-            // write out descriptors from message
-            final Path imageDescriptor = new File(System.getProperty("user.dir"), "image-descriptor.cwl").toPath();
-            final Path runDescriptor = new File(System.getProperty("user.dir"), "run-descriptor.json").toPath();
-            FileUtils.writeStringToFile(imageDescriptor.toFile(), job.getContainerImageDescriptor(), StandardCharsets.UTF_8);
-            FileUtils.writeStringToFile(runDescriptor.toFile(), job.getContainerRuntimeDescriptor(), StandardCharsets.UTF_8);
-            workflowRunner.setImageDescriptorPath(imageDescriptor.toFile().getAbsolutePath());
-            workflowRunner.setRuntimeDescriptorPath(runDescriptor.toFile().getAbsolutePath());
-
-            // write out extra files
-            for(Map.Entry<String, Job.ExtraFile> entry : job.getExtraFiles().entrySet()){
-                FileUtils.write(new File(entry.getKey()), entry.getValue().getContents(), StandardCharsets.UTF_8);
+            // every job gets a directory of its own so that jobs running side by side do not overwrite each other's descriptors,
+            // dockstore-launcher has a separate config file, the one next to the worker is the template for each job
+            if (workspace == null) {
+                workspace = JobWorkspace.stage(job, jobDirectory, new File(LAUNCHER_CONFIG_TEMPLATE), blobCache);
             }
+            workspace.install();
+            final WorkflowRunner workflowRunner = new WorkflowRunner(workspace.getOutputDirectory());
+            heartbeat.setStatusSource(workflowRunner);
+            workflowRunner.setConfigFilePath(workspace.getLauncherConfig().getAbsolutePath());
+            workflowRunner.setImageDescriptorPath(workspace.getImageDescriptor().getAbsolutePath());
+            workflowRunner.setRuntimeDescriptorPath(workspace.getRunDescriptor().getAbsolutePath());
 
             workflowRunner.setPreworkDelay(presleepMillis);
             workflowRunner.setPostworkDelay(postsleepMillis);
-            // We will never actually do submit.get(), because the heartbeat should keep running until it is terminated by
-            // exService.shutdownNow().
-            Future<?> submit = exService.submit(heartbeat);
+            // the heartbeat keeps going until it is stopped once the workflow is done
+            heartbeat.start(heartbeats);
+            final double logRate = settings.getDouble(Constants.WORKER_LOG_RATE, LogStreamer.DEFAULT_DELAY);
+            if (logRate > 0) {
+                logStreamer = new LogStreamer(resultsPublisher, this.logExchange, codec, job.getUuid(), this.vmUuid, workflowRunner,
+                        logRate);
+                exService.submit(logStreamer);
+            }
             Future<WorkflowResult> workflowResultFuture = exService.submit(workflowRunner);
             // make sure both are complete
             workflowResult = workflowResultFuture.get();
             // don't get the heartbeat if the workflow is complete already
 
             log.info("Docker execution result: " + workflowResult.getWorkflowStdout());
-        } catch (IOException e) {
+        } catch (IOException | ConfigurationException e) {
             // This could be caused by a problem writing the file, or publishing a message to the queue.
             log.error(e.getMessage(), e);
         } catch (ExecutionException e) {
@@ -419,7 +643,18 @@ public class WorkerRunnable implements Runnable {
         } catch (InterruptedException e) {
             log.error("Workflow may have been interrupted: " + e.getMessage(), e);
         } finally {
+            if (heartbeat != null) {
+                heartbeat.stop();
+            }
             exService.shutdownNow();
+            if (logStreamer != null) {
+                // followers get the end of the output and know to stop waiting for more
+                logStreamer.finish();
+            }
+            // the output has gone where the run descriptor said, what is left would only fill up the disk of an endless worker
+            if (workspace != null) {
+                workspace.delete();
+            }
         }
 
         return workflowResult;
@@ -473,26 +708,59 @@ public class WorkerRunnable implements Runnable {
      * @param message
      *            - The actual message to publish.
      */
-    private void finishJob(String message) {
-        log.info("Publishing worker results to results channel " + this.resultsQueueName + ": " + message);
+    private void finishJob(Status status) {
+        log.info("Publishing worker results to results channel " + this.resultsExchange + ": " + status.toJSON());
         try {
+            final byte[] message = codec.encode(status);
+            final String routingKey = ResultRoutes.jobKey(status, flavour);
+            final Backoff backoff = new Backoff();
             boolean success = false;
             do {
                 try {
-                    resultsChannel.basicPublish(this.resultsQueueName, this.resultsQueueName, MessageProperties.PERSISTENT_TEXT_PLAIN,
-                            message.getBytes(StandardCharsets.UTF_8));
-                    resultsChannel.waitForConfirms();
+                    // this is the last word on the job, it has to reach the broker before the next job is taken
+                    resultsPublisher.publish(this.resultsExchange, routingKey, MessageCodecs.properties(codec), message).get();
                     success = true;
-                } catch (AlreadyClosedException e) {
-                    // retry indefinitely if the connection is down
-                    log.error("could not send closed message, retrying", e);
-                    Thread.sleep(Base.ONE_MINUTE_IN_MILLISECONDS);
+                } catch (ExecutionException e) {
+                    // retry indefinitely if the connection is down, quickly at first in case it was only a blip
+                    log.error("could not send closed message, retrying", e.getCause());
+                    backoff.sleep();
                 }
             } while (!success);
 
-        } catch (IOException | InterruptedException e) {
+        } catch (InterruptedException | IOException e) {
             log.error(e.toString());
         }
         log.info("Finished job report, let's call it a day");
     }
+
+    /**
+     * A job taken off the queue but not acknowledged yet, along with what was staged for it ahead of time.
+     */
+    private final class Reservation {
+        private final Channel channel;
+        private final QueueingConsumer.Delivery delivery;
+        private Job job = null;
+        private JobWorkspace workspace = null;
+
+        private Reservation(Channel channel, QueueingConsumer.Delivery delivery) {
+            this.channel = channel;
+            this.delivery = delivery;
+        }
+
+        /**
+         * Hand the job back to the queue for someone else to run.
+         */
+        private void release() {
+            try {
+                channel.basicNack(delivery.getEnvelope().getDeliveryTag(), false, true);
+            } catch (IOException e) {
+                // closing the channel hands it back all the same
+                log.debug("Could not hand back job: " + e.getMessage(), e);
+            }
+            CommonServerTestUtilities.closeChannel(channel);
+            if (workspace != null) {
+                workspace.delete();
+            }
+        }
+    }
 }
@@ -26,6 +26,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.Callable;
 
@@ -41,13 +42,22 @@ public class WorkflowRunner implements Callable<WorkflowResult> {
     private static final Logger LOG = LoggerFactory.getLogger(WorkflowRunner.class);
     private long preworkDelay;
     private long postworkDelay;
-    private final CollectingLogOutputStream outputStream = new CollectingLogOutputStream();
-    private final CollectingLogOutputStream errorStream = new CollectingLogOutputStream();
+    private final CollectingLogOutputStream outputStream;
+    private final CollectingLogOutputStream errorStream;
     private String configFilePath;
     private String imageDescriptorPath;
     private String runtimeDescriptorPath;
     private static final int DEFAULT_OUTPUT_LINE_LIMIT = 1000;
 
+    /**
+     * @param spillDirectory
+     *            - where output that does not fit in memory goes, in the directory of the job so it goes with it.
+     */
+    WorkflowRunner(File spillDirectory) {
+        this.outputStream = new CollectingLogOutputStream(new File(spillDirectory, "stdout"));
+        this.errorStream = new CollectingLogOutputStream(new File(spillDirectory, "stderr"));
+    }
+
     /**
      * Get the last *n* lines of output.
      *
@@ -56,7 +66,7 @@ public class WorkflowRunner implements Callable<WorkflowResult> {
      * @return A string with *n* lines.
      */
     String getStdOut(int n) {
-        return StringUtils.join(this.outputStream.getLastNLines(n), "\n");
+        return lastLines(this.outputStream, n);
     }
 
     /**
@@ -67,7 +77,59 @@ public class WorkflowRunner implements Callable<WorkflowResult> {
      * @return A string with *n* lines.
      */
     String getStdErr(int n) {
-        return StringUtils.join(this.errorStream.getLastNLines(n), "\n");
+        return lastLines(this.errorStream, n);
+    }
+
+    private static String lastLines(CollectingLogOutputStream stream, int n) {
+        final int end = stream.getLineCount();
+        final StringBuilder lines = new StringBuilder();
+        try {
+            stream.writeLines(Math.max(0, end - Math.max(0, n)), end, lines);
+        } catch (IOException e) {
+            // a StringBuilder does not throw
+            throw new IllegalStateException(e);
+        }
+        return lines.toString();
+    }
+
+    /**
+     * @return the number of lines of output so far, also the offset of the next line.
+     */
+    int getStdOutLineCount() {
+        return this.outputStream.getLineCount();
+    }
+
+    /**
+     * Get lines of output by offset.
+     *
+     * @param from
+     *            - offset of the first line, inclusive.
+     * @param to
+     *            - offset of the last line, exclusive.
+     * @return A string with the lines.
+     */
+    String getStdOutLines(int from, int to) {
+        return StringUtils.join(this.outputStream.getLines(from, to), "\n");
+    }
+
+    /**
+     * @return the number of lines of error output so far, also the offset of the next line.
+     */
+    int getStdErrLineCount() {
+        return this.errorStream.getLineCount();
+    }
+
+    /**
+     * Get lines of error output by offset.
+     *
+     * @param from
+     *            - offset of the first line, inclusive.
+     * @param to
+     *            - offset of the last line, exclusive.
+     * @return A string with the lines.
+     */
+    String getStdErrLines(int from, int to) {
+        return StringUtils.join(this.errorStream.getLines(from, to), "\n");
     }
 
 
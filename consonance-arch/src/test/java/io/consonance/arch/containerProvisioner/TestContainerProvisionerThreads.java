@@ -0,0 +1,70 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.containerProvisioner;
+
+import io.consonance.arch.beans.JobState;
+import io.consonance.arch.beans.JobSummary;
+import org.junit.Test;
+
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestContainerProvisionerThreads {
+
+    private static final int URGENT = 9;
+
+    @Test
+    public void testUrgentPendingJobsGetTheVMsLeft() {
+        List<JobSummary> jobs = Arrays.asList(
+                job("backfill1", JobState.PENDING, "small", 0, 1),
+                job("running", JobState.RUNNING, "small", 0, 2),
+                job("backfill2", JobState.PENDING, "small", 0, 3),
+                job("rerun", JobState.PENDING, "large", URGENT, 4));
+        Map<String, Integer> expected = new HashMap<>();
+        expected.put("small", 1);
+        expected.put("large", 1);
+        assertEquals(expected, ContainerProvisionerThreads.requiredVMsByFlavour(jobs, 2));
+
+        // with room for everything priority does not matter
+        expected.put("small", 3);
+        assertEquals(expected, ContainerProvisionerThreads.requiredVMsByFlavour(jobs, Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testOldestFirstAmongEquals() {
+        List<JobSummary> jobs = Arrays.asList(
+                job("newer", JobState.PENDING, "large", 1, 2),
+                job("older", JobState.PENDING, "small", 1, 1));
+        assertEquals(Collections.singletonMap("small", 1), ContainerProvisionerThreads.requiredVMsByFlavour(jobs, 1));
+        assertEquals(Collections.emptyMap(), ContainerProvisionerThreads.requiredVMsByFlavour(jobs, 0));
+    }
+
+    private static JobSummary job(String uuid, JobState state, String flavour, int priority, long created) {
+        final Timestamp timestamp = new Timestamp(created);
+        return new JobSummary.Builder().uuid(uuid).state(state).flavour(flavour).priority(priority).createTimestamp(timestamp)
+                .updateTimestamp(timestamp).lastSeen(timestamp).build();
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.coordinator;
+
+import io.consonance.arch.beans.JobState;
+import io.consonance.arch.beans.JobStateUpdate;
+import io.consonance.arch.persistence.PostgreSQL;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class TestJobStatusWriter {
+
+    private static final long LONG_WINDOW = 60000;
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testCoalescesPerJob() {
+        PostgreSQL db = mock(PostgreSQL.class);
+        List<Long> finished = new ArrayList<>();
+        JobStatusWriter writer = new JobStatusWriter(db, finished::add, LONG_WINDOW, JobStatusWriter.DEFAULT_BATCH_SIZE);
+        writer.add(1, "job1", "vm1", JobState.PENDING);
+        writer.add(2, "job2", "vm2", JobState.RUNNING);
+        writer.add(3, "job1", "vm1", JobState.RUNNING);
+        writer.acknowledgeLater(4);
+        writer.add(5, "job1", null, JobState.SUCCESS);
+        assertFalse(writer.isFlushDue());
+        writer.flush();
+
+        ArgumentCaptor<Collection> captor = ArgumentCaptor.forClass(Collection.class);
+        verify(db).updateJobs(captor.capture());
+        List<JobStateUpdate> updates = new ArrayList<>(captor.getValue());
+        assertEquals(2, updates.size());
+        assertEquals("job1", updates.get(0).getUuid());
+        assertEquals(JobState.SUCCESS, updates.get(0).getState());
+        assertEquals("job2", updates.get(1).getUuid());
+        assertEquals(JobState.RUNNING, updates.get(1).getState());
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L), finished);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testKeepsTailsWhenCoalescing() {
+        PostgreSQL db = mock(PostgreSQL.class);
+        JobStatusWriter writer = new JobStatusWriter(db, tag -> { }, LONG_WINDOW, JobStatusWriter.DEFAULT_BATCH_SIZE);
+        writer.add(1, "job1", "vm1", JobState.RUNNING, "out 1", "err 1");
+        writer.add(2, "job1", "vm1", JobState.RUNNING, "out 1\nout 2", null);
+        writer.add(3, "job1", null, JobState.RUNNING);
+        writer.flush();
+
+        ArgumentCaptor<Collection> captor = ArgumentCaptor.forClass(Collection.class);
+        verify(db).updateJobs(captor.capture());
+        JobStateUpdate update = (JobStateUpdate) captor.getValue().iterator().next();
+        assertEquals("out 1\nout 2", update.getStdoutTail());
+        assertEquals("err 1", update.getStderrTail());
+    }
+
+    @Test
+    public void testFlushDueOnBatchSize() {
+        JobStatusWriter writer = new JobStatusWriter(mock(PostgreSQL.class), tag -> { }, LONG_WINDOW, 2);
+        assertEquals(Long.MAX_VALUE, writer.millisUntilFlush());
+        writer.add(1, "job1", "vm1", JobState.RUNNING);
+        assertFalse(writer.isFlushDue());
+        writer.add(2, "job2", "vm2", JobState.RUNNING);
+        assertTrue(writer.isFlushDue());
+    }
+
+    @Test
+    public void testFlushDueOnWindow() {
+        JobStatusWriter writer = new JobStatusWriter(mock(PostgreSQL.class), tag -> { }, 0, JobStatusWriter.DEFAULT_BATCH_SIZE);
+        writer.acknowledgeLater(1);
+        assertTrue(writer.isFlushDue());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testNoAckWhenWriteFails() {
+        PostgreSQL db = mock(PostgreSQL.class);
+        List<Long> finished = new ArrayList<>();
+        doThrow(new RuntimeException("database down")).doReturn(new int[0]).when(db).updateJobs(anyCollectionOf(JobStateUpdate.class));
+        JobStatusWriter writer = new JobStatusWriter(db, finished::add, 0, JobStatusWriter.DEFAULT_BATCH_SIZE);
+        writer.add(1, "job1", "vm1", JobState.RUNNING, "out 1", null);
+        writer.add(2, "job2", "vm2", JobState.RUNNING);
+        assertFalse(writer.flush());
+        assertTrue(finished.isEmpty());
+        assertTrue("the next attempt should back off", writer.millisUntilFlush() > 0);
+
+        // changes that arrive in the meantime are merged with the ones that failed
+        writer.add(3, "job1", null, JobState.SUCCESS);
+        assertTrue(writer.flush());
+        ArgumentCaptor<Collection> captor = ArgumentCaptor.forClass(Collection.class);
+        verify(db, times(2)).updateJobs(captor.capture());
+        List<JobStateUpdate> updates = new ArrayList<>(captor.getValue());
+        assertEquals(2, updates.size());
+        JobStateUpdate job1 = updates.stream().filter(update -> update.getUuid().equals("job1")).findFirst().get();
+        assertEquals(JobState.SUCCESS, job1.getState());
+        assertEquals("out 1", job1.getStdoutTail());
+        assertEquals(Arrays.asList(1L, 2L, 3L), finished);
+        assertEquals("a successful flush resets the backoff", Long.MAX_VALUE, writer.millisUntilFlush());
+    }
+}
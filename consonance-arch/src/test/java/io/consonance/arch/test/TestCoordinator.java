@@ -29,6 +29,7 @@ import io.consonance.arch.beans.Job;
 import io.consonance.arch.coordinator.Coordinator;
 import io.consonance.arch.persistence.PostgreSQL;
 import io.consonance.arch.utils.CommonServerTestUtilities;
+import io.consonance.arch.utils.ConfirmingPublisher;
 import io.consonance.common.CommonTestUtilities;
 import io.consonance.common.Constants;
 import org.apache.commons.configuration.HierarchicalINIConfiguration;
@@ -49,6 +50,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.sql.Connection;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeoutException;
 
 import static org.junit.Assert.fail;
@@ -62,6 +64,9 @@ public class TestCoordinator {
     @Mock
     private Channel mockChannel;
 
+    @Mock
+    private ConfirmingPublisher mockPublisher;
+
     @Mock
     private DeclareOk mockDeclareOk;
 
@@ -104,6 +109,19 @@ public class TestCoordinator {
 
         Mockito.when(CommonServerTestUtilities.setupExchange(any(HierarchicalINIConfiguration.class), anyString())).thenReturn(mockChannel);
 
+        Mockito.when(CommonServerTestUtilities.setupExchange(any(HierarchicalINIConfiguration.class), anyString(), anyString())).thenReturn(mockChannel);
+
+        Mockito.when(CommonServerTestUtilities.leaseExchange(any(HierarchicalINIConfiguration.class), anyString(), anyString())).thenReturn(mockChannel);
+
+        Mockito.when(CommonServerTestUtilities.leaseQueue(any(HierarchicalINIConfiguration.class), anyString())).thenReturn(mockChannel);
+
+        Mockito.when(mockPublisher.publish(anyString(), anyString(), any(BasicProperties.class), any(byte[].class)))
+                .thenReturn(CompletableFuture.completedFuture(null));
+
+        Mockito.when(CommonServerTestUtilities.publisherForExchange(any(HierarchicalINIConfiguration.class), anyString(), anyString())).thenReturn(mockPublisher);
+
+        Mockito.when(CommonServerTestUtilities.publisherForQueue(any(HierarchicalINIConfiguration.class), anyString())).thenReturn(mockPublisher);
+
     }
 
     @Test(expected = Exception.class)
@@ -28,6 +28,7 @@ import com.rabbitmq.client.QueueingConsumer;
 import com.rabbitmq.client.QueueingConsumer.Delivery;
 import io.consonance.arch.beans.Job;
 import io.consonance.arch.utils.CommonServerTestUtilities;
+import io.consonance.arch.utils.ConfirmingPublisher;
 import io.consonance.arch.worker.WorkerRunnable;
 import io.consonance.arch.worker.WorkflowRunner;
 import io.consonance.common.CommonTestUtilities;
@@ -72,9 +73,11 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 
 @PowerMockIgnore("javax.*")
@@ -92,6 +95,9 @@ public class TestWorkerWithMocking {
     @Mock
     private Channel mockChannel;
 
+    @Mock
+    private ConfirmingPublisher mockPublisher;
+
     @Mock
     private com.rabbitmq.client.Connection mockConnection;
 
@@ -142,8 +148,16 @@ public class TestWorkerWithMocking {
         Mockito.when(mockChannel.getConnection()).thenReturn(mockConnection);
         Mockito.when(CommonServerTestUtilities.setupQueue(any(HierarchicalINIConfiguration.class), anyString())).thenReturn(mockChannel);
         Mockito.when(CommonServerTestUtilities.setupQueueOnExchange(any(Channel.class), anyString(), anyString())).thenReturn("consonance_arch_jobs");
+        Mockito.when(CommonServerTestUtilities.setupQueueOnExchange(any(Channel.class), anyString(), anyString(), anyInt()))
+                .thenReturn("consonance_arch_jobs");
         Mockito.when(CommonServerTestUtilities.setupExchange(any(HierarchicalINIConfiguration.class), anyString(), anyString())).thenReturn(mockChannel);
         Mockito.when(CommonServerTestUtilities.setupExchange(any(HierarchicalINIConfiguration.class), anyString())).thenReturn(mockChannel);
+        Mockito.when(CommonServerTestUtilities.leaseExchange(any(HierarchicalINIConfiguration.class), anyString(), anyString())).thenReturn(mockChannel);
+        Mockito.when(CommonServerTestUtilities.leaseQueue(any(HierarchicalINIConfiguration.class), anyString())).thenReturn(mockChannel);
+        Mockito.when(mockPublisher.publish(anyString(), anyString(), any(BasicProperties.class), any(byte[].class)))
+                .thenReturn(CompletableFuture.completedFuture(null));
+        Mockito.when(CommonServerTestUtilities.publisherForExchange(any(HierarchicalINIConfiguration.class), anyString(), anyString())).thenReturn(mockPublisher);
+        Mockito.when(CommonServerTestUtilities.publisherForQueue(any(HierarchicalINIConfiguration.class), anyString())).thenReturn(mockPublisher);
 
         StatusLine sl = new BasicStatusLine(new ProtocolVersion("HTTP",1,0), 200, "OK");
         Mockito.when(mockResponse.getStatusLine()).thenReturn(sl);
@@ -0,0 +1,201 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.util;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+import io.consonance.arch.utils.RetryTopology;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class TestKeyOrderedConsumer {
+
+    private static final long TIMEOUT = 5000;
+    private static final int MESSAGES = 200;
+
+    private static void deliver(KeyOrderedConsumer<String> consumer, long tag, String body) {
+        consumer.handleDelivery("tag", new Envelope(tag, false, "", ""), null, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testOrderPreservedPerKey() throws Exception {
+        Map<String, List<Integer>> seen = new ConcurrentHashMap<>();
+        KeyOrderedConsumer<String> consumer = new KeyOrderedConsumer<>(mock(Channel.class), 4, "test",
+                (properties, body) -> new String(body, StandardCharsets.UTF_8), message -> message.split(":")[0], (tag, message) -> {
+                    String[] parts = message.split(":");
+                    seen.computeIfAbsent(parts[0], key -> Collections.synchronizedList(new ArrayList<>())).add(Integer.parseInt(parts[1]));
+                    return true;
+                });
+        for (int i = 0; i < MESSAGES; i++) {
+            deliver(consumer, i + 1, "job" + (i % 7) + ":" + i);
+        }
+        consumer.shutdown(TIMEOUT);
+
+        assertEquals(7, seen.size());
+        for (List<Integer> sequence : seen.values()) {
+            List<Integer> sorted = new ArrayList<>(sequence);
+            Collections.sort(sorted);
+            assertEquals(sorted, sequence);
+        }
+    }
+
+    @Test
+    public void testAcknowledgesOnceEarlierDeliveriesFinish() throws Exception {
+        Channel channel = mock(Channel.class);
+        KeyOrderedConsumer<String> consumer = new KeyOrderedConsumer<>(channel, 2, "test",
+                (properties, body) -> new String(body, StandardCharsets.UTF_8), message -> message, (tag, message) -> false);
+        for (String job : Arrays.asList("a", "b", "c")) {
+            deliver(consumer, job.charAt(0) - 'a' + 1, job);
+        }
+        consumer.finish(3);
+        consumer.finish(2);
+        verify(channel, never()).basicAck(anyLong(), anyBoolean());
+        consumer.finish(1);
+        verify(channel).basicAck(3, true);
+        consumer.shutdown(TIMEOUT);
+    }
+
+    @Test
+    public void testUnreadableMessageIsRejected() throws Exception {
+        Channel channel = mock(Channel.class);
+        KeyOrderedConsumer<String> consumer = new KeyOrderedConsumer<>(channel, 1, "test", (properties, body) -> {
+            throw new IllegalArgumentException("not json");
+        }, message -> message, (tag, message) -> true);
+        deliver(consumer, 1, "garbage");
+        verify(channel).basicReject(1, false);
+        consumer.shutdown(TIMEOUT);
+    }
+
+    @Test
+    public void testFailedHandlerRequeuesAndStops() throws Exception {
+        Channel channel = mock(Channel.class);
+        KeyOrderedConsumer<String> consumer = new KeyOrderedConsumer<>(channel, 1, "test",
+                (properties, body) -> new String(body, StandardCharsets.UTF_8), message -> message, (tag, message) -> {
+                    throw new IllegalStateException("database down");
+                });
+        deliver(consumer, 1, "job");
+        try {
+            consumer.awaitStop(TIMEOUT);
+            fail("expected the handler failure");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        verify(channel).basicReject(1, true);
+        consumer.shutdown(TIMEOUT);
+    }
+
+    @Test
+    public void testRequeueKeepsConsuming() throws Exception {
+        Channel channel = mock(Channel.class);
+        KeyOrderedConsumer<String> consumer = new KeyOrderedConsumer<>(channel, 2, "test",
+                (properties, body) -> new String(body, StandardCharsets.UTF_8), message -> message, (tag, message) -> false);
+        deliver(consumer, 1, "a");
+        deliver(consumer, 2, "b");
+        consumer.requeue(1);
+        verify(channel).basicReject(1, true);
+        assertFalse("a requeued delivery should not stop the consumer", consumer.awaitStop(0));
+        consumer.shutdown(TIMEOUT);
+        assertFalse(consumer.awaitFinished(0));
+        consumer.finish(2);
+        verify(channel).basicAck(2, true);
+        assertTrue(consumer.awaitFinished(TIMEOUT));
+    }
+
+    @Test
+    public void testUnreadableMessageIsQuarantined() throws Exception {
+        Channel channel = mock(Channel.class);
+        KeyOrderedConsumer<String> consumer = new KeyOrderedConsumer<>(channel, 1, "test", (properties, body) -> {
+            throw new IllegalArgumentException("not json");
+        }, message -> message, (tag, message) -> true, new RetryTopology("orders", RetryTopology.DEFAULT_TIERS));
+        deliver(consumer, 1, "garbage");
+        verify(channel).basicPublish(eq("orders_dead_letter"), eq("quarantine"), any(AMQP.BasicProperties.class), any(byte[].class));
+        verify(channel).basicAck(1, true);
+        verify(channel, never()).basicReject(anyLong(), anyBoolean());
+        consumer.shutdown(TIMEOUT);
+    }
+
+    @Test
+    public void testFailedHandlerIsRetriedAndKeepsConsuming() throws Exception {
+        Channel channel = mock(Channel.class);
+        KeyOrderedConsumer<String> consumer = new KeyOrderedConsumer<>(channel, 1, "test",
+                (properties, body) -> new String(body, StandardCharsets.UTF_8), message -> message, (tag, message) -> {
+                    if ("bad".equals(message)) {
+                        throw new IllegalStateException("database down");
+                    }
+                    return true;
+                }, new RetryTopology("orders", RetryTopology.DEFAULT_TIERS));
+        deliver(consumer, 1, "bad");
+        deliver(consumer, 2, "good");
+        consumer.shutdown(TIMEOUT);
+        assertFalse("a retried delivery should not stop the consumer", consumer.awaitStop(0));
+        verify(channel).basicPublish(eq("orders_dead_letter"), eq("retry.0"), any(AMQP.BasicProperties.class), any(byte[].class));
+        verify(channel).basicAck(2, true);
+        verify(channel, never()).basicReject(anyLong(), anyBoolean());
+    }
+
+    @Test
+    public void testQuarantinedAfterLastRetry() throws Exception {
+        Channel channel = mock(Channel.class);
+        KeyOrderedConsumer<String> consumer = new KeyOrderedConsumer<>(channel, 1, "test",
+                (properties, body) -> new String(body, StandardCharsets.UTF_8), message -> message, (tag, message) -> false,
+                new RetryTopology("orders", 2));
+        AMQP.BasicProperties retried = new AMQP.BasicProperties.Builder()
+                .headers(Collections.singletonMap(RetryTopology.ATTEMPTS_HEADER, 2)).build();
+        consumer.handleDelivery("tag", new Envelope(1, true, "", ""), retried, "job".getBytes(StandardCharsets.UTF_8));
+        consumer.retry(1, new IllegalStateException("broker did not confirm"));
+        verify(channel).basicPublish(eq("orders_dead_letter"), eq("quarantine"), any(AMQP.BasicProperties.class), any(byte[].class));
+        verify(channel).basicAck(1, true);
+        consumer.shutdown(TIMEOUT);
+    }
+
+    @Test
+    public void testQuarantineAfterDecoding() throws Exception {
+        Channel channel = mock(Channel.class);
+        KeyOrderedConsumer<String> consumer = new KeyOrderedConsumer<>(channel, 1, "test",
+                (properties, body) -> new String(body, StandardCharsets.UTF_8), message -> message, (tag, message) -> false,
+                new RetryTopology("orders", RetryTopology.DEFAULT_TIERS));
+        deliver(consumer, 1, "garbage");
+        consumer.quarantine(1, new IllegalArgumentException("not an order"));
+        verify(channel).basicPublish(eq("orders_dead_letter"), eq("quarantine"), any(AMQP.BasicProperties.class), any(byte[].class));
+        verify(channel).basicAck(1, true);
+        consumer.shutdown(TIMEOUT);
+    }
+}
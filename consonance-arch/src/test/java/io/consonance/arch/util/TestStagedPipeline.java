@@ -0,0 +1,126 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestStagedPipeline {
+
+    private static final long TIMEOUT = 5000;
+    private static final int ITEMS = 200;
+    private static final int KEYS = 7;
+
+    /**
+     * What goes through the test pipelines.
+     */
+    private static final class Item {
+        private final String key;
+        private final int sequence;
+        private int stagesSeen = 0;
+
+        Item(String key, int sequence) {
+            this.key = key;
+            this.sequence = sequence;
+        }
+    }
+
+    @Test
+    public void testOrderPreservedPerKeyAcrossStages() throws Exception {
+        Map<String, List<Integer>> seen = new ConcurrentHashMap<>();
+        StagedPipeline<Item> pipeline = new StagedPipeline<Item>("test", item -> item.key,
+                item -> seen.computeIfAbsent(item.key, key -> Collections.synchronizedList(new ArrayList<>())).add(item.sequence),
+                (item, stage, cause) -> { })
+                .stage("first", 3, 2, item -> item.stagesSeen++)
+                .stage("second", 2, 2, item -> item.stagesSeen++);
+        for (int i = 0; i < ITEMS; i++) {
+            pipeline.submit(new Item("job" + (i % KEYS), i));
+        }
+        assertTrue(pipeline.shutdown(TIMEOUT));
+
+        assertEquals(KEYS, seen.size());
+        for (List<Integer> sequence : seen.values()) {
+            List<Integer> sorted = new ArrayList<>(sequence);
+            Collections.sort(sorted);
+            assertEquals(sorted, sequence);
+        }
+        assertEquals(ITEMS, pipeline.getMetrics().get(0).getCompleted());
+        assertEquals(ITEMS, pipeline.getMetrics().get(1).getCompleted());
+        assertEquals(0, pipeline.getMetrics().get(1).getQueued());
+    }
+
+    @Test
+    public void testFailedItemSkipsLaterStages() throws Exception {
+        List<String> failures = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> completed = Collections.synchronizedList(new ArrayList<>());
+        StagedPipeline<Item> pipeline = new StagedPipeline<Item>("test", item -> item.key, item -> completed.add(item.sequence),
+                (item, stage, cause) -> failures.add(stage + ":" + item.sequence))
+                .stage("persist", 1, 1, item -> {
+                    if (item.sequence == 1) {
+                        throw new IllegalStateException("database down");
+                    }
+                })
+                .stage("publish", 1, 1, item -> item.stagesSeen++);
+        pipeline.submit(new Item("a", 1));
+        pipeline.submit(new Item("a", 2));
+        assertTrue(pipeline.shutdown(TIMEOUT));
+
+        assertEquals(Collections.singletonList("persist:1"), failures);
+        assertEquals(Collections.singletonList(2), completed);
+        assertEquals(1, pipeline.getMetrics().get(0).getFailed());
+        assertEquals(1, pipeline.getMetrics().get(1).getCompleted());
+    }
+
+    @Test
+    public void testFullStageHoldsUpSubmit() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        StagedPipeline<Item> pipeline = new StagedPipeline<Item>("test", item -> item.key, item -> { }, (item, stage, cause) -> { })
+                .stage("slow", 1, 1, item -> release.await());
+        // one item is being worked on and one waits, there is no room for a third
+        pipeline.submit(new Item("a", 1));
+        pipeline.submit(new Item("a", 2));
+        Thread submitter = new Thread(() -> {
+            try {
+                pipeline.submit(new Item("a", 3));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        submitter.start();
+        submitter.join(TimeUnit.SECONDS.toMillis(1));
+        assertTrue("submit should wait for room", submitter.isAlive());
+        release.countDown();
+        submitter.join(TIMEOUT);
+        assertFalse(submitter.isAlive());
+        assertTrue(pipeline.shutdown(TIMEOUT));
+        assertEquals(3, pipeline.getMetrics().get(0).getCompleted());
+    }
+}
@@ -28,6 +28,7 @@ import com.rabbitmq.client.QueueingConsumer;
 import com.rabbitmq.client.QueueingConsumer.Delivery;
 import io.consonance.arch.beans.Job;
 import io.consonance.arch.utils.CommonServerTestUtilities;
+import io.consonance.arch.utils.ConfirmingPublisher;
 import io.consonance.common.CommonTestUtilities;
 import org.apache.commons.configuration.HierarchicalINIConfiguration;
 import org.apache.commons.io.IOUtils;
@@ -60,6 +61,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
@@ -67,6 +69,7 @@ import java.util.concurrent.FutureTask;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 
 @PrepareForTest({ QueueingConsumer.class, Worker.class, WorkerRunnable.class, CommonServerTestUtilities.class, CommonTestUtilities.class, WorkerHeartbeat.class, WorkflowRunner.class,
@@ -85,6 +88,9 @@ public class MockingWorkerIT {
     @Mock
     private Channel mockChannel;
 
+    @Mock
+    private ConfirmingPublisher mockPublisher;
+
     @Mock
     private com.rabbitmq.client.Connection mockConnection;
 
@@ -127,8 +133,16 @@ public class MockingWorkerIT {
         Mockito.when(mockChannel.getConnection()).thenReturn(mockConnection);
         Mockito.when(CommonServerTestUtilities.setupQueue(any(HierarchicalINIConfiguration.class), anyString())).thenReturn(mockChannel);
         Mockito.when(CommonServerTestUtilities.setupQueueOnExchange(any(Channel.class), anyString(), anyString())).thenReturn("consonance_arch_jobs");
+        Mockito.when(CommonServerTestUtilities.setupQueueOnExchange(any(Channel.class), anyString(), anyString(), anyInt()))
+                .thenReturn("consonance_arch_jobs");
         Mockito.when(CommonServerTestUtilities.setupExchange(any(HierarchicalINIConfiguration.class), anyString(), anyString())).thenReturn(mockChannel);
         Mockito.when(CommonServerTestUtilities.setupExchange(any(HierarchicalINIConfiguration.class), anyString())).thenReturn(mockChannel);
+        Mockito.when(CommonServerTestUtilities.leaseExchange(any(HierarchicalINIConfiguration.class), anyString(), anyString())).thenReturn(mockChannel);
+        Mockito.when(CommonServerTestUtilities.leaseQueue(any(HierarchicalINIConfiguration.class), anyString())).thenReturn(mockChannel);
+        Mockito.when(mockPublisher.publish(anyString(), anyString(), any(BasicProperties.class), any(byte[].class)))
+                .thenReturn(CompletableFuture.completedFuture(null));
+        Mockito.when(CommonServerTestUtilities.publisherForExchange(any(HierarchicalINIConfiguration.class), anyString(), anyString())).thenReturn(mockPublisher);
+        Mockito.when(CommonServerTestUtilities.publisherForQueue(any(HierarchicalINIConfiguration.class), anyString())).thenReturn(mockPublisher);
 
         WorkflowResult result = new WorkflowResult();
         result.setWorkflowStdout("Mock Workflow Response");
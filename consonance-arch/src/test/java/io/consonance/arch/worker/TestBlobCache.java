@@ -0,0 +1,116 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.worker;
+
+import io.consonance.arch.utils.Blobs;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestBlobCache {
+
+    private static final int BLOB_SIZE = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Map<String, String> served = new HashMap<>();
+    private final AtomicInteger fetches = new AtomicInteger();
+
+    private String serve(char fill) {
+        final String content = new String(new char[BLOB_SIZE]).replace('\0', fill);
+        final String hash = Blobs.hash(content);
+        served.put(hash, content);
+        return hash;
+    }
+
+    private BlobCache cache(File directory, long maxBytes) {
+        return new BlobCache(directory, maxBytes, (hash, token) -> {
+            fetches.incrementAndGet();
+            return new ByteArrayInputStream(served.get(hash).getBytes(StandardCharsets.UTF_8));
+        });
+    }
+
+    @Test
+    public void testFetchedOnce() throws Exception {
+        BlobCache cache = cache(folder.newFolder("blobs"), Long.MAX_VALUE);
+        String hash = serve('a');
+        File first = new File(folder.getRoot(), "first");
+        File second = new File(folder.getRoot(), "second");
+        cache.copyTo(hash, null, first);
+        cache.copyTo(hash, null, second);
+        assertEquals("a cached blob should not be fetched again", 1, fetches.get());
+        assertEquals(served.get(hash), FileUtils.readFileToString(second, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws Exception {
+        File directory = folder.newFolder("blobs");
+        BlobCache cache = cache(directory, BLOB_SIZE * 2);
+        String a = serve('a');
+        String b = serve('b');
+        String c = serve('c');
+        File target = new File(folder.getRoot(), "target");
+        cache.copyTo(a, null, target);
+        cache.copyTo(b, null, target);
+        cache.copyTo(a, null, target);
+        cache.copyTo(c, null, target);
+        assertTrue(cache.contains(a));
+        assertFalse("b was used least recently", cache.contains(b));
+        assertTrue(cache.contains(c));
+        assertEquals(BLOB_SIZE * 2, cache.size());
+        assertFalse(new File(directory, b).exists());
+
+        // what is on disk is picked up again after a restart
+        BlobCache restarted = cache(directory, BLOB_SIZE * 2);
+        assertTrue(restarted.contains(a));
+        assertTrue(restarted.contains(c));
+        assertEquals(BLOB_SIZE * 2, restarted.size());
+    }
+
+    @Test
+    public void testWrongContentRejected() throws Exception {
+        File directory = folder.newFolder("blobs");
+        BlobCache cache = cache(directory, Long.MAX_VALUE);
+        String hash = serve('a');
+        served.put(hash, "tampered");
+        try {
+            cache.copyTo(hash, null, new File(folder.getRoot(), "target"));
+            fail("content that does not match its hash should not be used");
+        } catch (IOException e) {
+            assertFalse(cache.contains(hash));
+            assertEquals("nothing should be left behind", 0, directory.list().length);
+        }
+    }
+}
@@ -18,10 +18,19 @@
  */
 package io.consonance.arch.worker;
 
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.File;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -30,6 +39,15 @@ import static org.junit.Assert.assertTrue;
  */
 public class TestCollectingLogOutputStream {
 
+    private static final int SMALL_CAPACITY = 4;
+    private static final int SMALL_CHUNK = 64;
+    private static final int LINES = 100;
+    private static final int MANY_LINES = 100000;
+    private static final int READERS = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     /**
      * Test of processLine method, of class CollectingLogOutputStream.
      */
@@ -63,4 +81,72 @@ public class TestCollectingLogOutputStream {
         assertTrue("output does not match", output.size() == 1 && output.get(0).contains("groovy"));
     }
 
+    @Test
+    public void testOlderLinesSpillToDisk() throws Exception {
+        CollectingLogOutputStream instance = new CollectingLogOutputStream(SMALL_CAPACITY, folder.getRoot(), SMALL_CHUNK);
+        String longLine = StringUtils.repeat('x', SMALL_CHUNK * 2);
+        for (int i = 0; i < LINES; i++) {
+            instance.processLine(i == LINES / 2 ? longLine : "line " + i, 1);
+        }
+        assertEquals(LINES, instance.getLineCount());
+        List<String> lines = instance.getLines(0, LINES);
+        for (int i = 0; i < LINES; i++) {
+            assertEquals(i == LINES / 2 ? longLine : "line " + i, lines.get(i));
+        }
+        assertEquals("lines across memory and disk should come back in order", "line 1\nline 2", StringUtils.join(instance.getLines(1, 3), "\n"));
+        assertEquals("line " + (LINES - 1), instance.getLastNLines(1).get(0));
+        assertTrue(instance.getAllLinesAsString().startsWith("line 0\nline 1"));
+
+        // spilled lines can still be read once the file is gone
+        instance.close();
+        assertEquals("line 0", instance.getLines(0, 1).get(0));
+    }
+
+    @Test
+    public void testWriteLinesFromJobDirectory() throws Exception {
+        File spillDirectory = new File(new File(folder.getRoot(), "job"), JobWorkspace.OUTPUT_DIRECTORY);
+        CollectingLogOutputStream instance = new CollectingLogOutputStream(SMALL_CAPACITY, spillDirectory, SMALL_CHUNK);
+        for (int i = 0; i < LINES; i++) {
+            instance.processLine("line " + i, 1);
+        }
+        assertTrue("spilled lines should be in the job directory", spillDirectory.list().length > 0);
+
+        StringBuilder lines = new StringBuilder();
+        instance.writeLines(1, LINES, lines);
+        assertTrue(lines.toString().startsWith("line 1\nline 2\n"));
+        assertTrue(lines.toString().endsWith("line " + (LINES - 2) + "\nline " + (LINES - 1)));
+        assertEquals(LINES - 1, StringUtils.countMatches(lines, "\n") + 1);
+        StringBuilder none = new StringBuilder();
+        instance.writeLines(LINES, LINES, none);
+        assertEquals("", none.toString());
+        instance.close();
+    }
+
+    @Test
+    public void testReadersSeeEveryLineWhileWriting() throws Exception {
+        CollectingLogOutputStream instance = new CollectingLogOutputStream(SMALL_CAPACITY, folder.getRoot(), SMALL_CHUNK);
+        ExecutorService executor = Executors.newFixedThreadPool(READERS);
+        Future<?>[] readers = new Future<?>[READERS];
+        for (int r = 0; r < READERS; r++) {
+            readers[r] = executor.submit(() -> {
+                while (instance.getLineCount() < MANY_LINES) {
+                    int to = instance.getLineCount();
+                    int from = ThreadLocalRandom.current().nextInt(to + 1);
+                    List<String> lines = instance.getLines(from, to);
+                    for (int i = 0; i < lines.size(); i++) {
+                        assertEquals("line " + (from + i), lines.get(i));
+                    }
+                }
+                return null;
+            });
+        }
+        for (int i = 0; i < MANY_LINES; i++) {
+            instance.processLine("line " + i, 1);
+        }
+        for (Future<?> reader : readers) {
+            reader.get();
+        }
+        executor.shutdown();
+        instance.close();
+    }
 }
@@ -0,0 +1,167 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.worker;
+
+import io.consonance.arch.beans.Job;
+import io.consonance.arch.utils.Blobs;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestJobWorkspace {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testLauncherConfigPerJob() throws Exception {
+        File jobWorkDir = folder.newFolder("job-uuid");
+        File missingTemplate = new File(folder.getRoot(), "cwl-launcher.config");
+        File config = JobWorkspace.writeLauncherConfig(missingTemplate, jobWorkDir);
+        assertEquals(new File(jobWorkDir, "datastore").getAbsolutePath(),
+                new HierarchicalINIConfiguration(config).getString(JobWorkspace.LAUNCHER_WORKING_DIRECTORY));
+
+        // a shared working directory from the template gets a directory per job under it
+        File shared = folder.newFolder("shared");
+        HierarchicalINIConfiguration template = new HierarchicalINIConfiguration();
+        template.setProperty(JobWorkspace.LAUNCHER_WORKING_DIRECTORY, shared.getAbsolutePath());
+        template.save(missingTemplate);
+        config = JobWorkspace.writeLauncherConfig(missingTemplate, jobWorkDir);
+        assertEquals(new File(shared, "job-uuid").getAbsolutePath(),
+                new HierarchicalINIConfiguration(config).getString(JobWorkspace.LAUNCHER_WORKING_DIRECTORY));
+    }
+
+    @Test
+    public void testExtraFilesWaitForInstall() throws Exception {
+        Job job = new Job();
+        job.setContainerImageDescriptor("image");
+        job.setContainerRuntimeDescriptor("runtime");
+        File credentials = new File(folder.getRoot(), "credentials/secret.txt");
+        job.getExtraFiles().put(credentials.getAbsolutePath(), new Job.ExtraFile("secret", false));
+
+        JobWorkspace workspace = JobWorkspace.stage(job, folder.newFolder("jobs"), new File(folder.getRoot(), "cwl-launcher.config"));
+        assertEquals("runtime", FileUtils.readFileToString(workspace.getRunDescriptor(), StandardCharsets.UTF_8));
+        assertTrue(workspace.getLauncherConfig().exists());
+        assertFalse("staging should not touch anything outside the workspace", credentials.exists());
+
+        workspace.install();
+        assertEquals("secret", FileUtils.readFileToString(credentials, StandardCharsets.UTF_8));
+        workspace.delete();
+        assertFalse(workspace.getDirectory().exists());
+        assertTrue("installed files belong to the job", credentials.exists());
+    }
+
+    @Test
+    public void testRelativeExtraFilesPerJob() throws Exception {
+        File jobDirectory = folder.newFolder("jobs");
+        File template = new File(folder.getRoot(), "cwl-launcher.config");
+        ExecutorService slots = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<JobWorkspace>> running = new ArrayList<>();
+            for (String uuid : new String[] { "job1", "job2" }) {
+                Job job = new Job();
+                job.setUuid(uuid);
+                job.setContainerImageDescriptor("image");
+                job.setContainerRuntimeDescriptor("runtime");
+                job.getExtraFiles().put("inputs/sample.txt", new Job.ExtraFile("sample of " + uuid, false));
+                running.add(slots.submit(() -> {
+                    JobWorkspace workspace = JobWorkspace.stage(job, jobDirectory, template);
+                    workspace.install();
+                    return workspace;
+                }));
+            }
+            JobWorkspace first = running.get(0).get();
+            JobWorkspace second = running.get(1).get();
+            assertEquals("sample of job1", FileUtils.readFileToString(new File(first.getFilesDirectory(), "inputs/sample.txt"),
+                    StandardCharsets.UTF_8));
+            assertEquals("sample of job2", FileUtils.readFileToString(new File(second.getFilesDirectory(), "inputs/sample.txt"),
+                    StandardCharsets.UTF_8));
+            assertFalse("relative paths should not end up in the working directory of the worker",
+                    new File(System.getProperty("user.dir"), "inputs/sample.txt").exists());
+            first.delete();
+            second.delete();
+        } finally {
+            slots.shutdown();
+        }
+    }
+
+    @Test
+    public void testRelativeExtraFileOutsideJob() throws Exception {
+        Job job = new Job();
+        job.setUuid("job1");
+        job.setContainerImageDescriptor("image");
+        job.setContainerRuntimeDescriptor("runtime");
+        job.getExtraFiles().put("../../escaped.txt", new Job.ExtraFile("contents", false));
+        File jobDirectory = folder.newFolder("jobs");
+        try {
+            JobWorkspace.stage(job, jobDirectory, new File(folder.getRoot(), "cwl-launcher.config"));
+            fail("an extra file should not be able to leave the directory of its job");
+        } catch (IOException e) {
+            assertFalse("a failed stage cleans up after itself", new File(jobDirectory, "job1").exists());
+        }
+    }
+
+    @Test
+    public void testContentByReference() throws Exception {
+        Job job = new Job();
+        job.setContainerImageDescriptorHash(Blobs.hash("image"));
+        job.setContainerRuntimeDescriptor("runtime");
+        Job.ExtraFile reference = new Job.ExtraFile(null, true);
+        reference.setContentsHash(Blobs.hash("reference"));
+        File extra = new File(folder.getRoot(), "reference.fa");
+        job.getExtraFiles().put(extra.getAbsolutePath(), reference);
+        Map<String, String> tokens = new HashMap<>();
+        tokens.put(Blobs.hash("image"), "image-token");
+        tokens.put(Blobs.hash("reference"), "reference-token");
+        job.setBlobTokens(tokens);
+
+        BlobCache blobs = new BlobCache(folder.newFolder("blobs"), Long.MAX_VALUE, (hash, token) -> {
+            final String content = hash.equals(Blobs.hash("image")) ? "image" : "reference";
+            assertEquals("each blob should be fetched with its own token", content + "-token", token);
+            return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+        });
+        JobWorkspace workspace = JobWorkspace.stage(job, folder.newFolder("jobs"), new File(folder.getRoot(), "cwl-launcher.config"),
+                blobs);
+        assertEquals("image", FileUtils.readFileToString(workspace.getImageDescriptor(), StandardCharsets.UTF_8));
+        assertEquals("runtime", FileUtils.readFileToString(workspace.getRunDescriptor(), StandardCharsets.UTF_8));
+        workspace.install();
+        assertEquals("reference", FileUtils.readFileToString(extra, StandardCharsets.UTF_8));
+        workspace.delete();
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.worker;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestWorkerHeartbeat {
+
+    private static final long SECONDS_BEFORE_LOST = 60;
+    private static final long SHORTEST = 2000;
+    private static final long LONGEST = 20000;
+
+    private static WorkerHeartbeat startedHeartbeat(long secondsBeforeLost) {
+        WorkerHeartbeat heartbeat = new WorkerHeartbeat();
+        heartbeat.setSecondsDelay(WorkerHeartbeat.DEFAULT_DELAY);
+        heartbeat.setSecondsBeforeLost(secondsBeforeLost);
+        for (int i = 0; i < WorkerHeartbeat.STARTUP_BEATS; i++) {
+            assertEquals("a starting job should beat often", SHORTEST, heartbeat.nextDelayMillis(false));
+        }
+        return heartbeat;
+    }
+
+    @Test
+    public void testQuietJobBacksOff() {
+        WorkerHeartbeat heartbeat = startedHeartbeat(SECONDS_BEFORE_LOST);
+        assertEquals(SHORTEST * 2, heartbeat.nextDelayMillis(false));
+        assertEquals(SHORTEST * 4, heartbeat.nextDelayMillis(false));
+        assertEquals(SHORTEST * 8, heartbeat.nextDelayMillis(false));
+        assertEquals("a third of the way to lost at most", LONGEST, heartbeat.nextDelayMillis(false));
+        assertEquals(LONGEST, heartbeat.nextDelayMillis(false));
+    }
+
+    @Test
+    public void testOutputResetsDelay() {
+        WorkerHeartbeat heartbeat = startedHeartbeat(SECONDS_BEFORE_LOST);
+        heartbeat.nextDelayMillis(false);
+        heartbeat.nextDelayMillis(false);
+        assertEquals("new output should be sent soon", SHORTEST, heartbeat.nextDelayMillis(true));
+        assertEquals(SHORTEST * 2, heartbeat.nextDelayMillis(false));
+    }
+
+    @Test
+    public void testUnknownLostThreshold() {
+        WorkerHeartbeat heartbeat = startedHeartbeat(0);
+        assertEquals("without a limit the configured rate should hold", SHORTEST, heartbeat.nextDelayMillis(false));
+    }
+
+    @Test
+    public void testRateTooSlowForLostThreshold() {
+        WorkerHeartbeat heartbeat = new WorkerHeartbeat();
+        heartbeat.setSecondsDelay(SECONDS_BEFORE_LOST);
+        heartbeat.setSecondsBeforeLost(SECONDS_BEFORE_LOST);
+        assertEquals("a job should never look lost between heartbeats", LONGEST, heartbeat.nextDelayMillis(false));
+    }
+
+    @Test
+    public void testResendUntilExpired() {
+        WorkerHeartbeat heartbeat = new WorkerHeartbeat();
+        assertArrayEquals(new int[] { 0, 0 }, heartbeat.resendFrom(0));
+        heartbeat.sent(0, 5, 0);
+        heartbeat.sent(WorkerHeartbeat.EXPIRY_MILLIS / 2, 8, 1);
+        assertArrayEquals("no heartbeat has had time to expire", new int[] { 0, 0 },
+                heartbeat.resendFrom(WorkerHeartbeat.EXPIRY_MILLIS - 1));
+        assertArrayEquals("the first heartbeat was read or is gone", new int[] { 5, 0 },
+                heartbeat.resendFrom(WorkerHeartbeat.EXPIRY_MILLIS));
+        assertArrayEquals(new int[] { 8, 1 }, heartbeat.resendFrom(WorkerHeartbeat.EXPIRY_MILLIS * 2));
+        assertArrayEquals("a quiet job has nothing left to resend", new int[] { 8, 1 },
+                heartbeat.resendFrom(WorkerHeartbeat.EXPIRY_MILLIS * 10));
+    }
+}
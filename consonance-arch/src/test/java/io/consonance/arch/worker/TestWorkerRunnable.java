@@ -0,0 +1,49 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.worker;
+
+import io.consonance.common.Constants;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestWorkerRunnable {
+
+    private static final int CORES = 16;
+    private static final long MEMORY_GB = 32;
+
+    @Test
+    public void testSlotCount() {
+        HierarchicalINIConfiguration settings = new HierarchicalINIConfiguration();
+        assertEquals("nothing to go on should mean one job at a time", 1, WorkerRunnable.slotCount(settings, CORES, MEMORY_GB));
+
+        settings.setProperty(Constants.WORKER_CORES_PER_SLOT, 4);
+        assertEquals(4, WorkerRunnable.slotCount(settings, CORES, MEMORY_GB));
+        settings.setProperty(Constants.WORKER_MEMORY_GB_PER_SLOT, 16);
+        assertEquals("memory should limit the slots too", 2, WorkerRunnable.slotCount(settings, CORES, MEMORY_GB));
+        assertEquals("unknown memory should not limit the slots", 4, WorkerRunnable.slotCount(settings, CORES, 0));
+        settings.setProperty(Constants.WORKER_MEMORY_GB_PER_SLOT, 64);
+        assertEquals("a machine too small for a slot still gets one", 1, WorkerRunnable.slotCount(settings, CORES, MEMORY_GB));
+
+        settings.setProperty(Constants.WORKER_SLOTS, 3);
+        assertEquals("explicit slots should win", 3, WorkerRunnable.slotCount(settings, CORES, MEMORY_GB));
+    }
+}
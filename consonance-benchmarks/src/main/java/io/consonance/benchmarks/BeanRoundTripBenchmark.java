@@ -0,0 +1,94 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.benchmarks;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.PropertyNamingStrategy;
+import io.consonance.arch.beans.Job;
+import io.consonance.arch.beans.Order;
+import io.consonance.arch.beans.Provision;
+import io.consonance.arch.beans.Status;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trips of each bean through its toJSON() and fromJSON().
+ *
+ * {@link #jobRoundTripWithNewMapper()} builds a mapper per call the way the beans used to, as a baseline for the shared
+ * {@link io.consonance.arch.beans.BeanMappers}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+public class BeanRoundTripBenchmark {
+
+    private Job job;
+    private Provision provision;
+    private Order order;
+    private Status status;
+
+    @Setup
+    public void setup() {
+        order = BenchmarkMessages.createOrder();
+        job = order.getJob();
+        provision = order.getProvision();
+        status = BenchmarkMessages.createStatus();
+    }
+
+    @Benchmark
+    public Job jobRoundTrip() {
+        return new Job().fromJSON(job.toJSON());
+    }
+
+    @Benchmark
+    public Job jobRoundTripWithNewMapper() throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE);
+        mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+        String json = mapper.writerWithDefaultPrettyPrinter().writeValueAsString(job);
+        return mapper.readValue(json, Job.class);
+    }
+
+    @Benchmark
+    public Provision provisionRoundTrip() {
+        return new Provision().fromJSON(provision.toJSON());
+    }
+
+    @Benchmark
+    public Order orderRoundTrip() {
+        return new Order().fromJSON(order.toJSON());
+    }
+
+    @Benchmark
+    public Status statusRoundTrip() {
+        return new Status().fromJSON(status.toJSON());
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.benchmarks;
+
+import io.consonance.arch.beans.Job;
+import io.consonance.arch.beans.Order;
+import io.consonance.arch.beans.Provision;
+import io.consonance.arch.beans.Status;
+import io.consonance.arch.beans.StatusState;
+
+import java.util.Collections;
+
+/**
+ * Messages shaped like the ones the coordinator, container provisioner and workers pass around.
+ */
+final class BenchmarkMessages {
+
+    private static final int CORES = 8;
+    private static final int MEMORY_GB = 32;
+    private static final int STORAGE_GB = 512;
+    private static final int DESCRIPTOR_LINES = 40;
+
+    private BenchmarkMessages() {
+        // utility class
+    }
+
+    static Job createJob() {
+        final Job job = new Job("f3c5b1ab2d8e4c0e9a7d");
+        job.setFlavour("m1.xlarge");
+        job.setEndUser("benchmark@example.com");
+        job.setContainerImageDescriptor(descriptor("cwlVersion: v1.0"));
+        job.setContainerRuntimeDescriptor(descriptor("\"input_file\": {\"class\": \"File\", \"path\": \"s3://bucket/sample.bam\"}"));
+        job.getExtraFiles().put("node-engine.cwl", new Job.ExtraFile(descriptor("#!/usr/bin/env cwl-runner"), true));
+        return job;
+    }
+
+    static Provision createProvision(Job job) {
+        final Provision provision = new Provision(CORES, MEMORY_GB, STORAGE_GB, Collections.singletonList("container-host-bag/install.yml"));
+        provision.setJobUUID(job.getUuid());
+        return provision;
+    }
+
+    static Order createOrder() {
+        final Order order = new Order();
+        order.setJob(createJob());
+        order.setProvision(createProvision(order.getJob()));
+        return order;
+    }
+
+    static Status createStatus() {
+        // a heartbeat, with the tail of the output of a workflow
+        final Status status = new Status("vm-0a1b2c3d", "0d6f5c8e-7b8a-4c3f-9e2d-1a2b3c4d5e6f", StatusState.RUNNING, "job-message-type",
+                "job is running", "10.0.0.12");
+        status.setStdout(descriptor("[job sample] /tmp/tmpq3x7$ docker run --rm -i quay.io/collaboratory/dockstore-tool-bamstats:1.25-6"));
+        status.setStderr(descriptor("INFO: [step bamstats] completed success"));
+        return status;
+    }
+
+    private static String descriptor(String line) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < DESCRIPTOR_LINES; i++) {
+            builder.append(line).append(' ').append(i).append('\n');
+        }
+        return builder.toString();
+    }
+}
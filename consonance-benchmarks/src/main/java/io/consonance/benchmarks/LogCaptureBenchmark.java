@@ -0,0 +1,96 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.benchmarks;
+
+import io.consonance.arch.worker.CollectingLogOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A workflow writing output while heartbeat threads read it back, the way a worker captures a job.
+ *
+ * Older lines spill to java.io.tmpdir, so iterations are short and each one starts on a fresh stream to keep the file small.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = LogCaptureBenchmark.WARMUP_ITERATIONS, time = 1)
+@Measurement(iterations = LogCaptureBenchmark.MEASUREMENT_ITERATIONS, time = 1)
+@Fork(1)
+public class LogCaptureBenchmark {
+
+    static final int WARMUP_ITERATIONS = 3;
+    static final int MEASUREMENT_ITERATIONS = 5;
+    private static final int TAIL_LINES = 100;
+    private static final byte[] LINE = "INFO  [2016-06-01 12:00:00] provisioning input file s3://bucket/some/fairly/long/key.bam\n"
+            .getBytes(StandardCharsets.UTF_8);
+
+    private CollectingLogOutputStream stream;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        stream = new CollectingLogOutputStream();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        stream.close();
+    }
+
+    @Benchmark
+    @Group("capture")
+    @GroupThreads(1)
+    public void write() throws IOException {
+        stream.write(LINE);
+    }
+
+    /** what a heartbeat does, the latest lines are in memory */
+    @Benchmark
+    @Group("capture")
+    @GroupThreads(2)
+    public List<String> readTail() {
+        return stream.getLastNLines(TAIL_LINES);
+    }
+
+    /** a heartbeat that fell behind, the oldest lines have been spilled to disk by now */
+    @Benchmark
+    @Group("capture")
+    @GroupThreads(1)
+    public List<String> readOldest() {
+        return stream.getLines(0, Math.min(TAIL_LINES, stream.getLineCount()));
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.benchmarks;
+
+import io.consonance.arch.beans.MessageCodec;
+import io.consonance.arch.beans.MessageCodecs;
+import io.consonance.arch.beans.Order;
+import io.consonance.arch.beans.Status;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of encoding and decoding messages with each {@link MessageCodec}.
+ *
+ * The size of each message on the wire is printed during setup, since JMH only measures time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+public class MessageCodecBenchmark {
+
+    @Param({ "json", "smile" })
+    public String codecName;
+
+    private MessageCodec codec;
+    private Order order;
+    private Status status;
+    private byte[] encodedOrder;
+    private byte[] encodedStatus;
+
+    @Setup
+    public void setup() throws IOException {
+        codec = MessageCodecs.forName(codecName);
+        order = BenchmarkMessages.createOrder();
+        status = BenchmarkMessages.createStatus();
+        encodedOrder = codec.encode(order);
+        encodedStatus = codec.encode(status);
+        System.out.println(codecName + ": order is " + encodedOrder.length + " bytes, status is " + encodedStatus.length + " bytes");
+    }
+
+    @Benchmark
+    public byte[] encodeOrder() throws IOException {
+        return codec.encode(order);
+    }
+
+    @Benchmark
+    public Order decodeOrder() throws IOException {
+        return codec.decode(encodedOrder, Order.class);
+    }
+
+    @Benchmark
+    public byte[] encodeStatus() throws IOException {
+        return codec.encode(status);
+    }
+
+    @Benchmark
+    public Status decodeStatus() throws IOException {
+        return codec.decode(encodedStatus, Status.class);
+    }
+}
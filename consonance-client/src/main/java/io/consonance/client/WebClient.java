@@ -24,12 +24,21 @@ import io.swagger.client.ApiClient;
 import org.apache.commons.configuration.HierarchicalINIConfiguration;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.TimeoutException;
 
 /**
  * This will eventually be our web client for the consonance web service.
  */
 public class WebClient extends ApiClient {
+    private static final int BUFFER_SIZE = 8192;
+    private String token = null;
+
     public WebClient() {
         super();
     }
@@ -40,6 +49,43 @@ public class WebClient extends ApiClient {
 
     public WebClient(String basePath, String token){
         setBasePath(basePath);
+        this.token = token;
         addDefaultHeader("Authorization", "Bearer " + token);
     }
+
+    /**
+     * Copy the output of a job as it arrives. The generated client reads a whole response before returning it, which never happens when
+     * following a running job, so this talks to the webservice directly.
+     *
+     * @param jobUuid the job
+     * @param stream which output, stdout or stderr
+     * @param follow keep copying until a running job is done
+     * @param out where to copy the output to, flushed as output arrives
+     * @throws IOException if the webservice cannot be reached or does not have the output
+     */
+    public void copyJobLog(String jobUuid, String stream, boolean follow, OutputStream out) throws IOException {
+        final String base = getBasePath().endsWith("/") ? getBasePath() : getBasePath() + "/";
+        final URL url = new URL(base + "order/" + URLEncoder.encode(jobUuid, StandardCharsets.UTF_8.name()) + "/log?stream="
+                + URLEncoder.encode(stream, StandardCharsets.UTF_8.name()) + "&follow=" + follow);
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            if (token != null) {
+                connection.setRequestProperty("Authorization", "Bearer " + token);
+            }
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Could not get the output of " + jobUuid + ": " + connection.getResponseCode() + " "
+                        + connection.getResponseMessage());
+            }
+            try (InputStream in = connection.getInputStream()) {
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                    out.flush();
+                }
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
 }
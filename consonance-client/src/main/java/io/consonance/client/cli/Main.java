@@ -59,6 +59,9 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public class Main {
 
+    /** the most urgent priority the webservice accepts for a job */
+    private static final int MAX_PRIORITY = 10;
+
     private static final ObjectMapper OBJECT_MAPPER;
     static {
         OBJECT_MAPPER = new ObjectMapper();
@@ -248,6 +251,33 @@ public class Main {
         }
     }
 
+    private static void jobLogs(List<String> args, WebClient client) {
+        if (isHelp(args, true)) {
+            out("");
+            out("Usage: consonance logs --help");
+            out("       consonance logs <params>");
+            out("");
+            out("Description:");
+            out("  Print the output of a job.");
+            out("");
+            out("Required parameters:");
+            out("  --job_uuid <job_uuid>  The UUID of the job");
+            out("Optional parameters:");
+            out("  --stderr               Print the error output instead");
+            out("  --follow               Keep printing the output of a running job as it is written, until the job is done");
+            out("");
+        } else {
+            String jobUuid = reqVal(args, "--job_uuid");
+            String stream = flag(args, "--stderr") ? "stderr" : "stdout";
+            boolean follow = flag(args, "--follow");
+            try {
+                client.copyJobLog(jobUuid, stream, follow, System.out);
+            } catch (IOException e) {
+                kill("consonance: could not retrieve output of '%s'.", jobUuid);
+            }
+        }
+    }
+
     private static void jobSchedule(List<String> args, OrderApi jobApi) {
         if (isHelp(args, true)) {
             out("");
@@ -268,15 +298,27 @@ public class Main {
             out("Optional parameters:");
             out("  --extra-file <path=file=keep>    The path where a particular file should be provisioned, a path to the contents "
                     + "of that file, and whether this file should be kept after execution. Can repeat to specify multiple files");
+            out("  --priority <priority>            How urgent the job is, from 0 (the default) to " + MAX_PRIORITY
+                    + ", higher priority jobs run first");
             out("");
         } else {
             String flavour = reqVal(args, "--flavour");
+            int priority = 0;
+            try {
+                priority = Integer.parseInt(optVal(args, "--priority", "0"));
+            } catch (NumberFormatException e) {
+                kill("consonance: priority must be a number");
+            }
+            if (priority < 0 || priority > MAX_PRIORITY) {
+                kill("consonance: priority must be from 0 to %s", MAX_PRIORITY);
+            }
             String imageDescriptor = optVal(args, "--image-descriptor", "/foobar");
             String runDescriptor = reqVal(args, "--run-descriptor");
             List<String> extraFiles = optVals(args, "--extra-file");
             try {
                 Job job = new Job();
                 job.setFlavour(flavour);
+                job.setPriority(priority);
                 // attempt to read descriptors from URIs
                 UrlValidator urlValidator = new UrlValidator();
                 if (Files.exists(Paths.get(imageDescriptor))){
@@ -387,6 +429,7 @@ public class Main {
             out("Commands:");
             out("  run           Schedule a job");
             out("  status        Get the status of a job");
+            out("  logs          Print or follow the output of a job");
             // out("  dev           Advanced commands that are useful for developers or debugging");
             out("");
             out("Flags:");
@@ -420,6 +463,9 @@ public class Main {
                     case "status":
                         jobStatus(args, new OrderApi(client));
                         break;
+                    case "logs":
+                        jobLogs(args, client);
+                        break;
                     case "update":
                         throw new OperationNotSupportedException("Not implemented yet");
                     case "run":
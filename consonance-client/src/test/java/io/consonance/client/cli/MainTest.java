@@ -26,6 +26,10 @@ import org.junit.Test;
 
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 
@@ -48,8 +52,18 @@ public class MainTest {
         }
     }
 
+    @Path("/order")
+    public static class OrderResource {
+        @GET
+        @Path("/{jobUUID}/log")
+        @Produces(MediaType.TEXT_PLAIN)
+        public String mockLog(@PathParam("jobUUID") String uuid, @QueryParam("stream") String stream, @QueryParam("follow") boolean follow) {
+            return uuid + " " + stream + " follow=" + follow + "\n";
+        }
+    }
+
     @ClassRule
-    public final static DropwizardClientRule dropwizard = new DropwizardClientRule(new ConfigResource());
+    public final static DropwizardClientRule dropwizard = new DropwizardClientRule(new ConfigResource(), new OrderResource());
 
 
     @Test
@@ -100,4 +114,18 @@ public class MainTest {
         assertTrue(stream.toString().contains("foobar"));
     }
 
+    @Test
+    public void testFollowLogs() throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(stream));
+
+        Main main = new Main();
+        main.setWebClient(WebClientTest.getTestingWebClient(dropwizard));
+        main.runMain(new String[] { "logs", "--job_uuid", "37180f53", "--stderr", "--follow" });
+
+        // reset system.out
+        System.setOut(System.out);
+        final String s = stream.toString();
+        assertTrue(s, s.contains("37180f53 stderr follow=true"));
+    }
 }
@@ -33,6 +33,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.util.Properties;
 
@@ -77,7 +79,7 @@ public class BasicPostgreSQL {
 
                 Class.forName("org.postgresql.Driver");
 
-                String url = "jdbc:postgresql://" + host + "/" + db;
+                String url = buildUrl(host, db);
                 LOG.debug("PostgreSQL URL is: " + url);
                 Properties props = new Properties();
                 props.setProperty("user", user);
@@ -98,6 +100,23 @@ public class BasicPostgreSQL {
         }
     }
 
+    private static String buildUrl(String host, String db) {
+        return "jdbc:postgresql://" + host + "/" + db;
+    }
+
+    /**
+     * Open a connection outside of the pool. This is meant for long-lived sessions, such as one that LISTENs for notifications, which
+     * should not tie up one of the pooled connections.
+     *
+     * @param settings consonance config file
+     * @return a new connection that the caller is responsible for closing
+     * @throws SQLException if the connection cannot be opened
+     */
+    public static Connection openUnpooledConnection(HierarchicalINIConfiguration settings) throws SQLException {
+        String url = buildUrl(settings.getString(Constants.POSTGRES_HOST), settings.getString(Constants.POSTGRES_DBNAME));
+        return DriverManager.getConnection(url, settings.getString(Constants.POSTGRES_USERNAME), settings.getString(Constants.POSTGRES_PASSWORD));
+    }
+
     /**
      * This clears the data base for testing and creates an admin user
      */
@@ -132,4 +151,40 @@ public class BasicPostgreSQL {
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * Run a unit of work on a single connection, committing if it completes and rolling back if it throws.
+     *
+     * @param callback the work to do, use the provided connection for every statement
+     * @param <T> the type of result returned by the work
+     * @return the result of the callback
+     */
+    protected <T> T runInTransaction(TransactionCallback<T> callback) {
+        try (Connection connection = dataSource.getConnection()) {
+            final boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                T result = callback.doInTransaction(connection);
+                connection.commit();
+                return result;
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * A unit of work that needs to run inside one database transaction.
+     *
+     * @param <T> the type of result returned by the work
+     */
+    @FunctionalInterface
+    protected interface TransactionCallback<T> {
+        T doInTransaction(Connection connection) throws SQLException;
+    }
 }
@@ -27,24 +27,46 @@ public class Constants {
     public static final String WEBSERVICE_BASE_PATH = "webservice.base_path";
     public static final String WEBSERVICE_TOKEN = "webservice.token";
     public static final String WEBSERVICE_EXTRA_FILES = "webservice.extra_files";
+    /** send descriptors and extra files that are kept to workers by SHA-256, workers fetch and cache them (see worker.blobCache*) */
+    public static final String WEBSERVICE_BLOB_REFERENCES = "webservice.blob_references";
+    /** secret the webservice signs the blob tokens in orders with, blob references stay off without it */
+    public static final String WEBSERVICE_BLOB_SIGNING_KEY = "webservice.blob_signing_key";
 
     public static final String POSTGRES_HOST = "database.postgresHost";
     public static final String POSTGRES_USERNAME = "database.postgresUser";
     public static final String POSTGRES_PASSWORD = "database.postgresPass";
     public static final String POSTGRES_DBNAME = "database.postgresDBName";
     public static final String POSTGRES_MAX_CONNECTIONS = "database.maxConnections";
+    /** how often a connection waiting for notifications checks in with the server, in seconds */
+    public static final String POSTGRES_NOTIFY_ROUND_TRIP_SECONDS = "database.notifyRoundTripSeconds";
 
     public static final String RABBIT_HOST = "rabbit.rabbitMQHost";
     public static final String RABBIT_USERNAME = "rabbit.rabbitMQUser";
     public static final String RABBIT_PASSWORD = "rabbit.rabbitMQPass";
     public static final String RABBIT_QUEUE_NAME = "rabbit.rabbitMQQueueName";
+    public static final String RABBIT_MAX_CHANNELS = "rabbit.max_channels";
+    public static final String RABBIT_PUBLISH_WINDOW = "rabbit.publish_window";
+    public static final String RABBIT_PUBLISH_ATTEMPTS = "rabbit.publish_attempts";
+    public static final String RABBIT_MESSAGE_CODEC = "rabbit.message_codec";
+    public static final String RABBIT_RETRY_TIERS = "rabbit.retry_tiers";
 
     public static final String PROVISION_MAX_RUNNING_CONTAINERS = "provision.max_running_containers";
     public static final String PROVISION_REAP_FAILED_WORKERS = "provision.reap_failed_workers";
     public static final String PROVISION_YOUXIA_DEPLOYER = "provision.youxia_deployer_parameters";
     public static final String PROVISION_YOUXIA_REAPER = "provision.youxia_reaper_parameters";
+    public static final String PROVISION_VM_ORDER_PREFETCH = "provision.vm_order_prefetch";
+    public static final String PROVISION_VM_ORDER_THREADS = "provision.vm_order_threads";
 
     public static final String COORDINATOR_SECONDS_BEFORE_LOST = "coordinator.max_seconds_before_lost";
+    public static final String COORDINATOR_STATUS_FLUSH_MILLIS = "coordinator.status_flush_millis";
+    public static final String COORDINATOR_STATUS_BATCH_SIZE = "coordinator.status_batch_size";
+    public static final String COORDINATOR_ORDER_PREFETCH = "coordinator.order_prefetch";
+    public static final String COORDINATOR_ORDER_THREADS = "coordinator.order_threads";
+    /** threads for one stage of order handling, e.g. coordinator.persist_threads, defaults to coordinator.order_threads */
+    public static final String COORDINATOR_STAGE_THREADS_FORMAT = "coordinator.%s_threads";
+    public static final String COORDINATOR_STAGE_CAPACITY = "coordinator.stage_capacity";
+    public static final String COORDINATOR_RESULT_PREFETCH = "coordinator.result_prefetch";
+    public static final String COORDINATOR_RESULT_THREADS = "coordinator.result_threads";
 
     public static final String JOB_GENERATOR_CHECK_JOB_HASH = "generator.check_previous_job_hash";
     public static final String JOB_GENERATOR_FILTER_KEYS_IN_HASH = "generator.job_filter_hash_keys";
@@ -57,6 +79,22 @@ public class Constants {
     public static final String WORKER_MAX_RUNS = "worker.max-runs";
     public static final String WORKER_SEQWARE_ENGINE = "worker.seqware-engine";
     public static final String WORKER_SEQWARE_SETTINGS_FILE = "worker.seqware-settings-file";
+    /** jobs a worker runs at a time, when not set it is worked out from worker.coresPerSlot and worker.memoryGbPerSlot, or 1 */
+    public static final String WORKER_SLOTS = "worker.slots";
+    public static final String WORKER_CORES_PER_SLOT = "worker.coresPerSlot";
+    public static final String WORKER_MEMORY_GB_PER_SLOT = "worker.memoryGbPerSlot";
+    /** where each job gets a working directory of its own */
+    public static final String WORKER_JOB_DIRECTORY = "worker.jobDirectory";
+    /** an endless worker reserves and stages its next job while the current one runs */
+    public static final String WORKER_PREFETCH = "worker.prefetch";
+    /** how long a job reserved ahead of time is held before it goes back to the queue for other workers */
+    public static final String WORKER_PREFETCH_LEASE_SECONDS = "worker.prefetchLeaseSeconds";
+    /** seconds between batches of output sent to clients following a job live, 0 to send none */
+    public static final String WORKER_LOG_RATE = "worker.logRate";
+    /** where a worker caches descriptors and extra files that orders refer to by SHA-256 */
+    public static final String WORKER_BLOB_CACHE_DIRECTORY = "worker.blobCacheDirectory";
+    /** how large the blob cache may grow before the least recently used blobs go */
+    public static final String WORKER_BLOB_CACHE_MEGABYTES = "worker.blobCacheMegabytes";
 
     public static final String REPORT_NAMESPACE = "report.namespace";
     public static final String REPORT_TOKEN = "report.slack_token";
@@ -59,13 +59,14 @@ public class ReportCLI extends Base {
         // later, we'll replace his with a proper CLI renderer
         SlackRenderer renderer = new SlackRenderer(reportAPI);
         List<?> nonOptionArguments = options.nonOptionArguments();
-        String joined = Joiner.on("").join(nonOptionArguments).toUpperCase(Locale.CANADA);
+        // arguments are kept as separate words so that commands can take filters, e.g. status flavour=m1.xlarge user=foo
+        String joined = Joiner.on(" ").join(nonOptionArguments).toUpperCase(Locale.CANADA);
         SlackRenderer.FormattedMessage result = renderer.convertToResult(joined);
         if (result.message != null) {
-            System.out.print(renderer.convertToResult(joined).message);
+            System.out.print(result.message);
         }
         if (result.attachment != null) {
-            System.out.print(renderer.convertToResult(joined).attachment.toString());
+            System.out.print(result.attachment.toString());
         }
     }
 }
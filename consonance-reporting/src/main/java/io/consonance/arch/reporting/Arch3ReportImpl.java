@@ -18,23 +18,30 @@
  */
 package io.consonance.arch.reporting;
 
+import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.ConsumerCancelledException;
+import com.rabbitmq.client.GetResponse;
 import com.rabbitmq.client.QueueingConsumer;
 import com.rabbitmq.client.ShutdownSignalException;
 import io.cloudbindle.youxia.listing.AbstractInstanceListing;
 import io.cloudbindle.youxia.listing.ListingFactory;
 import io.consonance.arch.Base;
 import io.consonance.arch.CloudTypes;
-import io.consonance.arch.beans.Job;
 import io.consonance.arch.beans.JobState;
+import io.consonance.arch.beans.JobSummary;
+import io.consonance.arch.beans.MessageCodecs;
 import io.consonance.arch.beans.Provision;
 import io.consonance.arch.beans.ProvisionState;
 import io.consonance.arch.beans.Status;
 import io.consonance.arch.persistence.PostgreSQL;
 import io.consonance.arch.utils.CommonServerTestUtilities;
+import io.consonance.arch.utils.HeartbeatAssembler;
+import io.consonance.arch.utils.ResultRoutes;
+import io.consonance.arch.utils.RetryTopology;
 import io.consonance.common.Constants;
 import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.commons.lang3.StringUtils;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -53,7 +60,6 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
-import java.util.concurrent.TimeoutException;
 
 /**
  * The Arch3ReportImpl implements calls that are specific to arch3 for retrieving reporting. This means that this means that this class will
@@ -64,6 +70,9 @@ import java.util.concurrent.TimeoutException;
 public class Arch3ReportImpl implements ReportAPI {
 
     public static final int LOOP_LIMIT = 1000;
+    /** most messages shown per quarantine */
+    public static final int QUARANTINE_LIMIT = 20;
+    private static final int QUARANTINE_PREVIEW_LENGTH = 500;
     private static final int MINUTES_IN_HOUR = 60;
     private static final int SECONDS_IN_MINUTE = 60;
     private static final double MILLISECONDS_IN_SECOND = 1000.0;
@@ -78,48 +87,47 @@ public class Arch3ReportImpl implements ReportAPI {
 
     @Override
     public Map<ProvisionState, Long> getVMStateCounts() {
-        Map<ProvisionState, Long> map = new HashMap<>();
-        for (ProvisionState state : ProvisionState.values()) {
-            long provisionCount = db.getProvisionCount(state);
-            if (provisionCount > 0) {
-                map.put(state, provisionCount);
-            }
-        }
-        return map;
+        return db.countProvisionsByState();
     }
 
     @Override
-    public Map<JobState, Integer> getJobStateCounts() {
-        Map<JobState, Integer> map = new HashMap<>();
-        for (JobState state : JobState.values()) {
-            List<Job> jobs = db.getJobs(state);
-            if (jobs.size() > 0) {
-                map.put(state, jobs.size());
-            }
-        }
-        return map;
+    public Map<ProvisionState, Long> getVMStateCounts(String flavour, String endUser) {
+        return db.countProvisionsByState(flavour, endUser);
+    }
+
+    @Override
+    public Map<JobState, Long> getJobStateCounts() {
+        return db.countJobsByState();
+    }
+
+    @Override
+    public Map<JobState, Long> getJobStateCounts(String flavour, String endUser) {
+        return db.countJobsByState(flavour, endUser);
     }
 
     @Override
     public Map<String, Status> getLastStatus() {
         String queueName = settings.getString(Constants.RABBIT_QUEUE_NAME);
-        final String resultQueueName = queueName + "_results";
+        final String resultsExchange = ResultRoutes.exchange(queueName);
         String resultsQueue = null;
 
         Channel resultsChannel = null;
         synchronized (Arch3ReportImpl.this) {
             try {
                 // read from
-                resultsChannel = CommonServerTestUtilities.setupExchange(settings, resultQueueName);
+                resultsChannel = CommonServerTestUtilities.setupExchange(settings, resultsExchange, ResultRoutes.EXCHANGE_TYPE);
                 // this declares a queue exchange where multiple consumers get the same convertToResult:
-                // https://www.rabbitmq.com/tutorials/tutorial-three-java.html
+                // https://www.rabbitmq.com/tutorials/tutorial-five-java.html
                 resultsQueue = CommonServerTestUtilities.setupQueueOnExchange(resultsChannel, queueName, "SlackReportBot");
-                resultsChannel.queueBind(resultsQueue, resultQueueName, "");
+                // only running jobs are reported on and every one of them sends heartbeats
+                resultsChannel.queueBind(resultsQueue, resultsExchange, ResultRoutes.HEARTBEATS);
                 QueueingConsumer resultsConsumer = new QueueingConsumer(resultsChannel);
                 resultsChannel.basicConsume(resultsQueue, false, resultsConsumer);
 
-                int messagesToCache = db.getJobs(JobState.RUNNING).size();
+                int messagesToCache = db.countJobsByState().getOrDefault(JobState.RUNNING, 0L).intValue();
                 Map<String, Status> cache = new TreeMap<>();
+                // heartbeats only carry new output, fold them into a tail per job
+                HeartbeatAssembler assembler = new HeartbeatAssembler(HeartbeatAssembler.DEFAULT_TAIL_LINES);
 
                 int loop = 0;
                 do {
@@ -128,12 +136,19 @@ public class Arch3ReportImpl implements ReportAPI {
                     if (delivery == null) {
                         continue;
                     }
-                    String messageFromQueue = new String(delivery.getBody(), StandardCharsets.UTF_8);
-                    // now parse it as JSONObj
-                    Status status = new Status().fromJSON(messageFromQueue);
+                    // now parse it with the codec it was sent with
+                    Status status = assembler.assemble(MessageCodecs.decode(delivery.getProperties(), delivery.getBody(), Status.class));
                     cache.put(status.getIpAddress(), status);
                 } while (loop < LOOP_LIMIT && cache.size() < messagesToCache);
 
+                // output sent before we started listening is only in the tail the coordinator stored
+                for (Status status : cache.values()) {
+                    if (status.getJobUuid() != null && status.getStdout().isEmpty() && status.getStderr().isEmpty()) {
+                        status.setStdout(db.getJobTail(status.getJobUuid(), PostgreSQL.LOG_STREAM_STDOUT));
+                        status.setStderr(db.getJobTail(status.getJobUuid(), PostgreSQL.LOG_STREAM_STDERR));
+                    }
+                }
+
                 return cache;
 
             } catch (IOException | ShutdownSignalException | InterruptedException | ConsumerCancelledException ex) {
@@ -143,14 +158,10 @@ public class Arch3ReportImpl implements ReportAPI {
                     if (resultsQueue != null && resultsChannel != null) {
                         resultsChannel.queueDelete(resultsQueue);
                     }
-                    if (resultsChannel != null) {
-
-                        resultsChannel.close();
-                        resultsChannel.getConnection().close();
-                    }
-                } catch (IOException | TimeoutException ex) {
-                    System.err.println("Could not close channel");
+                } catch (IOException ex) {
+                    System.err.println("Could not delete queue");
                 }
+                CommonServerTestUtilities.closeChannel(resultsChannel);
             }
         }
     }
@@ -196,6 +207,48 @@ public class Arch3ReportImpl implements ReportAPI {
         return env;
     }
 
+    @Override
+    public Map<String, Map<String, String>> getQuarantinedMessages() {
+        String queueName = settings.getString(Constants.RABBIT_QUEUE_NAME);
+        String[] queues = { queueName + "_orders", queueName + "_vms", queueName + "_for_CleanupJobs" };
+        Map<String, Map<String, String>> map = new TreeMap<>();
+        for (String queue : queues) {
+            final String quarantine = RetryTopology.quarantineQueue(queue);
+            Channel channel = null;
+            try {
+                channel = CommonServerTestUtilities.setupQueue(settings, quarantine);
+                // messages are never acknowledged, closing the channel puts them back where they were
+                for (int i = 0; i < QUARANTINE_LIMIT; i++) {
+                    GetResponse response = channel.basicGet(quarantine, false);
+                    if (response == null) {
+                        break;
+                    }
+                    map.put(quarantine + " #" + (i + 1), describeQuarantined(response));
+                }
+            } catch (IOException | InterruptedException ex) {
+                throw new RuntimeException(ex);
+            } finally {
+                CommonServerTestUtilities.closeChannel(channel);
+            }
+        }
+        return map;
+    }
+
+    private static Map<String, String> describeQuarantined(GetResponse response) {
+        Map<String, String> message = new TreeMap<>();
+        final AMQP.BasicProperties properties = response.getProps();
+        final Object failure = properties.getHeaders() == null ? null : properties.getHeaders().get(RetryTopology.FAILURE_HEADER);
+        message.put("failure", String.valueOf(failure));
+        message.put("retries", String.valueOf(RetryTopology.attempts(properties)));
+        message.put("content type", String.valueOf(properties.getContentType()));
+        if (MessageCodecs.SMILE.getContentType().equals(properties.getContentType())) {
+            message.put("body", response.getBody().length + " bytes of smile");
+        } else {
+            message.put("body", StringUtils.abbreviate(new String(response.getBody(), StandardCharsets.UTF_8), QUARANTINE_PREVIEW_LENGTH));
+        }
+        return message;
+    }
+
     @Override
     public Map<String, String> getCommands() {
         Map<String, String> map = new TreeMap<>();
@@ -208,24 +261,19 @@ public class Arch3ReportImpl implements ReportAPI {
     @Override
     public Map<String, Map<String, String>> getJobInfo() {
         Map<String, Map<String, String>> map = new TreeMap<>();
-        for (JobState state : JobState.values()) {
-            List<Job> jobs = db.getJobs(state);
-            Date now = new Date();
-            Timestamp currentTimestamp = new java.sql.Timestamp(now.getTime());
-            long time = currentTimestamp.getTime();
-            DecimalFormat df = new DecimalFormat("#.00");
-            for (Job job : jobs) {
-                Map<String, String> jobMap = new TreeMap<>();
-                jobMap.put("status", job.getState().toString());
-                long lastSeen = job.getUpdateTimestamp().getTime();
-                double secondsAgo = (time - lastSeen) / MILLISECONDS_IN_SECOND;
-                jobMap.put("last seen (seconds)", df.format(secondsAgo));
-                long firstSeen = job.getCreateTimestamp().getTime();
-                double hoursAgo = (time - firstSeen) / (MILLISECONDS_IN_SECOND * SECONDS_IN_MINUTE * MINUTES_IN_HOUR);
-                jobMap.put("first seen(hours)", df.format(hoursAgo));
-                map.put(job.getUuid(), jobMap);
-            }
-
+        long time = new Date().getTime();
+        DecimalFormat df = new DecimalFormat("#.00");
+        // last seen comes from the job heartbeats rather than the job row
+        for (JobSummary job : db.getJobSummaries()) {
+            Map<String, String> jobMap = new TreeMap<>();
+            jobMap.put("status", job.getState().toString());
+            long lastSeen = job.getLastSeen().getTime();
+            double secondsAgo = (time - lastSeen) / MILLISECONDS_IN_SECOND;
+            jobMap.put("last seen (seconds)", df.format(secondsAgo));
+            long firstSeen = job.getCreateTimestamp().getTime();
+            double hoursAgo = (time - firstSeen) / (MILLISECONDS_IN_SECOND * SECONDS_IN_MINUTE * MINUTES_IN_HOUR);
+            jobMap.put("first seen(hours)", df.format(hoursAgo));
+            map.put(job.getUuid(), jobMap);
         }
         return map;
     }
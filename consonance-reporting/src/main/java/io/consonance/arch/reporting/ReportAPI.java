@@ -39,7 +39,8 @@ public interface ReportAPI {
         STATUS("retrieves configuration and version information on arch3"), INFO("retrieves high-level information on bot config"), PROVISIONED(
                 "retrieves detailed information on provisioned instances"), JOBS("retrieves detailed information on jobs"), GATHER(
                 "gathers the last message sent by each worker and displays the last line of it"), YOUXIA(
-                "ask youxia for all information on instances known to the cloud APIs that are configured");
+                "ask youxia for all information on instances known to the cloud APIs that are configured"), QUARANTINE(
+                "lists messages that could not be handled and were set aside");
         private final String description;
 
         Commands(String description) {
@@ -103,11 +104,29 @@ public interface ReportAPI {
     Map<ProvisionState, Long> getVMStateCounts();
 
     /**
-     * Get list of jobs by status.
+     * Get counts of VMs in the system sorted by state, restricted to the jobs of a flavour or user.
      *
+     * @param flavour flavour to restrict to, null for all flavours
+     * @param endUser user to restrict to, null for all users
      * @return
      */
-    Map<JobState, Integer> getJobStateCounts();
+    Map<ProvisionState, Long> getVMStateCounts(String flavour, String endUser);
+
+    /**
+     * Get counts of jobs in the system sorted by state.
+     *
+     * @return
+     */
+    Map<JobState, Long> getJobStateCounts();
+
+    /**
+     * Get counts of jobs in the system sorted by state, restricted to a flavour or user.
+     *
+     * @param flavour flavour to restrict to, null for all flavours
+     * @param endUser user to restrict to, null for all users
+     * @return
+     */
+    Map<JobState, Long> getJobStateCounts(String flavour, String endUser);
 
     /**
      * Get the last Status message sent by all workers in the system.
@@ -116,6 +135,13 @@ public interface ReportAPI {
      */
     Map<String, Status> getLastStatus();
 
+    /**
+     * Get the messages waiting in quarantine, without taking them off their queues.
+     *
+     * @return
+     */
+    Map<String, Map<String, String>> getQuarantinedMessages();
+
     /**
      * Get a map with all variables that are relevant in the system.
      *
@@ -27,6 +27,7 @@ import io.consonance.arch.beans.Status;
 import org.apache.commons.lang3.StringUtils;
 
 import java.util.Date;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -36,6 +37,8 @@ import java.util.Map.Entry;
  * @author dyuen
  */
 public class SlackRenderer {
+    private static final String FLAVOUR_FILTER = "FLAVOUR=";
+    private static final String USER_FILTER = "USER=";
     private final ReportAPI reportAPI;
 
     public SlackRenderer(ReportAPI reportAPI) {
@@ -78,12 +81,16 @@ public class SlackRenderer {
             builder.append(osInstances.size()).append(" instances managed on OpenStack \n");
             builder.append(azureInstances.size()).append(" instances managed on Azure \n");
 
-            builder.append("*Historical VM counts*:\n");
-            for (Entry<ProvisionState, Long> entry : reportAPI.getVMStateCounts().entrySet()) {
+            // optional filters of the form flavour=<flavour> and user=<user>, matched case-insensitively
+            String flavour = findFilter(words, FLAVOUR_FILTER);
+            String endUser = findFilter(words, USER_FILTER);
+            String filterDescription = flavour == null && endUser == null ? "" : " (filtered)";
+            builder.append("*Historical VM counts").append(filterDescription).append("*:\n");
+            for (Entry<ProvisionState, Long> entry : reportAPI.getVMStateCounts(flavour, endUser).entrySet()) {
                 builder.append(entry.getKey().toString()).append(": ").append(entry.getValue()).append("\n");
             }
-            builder.append("*Historical Job counts*:\n");
-            for (Entry<JobState, Integer> entry : reportAPI.getJobStateCounts().entrySet()) {
+            builder.append("*Historical Job counts").append(filterDescription).append("*:\n");
+            for (Entry<JobState, Long> entry : reportAPI.getJobStateCounts(flavour, endUser).entrySet()) {
                 builder.append(entry.getKey().toString()).append(": ").append(entry.getValue()).append("\n");
             }
 
@@ -145,6 +152,15 @@ public class SlackRenderer {
             attach = new SlackAttachment("Messages gathered from queues at " + new Date(), "Messages gathered", builder.toString(), null);
             return new FormattedMessage(null, attach);
 
+        case QUARANTINE:
+            Map<String, Map<String, String>> quarantined = reportAPI.getQuarantinedMessages();
+            if (quarantined.isEmpty()) {
+                return new FormattedMessage("Nothing is quarantined\n", null);
+            }
+            renderMapOfMaps(quarantined, builder);
+            attach = new SlackAttachment("Quarantined messages at " + new Date(), "Quarantined messages", builder.toString(), null);
+            return new FormattedMessage(null, attach);
+
         default:
             /** do nothing, not a valid command */
         }
@@ -162,6 +178,15 @@ public class SlackRenderer {
         }
     }
 
+    private static String findFilter(String[] words, String prefix) {
+        for (String word : words) {
+            if (word.toUpperCase(Locale.CANADA).startsWith(prefix) && word.length() > prefix.length()) {
+                return word.substring(prefix.length());
+            }
+        }
+        return null;
+    }
+
     private void renderMapOfMaps(Map<String, Map<String, String>> jobInfo, StringBuilder builder) {
         for (Entry<String, Map<String, String>> entry : jobInfo.entrySet()) {
             builder.append("*").append(entry.getKey()).append("*\n");
@@ -24,6 +24,7 @@ import io.consonance.arch.beans.JobState;
 import io.consonance.arch.beans.Provision;
 import io.consonance.arch.beans.ProvisionState;
 import io.consonance.arch.persistence.PostgreSQL;
+import io.consonance.arch.persistence.SchemaMigrator;
 import io.consonance.arch.reporting.Arch3ReportImpl;
 import io.consonance.arch.reporting.ReportAPI;
 import io.consonance.arch.reporting.SlackRenderer;
@@ -50,6 +51,7 @@ public class Arch3ReportImplTest {
     public void setup() throws IOException, TimeoutException {
         File configFile = FileUtils.getFile("src", "test", "resources", "config");
         HierarchicalINIConfiguration parseConfig = CommonTestUtilities.parseConfig(configFile.getAbsolutePath());
+        new SchemaMigrator(parseConfig).migrate();
         this.postgres = new PostgreSQL(parseConfig);
         // clean up the database
         postgres.clearDatabase();
@@ -0,0 +1,80 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.beans;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.PropertyNamingStrategy;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Readers and writers for the beans, built once per bean type and shared.
+ *
+ * Building an {@link ObjectMapper} and warming up its introspection caches costs far more than reading or writing one message. The mapper
+ * here is configured once and never changed afterwards, the readers and writers it hands out are immutable and safe to share between
+ * threads.
+ */
+public final class BeanMappers {
+
+    /** how beans have always been written to strings, snake case and without nulls */
+    public static final BeanMappers JSON = new BeanMappers(new ObjectMapper()
+            .setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE)
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL));
+
+    private final ObjectMapper mapper;
+    private final ConcurrentMap<Class<?>, ObjectReader> readers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Class<?>, ObjectWriter> prettyWriters = new ConcurrentHashMap<>();
+
+    /**
+     * @param mapper a configured mapper, it must not be changed once handed over
+     */
+    BeanMappers(ObjectMapper mapper) {
+        this.mapper = mapper;
+    }
+
+    /**
+     * @param type a bean type
+     * @return the reader for the type
+     */
+    public ObjectReader reader(Class<?> type) {
+        return readers.computeIfAbsent(type, mapper::readerFor);
+    }
+
+    /**
+     * @param type a bean type
+     * @return the compact writer for the type
+     */
+    public ObjectWriter writer(Class<?> type) {
+        return writers.computeIfAbsent(type, mapper::writerFor);
+    }
+
+    /**
+     * @param type a bean type
+     * @return the indenting writer for the type, for logs and people
+     */
+    public ObjectWriter prettyWriter(Class<?> type) {
+        return prettyWriters.computeIfAbsent(type, key -> mapper.writerFor(key).withDefaultPrettyPrinter());
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.beans;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+
+/**
+ * A {@link MessageCodec} on top of Jackson, the format comes from the {@link JsonFactory}.
+ *
+ * Property names follow the bean annotations, so the compact JSON reads the same as what toJSON() writes minus the whitespace. Unknown
+ * properties are skipped so that a consumer can read messages from a producer with a newer schema. Readers and writers are kept per message
+ * type by a {@link BeanMappers}.
+ */
+class JacksonMessageCodec implements MessageCodec {
+
+    private final String contentType;
+    private final BeanMappers mappers;
+
+    JacksonMessageCodec(String contentType, JsonFactory factory) {
+        this.contentType = contentType;
+        this.mappers = new BeanMappers(new ObjectMapper(factory)
+                .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false));
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public byte[] encode(Object message) throws IOException {
+        return mappers.writer(message.getClass()).writeValueAsBytes(message);
+    }
+
+    @Override
+    public <T> T decode(byte[] body, Class<T> type) throws IOException {
+        return mappers.reader(type).readValue(body);
+    }
+}
@@ -23,7 +23,6 @@ import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonParseException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.PropertyNamingStrategy;
 import com.fasterxml.jackson.databind.annotation.JsonNaming;
 import io.swagger.annotations.ApiModel;
@@ -47,6 +46,7 @@ import javax.persistence.MapKeyColumn;
 import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
 import javax.persistence.Table;
+import javax.persistence.Transient;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
@@ -73,11 +73,18 @@ import java.util.UUID;
         @NamedQuery(
                 name = "io.consonance.arch.beans.core.Job.findByJobUUID",
                 query = "SELECT j FROM Job j WHERE uuid = :jobuuid"
+        ),
+        @NamedQuery(
+                name = "io.consonance.arch.beans.core.Job.findEndUserByJobUUID",
+                query = "SELECT j.uuid, j.endUser FROM Job j WHERE uuid = :jobuuid"
         )
 })
 @JsonNaming(PropertyNamingStrategy.LowerCaseWithUnderscoresStrategy.class)
 public class Job extends BaseBean{
 
+    /** the most urgent priority, the job queues are declared with this as their maximum */
+    public static final int MAX_PRIORITY = 10;
+
     private static Logger log = LoggerFactory.getLogger(Job.class);
 
     @ApiModelProperty(value = "job id")
@@ -115,6 +122,11 @@ public class Job extends BaseBean{
         @ApiModelProperty(value = "whether to keep this file after workflow execution")
         @Column(name="keep")
         private boolean keep;
+        @ApiModelProperty(value = "set by consonance on orders sent to workers, the SHA-256 of the contents, which are then left out")
+        @JsonProperty("contents_hash")
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        @Transient
+        private String contentsHash;
 
         public ExtraFile(){
 
@@ -137,6 +149,14 @@ public class Job extends BaseBean{
             return keep;
         }
 
+        public String getContentsHash() {
+            return contentsHash;
+        }
+
+        public void setContentsHash(String contentsHash) {
+            this.contentsHash = contentsHash;
+        }
+
         @Override
         public boolean equals(Object obj) {
             if (this == obj) {
@@ -146,12 +166,13 @@ public class Job extends BaseBean{
                 return false;
             }
             final ExtraFile other = (ExtraFile) obj;
-            return Objects.equals(this.keep, other.keep) && Objects.equals(this.contents, other.contents);
+            return Objects.equals(this.keep, other.keep) && Objects.equals(this.contents, other.contents)
+                    && Objects.equals(this.contentsHash, other.contentsHash);
         }
 
         @Override
         public int hashCode() {
-            return Objects.hash(keep, contents);
+            return Objects.hash(keep, contents, contentsHash);
         }
     }
     @ElementCollection(fetch = FetchType.EAGER, targetClass=ExtraFile.class)
@@ -175,12 +196,31 @@ public class Job extends BaseBean{
     @ApiModelProperty(value = "credentials or other files needed by your workflow, specify pairs of path=content")
     @Column(name="container_runtime_descriptor",columnDefinition="text")
     private String containerRuntimeDescriptor;
+    @JsonProperty("container_image_descriptor_hash")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    @ApiModelProperty(value = "set by consonance on orders sent to workers, the SHA-256 of the image descriptor, which is then left out")
+    @Transient
+    private String containerImageDescriptorHash;
+    @JsonProperty("container_runtime_descriptor_hash")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    @ApiModelProperty(value = "set by consonance on orders sent to workers, the SHA-256 of the runtime descriptor, which is then left out")
+    @Transient
+    private String containerRuntimeDescriptorHash;
+    @JsonProperty("blob_tokens")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    @ApiModelProperty(value = "set by consonance on orders sent to workers, a token per SHA-256 above that lets a worker fetch that blob")
+    @Transient
+    private Map<String, String> blobTokens;
     @ApiModelProperty(value = "indicates the user that scheduled a job", required=true)
     @Column(name="end_user",columnDefinition="text")
     private String endUser;
     @ApiModelProperty(value = "indicates the flavour of VM for a job", required=true)
     @Column(columnDefinition="text")
     private String flavour = null;
+    @JsonProperty
+    @ApiModelProperty(value = "how urgent a job is, from 0 (the default) to " + MAX_PRIORITY + ", higher priority jobs run first")
+    @Column(name = "priority", columnDefinition = "integer default 0")
+    private int priority = 0;
 
     public Job(String jobHash) {
         this.jobHash = jobHash;
@@ -196,11 +236,8 @@ public class Job extends BaseBean{
      * @return
      */
     public Job fromJSON(String json) {
-        ObjectMapper mapper = new ObjectMapper();
-        mapper.setPropertyNamingStrategy(PropertyNamingStrategy.CAMEL_CASE_TO_LOWER_CASE_WITH_UNDERSCORES);
-        mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
         try {
-            return mapper.readValue(json, Job.class);
+            return BeanMappers.JSON.reader(Job.class).readValue(json);
         } catch (JsonParseException e) {
             log.error("JSON parsing error: ", e.getMessage());
             return null;
@@ -228,6 +265,14 @@ public class Job extends BaseBean{
         this.flavour = flavour;
     }
 
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
 
     public String getUuid() {
         return uuid;
@@ -333,10 +378,35 @@ public class Job extends BaseBean{
         this.containerRuntimeDescriptor = containerRuntimeDescriptor;
     }
 
+    public String getContainerImageDescriptorHash() {
+        return containerImageDescriptorHash;
+    }
+
+    public void setContainerImageDescriptorHash(String containerImageDescriptorHash) {
+        this.containerImageDescriptorHash = containerImageDescriptorHash;
+    }
+
+    public String getContainerRuntimeDescriptorHash() {
+        return containerRuntimeDescriptorHash;
+    }
+
+    public void setContainerRuntimeDescriptorHash(String containerRuntimeDescriptorHash) {
+        this.containerRuntimeDescriptorHash = containerRuntimeDescriptorHash;
+    }
+
+    public Map<String, String> getBlobTokens() {
+        return blobTokens;
+    }
+
+    public void setBlobTokens(Map<String, String> blobTokens) {
+        this.blobTokens = blobTokens;
+    }
+
     @Override
     public int hashCode() {
         return Objects.hash(jobId, state, uuid, vmUuid, messageType, extraFiles, stdout, stderr, containerImageDescriptor,
-                containerRuntimeDescriptor, endUser, flavour);
+                containerRuntimeDescriptor, containerImageDescriptorHash, containerRuntimeDescriptorHash, blobTokens, endUser, flavour,
+                priority);
     }
 
     @Override
@@ -354,6 +424,10 @@ public class Job extends BaseBean{
                 && Objects.equals(this.stderr, other.stderr)
                 && Objects.equals(this.containerImageDescriptor, other.containerImageDescriptor)
                 && Objects.equals(this.containerRuntimeDescriptor, other.containerRuntimeDescriptor)
-                && Objects.equals(this.endUser, other.endUser) && Objects.equals(this.flavour, other.flavour);
+                && Objects.equals(this.containerImageDescriptorHash, other.containerImageDescriptorHash)
+                && Objects.equals(this.containerRuntimeDescriptorHash, other.containerRuntimeDescriptorHash)
+                && Objects.equals(this.blobTokens, other.blobTokens)
+                && Objects.equals(this.endUser, other.endUser) && Objects.equals(this.flavour, other.flavour)
+                && this.priority == other.priority;
     }
 }
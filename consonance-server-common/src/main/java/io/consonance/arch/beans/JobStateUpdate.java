@@ -0,0 +1,71 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.beans;
+
+/**
+ * A state change for one job as reported by a worker, used to write several status changes to the database in one batch.
+ */
+public class JobStateUpdate {
+
+    private final String uuid;
+    private final String vmUuid;
+    private final JobState state;
+    private final String stdoutTail;
+    private final String stderrTail;
+
+    public JobStateUpdate(String uuid, String vmUuid, JobState state) {
+        this(uuid, vmUuid, state, null, null);
+    }
+
+    /**
+     * @param uuid the job
+     * @param vmUuid the vm running the job, null to leave it unchanged
+     * @param state the new state
+     * @param stdoutTail the last lines of standard output, null to leave them unchanged
+     * @param stderrTail the last lines of standard error, null to leave them unchanged
+     */
+    public JobStateUpdate(String uuid, String vmUuid, JobState state, String stdoutTail, String stderrTail) {
+        this.uuid = uuid;
+        this.vmUuid = vmUuid;
+        this.state = state;
+        this.stdoutTail = stdoutTail;
+        this.stderrTail = stderrTail;
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public String getVmUuid() {
+        return vmUuid;
+    }
+
+    public JobState getState() {
+        return state;
+    }
+
+    public String getStdoutTail() {
+        return stdoutTail;
+    }
+
+    public String getStderrTail() {
+        return stderrTail;
+    }
+}
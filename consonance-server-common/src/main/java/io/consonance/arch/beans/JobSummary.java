@@ -0,0 +1,142 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.beans;
+
+import java.sql.Timestamp;
+
+/**
+ * A narrow, read-only view of a {@link Job} row for the control loops. This leaves out the logs, descriptors and extra files so that
+ * polling for job state does not drag them over JDBC.
+ */
+public class JobSummary {
+
+    private final String uuid;
+    private final JobState state;
+    private final String flavour;
+    private final int priority;
+    private final String vmUuid;
+    private final Timestamp createTimestamp;
+    private final Timestamp updateTimestamp;
+    private final Timestamp lastSeen;
+
+    private JobSummary(Builder builder) {
+        this.uuid = builder.uuid;
+        this.state = builder.state;
+        this.flavour = builder.flavour;
+        this.priority = builder.priority;
+        this.vmUuid = builder.vmUuid;
+        this.createTimestamp = builder.createTimestamp;
+        this.updateTimestamp = builder.updateTimestamp;
+        this.lastSeen = builder.lastSeen;
+    }
+
+    /**
+     * Collects the columns of a summary, anything not set is null or zero.
+     */
+    public static class Builder {
+        private String uuid;
+        private JobState state;
+        private String flavour;
+        private int priority;
+        private String vmUuid;
+        private Timestamp createTimestamp;
+        private Timestamp updateTimestamp;
+        private Timestamp lastSeen;
+
+        public Builder uuid(String value) {
+            this.uuid = value;
+            return this;
+        }
+
+        public Builder state(JobState value) {
+            this.state = value;
+            return this;
+        }
+
+        public Builder flavour(String value) {
+            this.flavour = value;
+            return this;
+        }
+
+        public Builder priority(int value) {
+            this.priority = value;
+            return this;
+        }
+
+        public Builder vmUuid(String value) {
+            this.vmUuid = value;
+            return this;
+        }
+
+        public Builder createTimestamp(Timestamp value) {
+            this.createTimestamp = value;
+            return this;
+        }
+
+        public Builder updateTimestamp(Timestamp value) {
+            this.updateTimestamp = value;
+            return this;
+        }
+
+        public Builder lastSeen(Timestamp value) {
+            this.lastSeen = value;
+            return this;
+        }
+
+        public JobSummary build() {
+            return new JobSummary(this);
+        }
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public JobState getState() {
+        return state;
+    }
+
+    public String getFlavour() {
+        return flavour;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public String getVmUuid() {
+        return vmUuid;
+    }
+
+    public Timestamp getCreateTimestamp() {
+        return createTimestamp;
+    }
+
+    public Timestamp getUpdateTimestamp() {
+        return updateTimestamp;
+    }
+
+    /**
+     * @return when the job was last heard from, the later of its last heartbeat and its last state change
+     */
+    public Timestamp getLastSeen() {
+        return lastSeen;
+    }
+}
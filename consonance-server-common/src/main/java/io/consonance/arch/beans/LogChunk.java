@@ -0,0 +1,117 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.beans;
+
+/**
+ * A batch of output lines from a running job, sent to the log exchange for clients that follow the job live.
+ *
+ * Chunks are numbered per job so that a follower can tell when it missed one, and carry the offset of their first line in the whole
+ * output, like heartbeats do. They are not resent, the full output still arrives with the final status of the job. The last chunk of
+ * each stream says so, to let followers stop.
+ */
+public class LogChunk {
+
+    private String jobUuid = null;
+    private String vmUuid = null;
+    private String stream = null;
+    private long sequence = 0;
+    private long offset = 0;
+    private String lines = null;
+    private boolean last = false;
+
+    public LogChunk() {
+        super();
+    }
+
+    /**
+     * @param jobUuid the job
+     * @param vmUuid the vm running the job
+     * @param stream stdout or stderr
+     * @param sequence number of the chunk, counting from 1 for each run of a job over both streams
+     * @param offset line of the whole output the first line in this chunk is
+     * @param lines the lines, separated by newlines
+     * @param last whether this is the last chunk for the stream
+     */
+    public LogChunk(String jobUuid, String vmUuid, String stream, long sequence, long offset, String lines, boolean last) {
+        this.jobUuid = jobUuid;
+        this.vmUuid = vmUuid;
+        this.stream = stream;
+        this.sequence = sequence;
+        this.offset = offset;
+        this.lines = lines;
+        this.last = last;
+    }
+
+    public String getJobUuid() {
+        return jobUuid;
+    }
+
+    public void setJobUuid(String jobUuid) {
+        this.jobUuid = jobUuid;
+    }
+
+    public String getVmUuid() {
+        return vmUuid;
+    }
+
+    public void setVmUuid(String vmUuid) {
+        this.vmUuid = vmUuid;
+    }
+
+    public String getStream() {
+        return stream;
+    }
+
+    public void setStream(String stream) {
+        this.stream = stream;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+
+    public String getLines() {
+        return lines;
+    }
+
+    public void setLines(String lines) {
+        this.lines = lines;
+    }
+
+    public boolean isLast() {
+        return last;
+    }
+
+    public void setLast(boolean last) {
+        this.last = last;
+    }
+}
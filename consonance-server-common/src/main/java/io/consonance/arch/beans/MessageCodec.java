@@ -0,0 +1,51 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.beans;
+
+import java.io.IOException;
+
+/**
+ * Turns messages into bytes for the queues and back again.
+ *
+ * The content type of a codec travels with every message, consumers look it up with {@link MessageCodecs#forContentType(String)}.
+ */
+public interface MessageCodec {
+
+    /**
+     * @return the content type that marks messages encoded by this codec
+     */
+    String getContentType();
+
+    /**
+     * @param message an {@link Order}, {@link Job}, {@link Provision} or {@link Status}
+     * @return the message body
+     * @throws IOException if the message cannot be encoded
+     */
+    byte[] encode(Object message) throws IOException;
+
+    /**
+     * @param body the message body
+     * @param type the class of the message
+     * @param <T> the class of the message
+     * @return the message
+     * @throws IOException if the body cannot be decoded
+     */
+    <T> T decode(byte[] body, Class<T> type) throws IOException;
+}
@@ -0,0 +1,173 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.beans;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.rabbitmq.client.AMQP;
+import io.consonance.common.Constants;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The message codecs and how messages say which one encoded them.
+ *
+ * Every message carries the content type of its codec and the schema version it was written with. Consumers read whatever arrives, so a
+ * fleet can move from JSON to Smile by first upgrading every consumer and then switching the producers over with
+ * {@link Constants#RABBIT_MESSAGE_CODEC}.
+ */
+public final class MessageCodecs {
+
+    public static final String JSON_CONTENT_TYPE = "application/json";
+    public static final String SMILE_CONTENT_TYPE = "application/x-jackson-smile";
+    /** what messages were sent as before they carried a codec */
+    public static final String LEGACY_CONTENT_TYPE = "text/plain";
+    public static final String SCHEMA_VERSION_HEADER = "x-consonance-schema-version";
+    /** bump when messages change in a way that older consumers should know about, 2 has heartbeats that only carry new output */
+    public static final int SCHEMA_VERSION = 2;
+
+    /** compact JSON, readable by consumers from before message codecs */
+    public static final MessageCodec JSON = new JacksonMessageCodec(JSON_CONTENT_TYPE, new JsonFactory());
+    /** binary JSON, smaller and cheaper to parse, see http://wiki.fasterxml.com/SmileFormat */
+    public static final MessageCodec SMILE = new JacksonMessageCodec(SMILE_CONTENT_TYPE, new SmileFactory());
+
+    private static final Logger LOG = LoggerFactory.getLogger(MessageCodecs.class);
+    private static final int TRANSIENT = 1;
+    private static final int PERSISTENT = 2;
+    private static final AMQP.BasicProperties JSON_PROPERTIES = build(JSON, PERSISTENT);
+    private static final AMQP.BasicProperties SMILE_PROPERTIES = build(SMILE, PERSISTENT);
+    private static final AMQP.BasicProperties JSON_TRANSIENT_PROPERTIES = build(JSON, TRANSIENT);
+    private static final AMQP.BasicProperties SMILE_TRANSIENT_PROPERTIES = build(SMILE, TRANSIENT);
+    private static final AtomicBoolean WARNED_ABOUT_NEWER_SCHEMA = new AtomicBoolean(false);
+
+    private MessageCodecs() {
+        // utility class
+    }
+
+    /**
+     * @param settings consonance config file
+     * @return the codec this process publishes with
+     */
+    public static MessageCodec fromSettings(HierarchicalINIConfiguration settings) {
+        final String name = settings.getString(Constants.RABBIT_MESSAGE_CODEC);
+        return name == null ? JSON : forName(name);
+    }
+
+    /**
+     * @param name name of a codec as used in the config file
+     * @return the codec
+     */
+    public static MessageCodec forName(String name) {
+        switch (name) {
+        case "json":
+            return JSON;
+        case "smile":
+            return SMILE;
+        default:
+            throw new IllegalArgumentException("Unknown message codec " + name + ", expected json or smile");
+        }
+    }
+
+    /**
+     * @param contentType content type of a message, may be null
+     * @return the codec that reads it
+     * @throws IOException if no codec reads it
+     */
+    public static MessageCodec forContentType(String contentType) throws IOException {
+        if (contentType == null || JSON_CONTENT_TYPE.equals(contentType) || LEGACY_CONTENT_TYPE.equals(contentType)) {
+            return JSON;
+        }
+        if (SMILE_CONTENT_TYPE.equals(contentType)) {
+            return SMILE;
+        }
+        throw new IOException("No codec for content type " + contentType);
+    }
+
+    /**
+     * @param codec codec the message body was encoded with
+     * @return properties for a persistent message that names its codec and schema version
+     */
+    public static AMQP.BasicProperties properties(MessageCodec codec) {
+        if (codec == JSON) {
+            return JSON_PROPERTIES;
+        }
+        if (codec == SMILE) {
+            return SMILE_PROPERTIES;
+        }
+        return build(codec, PERSISTENT);
+    }
+
+    /**
+     * @param codec codec the message body was encoded with
+     * @param priority priority of the message, queues declared with a maximum priority hand out higher priority messages first
+     * @return properties for a persistent message that names its codec and schema version
+     */
+    public static AMQP.BasicProperties properties(MessageCodec codec, int priority) {
+        final AMQP.BasicProperties properties = properties(codec);
+        return priority == 0 ? properties : properties.builder().priority(priority).build();
+    }
+
+    /**
+     * @param codec codec the message body was encoded with
+     * @return properties for a message that the broker need not write to disk, for messages that are stale once the next one is sent
+     */
+    public static AMQP.BasicProperties transientProperties(MessageCodec codec) {
+        if (codec == JSON) {
+            return JSON_TRANSIENT_PROPERTIES;
+        }
+        if (codec == SMILE) {
+            return SMILE_TRANSIENT_PROPERTIES;
+        }
+        return build(codec, TRANSIENT);
+    }
+
+    /**
+     * Decode a message with the codec named in its properties.
+     *
+     * @param properties properties of the message, may be null
+     * @param body the message body
+     * @param type the class of the message
+     * @param <T> the class of the message
+     * @return the message
+     * @throws IOException if the message cannot be decoded
+     */
+    public static <T> T decode(AMQP.BasicProperties properties, byte[] body, Class<T> type) throws IOException {
+        if (properties == null) {
+            return JSON.decode(body, type);
+        }
+        final Object version = properties.getHeaders() == null ? null : properties.getHeaders().get(SCHEMA_VERSION_HEADER);
+        if (version instanceof Number && ((Number) version).intValue() > SCHEMA_VERSION && WARNED_ABOUT_NEWER_SCHEMA.compareAndSet(false,
+                true)) {
+            LOG.warn("Received a message with schema version " + version + " but only know up to " + SCHEMA_VERSION
+                    + ", fields this version does not know about are ignored");
+        }
+        return forContentType(properties.getContentType()).decode(body, type);
+    }
+
+    private static AMQP.BasicProperties build(MessageCodec codec, int deliveryMode) {
+        return new AMQP.BasicProperties.Builder().contentType(codec.getContentType()).deliveryMode(deliveryMode).priority(0)
+                .headers(Collections.singletonMap(SCHEMA_VERSION_HEADER, SCHEMA_VERSION)).build();
+    }
+}
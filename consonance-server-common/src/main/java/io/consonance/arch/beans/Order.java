@@ -19,9 +19,13 @@
 
 package io.consonance.arch.beans;
 
-import io.consonance.arch.utils.CommonServerTestUtilities;
-import org.json.simple.JSONObject;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.UUID;
 
 /**
@@ -30,9 +34,10 @@ import java.util.UUID;
  * @author boconnor
  * @author dyuen
  */
+@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonPropertyOrder({ "message_type", "order_uuid", "job", "provision" })
 public class Order {
 
-    CommonServerTestUtilities u = new CommonServerTestUtilities();
     private Job job = null;
     private Provision provision = null;
     String orderUUID = UUID.randomUUID().toString().toLowerCase();
@@ -42,20 +47,38 @@ public class Order {
     }
 
     public String toJSON() {
-        String json = "{ \n" + "  \"message_type\": \"order\",\n" + "  \"order_uuid\": \"" + orderUUID + "\",\n" + "  \"job\": "
-                + job.toJSON() + ",\n" + "  \"provision\": " + provision.toJSON() + "\n" + "}";
-        return json;
+        try {
+            return new String(MessageCodecs.JSON.encode(this), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     public Order fromJSON(String json) {
+        try {
+            Order order = MessageCodecs.JSON.decode(json.getBytes(StandardCharsets.UTF_8), Order.class);
+            job = order.job;
+            provision = order.provision;
+            orderUUID = order.orderUUID;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
 
-        JSONObject obj = u.parseJob(json);
-        job = new Job().fromJSON(obj.get("job").toString());
-        provision = new Provision().fromJSON(obj.get("provision").toString());
-        orderUUID = (String) obj.get("order_uuid");
+    @JsonProperty("message_type")
+    public String getMessageType() {
+        return "order";
+    }
 
-        return this;
+    @JsonProperty("order_uuid")
+    public String getOrderUUID() {
+        return orderUUID;
+    }
 
+    @JsonProperty("order_uuid")
+    public void setOrderUUID(String orderUUID) {
+        this.orderUUID = orderUUID;
     }
 
     public Provision getProvision() {
@@ -0,0 +1,59 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.beans;
+
+import java.sql.Timestamp;
+
+/**
+ * A message waiting in the order outbox to be published to a queue.
+ */
+public class OutboxEntry {
+
+    private final long id;
+    private final String queue;
+    private final String payload;
+    private final Timestamp created;
+
+    public OutboxEntry(long id, String queue, String payload, Timestamp created) {
+        this.id = id;
+        this.queue = queue;
+        this.payload = payload;
+        this.created = created == null ? null : new Timestamp(created.getTime());
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getQueue() {
+        return queue;
+    }
+
+    public String getPayload() {
+        return payload;
+    }
+
+    /**
+     * @return when the message was put in the outbox
+     */
+    public Timestamp getCreated() {
+        return created == null ? null : new Timestamp(created.getTime());
+    }
+}
@@ -20,10 +20,8 @@
 package io.consonance.arch.beans;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
-import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonParseException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.PropertyNamingStrategy;
 import com.fasterxml.jackson.databind.annotation.JsonNaming;
 import io.swagger.annotations.ApiModel;
@@ -109,11 +107,8 @@ public class Provision extends BaseBean{
      * @return
      */
     public Provision fromJSON(String json) {
-        ObjectMapper mapper = new ObjectMapper();
-        mapper.setPropertyNamingStrategy(PropertyNamingStrategy.CAMEL_CASE_TO_LOWER_CASE_WITH_UNDERSCORES);
-        mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
         try {
-            return mapper.readValue(json, Provision.class);
+            return BeanMappers.JSON.reader(Provision.class).readValue(json);
         } catch (JsonParseException e) {
             log.error("JSON parsing error: ", e.getMessage());
             return null;
@@ -24,9 +24,17 @@ import com.google.gson.GsonBuilder;
 
 /**
  * This represents a Status which is a message sent to the Results/Status queue. Created by boconnor on 2015-04-22.
+ *
+ * Heartbeats are deltas, they carry a sequence number and only the lines of output written since the last heartbeat the broker took.
+ * The offsets say which line of the whole output the first line of stdout and stderr is. Statuses without a sequence carry the tail of
+ * the output as a whole, like every status did before heartbeats were deltas.
  */
 public class Status {
 
+    /** pretty printed for logs and people, messages on the wire go through a {@link MessageCodec} */
+    private static final Gson PRETTY_GSON = new GsonBuilder().setPrettyPrinting().create();
+    private static final Gson GSON = new Gson();
+
     private String type = null;
     private StatusState state = null;
     private String vmUuid = null;
@@ -35,6 +43,9 @@ public class Status {
     private String stderr = null;
     private String stdout = null;
     private String ipAddress = null;
+    private Long sequence = null;
+    private Long stdoutOffset = null;
+    private Long stderrOffset = null;
 
     public Status(String vmUuid, String jobUuid, StatusState state, String type, String message, String ipAddress) {
         this.vmUuid = vmUuid;
@@ -50,13 +61,11 @@ public class Status {
     }
 
     public String toJSON() {
-        Gson gson = new GsonBuilder().setPrettyPrinting().create();
-        return gson.toJson(this);
+        return PRETTY_GSON.toJson(this);
     }
 
     public Status fromJSON(String json) {
-        Gson gson = new Gson();
-        return gson.fromJson(json, Status.class);
+        return GSON.fromJson(json, Status.class);
     }
 
     public String getType() {
@@ -129,4 +138,37 @@ public class Status {
     public void setIpAddress(String ipAddress) {
         this.ipAddress = ipAddress;
     }
+
+    /**
+     * @return counts up from one with each heartbeat for a job, null if this status is not a delta
+     */
+    public Long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(Long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return the line number of the first line in stdout, counting from zero
+     */
+    public Long getStdoutOffset() {
+        return stdoutOffset;
+    }
+
+    public void setStdoutOffset(Long stdoutOffset) {
+        this.stdoutOffset = stdoutOffset;
+    }
+
+    /**
+     * @return the line number of the first line in stderr, counting from zero
+     */
+    public Long getStderrOffset() {
+        return stderrOffset;
+    }
+
+    public void setStderrOffset(Long stderrOffset) {
+        this.stderrOffset = stderrOffset;
+    }
 }
@@ -23,5 +23,5 @@ package io.consonance.arch.beans;
  * @author dyuen
  */
 public enum StatusState {
-    SUCCESS, RUNNING, FAILED, PENDING, PROVISIONING
+    SUCCESS, RUNNING, FAILED, PENDING, PROVISIONING, LOST
 }
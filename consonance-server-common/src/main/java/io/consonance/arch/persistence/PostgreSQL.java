@@ -19,24 +19,49 @@
 
 package io.consonance.arch.persistence;
 
+import io.consonance.arch.Base;
 import io.consonance.arch.beans.Job;
 import io.consonance.arch.beans.JobState;
+import io.consonance.arch.beans.JobStateUpdate;
+import io.consonance.arch.beans.JobSummary;
+import io.consonance.arch.beans.OutboxEntry;
 import io.consonance.arch.beans.Provision;
 import io.consonance.arch.beans.ProvisionState;
 import io.consonance.common.BasicPostgreSQL;
 import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.commons.dbutils.QueryRunner;
+import org.apache.commons.dbutils.ResultSetHandler;
 import org.apache.commons.dbutils.handlers.ArrayHandler;
 import org.apache.commons.dbutils.handlers.KeyedHandler;
 import org.apache.commons.dbutils.handlers.ScalarHandler;
+import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * @author oconnor
@@ -44,12 +69,39 @@ import java.util.stream.Collectors;
  */
 public class PostgreSQL extends BasicPostgreSQL{
 
+    public static final String LOG_STREAM_STDOUT = "stdout";
+    public static final String LOG_STREAM_STDERR = "stderr";
+    /** uncompressed bytes per stored log chunk */
+    static final int LOG_CHUNK_SIZE = 1024 * 1024;
+
     protected static final Logger LOG = LoggerFactory.getLogger(PostgreSQL.class);
 
+    /**
+     * Last seen is the later of the last heartbeat and the last state change, greatest() skips the null when there is no heartbeat.
+     */
+    private static final String JOB_SUMMARY_QUERY = "select j.job_uuid, j.status, j.flavour, j.priority, j.provision_uuid, j.create_timestamp, "
+            + "j.update_timestamp, greatest(h.last_seen, j.update_timestamp) as last_seen from job j left join job_heartbeat h on h.job_uuid = j.job_uuid";
+    private static final ResultSetHandler<List<JobSummary>> JOB_SUMMARY_HANDLER = rs -> {
+        List<JobSummary> summaries = new ArrayList<>();
+        while (rs.next()) {
+            summaries.add(new JobSummary.Builder().uuid(rs.getString("job_uuid")).state(Enum.valueOf(JobState.class, rs.getString("status")))
+                    .flavour(rs.getString("flavour")).priority(rs.getInt("priority")).vmUuid(rs.getString("provision_uuid"))
+                    .createTimestamp(rs.getTimestamp("create_timestamp")).updateTimestamp(rs.getTimestamp("update_timestamp"))
+                    .lastSeen(rs.getTimestamp("last_seen")).build());
+        }
+        return summaries;
+    };
+
     public PostgreSQL(HierarchicalINIConfiguration settings) {
         super(settings);
     }
 
+    @Override
+    public void clearDatabase() {
+        this.runUpdateStatement("delete from job_heartbeat; delete from job_log_chunk; delete from order_outbox; delete from blob");
+        super.clearDatabase();
+    }
+
     public long getDesiredNumberOfVMs() {
         return runSelectStatement("select count(*) from provision where status = '" + ProvisionState.PENDING + "' or status = '"
                 + ProvisionState.RUNNING + "'", new ScalarHandler<>());
@@ -72,8 +124,130 @@ public class PostgreSQL extends BasicPostgreSQL{
                 ProvisionState.SUCCESS.toString(), uuid);
     }
 
+    /**
+     * Record the final output of a job, both on the job row and as compressed log chunks that can be streamed back.
+     *
+     * @param uuid the job
+     * @param stdout standard output, may be null
+     * @param stderr standard error, may be null
+     */
     public void updateJobMessage(String uuid, String stdout, String stderr) {
-        runUpdateStatement("update job set stdout = ?, stderr = ?, update_timestamp = NOW() where job_uuid = ?", stdout, stderr, uuid);
+        runInTransaction(connection -> {
+            new QueryRunner().update(connection, "update job set stdout = ?, stderr = ?, update_timestamp = NOW() where job_uuid = ?", stdout,
+                    stderr, uuid);
+            replaceJobLog(connection, uuid, LOG_STREAM_STDOUT, stdout);
+            replaceJobLog(connection, uuid, LOG_STREAM_STDERR, stderr);
+            return null;
+        });
+    }
+
+    /**
+     * Append output to a job log.
+     *
+     * @param uuid the job
+     * @param stream {@link #LOG_STREAM_STDOUT} or {@link #LOG_STREAM_STDERR}
+     * @param text the output to add
+     */
+    public void appendJobLog(String uuid, String stream, String text) {
+        runInTransaction(connection -> {
+            appendJobLog(connection, uuid, stream, text);
+            return null;
+        });
+    }
+
+    /**
+     * @param uuid the job
+     * @param stream {@link #LOG_STREAM_STDOUT} or {@link #LOG_STREAM_STDERR}
+     * @return the last lines of output the coordinator has seen from a running job, null if there are none
+     */
+    public String getJobTail(String uuid, String stream) {
+        final String column = LOG_STREAM_STDOUT.equals(stream) ? "stdout_tail" : "stderr_tail";
+        return this.runSelectStatement("select " + column + " from job_heartbeat where job_uuid = ?", new ScalarHandler<>(), uuid);
+    }
+
+    /**
+     * @param uuid the job
+     * @param stream {@link #LOG_STREAM_STDOUT} or {@link #LOG_STREAM_STDERR}
+     * @return the uncompressed size of the stored log in bytes, zero if nothing is stored
+     */
+    public long getJobLogLength(String uuid, String stream) {
+        Number length = this.runSelectStatement("select sum(raw_length) from job_log_chunk where job_uuid = ? and stream = ?",
+                new ScalarHandler<>(), uuid, stream);
+        return length == null ? 0 : length.longValue();
+    }
+
+    /**
+     * Stream part of a job log. Chunks are read through a cursor one at a time and decompressed on the fly, so only one chunk is held in
+     * memory no matter how large the log is.
+     *
+     * @param uuid the job
+     * @param stream {@link #LOG_STREAM_STDOUT} or {@link #LOG_STREAM_STDERR}
+     * @param from first byte to write, inclusive
+     * @param to last byte to write, exclusive
+     * @param out where to write the log
+     * @throws IOException if writing to out fails
+     */
+    public void streamJobLog(String uuid, String stream, long from, long to, OutputStream out) throws IOException {
+        try {
+            runInTransaction(connection -> {
+                // a fetch size inside a transaction makes the driver use a cursor instead of reading the whole result
+                try (PreparedStatement statement = connection.prepareStatement("select start_offset, data from job_log_chunk "
+                        + "where job_uuid = ? and stream = ? and start_offset + raw_length > ? and start_offset < ? order by seq")) {
+                    statement.setFetchSize(1);
+                    new QueryRunner().fillStatement(statement, uuid, stream, from, to);
+                    try (ResultSet rs = statement.executeQuery()) {
+                        while (rs.next()) {
+                            final long start = rs.getLong(1);
+                            try (InputStream in = new GZIPInputStream(rs.getBinaryStream(2))) {
+                                IOUtils.copyLarge(in, out, Math.max(0, from - start), to - Math.max(from, start));
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return null;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static void replaceJobLog(Connection connection, String uuid, String stream, String text) throws SQLException {
+        new QueryRunner().update(connection, "delete from job_log_chunk where job_uuid = ? and stream = ?", uuid, stream);
+        appendJobLog(connection, uuid, stream, text);
+    }
+
+    private static void appendJobLog(Connection connection, String uuid, String stream, String text) throws SQLException {
+        if (text == null || text.isEmpty()) {
+            return;
+        }
+        final Object[] end = new QueryRunner().query(connection,
+                "select coalesce(max(seq) + 1, 0), coalesce(sum(raw_length), 0) from job_log_chunk where job_uuid = ? and stream = ?",
+                new ArrayHandler(), uuid, stream);
+        int seq = ((Number) end[0]).intValue();
+        long offset = ((Number) end[1]).longValue();
+        final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        final QueryRunner runner = new QueryRunner();
+        try (PreparedStatement statement = connection.prepareStatement(
+                "insert into job_log_chunk (job_uuid, stream, seq, start_offset, raw_length, data) values (?, ?, ?, ?, ?, ?)")) {
+            for (int position = 0; position < bytes.length; position += LOG_CHUNK_SIZE) {
+                final int length = Math.min(LOG_CHUNK_SIZE, bytes.length - position);
+                runner.fillStatement(statement, uuid, stream, seq++, offset, length, gzip(bytes, position, length));
+                statement.executeUpdate();
+                offset += length;
+            }
+        }
+    }
+
+    private static byte[] gzip(byte[] bytes, int position, int length) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(bytes, position, length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return compressed.toByteArray();
     }
 
     public void finishJob(String uuid) {
@@ -85,6 +259,39 @@ public class PostgreSQL extends BasicPostgreSQL{
                 vmUuid, uuid);
     }
 
+    /**
+     * Apply a batch of job status messages in one transaction.
+     *
+     * Every message refreshes the narrow job_heartbeat row for its job, along with the tail of its output. The wide job row is only
+     * written when the state or vm actually changes, so a steady stream of RUNNING heartbeats does not create new versions of it. A null
+     * vm uuid leaves the recorded provision untouched, as does a null tail.
+     *
+     * @param updates state changes, at most one per job is expected
+     * @return the number of job rows changed by each statement in the batch
+     */
+    public int[] updateJobs(Collection<JobStateUpdate> updates) {
+        if (updates.isEmpty()) {
+            return new int[0];
+        }
+        final Object[][] heartbeatParams = updates.stream()
+                .map(update -> new Object[] { update.getUuid(), update.getVmUuid(), update.getStdoutTail(), update.getStderrTail() })
+                .toArray(Object[][]::new);
+        final Object[][] jobParams = updates.stream()
+                .map(update -> new Object[] { update.getState().toString(), update.getVmUuid(), update.getUuid(), update.getState().toString(),
+                        update.getVmUuid() }).toArray(Object[][]::new);
+        return runInTransaction(connection -> {
+            QueryRunner run = new QueryRunner();
+            run.batch(connection, "insert into job_heartbeat (job_uuid, vm_uuid, last_seen, seq, stdout_tail, stderr_tail) "
+                    + "values (?, ?, now(), 1, ?, ?) "
+                    + "on conflict (job_uuid) do update set vm_uuid = coalesce(excluded.vm_uuid, job_heartbeat.vm_uuid), "
+                    + "last_seen = excluded.last_seen, seq = job_heartbeat.seq + 1, "
+                    + "stdout_tail = coalesce(excluded.stdout_tail, job_heartbeat.stdout_tail), "
+                    + "stderr_tail = coalesce(excluded.stderr_tail, job_heartbeat.stderr_tail)", heartbeatParams);
+            return run.batch(connection, "update job set status = ?, provision_uuid = coalesce(?, provision_uuid), update_timestamp = NOW() "
+                    + "where job_uuid = ? and (status <> ? or provision_uuid is distinct from coalesce(?, provision_uuid))", jobParams);
+        });
+    }
+
     public void updateProvisionByProvisionUUID(String provisionUuid, String jobUuid, ProvisionState status, String ipAddress) {
         runUpdateStatement(
                 "update provision set status = ? , job_uuid = ? , update_timestamp = NOW(), ip_address = ? where provision_uuid = ?",
@@ -101,6 +308,93 @@ public class PostgreSQL extends BasicPostgreSQL{
         return this.runSelectStatement("select count(*) from provision where status = ?", new ScalarHandler<>(), status.toString());
     }
 
+    /**
+     * Count provisions in each state with a single aggregate query.
+     *
+     * @return counts keyed by state, states without provisions are left out
+     */
+    public Map<ProvisionState, Long> countProvisionsByState() {
+        return countProvisionsByState(null, null);
+    }
+
+    /**
+     * Count provisions in each state with a single aggregate query, optionally restricted to provisions for the jobs of one flavour
+     * or one user.
+     *
+     * @param flavour only count provisions for jobs of this flavour (case-insensitive), null for any
+     * @param endUser only count provisions for jobs submitted by this user (case-insensitive), null for any
+     * @return counts keyed by state, states without provisions are left out
+     */
+    public Map<ProvisionState, Long> countProvisionsByState(String flavour, String endUser) {
+        StringBuilder query = new StringBuilder();
+        List<Object> params = new ArrayList<>();
+        if (flavour == null && endUser == null) {
+            query.append("select status, count(*) from provision");
+        } else {
+            query.append("select p.status, count(*) from provision p join job j on j.job_uuid = p.job_uuid");
+            appendJobFilters(query, params, "j.", flavour, endUser);
+        }
+        query.append(" group by 1");
+        return this.runSelectStatement(query.toString(), rs -> {
+            Map<ProvisionState, Long> counts = new EnumMap<>(ProvisionState.class);
+            while (rs.next()) {
+                String status = rs.getString(1);
+                if (status != null) {
+                    counts.put(Enum.valueOf(ProvisionState.class, status), rs.getLong(2));
+                }
+            }
+            return counts;
+        }, params.toArray());
+    }
+
+    /**
+     * Count jobs in each state with a single aggregate query.
+     *
+     * @return counts keyed by state, states without jobs are left out
+     */
+    public Map<JobState, Long> countJobsByState() {
+        return countJobsByState(null, null);
+    }
+
+    /**
+     * Count jobs in each state with a single aggregate query, optionally restricted to one flavour or one user.
+     *
+     * @param flavour only count jobs of this flavour (case-insensitive), null for any
+     * @param endUser only count jobs submitted by this user (case-insensitive), null for any
+     * @return counts keyed by state, states without jobs are left out
+     */
+    public Map<JobState, Long> countJobsByState(String flavour, String endUser) {
+        StringBuilder query = new StringBuilder("select status, count(*) from job");
+        List<Object> params = new ArrayList<>();
+        appendJobFilters(query, params, "", flavour, endUser);
+        query.append(" group by 1");
+        return this.runSelectStatement(query.toString(), rs -> {
+            Map<JobState, Long> counts = new EnumMap<>(JobState.class);
+            while (rs.next()) {
+                String status = rs.getString(1);
+                if (status != null) {
+                    counts.put(Enum.valueOf(JobState.class, status), rs.getLong(2));
+                }
+            }
+            return counts;
+        }, params.toArray());
+    }
+
+    private static void appendJobFilters(StringBuilder query, List<Object> params, String alias, String flavour, String endUser) {
+        List<String> clauses = new ArrayList<>();
+        if (flavour != null) {
+            clauses.add("lower(" + alias + "flavour) = lower(?)");
+            params.add(flavour);
+        }
+        if (endUser != null) {
+            clauses.add("lower(" + alias + "end_user) = lower(?)");
+            params.add(endUser);
+        }
+        if (!clauses.isEmpty()) {
+            query.append(" where ").append(String.join(" and ", clauses));
+        }
+    }
+
     public Integer createProvision(Provision p) {
         Map<Object, Map<String, Object>> map = this.runInsertStatement(
                 "INSERT INTO provision (status, provision_uuid, cores, mem_gb, storage_gb, job_uuid, ip_address) VALUES (?,?,?,?,?,?,?)",
@@ -111,9 +405,9 @@ public class PostgreSQL extends BasicPostgreSQL{
 
     public String createJob(Job j) {
         Map<Object, Map<String, Object>> map = this.runInsertStatement(
-                "INSERT INTO job (status, job_uuid, job_hash) VALUES (?,?,?)",
+                "INSERT INTO job (status, job_uuid, job_hash, flavour, end_user, priority) VALUES (?,?,?,?,?,?)",
                 new KeyedHandler<>("job_uuid"), j.getState().toString(), j.getUuid(),
-                j.getJobHash());
+                j.getJobHash(), j.getFlavour(), j.getEndUser(), j.getPriority());
         return (String) map.entrySet().iterator().next().getKey();
     }
 
@@ -175,31 +469,145 @@ public class PostgreSQL extends BasicPostgreSQL{
             map = this.runSelectStatement("select * from job", new KeyedHandler<>("job_uuid"));
         }
 
-        //TODO: this can be done more cleanly with a custom row processor
         for (Entry<Object, Map<String, Object>> entry : map.entrySet()) {
+            jobs.add(toJob(entry.getValue()));
+        }
+
+        return jobs;
+    }
 
-            Job j = new Job();
-            j.setState(Enum.valueOf(JobState.class, (String) entry.getValue().get("status")));
-            j.setUuid((String) entry.getValue().get("job_uuid"));
-            j.setJobHash((String) entry.getValue().get("job_hash"));
-            j.setStdout((String) entry.getValue().get("stdout"));
-            j.setStderr((String) entry.getValue().get("stderr"));
-            j.setFlavour((String) entry.getValue().get("flavour"));
-            j.setJobId((Integer) entry.getValue().get("job_id"));
-            j.setContainerImageDescriptor((String) entry.getValue().get("container_image_descriptor"));
-            j.setContainerRuntimeDescriptor((String) entry.getValue().get("container_runtime_descriptor"));
+    /**
+     * Get a single job.
+     *
+     * @param uuid the job uuid
+     * @return the job or null if there is no such job
+     */
+    public Job getJob(String uuid) {
+        Map<Object, Map<String, Object>> map = this.runSelectStatement("select * from job where job_uuid = ?", new KeyedHandler<>("job_uuid"),
+                uuid);
+        return map.isEmpty() ? null : toJob(map.values().iterator().next());
+    }
 
-            // timestamp
-            Timestamp createTs = (Timestamp) entry.getValue().get("create_timestamp");
-            Timestamp updateTs = (Timestamp) entry.getValue().get("update_timestamp");
-            j.setCreateTimestamp(createTs);
-            j.setUpdateTimestamp(updateTs);
+    private static Job toJob(Map<String, Object> row) {
+        Job j = new Job();
+        j.setState(Enum.valueOf(JobState.class, (String) row.get("status")));
+        j.setUuid((String) row.get("job_uuid"));
+        j.setJobHash((String) row.get("job_hash"));
+        j.setStdout((String) row.get("stdout"));
+        j.setStderr((String) row.get("stderr"));
+        j.setFlavour((String) row.get("flavour"));
+        // absent when reading a table from before job priorities
+        final Number priority = (Number) row.get("priority");
+        j.setPriority(priority == null ? 0 : priority.intValue());
+        j.setJobId((Integer) row.get("job_id"));
+        j.setVmUuid((String) row.get("provision_uuid"));
+        j.setEndUser((String) row.get("end_user"));
+        j.setContainerImageDescriptor((String) row.get("container_image_descriptor"));
+        j.setContainerRuntimeDescriptor((String) row.get("container_runtime_descriptor"));
+
+        // timestamp
+        Timestamp createTs = (Timestamp) row.get("create_timestamp");
+        Timestamp updateTs = (Timestamp) row.get("update_timestamp");
+        j.setCreateTimestamp(createTs);
+        j.setUpdateTimestamp(updateTs);
+        return j;
+    }
 
-            jobs.add(j);
+    /**
+     * Mark every RUNNING job that has not been heard from within the given time as LOST, in a single statement.
+     *
+     * A job counts as heard from if it sent a heartbeat or changed state, whichever happened later.
+     *
+     * @param maxSilence how long a running job may stay silent before it is considered lost
+     * @return the jobs that were marked as lost along with the vm they were running on
+     */
+    public List<JobStateUpdate> markLostJobs(Duration maxSilence) {
+        final double seconds = maxSilence.toMillis() / (double) Base.ONE_SECOND_IN_MILLISECONDS;
+        return this.runSelectStatement("update job j set status = ?, update_timestamp = NOW() where j.status = ? "
+                + "and greatest((select h.last_seen from job_heartbeat h where h.job_uuid = j.job_uuid), j.update_timestamp) "
+                + "< NOW() - make_interval(secs => ?) returning j.job_uuid, j.provision_uuid", rs -> {
+                    List<JobStateUpdate> lost = new ArrayList<>();
+                    while (rs.next()) {
+                        lost.add(new JobStateUpdate(rs.getString("job_uuid"), rs.getString("provision_uuid"), JobState.LOST));
+                    }
+                    return lost;
+                }, JobState.LOST.toString(), JobState.RUNNING.toString(), seconds);
+    }
 
-        }
+    /**
+     * Work out when the next RUNNING job could become lost, so that lost job detection can sleep until then.
+     *
+     * @param maxSilence how long a running job may stay silent before it is considered lost
+     * @return time until the quietest running job crosses maxSilence, negative if it already has, null if nothing is running
+     */
+    public Duration timeUntilNextLostJob(Duration maxSilence) {
+        final double seconds = maxSilence.toMillis() / (double) Base.ONE_SECOND_IN_MILLISECONDS;
+        Double remaining = this.runSelectStatement("select extract(epoch from min(greatest(h.last_seen, j.update_timestamp)) "
+                + "+ make_interval(secs => ?) - NOW()) from job j left join job_heartbeat h on h.job_uuid = j.job_uuid where j.status = ?",
+                new ScalarHandler<>(), seconds, JobState.RUNNING.toString());
+        return remaining == null ? null : Duration.ofMillis((long) (remaining * Base.ONE_SECOND_IN_MILLISECONDS));
+    }
 
-        return jobs;
+    /**
+     * Add a message to the order outbox. The webservice writes the outbox through its own hibernate session, this is for everything else.
+     *
+     * @param queue queue to publish to
+     * @param payload message body
+     */
+    public void enqueueOutbox(String queue, String payload) {
+        runUpdateStatement("insert into order_outbox (queue, payload) values (?, ?)", queue, payload);
+    }
+
+    /**
+     * Hand the oldest messages in the order outbox to a publisher and delete the ones it reports as delivered, all in one transaction.
+     *
+     * Rows are locked while they are being published and rows locked by another relay are skipped, so several relays can run at once.
+     * If the transaction does not commit after publishing, the messages are published again later, so delivery is at least once.
+     *
+     * @param limit the most messages to relay in one go
+     * @param publisher publishes the messages and returns the ids of those the broker confirmed
+     * @return the number of messages delivered
+     */
+    public int relayOutbox(int limit, Function<List<OutboxEntry>, Collection<Long>> publisher) {
+        return runInTransaction(connection -> {
+            QueryRunner run = new QueryRunner();
+            List<OutboxEntry> entries = run.query(connection,
+                    "select outbox_id, queue, payload, created from order_outbox order by outbox_id limit ? for update skip locked",
+                    rs -> {
+                        List<OutboxEntry> list = new ArrayList<>();
+                        while (rs.next()) {
+                            list.add(new OutboxEntry(rs.getLong("outbox_id"), rs.getString("queue"), rs.getString("payload"),
+                                    rs.getTimestamp("created")));
+                        }
+                        return list;
+                    }, limit);
+            if (entries.isEmpty()) {
+                return 0;
+            }
+            Collection<Long> delivered = publisher.apply(entries);
+            if (delivered.isEmpty()) {
+                return 0;
+            }
+            final Object[][] params = delivered.stream().map(id -> new Object[] { id }).toArray(Object[][]::new);
+            run.batch(connection, "delete from order_outbox where outbox_id = ?", params);
+            return delivered.size();
+        });
+    }
+
+    /**
+     * Get a narrow projection of jobs for control loops that only need identifiers, state and timestamps.
+     *
+     * @param states the states to look for, all jobs are returned if none are specified
+     * @return one summary per matching job
+     */
+    public List<JobSummary> getJobSummaries(JobState... states) {
+        if (states == null || states.length == 0) {
+            return this.runSelectStatement(JOB_SUMMARY_QUERY, JOB_SUMMARY_HANDLER);
+        }
+        final String placeholders = String.join(",", Collections.nCopies(states.length, "?"));
+        final Object[] params = Arrays.stream(states).map(JobState::toString).toArray();
+        return this.runSelectStatement(JOB_SUMMARY_QUERY + " where j.status in (" + placeholders + ")",
+                JOB_SUMMARY_HANDLER, params);
     }
 
     public boolean previouslyRun(String hash) {
@@ -0,0 +1,159 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.persistence;
+
+import io.consonance.common.BasicPostgreSQL;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.commons.dbutils.QueryRunner;
+import org.apache.commons.dbutils.handlers.ScalarHandler;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Applies versioned schema migrations on top of the baseline in consonance-arch/sql/schema.sql.
+ *
+ * Each migration is a SQL script on the classpath under db/migration and is applied at most once, in its own transaction. The highest
+ * applied version is recorded in the schema_version table. Migrations that add indexes or triggers to the tables that hibernate's
+ * hbm2ddl create mode drops and recreates on every start of the webservice are idempotent and marked repeatable, they are applied
+ * again on every run so that what they add is never lost. The coordinator, the container provisioner and the webservice all call
+ * {@link #migrate()} on startup, an advisory lock makes sure only one of them does the work when they come up together.
+ */
+public class SchemaMigrator extends BasicPostgreSQL {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SchemaMigrator.class);
+    private static final String MIGRATION_PATH = "/db/migration/";
+    /**
+     * Arbitrary key for pg_advisory_xact_lock, shared by every process that migrates the same database.
+     */
+    private static final long MIGRATION_LOCK_KEY = 0x636f6e736f6e616eL;
+
+    /**
+     * Migrations in the order that they need to be applied, never re-number or edit one that has been released.
+     */
+    static final List<Migration> MIGRATIONS = Collections.unmodifiableList(Arrays.asList(
+            new Migration(1, "indexes for control loop queries", "V1__control_loop_indexes.sql", true),
+            new Migration(2, "narrow job heartbeat table", "V2__job_heartbeat.sql"),
+            new Migration(3, "notify on job and provision state changes", "V3__state_change_notify.sql", true),
+            new Migration(4, "compressed job log chunks", "V4__job_log_chunk.sql"),
+            new Migration(5, "order outbox", "V5__order_outbox.sql"),
+            new Migration(6, "output tails next to job heartbeats", "V6__heartbeat_tail.sql"),
+            new Migration(7, "job priority", "V7__job_priority.sql"),
+            new Migration(8, "content-addressed blobs", "V8__blob.sql")));
+
+    public SchemaMigrator(HierarchicalINIConfiguration settings) {
+        super(settings);
+    }
+
+    /**
+     * Bring the schema up to the latest version.
+     *
+     * @return the schema version after migrating
+     */
+    public int migrate() {
+        runUpdateStatement("CREATE TABLE IF NOT EXISTS schema_version (version integer PRIMARY KEY, description text NOT NULL, "
+                + "installed_on timestamp without time zone NOT NULL DEFAULT NOW())");
+        for (Migration migration : MIGRATIONS) {
+            final String script = migration.loadScript();
+            boolean applied = runInTransaction(connection -> {
+                QueryRunner run = new QueryRunner();
+                run.query(connection, "select pg_advisory_xact_lock(?)", new ScalarHandler<>(), MIGRATION_LOCK_KEY);
+                Long existing = run.query(connection, "select count(*) from schema_version where version = ?", new ScalarHandler<>(),
+                        migration.version);
+                final boolean done = existing != null && existing > 0;
+                if (done && !migration.repeatable) {
+                    return false;
+                }
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute(script);
+                }
+                if (done) {
+                    return false;
+                }
+                run.update(connection, "insert into schema_version (version, description) values (?,?)", migration.version,
+                        migration.description);
+                return true;
+            });
+            if (applied) {
+                LOG.info("Applied schema migration " + migration.version + ": " + migration.description);
+            }
+        }
+        final int version = getSchemaVersion();
+        LOG.info("Database schema is at version " + version);
+        return version;
+    }
+
+    /**
+     * @return the highest schema version that has been applied, 0 if only the baseline exists
+     */
+    public int getSchemaVersion() {
+        Integer version = runSelectStatement("select max(version) from schema_version", new ScalarHandler<>());
+        return version == null ? 0 : version;
+    }
+
+    /**
+     * A single versioned migration script.
+     */
+    static final class Migration {
+        private final int version;
+        private final String description;
+        private final String resource;
+        /** applied again on every run, the script must be idempotent */
+        private final boolean repeatable;
+
+        Migration(int version, String description, String resource) {
+            this(version, description, resource, false);
+        }
+
+        Migration(int version, String description, String resource, boolean repeatable) {
+            this.version = version;
+            this.description = description;
+            this.resource = resource;
+            this.repeatable = repeatable;
+        }
+
+        int getVersion() {
+            return version;
+        }
+
+        String getResource() {
+            return resource;
+        }
+
+        String loadScript() {
+            try (InputStream stream = SchemaMigrator.class.getResourceAsStream(MIGRATION_PATH + resource)) {
+                if (stream == null) {
+                    throw new IllegalStateException("Could not find schema migration " + MIGRATION_PATH + resource);
+                }
+                return IOUtils.toString(stream, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
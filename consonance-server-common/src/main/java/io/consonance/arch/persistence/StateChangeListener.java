@@ -0,0 +1,181 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.persistence;
+
+import io.consonance.common.BasicPostgreSQL;
+import io.consonance.common.Constants;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listens for the notifications sent by the state change triggers on the job and provision tables (see V3__state_change_notify.sql)
+ * and by the order outbox.
+ *
+ * This holds its own connection outside of the pool. Waiting checks every {@link #POLL_INTERVAL_IN_MILLISECONDS} for notifications the
+ * driver can read off the socket without a query, which costs the server nothing. A trivial query is only sent every
+ * {@link Constants#POSTGRES_NOTIFY_ROUND_TRIP_SECONDS}: it notices a connection that dropped, and it picks up notifications that an SSL
+ * socket does not report as readable until the driver reads from it. Notifications can be missed while the connection is down, callers
+ * should keep a slow periodic reconciliation rather than relying on this alone.
+ *
+ * Not thread-safe, each control loop should use its own listener.
+ */
+public class StateChangeListener implements AutoCloseable {
+
+    public static final String JOB_CHANNEL = "consonance_job_state";
+    public static final String PROVISION_CHANNEL = "consonance_provision_state";
+    /** notified without a payload when orders are added to the order outbox (see V5__order_outbox.sql) */
+    public static final String ORDER_OUTBOX_CHANNEL = "consonance_order_outbox";
+
+    private static final long POLL_INTERVAL_IN_MILLISECONDS = 250;
+    private static final long DEFAULT_ROUND_TRIP_SECONDS = 60;
+    private static final Logger LOG = LoggerFactory.getLogger(StateChangeListener.class);
+
+    private final HierarchicalINIConfiguration settings;
+    private final List<String> channels;
+    private final long roundTripMillis;
+    private Connection connection = null;
+    private long lastRoundTrip = 0;
+
+    public StateChangeListener(HierarchicalINIConfiguration settings, String... channels) {
+        this.settings = settings;
+        this.channels = Arrays.asList(channels);
+        this.roundTripMillis = TimeUnit.SECONDS.toMillis(
+                settings.getLong(Constants.POSTGRES_NOTIFY_ROUND_TRIP_SECONDS, DEFAULT_ROUND_TRIP_SECONDS));
+    }
+
+    /**
+     * Wait for state changes.
+     *
+     * @param timeoutMillis how long to wait at most, zero only checks for changes that have already arrived
+     * @return the changes seen, empty if the timeout elapsed first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public List<StateChange> awaitChanges(long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            List<StateChange> changes = poll();
+            long remaining = deadline - System.currentTimeMillis();
+            if (!changes.isEmpty() || remaining <= 0) {
+                return changes;
+            }
+            Thread.sleep(Math.min(POLL_INTERVAL_IN_MILLISECONDS, remaining));
+        }
+    }
+
+    private List<StateChange> poll() {
+        try {
+            if (connection == null) {
+                connection = BasicPostgreSQL.openUnpooledConnection(settings);
+                try (Statement statement = connection.createStatement()) {
+                    for (String channel : channels) {
+                        statement.execute("LISTEN " + channel);
+                    }
+                }
+                lastRoundTrip = System.currentTimeMillis();
+            }
+            if (System.currentTimeMillis() - lastRoundTrip >= roundTripMillis) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("select 1");
+                }
+                lastRoundTrip = System.currentTimeMillis();
+            }
+            // reads whatever notifications already arrived on the socket, without a query
+            PGNotification[] notifications = connection.unwrap(PGConnection.class).getNotifications();
+            if (notifications == null) {
+                return Collections.emptyList();
+            }
+            List<StateChange> changes = new ArrayList<>();
+            for (PGNotification notification : notifications) {
+                changes.add(StateChange.parse(notification.getName(), notification.getParameter()));
+            }
+            return changes;
+        } catch (SQLException e) {
+            LOG.warn("Could not check for state change notifications, will retry: " + e.getMessage());
+            close();
+            return Collections.emptyList();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                LOG.debug("Error closing notification connection", e);
+            }
+            connection = null;
+        }
+    }
+
+    /**
+     * A job or provision that was created or changed state.
+     */
+    public static final class StateChange {
+        private final String channel;
+        private final String state;
+        private final String uuid;
+
+        StateChange(String channel, String state, String uuid) {
+            this.channel = channel;
+            this.state = state;
+            this.uuid = uuid;
+        }
+
+        static StateChange parse(String channel, String payload) {
+            final int separator = payload.indexOf(':');
+            if (separator < 0) {
+                return new StateChange(channel, payload, null);
+            }
+            final String uuid = payload.substring(separator + 1);
+            return new StateChange(channel, payload.substring(0, separator), uuid.isEmpty() ? null : uuid);
+        }
+
+        public String getChannel() {
+            return channel;
+        }
+
+        /**
+         * @return the new state, as the name of a JobState or ProvisionState
+         */
+        public String getState() {
+            return state;
+        }
+
+        /**
+         * @return the job or provision uuid, null if the row did not have one yet
+         */
+        public String getUuid() {
+            return uuid;
+        }
+    }
+}
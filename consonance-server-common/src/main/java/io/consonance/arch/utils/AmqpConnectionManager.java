@@ -0,0 +1,296 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.utils;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.ShutdownSignalException;
+import io.consonance.common.Constants;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Shares one AMQP connection per broker across the whole process.
+ *
+ * Opening a connection costs a TCP and an AMQP handshake while channels on an open connection are cheap. Consumers get a channel of their
+ * own from {@link #openChannel()} and close it when they are done. Publishers lease a channel from {@link #leaseChannel()}, the same thread
+ * keeps getting the same channel until it hands it back with {@link #releaseThreadChannels()}, after which the channel waits in an idle
+ * pool for the next thread. Both kinds count against one bound on open channels. Publishing with confirms goes through the one
+ * {@link ConfirmingPublisher} per broker from {@link #getPublisher()}.
+ */
+public final class AmqpConnectionManager {
+
+    static final int DEFAULT_MAX_CHANNELS = 128;
+    private static final int CLOSE_TIMEOUT_IN_MILLISECONDS = 5000;
+
+    private static final Logger LOG = LoggerFactory.getLogger(AmqpConnectionManager.class);
+    private static final ConcurrentMap<String, AmqpConnectionManager> MANAGERS = new ConcurrentHashMap<>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(AmqpConnectionManager::shutdownAll, "amqp-shutdown"));
+    }
+
+    private final String broker;
+    private final ConnectionFactory factory;
+    private final int maxChannels;
+    private final int maxInFlight;
+    private final int maxPublishAttempts;
+    private final Semaphore permits;
+    private final BlockingQueue<Channel> idle = new LinkedBlockingQueue<>();
+    private final ThreadLocal<Channel> leased = new ThreadLocal<>();
+    private final Set<String> declaredExchanges = ConcurrentHashMap.newKeySet();
+    private final Set<String> declaredQueues = ConcurrentHashMap.newKeySet();
+    private Connection connection = null;
+    private ConfirmingPublisher publisher = null;
+
+    private AmqpConnectionManager(String broker, String host, String user, String pass, int maxChannels, int maxInFlight,
+            int maxPublishAttempts) {
+        this.broker = broker;
+        this.maxChannels = maxChannels;
+        this.maxInFlight = maxInFlight;
+        this.maxPublishAttempts = maxPublishAttempts;
+        this.permits = new Semaphore(maxChannels);
+        this.factory = new ConnectionFactory();
+        factory.setHost(host);
+        factory.setUsername(user);
+        factory.setPassword(pass);
+        factory.setAutomaticRecoveryEnabled(true);
+        factory.setTopologyRecoveryEnabled(true);
+        // the shared connection should never be the reason a finished process does not exit
+        factory.setThreadFactory(r -> {
+            Thread thread = new Thread(r, "amqp-" + broker);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Get the manager for the broker named in a config file.
+     *
+     * @param settings consonance config file
+     * @return the manager shared by everything in this process that talks to the same broker as the same user
+     */
+    public static AmqpConnectionManager getInstance(HierarchicalINIConfiguration settings) {
+        final String host = settings.getString(Constants.RABBIT_HOST);
+        final String user = settings.getString(Constants.RABBIT_USERNAME);
+        final String pass = settings.getString(Constants.RABBIT_PASSWORD);
+        final int maxChannels = settings.getInt(Constants.RABBIT_MAX_CHANNELS, DEFAULT_MAX_CHANNELS);
+        final int maxInFlight = settings.getInt(Constants.RABBIT_PUBLISH_WINDOW, ConfirmingPublisher.DEFAULT_MAX_IN_FLIGHT);
+        final int maxPublishAttempts = settings.getInt(Constants.RABBIT_PUBLISH_ATTEMPTS, ConfirmingPublisher.DEFAULT_MAX_ATTEMPTS);
+        final String broker = user + '@' + host;
+        return MANAGERS.computeIfAbsent(broker,
+                key -> new AmqpConnectionManager(key, host, user, pass, maxChannels, maxInFlight, maxPublishAttempts));
+    }
+
+    /**
+     * Hand back the channels the calling thread leased from every manager.
+     */
+    public static void releaseThreadChannels() {
+        MANAGERS.values().forEach(AmqpConnectionManager::releaseChannel);
+    }
+
+    /**
+     * Close every shared connection, run when the process exits.
+     */
+    public static void shutdownAll() {
+        MANAGERS.values().forEach(AmqpConnectionManager::shutdown);
+        MANAGERS.clear();
+    }
+
+    private synchronized Connection getConnection() throws IOException, TimeoutException {
+        // an auto-recovering connection reconnects by itself, a new one is only needed if we never got one
+        if (connection == null) {
+            connection = factory.newConnection();
+            connection.addShutdownListener(cause -> {
+                if (!cause.isInitiatedByApplication()) {
+                    LOG.warn("Lost connection to " + broker + ", waiting for it to recover: " + cause.getMessage());
+                }
+            });
+            if (connection instanceof Recoverable) {
+                ((Recoverable) connection).addRecoveryListener(recoverable -> LOG.info("Recovered connection to " + broker));
+            }
+            LOG.info("Opened shared connection to " + broker);
+        }
+        return connection;
+    }
+
+    /**
+     * Open a channel for the caller to keep, typically to consume from. Closing the channel gives its slot back.
+     *
+     * @return a new channel on the shared connection
+     * @throws IOException if the broker cannot be reached or every channel is in use
+     * @throws TimeoutException if the broker does not answer in time
+     * @throws InterruptedException if interrupted while waiting for a free channel
+     */
+    public Channel openChannel() throws IOException, TimeoutException, InterruptedException {
+        if (!permits.tryAcquire(1, TimeUnit.MINUTES)) {
+            throw new IOException("All " + maxChannels + " channels to " + broker + " are in use");
+        }
+        try {
+            final Channel channel = getConnection().createChannel();
+            if (channel == null) {
+                throw new IOException("Ran out of channel numbers on the connection to " + broker);
+            }
+            final AtomicBoolean released = new AtomicBoolean(false);
+            channel.addShutdownListener(cause -> {
+                // a connection failure is recovered along with its channels, only a channel that is really gone frees its slot
+                if (!cause.isHardError() && released.compareAndSet(false, true)) {
+                    permits.release();
+                }
+            });
+            return channel;
+        } catch (IOException | TimeoutException e) {
+            permits.release();
+            throw e;
+        } catch (ShutdownSignalException e) {
+            permits.release();
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Lease a publishing channel to the calling thread. Publisher confirms are enabled on it.
+     *
+     * Channels must not be shared between threads that publish, so each thread gets its own until it calls
+     * {@link #releaseThreadChannels()}.
+     *
+     * @return the channel leased to this thread
+     * @throws IOException if the broker cannot be reached or every channel is in use
+     * @throws TimeoutException if the broker does not answer in time
+     * @throws InterruptedException if interrupted while waiting for a free channel
+     */
+    public Channel leaseChannel() throws IOException, TimeoutException, InterruptedException {
+        Channel channel = leased.get();
+        if (channel != null && channel.isOpen()) {
+            return channel;
+        }
+        do {
+            channel = idle.poll();
+        } while (channel != null && !channel.isOpen());
+        if (channel == null) {
+            channel = openChannel();
+            channel.confirmSelect();
+        }
+        leased.set(channel);
+        return channel;
+    }
+
+    /**
+     * Get the publisher shared by every thread in this process that publishes to this broker.
+     *
+     * @return a publisher with its own channel, do not close it
+     */
+    public synchronized ConfirmingPublisher getPublisher() {
+        if (publisher == null) {
+            publisher = new ConfirmingPublisher(this, maxInFlight, maxPublishAttempts);
+        }
+        return publisher;
+    }
+
+    /**
+     * Declare an exchange once per process rather than once per lease.
+     *
+     * @param channel channel to declare on
+     * @param exchange name of the exchange
+     * @param exchangeType type of the exchange
+     * @throws IOException if the declaration fails
+     */
+    public void declareExchange(Channel channel, String exchange, String exchangeType) throws IOException {
+        if (declaredExchanges.add(exchange)) {
+            try {
+                channel.exchangeDeclare(exchange, exchangeType, true, false, null);
+            } catch (IOException e) {
+                declaredExchanges.remove(exchange);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Declare a durable queue once per process rather than once per lease.
+     *
+     * @param channel channel to declare on
+     * @param queue name of the queue
+     * @throws IOException if the declaration fails
+     */
+    public void declareQueue(Channel channel, String queue) throws IOException {
+        if (declaredQueues.add(queue)) {
+            try {
+                channel.queueDeclare(queue, true, false, false, null);
+            } catch (IOException e) {
+                declaredQueues.remove(queue);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Forget that a queue was declared, for when it has been deleted.
+     *
+     * @param queue name of the queue
+     */
+    public void forgetQueue(String queue) {
+        declaredQueues.remove(queue);
+    }
+
+    private void releaseChannel() {
+        final Channel channel = leased.get();
+        leased.remove();
+        if (channel != null && channel.isOpen()) {
+            idle.offer(channel);
+        }
+    }
+
+    private synchronized void shutdown() {
+        if (publisher != null) {
+            try {
+                publisher.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            publisher = null;
+        }
+        idle.clear();
+        declaredExchanges.clear();
+        declaredQueues.clear();
+        if (connection != null && connection.isOpen()) {
+            try {
+                connection.close(CLOSE_TIMEOUT_IN_MILLISECONDS);
+            } catch (IOException | ShutdownSignalException e) {
+                LOG.debug("Error closing connection to " + broker, e);
+            }
+        }
+        connection = null;
+    }
+}
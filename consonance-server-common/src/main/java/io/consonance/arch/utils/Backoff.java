@@ -0,0 +1,79 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.utils;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff for retrying something that is down, such as the broker. The first retry comes quickly so that a blip costs
+ * next to nothing, while a longer outage is retried at most once per the maximum delay. A little jitter keeps processes that lost the
+ * broker together from coming back all at once.
+ */
+public final class Backoff {
+
+    public static final long DEFAULT_INITIAL_DELAY_IN_MILLISECONDS = 1000;
+    public static final long DEFAULT_MAX_DELAY_IN_MILLISECONDS = 60000;
+    /** delays are shortened by up to this fraction of themselves */
+    private static final int JITTER_DIVISOR = 4;
+
+    private final long initialDelay;
+    private final long maxDelay;
+    private long nextDelay;
+
+    public Backoff() {
+        this(DEFAULT_INITIAL_DELAY_IN_MILLISECONDS, DEFAULT_MAX_DELAY_IN_MILLISECONDS);
+    }
+
+    /**
+     * @param initialDelay delay before the first retry in milliseconds
+     * @param maxDelay longest delay between retries in milliseconds
+     */
+    public Backoff(long initialDelay, long maxDelay) {
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.nextDelay = initialDelay;
+    }
+
+    /**
+     * @return how long to wait before the next retry, each call doubles the delay up to the maximum
+     */
+    public long nextDelay() {
+        final long delay = nextDelay;
+        nextDelay = Math.min(maxDelay, nextDelay * 2);
+        // a little less, never more than the maximum
+        return delay - ThreadLocalRandom.current().nextLong(delay / JITTER_DIVISOR + 1);
+    }
+
+    /**
+     * Wait before the next retry.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void sleep() throws InterruptedException {
+        Thread.sleep(nextDelay());
+    }
+
+    /**
+     * Start from the initial delay again, after something worked.
+     */
+    public void reset() {
+        nextDelay = initialDelay;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.utils;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Pattern;
+
+/**
+ * Naming of the content-addressed blobs that orders refer to instead of carrying descriptors and extra files inline. A blob is named
+ * for the SHA-256 of its content as UTF-8, in lower case hex.
+ *
+ * Orders carry a token for each blob they refer to, an HMAC-SHA256 of the blob name under a key only the webservice knows. A token lets
+ * whoever holds the order fetch that one blob and nothing else, so workers need no credentials for the webservice.
+ */
+public final class Blobs {
+
+    /** request header a worker sends the token for a blob in */
+    public static final String TOKEN_HEADER = "X-Consonance-Blob-Token";
+
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+    private static final String TOKEN_ALGORITHM = "HmacSHA256";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final int NIBBLE = 4;
+    private static final int LOW_NIBBLE = 0x0f;
+
+    private Blobs() {
+        // utility class
+    }
+
+    /**
+     * @return a digest to hash blob content with
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param content content of a blob
+     * @return the name of the blob
+     */
+    public static String hash(String content) {
+        return hex(newDigest().digest(content.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @param digest a finished digest
+     * @return the digest in lower case hex
+     */
+    public static String hex(byte[] digest) {
+        final char[] chars = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            chars[i * 2] = HEX[(digest[i] >> NIBBLE) & LOW_NIBBLE];
+            chars[i * 2 + 1] = HEX[digest[i] & LOW_NIBBLE];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @param name a would-be blob name, from a message or a request
+     * @return true if it is a well formed hash, safe to use as a file name
+     */
+    public static boolean isHash(String name) {
+        return name != null && HASH.matcher(name).matches();
+    }
+
+    /**
+     * @param key the webservice's signing key
+     * @param hash name of a blob
+     * @return the token that lets its holder fetch the blob
+     */
+    public static String token(String key, String hash) {
+        try {
+            final Mac mac = Mac.getInstance(TOKEN_ALGORITHM);
+            mac.init(new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), TOKEN_ALGORITHM));
+            return hex(mac.doFinal(hash.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            // every JVM has to provide HmacSHA256, and it takes keys of any length
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param key the webservice's signing key
+     * @param hash name of a blob
+     * @param token a token from a request, may be null
+     * @return true if the token was handed out for the blob
+     */
+    public static boolean isToken(String key, String hash, String token) {
+        // compared in constant time so that a token cannot be guessed byte by byte
+        return token != null && MessageDigest.isEqual(token(key, hash).getBytes(StandardCharsets.UTF_8),
+                token.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -20,9 +20,9 @@
 package io.consonance.arch.utils;
 
 import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.Connection;
-import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.ShutdownSignalException;
 import io.consonance.arch.persistence.PostgreSQL;
+import io.consonance.arch.persistence.SchemaMigrator;
 import io.consonance.common.CommonTestUtilities;
 import io.consonance.common.Constants;
 import org.apache.commons.configuration.HierarchicalINIConfiguration;
@@ -36,6 +36,8 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
 import java.util.concurrent.TimeoutException;
 
 /**
@@ -51,6 +53,10 @@ public class CommonServerTestUtilities {
     // TODO: These really should be refactored out to an enum
     // message types
     public static final String JOB_MESSAGE_TYPE = "job-message-type";
+    /** sent by the coordinator when it marks a job as lost */
+    public static final String LOST_JOB_MESSAGE_TYPE = "lost-job-message-type";
+    /** job queues are named for this and a flavour, not the "_jobs" of before since those were declared without a maximum priority */
+    public static final String JOB_QUEUE_INFIX = "_priority_jobs";
 
     public static JSONObject parseJSONStr(String jsonStr) {
         JSONObject data;
@@ -75,35 +81,33 @@ public class CommonServerTestUtilities {
 
         File configFile = FileUtils.getFile("src", "test", "resources", "config");
         HierarchicalINIConfiguration parseConfig = CommonTestUtilities.parseConfig(configFile.getAbsolutePath());
+        new SchemaMigrator(parseConfig).migrate();
         PostgreSQL postgres = new PostgreSQL(parseConfig);
         // clean up the database
         postgres.clearDatabase();
 
-        String server = parseConfig.getString(Constants.RABBIT_HOST);
-        String user = parseConfig.getString(Constants.RABBIT_USERNAME);
-        String pass = parseConfig.getString(Constants.RABBIT_PASSWORD);
-
+        final AmqpConnectionManager manager = AmqpConnectionManager.getInstance(parseConfig);
         Channel channel;
-
-        ConnectionFactory factory = new ConnectionFactory();
-        factory.setHost(server);
-        factory.setUsername(user);
-        factory.setPassword(pass);
-        factory.setAutomaticRecoveryEnabled(true);
-        Connection connection = factory.newConnection();
-        channel = connection.createChannel();
-        channel.basicQos(1);
-        channel.confirmSelect();
+        try {
+            channel = manager.openChannel();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
 
         String prefix = parseConfig.getString(Constants.RABBIT_QUEUE_NAME);
-        String[] queues = { prefix + "_jobs", prefix + "_orders", prefix + "_vms", prefix + "_for_CleanupJobs", prefix + "_for_CleanupVMs" };
+        String[] queues = { prefix + "_jobs", prefix + "_orders", prefix + "_vms", prefix + "_for_CleanupJobs", prefix + "_for_CleanupVMs",
+                RetryTopology.quarantineQueue(prefix + "_orders"), RetryTopology.quarantineQueue(prefix + "_vms"),
+                RetryTopology.quarantineQueue(prefix + "_for_CleanupJobs") };
         for (String queue : queues) {
+            manager.forgetQueue(queue);
             try {
                 channel.queueDelete(queue);
             } catch (IOException e) {
                 Log.info("Could not delete " + queue);
             }
         }
+        closeChannel(channel);
     }
 
     /**
@@ -116,27 +120,20 @@ public class CommonServerTestUtilities {
     public static Channel setupQueue(HierarchicalINIConfiguration settings, String queue) throws InterruptedException {
 
         String server = settings.getString(Constants.RABBIT_HOST);
-        String user = settings.getString(Constants.RABBIT_USERNAME);
-        String pass = settings.getString(Constants.RABBIT_PASSWORD);
-
         Channel channel;
+        // a broker blip is retried right away, an outage at most once a minute
+        final Backoff backoff = new Backoff();
 
         while(true) {
             try {
-                ConnectionFactory factory = new ConnectionFactory();
-                factory.setHost(server);
-                factory.setUsername(user);
-                factory.setPassword(pass);
-                factory.setAutomaticRecoveryEnabled(true);
-                Connection connection = factory.newConnection();
-                channel = connection.createChannel();
+                channel = AmqpConnectionManager.getInstance(settings).openChannel();
                 channel.basicQos(1);
                 channel.queueDeclare(queue, true, false, false, null);
                 channel.confirmSelect();
             } catch (IOException | TimeoutException ex) {
                 LOG.error("Error setting up queue connections to queue:" + queue + " on host: " + server + "; error is: " + ex.getMessage(),
                         ex);
-                Thread.sleep(ONE_MINUTE_IN_MILLISECONDS);
+                backoff.sleep();
                 continue;
             }
             return channel;
@@ -164,36 +161,146 @@ public class CommonServerTestUtilities {
      */
     public static Channel setupExchange(HierarchicalINIConfiguration settings, String exchange, String exchangeType) throws InterruptedException {
 
-        String server = settings.getString(Constants.RABBIT_HOST);
-        String user = settings.getString(Constants.RABBIT_USERNAME);
-        String pass = settings.getString(Constants.RABBIT_PASSWORD);
-
         Channel channel;
+        final Backoff backoff = new Backoff();
 
         while(true) {
             try {
-
-                ConnectionFactory factory = new ConnectionFactory();
-                factory.setHost(server);
-                factory.setUsername(user);
-                factory.setPassword(pass);
-                factory.setAutomaticRecoveryEnabled(true);
-                Connection connection = factory.newConnection();
-                channel = connection.createChannel();
+                channel = AmqpConnectionManager.getInstance(settings).openChannel();
                 channel.exchangeDeclare(exchange, exchangeType, true, false, null);
                 channel.confirmSelect();
             } catch (IOException | TimeoutException ex) {
                 LOG.error("Error setting up exchange connections, retrying: " + ex.getMessage(), ex);
-                Thread.sleep(ONE_MINUTE_IN_MILLISECONDS);
+                backoff.sleep();
                 continue;
             }
             return channel;
         }
     }
 
+    /**
+     * Lease a channel for publishing to an exchange. The channel belongs to the calling thread until it calls
+     * {@link AmqpConnectionManager#releaseThreadChannels()}, do not close it.
+     * @param settings consonance config file
+     * @param exchange name of the exchange
+     * @param exchangeType type of the exchange
+     * @return the channel leased to this thread
+     * @throws InterruptedException
+     */
+    public static Channel leaseExchange(HierarchicalINIConfiguration settings, String exchange, String exchangeType) throws InterruptedException {
+        final AmqpConnectionManager manager = AmqpConnectionManager.getInstance(settings);
+        final Backoff backoff = new Backoff();
+        while(true) {
+            try {
+                Channel channel = manager.leaseChannel();
+                manager.declareExchange(channel, exchange, exchangeType);
+                return channel;
+            } catch (IOException | TimeoutException ex) {
+                LOG.error("Error leasing a channel for exchange " + exchange + ", retrying: " + ex.getMessage(), ex);
+                backoff.sleep();
+            }
+        }
+    }
+
+    /**
+     * Lease a channel for publishing to a queue. The channel belongs to the calling thread until it calls
+     * {@link AmqpConnectionManager#releaseThreadChannels()}, do not close it.
+     * @param settings consonance config file
+     * @param queue name of queue to setup
+     * @return the channel leased to this thread
+     * @throws InterruptedException
+     */
+    public static Channel leaseQueue(HierarchicalINIConfiguration settings, String queue) throws InterruptedException {
+        final Backoff backoff = new Backoff();
+        while(true) {
+            try {
+                final AmqpConnectionManager manager = AmqpConnectionManager.getInstance(settings);
+                Channel channel = manager.leaseChannel();
+                manager.declareQueue(channel, queue);
+                return channel;
+            } catch (IOException | TimeoutException ex) {
+                LOG.error("Error leasing a channel for queue " + queue + ", retrying: " + ex.getMessage(), ex);
+                backoff.sleep();
+            }
+        }
+    }
+
+    /**
+     * Get the shared publisher and make sure an exchange exists to publish to.
+     * @param settings consonance config file
+     * @param exchange name of the exchange
+     * @param exchangeType type of the exchange
+     * @return the publisher shared by this process, do not close it
+     * @throws InterruptedException
+     */
+    public static ConfirmingPublisher publisherForExchange(HierarchicalINIConfiguration settings, String exchange, String exchangeType)
+            throws InterruptedException {
+        final ConfirmingPublisher publisher = AmqpConnectionManager.getInstance(settings).getPublisher();
+        final Backoff backoff = new Backoff();
+        while(true) {
+            try {
+                publisher.declareExchange(exchange, exchangeType);
+                return publisher;
+            } catch (IOException ex) {
+                LOG.error("Error declaring exchange " + exchange + ", retrying: " + ex.getMessage(), ex);
+                backoff.sleep();
+            }
+        }
+    }
+
+    /**
+     * Get the shared publisher and make sure a queue exists to publish to.
+     * @param settings consonance config file
+     * @param queue name of queue to setup
+     * @return the publisher shared by this process, do not close it
+     * @throws InterruptedException
+     */
+    public static ConfirmingPublisher publisherForQueue(HierarchicalINIConfiguration settings, String queue) throws InterruptedException {
+        final ConfirmingPublisher publisher = AmqpConnectionManager.getInstance(settings).getPublisher();
+        final Backoff backoff = new Backoff();
+        while(true) {
+            try {
+                publisher.declareQueue(queue);
+                return publisher;
+            } catch (IOException ex) {
+                LOG.error("Error declaring queue " + queue + ", retrying: " + ex.getMessage(), ex);
+                backoff.sleep();
+            }
+        }
+    }
+
+    /**
+     * Close a channel from {@link #setupQueue} or {@link #setupExchange}, the shared connection stays open.
+     * @param channel the channel to close, may be null
+     */
+    public static void closeChannel(Channel channel) {
+        if (channel != null && channel.isOpen()) {
+            try {
+                channel.close();
+            } catch (IOException | TimeoutException | ShutdownSignalException ex) {
+                LOG.debug("Error closing channel: " + ex.getMessage(), ex);
+            }
+        }
+    }
+
     public static String setupQueueOnExchange(Channel channel, String queue, String suffix) throws IOException {
+        return setupQueueOnExchange(channel, queue, suffix, 0);
+    }
+
+    /**
+     * Setup a queue that hands out higher priority messages first. The broker cannot add a maximum priority to a queue that already
+     * exists, so a priority queue needs a name that was never used for a plain one.
+     * @param channel channel to declare on
+     * @param queue prefix of the queue name
+     * @param suffix what the queue is for, e.g. a flavour
+     * @param maxPriority the highest priority the queue orders by, 0 for a plain queue
+     * @return the name of the queue
+     * @throws IOException if the declaration fails
+     */
+    public static String setupQueueOnExchange(Channel channel, String queue, String suffix, int maxPriority) throws IOException {
+        final Map<String, Object> arguments = maxPriority > 0 ? Collections.singletonMap("x-max-priority", maxPriority) : null;
         try {
-            return channel.queueDeclare(queue + "_for_" + suffix, true, false, false, null).getQueue();
+            return channel.queueDeclare(queue + "_for_" + suffix, true, false, false, arguments).getQueue();
         } catch (IOException ex) {
             LOG.error("Error setting up queue on exchange: " + ex.getMessage(), ex);
             throw ex;
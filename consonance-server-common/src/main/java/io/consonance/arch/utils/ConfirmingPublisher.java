@@ -0,0 +1,304 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.utils;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Publishes with asynchronous publisher confirms.
+ *
+ * Rather than waiting for the broker after every message, callers get a future that completes once the broker confirms the message.
+ * Up to a fixed number of messages may be waiting for a confirm at any time, {@link #publish} blocks once that window is full and
+ * {@link #tryPublish} gives up straight away. Messages the broker nacks, or that were in flight when the channel went down, are published
+ * again a few times before their future fails.
+ *
+ * One publisher is safe to share between threads, see {@link AmqpConnectionManager#getPublisher()}.
+ */
+public class ConfirmingPublisher implements AutoCloseable {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    static final long RETRY_DELAY_IN_MILLISECONDS = 1000;
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConfirmingPublisher.class);
+
+    private final AmqpConnectionManager manager;
+    private final int maxInFlight;
+    private final int maxAttempts;
+    private final Semaphore window;
+    private final ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "amqp-publish-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Tracker tracker = null;
+
+    ConfirmingPublisher(AmqpConnectionManager manager, int maxInFlight, int maxAttempts) {
+        this.manager = manager;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.window = new Semaphore(this.maxInFlight);
+    }
+
+    /**
+     * Publish a message.
+     *
+     * @param exchange exchange to publish to, the empty string for the default exchange
+     * @param routingKey routing key, or the queue name on the default exchange
+     * @param props message properties
+     * @param body message body
+     * @return completes once the broker confirmed the message, or exceptionally once it gave up on it
+     * @throws InterruptedException if interrupted while waiting for room in the window
+     */
+    public CompletableFuture<Void> publish(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body)
+            throws InterruptedException {
+        final Pending pending = new Pending(exchange, routingKey, props, body);
+        window.acquire();
+        send(pending);
+        return pending.future;
+    }
+
+    /**
+     * Publish a message if there is room in the window right now, for messages that are better dropped than waited for.
+     *
+     * @param exchange exchange to publish to, the empty string for the default exchange
+     * @param routingKey routing key, or the queue name on the default exchange
+     * @param props message properties
+     * @param body message body
+     * @return completes once the broker confirmed the message, or exceptionally once it gave up on it, null if the window was full
+     */
+    public CompletableFuture<Void> tryPublish(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) {
+        if (!window.tryAcquire()) {
+            return null;
+        }
+        final Pending pending = new Pending(exchange, routingKey, props, body);
+        send(pending);
+        return pending.future;
+    }
+
+    /**
+     * Declare an exchange on the publishing channel, once per process.
+     *
+     * @param exchange name of the exchange
+     * @param exchangeType type of the exchange
+     * @throws IOException if the declaration fails
+     */
+    public synchronized void declareExchange(String exchange, String exchangeType) throws IOException {
+        manager.declareExchange(channel(), exchange, exchangeType);
+    }
+
+    /**
+     * Declare a durable queue on the publishing channel, once per process.
+     *
+     * @param queue name of the queue
+     * @throws IOException if the declaration fails
+     */
+    public synchronized void declareQueue(String queue) throws IOException {
+        manager.declareQueue(channel(), queue);
+    }
+
+    /**
+     * @return number of messages waiting for a confirm
+     */
+    public int inFlight() {
+        return maxInFlight - window.availablePermits();
+    }
+
+    /**
+     * Wait for the messages in flight to be confirmed.
+     *
+     * @param timeoutMillis how long to wait
+     * @return true if nothing is in flight any more
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitConfirms(long timeoutMillis) throws InterruptedException {
+        // holding the whole window means nothing else is in flight
+        if (window.tryAcquire(maxInFlight, timeoutMillis, TimeUnit.MILLISECONDS)) {
+            window.release(maxInFlight);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Give messages in flight a moment to be confirmed, then close the channel. Messages still in flight fail.
+     *
+     * @throws InterruptedException if interrupted while waiting for confirms
+     */
+    @Override
+    public void close() throws InterruptedException {
+        awaitConfirms(RETRY_DELAY_IN_MILLISECONDS * maxAttempts);
+        retries.shutdownNow();
+        final Tracker closing;
+        synchronized (this) {
+            closing = tracker;
+            tracker = null;
+        }
+        if (closing != null) {
+            CommonServerTestUtilities.closeChannel(closing.channel);
+            closing.failAll(new IOException("publisher closed"));
+        }
+    }
+
+    private Channel channel() throws IOException {
+        if (tracker == null || tracker.closed) {
+            final Channel channel;
+            try {
+                channel = manager.openChannel();
+                channel.confirmSelect();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (TimeoutException e) {
+                throw new IOException(e);
+            }
+            tracker = new Tracker(channel);
+            channel.addConfirmListener(tracker);
+            channel.addShutdownListener(tracker);
+        }
+        return tracker.channel;
+    }
+
+    private void send(Pending pending) {
+        try {
+            synchronized (this) {
+                pending.attempts++;
+                final Channel channel = channel();
+                final long seqNo = channel.getNextPublishSeqNo();
+                // register before publishing, the confirm may arrive before basicPublish returns
+                tracker.outstanding.put(seqNo, pending);
+                try {
+                    channel.basicPublish(pending.exchange, pending.routingKey, pending.props, pending.body);
+                } catch (IOException | ShutdownSignalException e) {
+                    tracker.outstanding.remove(seqNo);
+                    throw e;
+                }
+            }
+        } catch (IOException | ShutdownSignalException e) {
+            retryOrFail(pending, e);
+        }
+    }
+
+    private void retryOrFail(Pending pending, Exception cause) {
+        if (pending.attempts < maxAttempts) {
+            LOG.warn("Message to " + pending.describe() + " was not confirmed, publishing it again: " + cause.getMessage());
+            try {
+                // the permit stays with the message while it waits, a broker in trouble should slow publishers down
+                retries.schedule(() -> send(pending), RETRY_DELAY_IN_MILLISECONDS * pending.attempts, TimeUnit.MILLISECONDS);
+                return;
+            } catch (RejectedExecutionException e) {
+                LOG.debug("Publisher is closed, not retrying", e);
+            }
+        }
+        window.release();
+        pending.future.completeExceptionally(cause);
+    }
+
+    /**
+     * Follows the messages published on one channel. Sequence numbers start over on every channel, including a channel that recovered
+     * after the connection dropped.
+     */
+    private final class Tracker implements ConfirmListener, ShutdownListener {
+        private final Channel channel;
+        private final ConcurrentNavigableMap<Long, Pending> outstanding = new ConcurrentSkipListMap<>();
+        private volatile boolean closed = false;
+
+        Tracker(Channel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void handleAck(long deliveryTag, boolean multiple) {
+            for (Pending pending : settle(deliveryTag, multiple)) {
+                window.release();
+                pending.future.complete(null);
+            }
+        }
+
+        @Override
+        public void handleNack(long deliveryTag, boolean multiple) {
+            for (Pending pending : settle(deliveryTag, multiple)) {
+                retryOrFail(pending, new IOException("broker nacked message to " + pending.describe()));
+            }
+        }
+
+        @Override
+        public void shutdownCompleted(ShutdownSignalException cause) {
+            // a channel that went down with its connection recovers by itself, any other channel is gone for good
+            closed = !cause.isHardError() || cause.isInitiatedByApplication();
+            failAll(cause);
+        }
+
+        private List<Pending> settle(long deliveryTag, boolean multiple) {
+            final Map<Long, Pending> settled = multiple ? outstanding.headMap(deliveryTag, true)
+                    : outstanding.subMap(deliveryTag, true, deliveryTag, true);
+            final List<Pending> pendings = new ArrayList<>(settled.values());
+            settled.clear();
+            return pendings;
+        }
+
+        private void failAll(Exception cause) {
+            // nobody knows whether these reached the broker, publishing them again may duplicate some of them
+            for (Pending pending : settle(Long.MAX_VALUE, true)) {
+                retryOrFail(pending, cause);
+            }
+        }
+    }
+
+    private static final class Pending {
+        private final String exchange;
+        private final String routingKey;
+        private final AMQP.BasicProperties props;
+        private final byte[] body;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private volatile int attempts = 0;
+
+        Pending(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.props = props;
+            this.body = body;
+        }
+
+        String describe() {
+            return (exchange.isEmpty() ? "queue " : "exchange " + exchange + " with key ") + routingKey;
+        }
+    }
+}
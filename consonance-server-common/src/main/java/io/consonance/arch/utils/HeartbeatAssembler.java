@@ -0,0 +1,156 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.utils;
+
+import io.consonance.arch.beans.Status;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Puts the tail of each running job's output back together from delta heartbeats.
+ *
+ * A worker sends its last lines again until they have been out for longer than a heartbeat can wait in the queue, so a heartbeat can
+ * repeat lines that were already seen, and lines can be missing when every heartbeat carrying them was lost. Lines are placed by their
+ * offset, repeats are dropped and a gap is simply skipped over, the tail is a live view and the final status of a job still carries its
+ * whole output. Statuses for different jobs can be folded in from different threads, statuses for one job must be folded in one at a
+ * time in the order they arrived.
+ */
+public final class HeartbeatAssembler {
+
+    /** as many lines as workers used to send with every heartbeat */
+    public static final int DEFAULT_TAIL_LINES = 10;
+
+    private final int tailLines;
+    private final ConcurrentMap<String, JobTail> tails = new ConcurrentHashMap<>();
+
+    public HeartbeatAssembler(int tailLines) {
+        this.tailLines = tailLines;
+    }
+
+    /**
+     * Fold a status into the tail of its job.
+     *
+     * @param status a status from a worker
+     * @return a copy of the status with stdout and stderr holding the tail of the job's output so far
+     */
+    public Status assemble(Status status) {
+        final JobTail tail = tails.compute(status.getJobUuid(), (jobUuid, current) -> {
+            // a job that is run again after being lost starts counting from scratch on its new vm
+            JobTail next = current == null || !Objects.equals(current.vmUuid, status.getVmUuid()) ? new JobTail(status.getVmUuid()) : current;
+            next.add(status);
+            return next;
+        });
+        final Status assembled = copy(status);
+        synchronized (tail) {
+            assembled.setStdout(tail.stdout.toString());
+            assembled.setStderr(tail.stderr.toString());
+        }
+        return assembled;
+    }
+
+    /**
+     * Drop the tail of a job that will not send any more heartbeats.
+     *
+     * @param jobUuid the job
+     */
+    public void forget(String jobUuid) {
+        tails.remove(jobUuid);
+    }
+
+    private static Status copy(Status status) {
+        final Status copy = new Status(status.getVmUuid(), status.getJobUuid(), status.getState(), status.getType(), status.getMessage(),
+                status.getIpAddress());
+        copy.setSequence(status.getSequence());
+        return copy;
+    }
+
+    private final class JobTail {
+        private final String vmUuid;
+        private final StreamTail stdout = new StreamTail();
+        private final StreamTail stderr = new StreamTail();
+        private long sequence = 0;
+
+        JobTail(String vmUuid) {
+            this.vmUuid = vmUuid;
+        }
+
+        synchronized void add(Status status) {
+            if (status.getSequence() == null) {
+                // not a delta, the status carries the tail as a whole
+                stdout.replace(status.getStdout());
+                stderr.replace(status.getStderr());
+                return;
+            }
+            if (status.getSequence() <= sequence) {
+                // redelivered, everything in it has been seen
+                return;
+            }
+            sequence = status.getSequence();
+            stdout.add(status.getStdoutOffset(), status.getStdout());
+            stderr.add(status.getStderrOffset(), status.getStderr());
+        }
+    }
+
+    private final class StreamTail {
+        private final Deque<String> lines = new ArrayDeque<>();
+        /** the offset of the line after the last one seen */
+        private long next = 0;
+
+        void add(Long offset, String text) {
+            if (offset == null || text == null || text.isEmpty()) {
+                return;
+            }
+            final String[] added = text.split("\n", -1);
+            for (int i = 0; i < added.length; i++) {
+                final long lineOffset = offset + i;
+                if (lineOffset >= next) {
+                    append(added[i]);
+                    next = lineOffset + 1;
+                }
+            }
+        }
+
+        void replace(String text) {
+            lines.clear();
+            next = 0;
+            if (text != null && !text.isEmpty()) {
+                for (String line : text.split("\n", -1)) {
+                    append(line);
+                }
+            }
+        }
+
+        private void append(String line) {
+            lines.addLast(line);
+            while (lines.size() > tailLines) {
+                lines.removeFirst();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.join("\n", lines);
+        }
+    }
+}
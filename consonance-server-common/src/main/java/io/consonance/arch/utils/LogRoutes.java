@@ -0,0 +1,53 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.utils;
+
+/**
+ * Routing for the live output of jobs.
+ *
+ * Workers publish {@link io.consonance.arch.beans.LogChunk}s to a topic exchange of their own, routed as {@code log.<job uuid>}, so that
+ * a webservice only gets the output of the jobs someone is following. Chunks are transient, nothing is kept for a job nobody follows.
+ */
+public final class LogRoutes {
+
+    public static final String EXCHANGE_TYPE = "topic";
+
+    private static final String JOB_PREFIX = "log.";
+
+    private LogRoutes() {
+        // utility class
+    }
+
+    /**
+     * @param queueName the queue name from the config file
+     * @return the name of the exchange output is published to
+     */
+    public static String exchange(String queueName) {
+        return queueName + "_logs";
+    }
+
+    /**
+     * @param jobUuid the job
+     * @return the routing key output of the job is published with, and bound with to follow it
+     */
+    public static String jobKey(String jobUuid) {
+        return JOB_PREFIX + jobUuid;
+    }
+}
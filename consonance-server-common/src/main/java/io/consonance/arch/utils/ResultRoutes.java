@@ -0,0 +1,93 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.utils;
+
+import io.consonance.arch.beans.Status;
+import io.consonance.arch.beans.StatusState;
+
+import java.util.Locale;
+
+/**
+ * Routing for status messages from workers and the coordinator.
+ *
+ * Statuses go to a topic exchange so that each consumer only gets what it acts on. A change of state is routed as
+ * {@code job.<state>.<flavour>}, for example {@code job.success.m1.xlarge}, while heartbeats from running jobs are routed as
+ * {@code heartbeat.<flavour>}. The flavour is left off when the sender does not know it, consumers bind with a trailing {@code #} so
+ * that they match either way.
+ *
+ * The exchange has a name of its own rather than the {@code _results} fanout exchange, a broker refuses to redeclare an exchange as a
+ * different type.
+ */
+public final class ResultRoutes {
+
+    public static final String EXCHANGE_TYPE = "topic";
+    /** every change of state, including lost jobs */
+    public static final String ALL_JOB_UPDATES = "job.#";
+    /** every heartbeat */
+    public static final String HEARTBEATS = "heartbeat.#";
+
+    private static final String JOB_PREFIX = "job.";
+    private static final String HEARTBEAT = "heartbeat";
+
+    private ResultRoutes() {
+        // utility class
+    }
+
+    /**
+     * @param queueName the queue name from the config file
+     * @return the name of the exchange statuses are published to
+     */
+    public static String exchange(String queueName) {
+        return queueName + "_result_routes";
+    }
+
+    /**
+     * @param state a state
+     * @return the binding for changes to that state from any flavour
+     */
+    public static String jobUpdates(StatusState state) {
+        return JOB_PREFIX + word(state) + ".#";
+    }
+
+    /**
+     * @param status a change of state
+     * @param flavour flavour of the vm the job runs on, may be null
+     * @return the routing key to publish the status with
+     */
+    public static String jobKey(Status status, String flavour) {
+        return withFlavour(JOB_PREFIX + word(status.getState()), flavour);
+    }
+
+    /**
+     * @param flavour flavour of the vm the job runs on, may be null
+     * @return the routing key to publish heartbeats with
+     */
+    public static String heartbeatKey(String flavour) {
+        return withFlavour(HEARTBEAT, flavour);
+    }
+
+    private static String word(StatusState state) {
+        return state.toString().toLowerCase(Locale.ENGLISH);
+    }
+
+    private static String withFlavour(String key, String flavour) {
+        return flavour == null || flavour.isEmpty() ? key : key + '.' + flavour;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.utils;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Broker-side retries and a quarantine for one work queue.
+ *
+ * A message that could not be handled is published to the queue's own dead-letter exchange rather than put straight back on the
+ * queue. From there it goes to the first of a number of retry queues with growing delays, each of which hands its messages back to the
+ * work queue once they expire. The number of attempts travels with the message in a header. Once every tier has been tried, and right
+ * away for a message that cannot even be read, the message goes to a quarantine queue where it waits for someone to look at it.
+ *
+ * <pre>
+ * work queue --failure--&gt; &lt;queue&gt;_dead_letter --retry.N--&gt; &lt;queue&gt;_retry_&lt;delay&gt;s --expired--&gt; work queue
+ *                                          --quarantine--&gt; &lt;queue&gt;_quarantine
+ * </pre>
+ *
+ * The work queue itself is left as it is, a broker refuses to redeclare an existing queue with a dead-letter exchange added, so
+ * consumers publish failures to the dead-letter exchange themselves. The delay of a tier is in the name of its queue, so changing the
+ * number of tiers never conflicts with queues declared before.
+ */
+public final class RetryTopology {
+
+    public static final int DEFAULT_TIERS = 4;
+    /** number of times a message has been retried */
+    public static final String ATTEMPTS_HEADER = "x-consonance-attempts";
+    /** why a message was last set aside */
+    public static final String FAILURE_HEADER = "x-consonance-failure";
+
+    private static final long FIRST_DELAY_IN_MILLISECONDS = 5000;
+    private static final int DELAY_FACTOR = 5;
+    private static final int MILLISECONDS_PER_SECOND = 1000;
+    private static final String QUARANTINE_KEY = "quarantine";
+
+    private final String queue;
+    private final String exchange;
+    private final int tiers;
+
+    /**
+     * @param queue the work queue
+     * @param tiers number of retries before a message is quarantined, zero to quarantine failures right away
+     */
+    public RetryTopology(String queue, int tiers) {
+        this.queue = queue;
+        this.exchange = queue + "_dead_letter";
+        this.tiers = Math.max(0, tiers);
+    }
+
+    /**
+     * @param queue a work queue
+     * @return the queue that messages from it are quarantined in
+     */
+    public static String quarantineQueue(String queue) {
+        return queue + "_quarantine";
+    }
+
+    /**
+     * @param tier a retry tier, counting from zero
+     * @return how long a message waits in that tier before it goes back to the work queue
+     */
+    public static long delayMillis(int tier) {
+        long delay = FIRST_DELAY_IN_MILLISECONDS;
+        for (int i = 0; i < tier; i++) {
+            delay *= DELAY_FACTOR;
+        }
+        return delay;
+    }
+
+    /**
+     * Declare the dead-letter exchange, the retry queues and the quarantine.
+     *
+     * @param channel channel to declare on
+     * @throws IOException if a declaration fails
+     */
+    public void declare(Channel channel) throws IOException {
+        channel.exchangeDeclare(exchange, "direct", true, false, null);
+        for (int tier = 0; tier < tiers; tier++) {
+            final Map<String, Object> args = new HashMap<>();
+            args.put("x-message-ttl", delayMillis(tier));
+            // expired messages go back to the work queue through the default exchange
+            args.put("x-dead-letter-exchange", "");
+            args.put("x-dead-letter-routing-key", queue);
+            final String retryQueue = queue + "_retry_" + delayMillis(tier) / MILLISECONDS_PER_SECOND + "s";
+            channel.queueDeclare(retryQueue, true, false, false, args);
+            channel.queueBind(retryQueue, exchange, retryKey(tier));
+        }
+        channel.queueDeclare(quarantineQueue(queue), true, false, false, null);
+        channel.queueBind(quarantineQueue(queue), exchange, QUARANTINE_KEY);
+    }
+
+    /**
+     * Set a message aside, to be retried later or quarantined. Publish before acknowledging the original on the same channel, so that
+     * the broker never sees the acknowledgement without the copy.
+     *
+     * @param channel channel to publish on
+     * @param properties properties of the message, may be null
+     * @param body the message body
+     * @param failure why the message was set aside
+     * @param poison true if the message cannot be read and retrying it is pointless
+     * @return true if the message was quarantined, false if it will be retried
+     * @throws IOException if the message could not be published
+     */
+    public boolean deadLetter(Channel channel, AMQP.BasicProperties properties, byte[] body, String failure, boolean poison)
+            throws IOException {
+        final int attempts = attempts(properties);
+        final boolean quarantine = poison || attempts >= tiers;
+        final Map<String, Object> headers = new HashMap<>();
+        if (properties != null && properties.getHeaders() != null) {
+            headers.putAll(properties.getHeaders());
+        }
+        headers.put(FAILURE_HEADER, failure);
+        final AMQP.BasicProperties.Builder builder = properties == null ? new AMQP.BasicProperties.Builder() : properties.builder();
+        if (quarantine) {
+            channel.basicPublish(exchange, QUARANTINE_KEY, builder.headers(headers).deliveryMode(2).build(), body);
+        } else {
+            headers.put(ATTEMPTS_HEADER, attempts + 1);
+            channel.basicPublish(exchange, retryKey(attempts), builder.headers(headers).deliveryMode(2).build(), body);
+        }
+        return quarantine;
+    }
+
+    /**
+     * @param properties properties of a message, may be null
+     * @return number of times the message has been retried
+     */
+    public static int attempts(AMQP.BasicProperties properties) {
+        final Object attempts = properties == null || properties.getHeaders() == null ? null : properties.getHeaders().get(ATTEMPTS_HEADER);
+        return attempts instanceof Number ? ((Number) attempts).intValue() : 0;
+    }
+
+    private static String retryKey(int tier) {
+        return "retry." + tier;
+    }
+}
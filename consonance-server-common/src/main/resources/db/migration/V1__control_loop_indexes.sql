@@ -0,0 +1,19 @@
+--
+-- Indexes for the queries that the coordinator, container provisioner and reporting run in their control loops.
+-- Without these, every getJobs(state), updateJob and getProvisions call is a sequential scan over the full job history.
+--
+-- hibernate's hbm2ddl create mode drops the indexes along with the tables, so this is repeatable and applied again on every start.
+--
+
+CREATE INDEX IF NOT EXISTS job_status_idx ON job (status);
+CREATE INDEX IF NOT EXISTS job_job_uuid_idx ON job (job_uuid);
+CREATE INDEX IF NOT EXISTS job_job_hash_idx ON job (job_hash);
+
+CREATE INDEX IF NOT EXISTS provision_status_idx ON provision (status);
+CREATE INDEX IF NOT EXISTS provision_job_uuid_idx ON provision (job_uuid);
+CREATE INDEX IF NOT EXISTS provision_provision_uuid_idx ON provision (provision_uuid);
+-- serves the "select max(provision_id) from provision group by ip_address" sub-select in getProvisions
+CREATE INDEX IF NOT EXISTS provision_ip_address_provision_id_idx ON provision (ip_address, provision_id);
+
+ANALYZE job;
+ANALYZE provision;
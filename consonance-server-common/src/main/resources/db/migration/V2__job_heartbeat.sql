@@ -0,0 +1,14 @@
+--
+-- Liveness for running jobs, kept out of the wide job row so that a heartbeat does not create a new version of a row carrying
+-- stdout, stderr and the descriptors.
+--
+-- Only job_uuid is indexed and the fillfactor leaves room on each page, so refreshing last_seen and seq is a HOT update.
+-- Do not add an index on last_seen, that would force every heartbeat to touch the index as well.
+--
+
+CREATE TABLE IF NOT EXISTS job_heartbeat (
+    job_uuid text PRIMARY KEY,
+    vm_uuid text,
+    last_seen timestamp NOT NULL DEFAULT now(),
+    seq bigint NOT NULL DEFAULT 0
+) WITH (fillfactor = 50);
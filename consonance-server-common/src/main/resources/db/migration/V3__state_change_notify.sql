@@ -0,0 +1,27 @@
+--
+-- Send a NOTIFY whenever a job or provision is created or changes state, so that the control loops can wake up on change instead
+-- of polling. The payload is "<status>:<uuid>". Heartbeats live in job_heartbeat and do not fire these.
+--
+-- hibernate's hbm2ddl create mode recreates the job and provision tables and drops these triggers, so this is repeatable and applied
+-- again on every start. The control loops still keep a slow periodic reconciliation for changes made before it has run.
+--
+
+CREATE OR REPLACE FUNCTION consonance_notify_state_change() RETURNS trigger AS $$
+BEGIN
+    IF TG_OP = 'UPDATE' THEN
+        IF NEW.status IS NOT DISTINCT FROM OLD.status THEN
+            RETURN NULL;
+        END IF;
+    END IF;
+    PERFORM pg_notify(TG_ARGV[0], coalesce(NEW.status, '') || ':' || coalesce(to_json(NEW) ->> TG_ARGV[1], ''));
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS job_state_notify ON job;
+CREATE TRIGGER job_state_notify AFTER INSERT OR UPDATE OF status ON job
+    FOR EACH ROW EXECUTE PROCEDURE consonance_notify_state_change('consonance_job_state', 'job_uuid');
+
+DROP TRIGGER IF EXISTS provision_state_notify ON provision;
+CREATE TRIGGER provision_state_notify AFTER INSERT OR UPDATE OF status ON provision
+    FOR EACH ROW EXECUTE PROCEDURE consonance_notify_state_change('consonance_provision_state', 'provision_uuid');
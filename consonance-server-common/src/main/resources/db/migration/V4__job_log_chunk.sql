@@ -0,0 +1,18 @@
+--
+-- Append-only job output, split into gzip compressed chunks so that large logs can be streamed back a chunk at a time.
+-- start_offset and raw_length are in uncompressed bytes and let a ranged read skip straight to the chunks it needs.
+--
+
+CREATE TABLE IF NOT EXISTS job_log_chunk (
+    job_uuid text NOT NULL,
+    stream text NOT NULL,
+    seq integer NOT NULL,
+    start_offset bigint NOT NULL,
+    raw_length integer NOT NULL,
+    data bytea NOT NULL,
+    created timestamp NOT NULL DEFAULT now(),
+    PRIMARY KEY (job_uuid, stream, seq)
+);
+
+-- the chunks are already compressed, do not spend time trying to compress them again when they are TOASTed
+ALTER TABLE job_log_chunk ALTER COLUMN data SET STORAGE EXTERNAL;
@@ -0,0 +1,23 @@
+--
+-- Orders accepted by the webservice, written in the same transaction as the job so that an order can never be lost between the
+-- database and the broker. A relay publishes the rows and deletes them once the broker has confirmed them.
+--
+
+CREATE TABLE IF NOT EXISTS order_outbox (
+    outbox_id bigserial PRIMARY KEY,
+    queue text NOT NULL,
+    payload text NOT NULL,
+    created timestamp NOT NULL DEFAULT now()
+);
+
+-- wake the relay once the inserting transaction commits
+CREATE OR REPLACE FUNCTION consonance_notify_order_outbox() RETURNS trigger AS $$
+BEGIN
+    PERFORM pg_notify('consonance_order_outbox', '');
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS order_outbox_notify ON order_outbox;
+CREATE TRIGGER order_outbox_notify AFTER INSERT ON order_outbox
+    FOR EACH STATEMENT EXECUTE PROCEDURE consonance_notify_order_outbox();
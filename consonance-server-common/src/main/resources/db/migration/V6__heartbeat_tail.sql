@@ -0,0 +1,7 @@
+--
+-- The last lines of output of a running job as reassembled by the coordinator from delta heartbeats.
+-- They live next to last_seen so that refreshing them stays a HOT update of the narrow row, the job row only gets the final output.
+--
+
+ALTER TABLE job_heartbeat ADD COLUMN stdout_tail text;
+ALTER TABLE job_heartbeat ADD COLUMN stderr_tail text;
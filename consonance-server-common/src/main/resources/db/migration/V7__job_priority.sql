@@ -0,0 +1,14 @@
+--
+-- How urgent a job is, from 0 (the default) to 10. Workers take higher priority jobs off their flavour's queue first and the container
+-- provisioner weighs pending jobs by it when sizing the fleet.
+--
+-- hibernate's hbm2ddl create mode already adds the column, so only add it where the table predates it.
+--
+
+DO $$
+BEGIN
+    IF NOT EXISTS (SELECT 1 FROM information_schema.columns WHERE table_name = 'job' AND column_name = 'priority') THEN
+        ALTER TABLE job ADD COLUMN priority integer NOT NULL DEFAULT 0;
+    END IF;
+END;
+$$;
@@ -0,0 +1,10 @@
+--
+-- Content-addressed descriptors and extra files. Orders refer to these by the SHA-256 of their content rather than carrying them
+-- inline, and workers fetch the ones they have not cached yet from the webservice. Content that is the same for many jobs is stored once.
+--
+
+CREATE TABLE IF NOT EXISTS blob (
+    hash text PRIMARY KEY,
+    content text NOT NULL,
+    created timestamp NOT NULL DEFAULT now()
+);
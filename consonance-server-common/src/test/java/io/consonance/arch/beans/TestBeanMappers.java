@@ -0,0 +1,56 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.beans;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestBeanMappers {
+
+    @Test
+    public void testReadersAndWritersAreShared() {
+        assertSame(BeanMappers.JSON.reader(Job.class), BeanMappers.JSON.reader(Job.class));
+        assertSame(BeanMappers.JSON.writer(Job.class), BeanMappers.JSON.writer(Job.class));
+        assertSame(BeanMappers.JSON.prettyWriter(Provision.class), BeanMappers.JSON.prettyWriter(Provision.class));
+    }
+
+    @Test
+    public void testRoundTrip() {
+        Job job = new Job("hash");
+        job.setFlavour("m1.test");
+        job.getExtraFiles().put("extra.txt", new Job.ExtraFile("contents", false));
+        String json = job.toJSON();
+        assertTrue("toJSON should still use snake case, got " + json, json.contains("\"job_hash\" : \"hash\""));
+        Job copy = new Job().fromJSON(json);
+        assertEquals(job.getUuid(), copy.getUuid());
+        assertEquals("contents", copy.getExtraFiles().get("extra.txt").getContents());
+
+        Provision provision = new Provision(2, 4, 8, Collections.singletonList("playbook.yml"));
+        provision.setJobUUID(job.getUuid());
+        Provision provisionCopy = new Provision().fromJSON(provision.toJSON());
+        assertEquals(job.getUuid(), provisionCopy.getJobUUID());
+        assertEquals(Collections.singletonList("playbook.yml"), provisionCopy.getAnsiblePlaybooks());
+    }
+}
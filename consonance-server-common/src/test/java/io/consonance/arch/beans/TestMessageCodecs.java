@@ -0,0 +1,97 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.beans;
+
+import com.rabbitmq.client.AMQP;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestMessageCodecs {
+
+    private static Order createOrder() {
+        Order order = new Order();
+        Job job = new Job("hash");
+        job.setFlavour("m1.test");
+        job.setEndUser("user");
+        job.setContainerImageDescriptor("cwl");
+        job.getExtraFiles().put("extra.txt", new Job.ExtraFile("contents", true));
+        order.setJob(job);
+        order.setProvision(new Provision(2, 4, 8, Collections.singletonList("playbook.yml")));
+        order.getProvision().setJobUUID(job.getUuid());
+        return order;
+    }
+
+    private static void assertSameOrder(Order expected, Order actual) {
+        assertEquals(expected.getOrderUUID(), actual.getOrderUUID());
+        assertEquals(expected.getJob().getUuid(), actual.getJob().getUuid());
+        assertEquals(expected.getJob().getFlavour(), actual.getJob().getFlavour());
+        assertEquals("contents", actual.getJob().getExtraFiles().get("extra.txt").getContents());
+        assertEquals(expected.getProvision().getJobUUID(), actual.getProvision().getJobUUID());
+        assertEquals(expected.getProvision().getMemGb(), actual.getProvision().getMemGb());
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Order order = createOrder();
+        for (MessageCodec codec : new MessageCodec[] { MessageCodecs.JSON, MessageCodecs.SMILE }) {
+            final AMQP.BasicProperties properties = MessageCodecs.properties(codec);
+            assertEquals(codec.getContentType(), properties.getContentType());
+            assertSameOrder(order, MessageCodecs.decode(properties, codec.encode(order), Order.class));
+        }
+    }
+
+    @Test
+    public void testSmileIsSmaller() throws IOException {
+        Order order = createOrder();
+        assertTrue("smile should be smaller than json",
+                MessageCodecs.SMILE.encode(order).length < MessageCodecs.JSON.encode(order).length);
+    }
+
+    @Test
+    public void testLegacyMessages() throws IOException {
+        // messages from before codecs are pretty printed and carry no content type
+        Order order = createOrder();
+        String legacy = "{ \n" + "  \"message_type\": \"order\",\n" + "  \"order_uuid\": \"" + order.getOrderUUID() + "\",\n"
+                + "  \"job\": " + order.getJob().toJSON() + ",\n" + "  \"provision\": " + order.getProvision().toJSON() + "\n" + "}";
+        byte[] body = legacy.getBytes(StandardCharsets.UTF_8);
+        assertSameOrder(order, MessageCodecs.decode(null, body, Order.class));
+        AMQP.BasicProperties textPlain = new AMQP.BasicProperties.Builder().contentType(MessageCodecs.LEGACY_CONTENT_TYPE).build();
+        assertSameOrder(order, MessageCodecs.decode(textPlain, body, Order.class));
+
+        Status status = new Status("vm", "job", StatusState.RUNNING, "job-message-type", "message", "127.0.0.1");
+        status.setStderr("err");
+        Status decoded = MessageCodecs.decode(null, status.toJSON().getBytes(StandardCharsets.UTF_8), Status.class);
+        assertEquals(StatusState.RUNNING, decoded.getState());
+        assertEquals("err", decoded.getStderr());
+        assertEquals("127.0.0.1", decoded.getIpAddress());
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownContentType() throws IOException {
+        AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder().contentType("application/xml").build();
+        MessageCodecs.decode(properties, new byte[0], Order.class);
+    }
+}
@@ -20,6 +20,9 @@ package io.consonance.arch.persistence;
 
 import io.consonance.arch.beans.Job;
 import io.consonance.arch.beans.JobState;
+import io.consonance.arch.beans.JobStateUpdate;
+import io.consonance.arch.beans.JobSummary;
+import io.consonance.arch.beans.OutboxEntry;
 import io.consonance.arch.beans.Provision;
 import io.consonance.arch.beans.ProvisionState;
 import io.consonance.common.CommonTestUtilities;
@@ -33,12 +36,19 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
 
 import static org.junit.Assert.assertEquals;
 
@@ -62,6 +72,7 @@ public class PostgreSQLIT {
     public void setUp() throws IOException {
         File configFile = FileUtils.getFile("src", "test", "resources", "config");
         HierarchicalINIConfiguration parseConfig = CommonTestUtilities.parseConfig(configFile.getAbsolutePath());
+        new SchemaMigrator(parseConfig).migrate();
         this.postgres = new PostgreSQL(parseConfig);
 
         // clean up the database
@@ -159,6 +170,89 @@ public class PostgreSQLIT {
         Assert.assertTrue("found jobs, incorrect number " + jobs3.size(), jobs3.isEmpty());
     }
 
+    @Test
+    public void testUpdateJobs() {
+        String first = postgres.createJob(createJob());
+        String second = postgres.createJob(createJob());
+        postgres.updateJob(second, "vm2", JobState.RUNNING);
+        postgres.updateJobs(Arrays.asList(new JobStateUpdate(first, "vm1", JobState.RUNNING), new JobStateUpdate(second, null, JobState.SUCCESS)));
+        List<JobSummary> running = postgres.getJobSummaries(JobState.RUNNING);
+        Assert.assertTrue("found jobs, incorrect number " + running.size(), running.size() == 1);
+        assertEquals("vm1", running.get(0).getVmUuid());
+        List<JobSummary> finished = postgres.getJobSummaries(JobState.SUCCESS);
+        Assert.assertTrue("found jobs, incorrect number " + finished.size(), finished.size() == 1);
+        // a null vm leaves the recorded provision alone
+        assertEquals("vm2", finished.get(0).getVmUuid());
+    }
+
+    @Test
+    public void testHeartbeatOnlyTouchesHeartbeatTable() {
+        String uuid = postgres.createJob(createJob());
+        postgres.updateJob(uuid, "vm1", JobState.RUNNING);
+        JobSummary before = postgres.getJobSummaries(JobState.RUNNING).get(0);
+
+        int[] changed = postgres.updateJobs(Collections.singletonList(new JobStateUpdate(uuid, "vm1", JobState.RUNNING)));
+        assertEquals(0, changed[0]);
+        JobSummary after = postgres.getJobSummaries(JobState.RUNNING).get(0);
+        assertEquals(before.getUpdateTimestamp(), after.getUpdateTimestamp());
+        Assert.assertTrue("heartbeat not recorded", !after.getLastSeen().before(before.getUpdateTimestamp()));
+    }
+
+    @Test
+    public void testMarkLostJobs() {
+        String running = postgres.createJob(createJob());
+        postgres.updateJob(running, "vm1", JobState.RUNNING);
+        String pending = postgres.createJob(createJob());
+        postgres.updateJob(pending, "vm2", JobState.PENDING);
+
+        assertEquals(0, postgres.markLostJobs(Duration.ofHours(1)).size());
+        List<JobStateUpdate> lost = postgres.markLostJobs(Duration.ZERO);
+        assertEquals(1, lost.size());
+        assertEquals(running, lost.get(0).getUuid());
+        assertEquals("vm1", lost.get(0).getVmUuid());
+        assertEquals(JobState.LOST, postgres.getJob(running).getState());
+        assertEquals(JobState.PENDING, postgres.getJob(pending).getState());
+    }
+
+    @Test
+    public void testTimeUntilNextLostJob() {
+        assertEquals(null, postgres.timeUntilNextLostJob(Duration.ofMinutes(1)));
+        String running = postgres.createJob(createJob());
+        postgres.updateJob(running, "vm1", JobState.RUNNING);
+        Duration untilNext = postgres.timeUntilNextLostJob(Duration.ofMinutes(1));
+        Assert.assertTrue("unexpected wait " + untilNext, untilNext.compareTo(Duration.ofMinutes(1)) <= 0 && !untilNext.isNegative());
+    }
+
+    @Test
+    public void testJobLogChunks() throws IOException {
+        String uuid = postgres.createJob(createJob());
+        // spans more than one chunk
+        String big = RandomStringUtils.randomAlphanumeric(PostgreSQL.LOG_CHUNK_SIZE + PostgreSQL.LOG_CHUNK_SIZE / 2);
+        postgres.updateJobMessage(uuid, big, "error");
+        assertEquals(big.length(), postgres.getJobLogLength(uuid, PostgreSQL.LOG_STREAM_STDOUT));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        postgres.streamJobLog(uuid, PostgreSQL.LOG_STREAM_STDOUT, 0, big.length(), out);
+        assertEquals(big, out.toString(StandardCharsets.UTF_8.name()));
+
+        // a range across the chunk boundary
+        final int from = PostgreSQL.LOG_CHUNK_SIZE - 10;
+        final int to = PostgreSQL.LOG_CHUNK_SIZE + 10;
+        out = new ByteArrayOutputStream();
+        postgres.streamJobLog(uuid, PostgreSQL.LOG_STREAM_STDOUT, from, to, out);
+        assertEquals(big.substring(from, to), out.toString(StandardCharsets.UTF_8.name()));
+
+        postgres.appendJobLog(uuid, PostgreSQL.LOG_STREAM_STDERR, " and more");
+        out = new ByteArrayOutputStream();
+        postgres.streamJobLog(uuid, PostgreSQL.LOG_STREAM_STDERR, 0, Long.MAX_VALUE, out);
+        assertEquals("error and more", out.toString(StandardCharsets.UTF_8.name()));
+
+        // writing the final output again replaces the log
+        postgres.updateJobMessage(uuid, "short", null);
+        assertEquals("short".length(), postgres.getJobLogLength(uuid, PostgreSQL.LOG_STREAM_STDOUT));
+        assertEquals(0, postgres.getJobLogLength(uuid, PostgreSQL.LOG_STREAM_STDERR));
+    }
+
     /**
      * Test of updateProvisionByProvisionUUID method, of class PostgreSQL.
      */
@@ -267,6 +361,71 @@ public class PostgreSQLIT {
 
     }
 
+    /**
+     * Test of getJobSummaries method, of class PostgreSQL.
+     */
+    @Test
+    public void testGetJobSummaries() {
+        postgres.createJob(createJob());
+        Job pending = createJob();
+        pending.setState(JobState.PENDING);
+        String pendingUuid = postgres.createJob(pending);
+        Job running = createJob();
+        running.setState(JobState.RUNNING);
+        postgres.createJob(running);
+
+        List<JobSummary> all = postgres.getJobSummaries();
+        Assert.assertTrue("found jobs, incorrect number " + all.size(), all.size() == 3);
+        List<JobSummary> pendingSummaries = postgres.getJobSummaries(JobState.PENDING);
+        Assert.assertTrue("found jobs, incorrect number " + pendingSummaries.size(), pendingSummaries.size() == 1);
+        assertEquals(pendingUuid, pendingSummaries.get(0).getUuid());
+        assertEquals(JobState.PENDING, pendingSummaries.get(0).getState());
+        List<JobSummary> active = postgres.getJobSummaries(JobState.PENDING, JobState.RUNNING, JobState.LOST);
+        Assert.assertTrue("found jobs, incorrect number " + active.size(), active.size() == 2);
+    }
+
+    @Test
+    public void testCountJobsByState() {
+        postgres.createJob(createJob());
+        Job pending = createJob();
+        pending.setState(JobState.PENDING);
+        postgres.createJob(pending);
+        Job other = createJob();
+        other.setState(JobState.PENDING);
+        other.setFlavour("m1.small");
+        other.setEndUser("other");
+        postgres.createJob(other);
+
+        Map<JobState, Long> counts = postgres.countJobsByState();
+        assertEquals(2, counts.size());
+        assertEquals(Long.valueOf(1), counts.get(JobState.START));
+        assertEquals(Long.valueOf(2), counts.get(JobState.PENDING));
+        Map<JobState, Long> filtered = postgres.countJobsByState("M1.XLARGE", null);
+        assertEquals(Long.valueOf(1), filtered.get(JobState.PENDING));
+        filtered = postgres.countJobsByState(null, "other");
+        assertEquals(1, filtered.size());
+        assertEquals(Long.valueOf(1), filtered.get(JobState.PENDING));
+    }
+
+    @Test
+    public void testCountProvisionsByState() {
+        String jobUuid = postgres.createJob(createJob());
+        Provision p = createProvision();
+        p.setState(ProvisionState.PENDING);
+        p.setJobUUID(jobUuid);
+        postgres.createProvision(p);
+        p = createProvision();
+        p.setState(ProvisionState.SUCCESS);
+        postgres.createProvision(p);
+
+        Map<ProvisionState, Long> counts = postgres.countProvisionsByState();
+        assertEquals(2, counts.size());
+        assertEquals(Long.valueOf(1), counts.get(ProvisionState.PENDING));
+        Map<ProvisionState, Long> filtered = postgres.countProvisionsByState(null, "player");
+        assertEquals(1, filtered.size());
+        assertEquals(Long.valueOf(1), filtered.get(ProvisionState.PENDING));
+    }
+
     /**
      * Test of previouslyRun method, of class PostgreSQL.
      */
@@ -354,6 +513,31 @@ public class PostgreSQLIT {
         Assert.assertTrue("job stdout and stderr incorrect", jobs.get(0).getStdout().equals("oof") && jobs.get(0).getStderr().equals("oh"));
     }
 
+    @Test
+    public void testRelayOutbox() {
+        postgres.enqueueOutbox("test_orders", "first");
+        postgres.enqueueOutbox("test_orders", "second");
+        postgres.enqueueOutbox("test_orders", "third");
+
+        // only confirm the first message, the others have to be offered again in order
+        List<String> seen = new ArrayList<>();
+        int relayed = postgres.relayOutbox(2, entries -> {
+            entries.forEach(e -> seen.add(e.getPayload()));
+            return Collections.singletonList(entries.get(0).getId());
+        });
+        assertEquals(1, relayed);
+        assertEquals(Arrays.asList("first", "second"), seen);
+
+        seen.clear();
+        relayed = postgres.relayOutbox(10, entries -> {
+            entries.forEach(e -> seen.add(e.getPayload()));
+            return entries.stream().map(OutboxEntry::getId).collect(Collectors.toList());
+        });
+        assertEquals(2, relayed);
+        assertEquals(Arrays.asList("second", "third"), seen);
+        assertEquals(0, postgres.relayOutbox(10, entries -> Collections.emptyList()));
+    }
+
     /**
      * Test of getProvisions method, of class PostgreSQL.
      */
@@ -0,0 +1,126 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.persistence;
+
+import io.consonance.common.BasicPostgreSQL;
+import io.consonance.common.CommonTestUtilities;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.commons.dbutils.handlers.ScalarHandler;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that schema migrations apply cleanly on top of the baseline schema.
+ */
+public class SchemaMigratorIT {
+    private HierarchicalINIConfiguration settings;
+    private SchemaMigrator migrator;
+
+    @Before
+    public void setUp() {
+        File configFile = FileUtils.getFile("src", "test", "resources", "config");
+        this.settings = CommonTestUtilities.parseConfig(configFile.getAbsolutePath());
+        this.migrator = new SchemaMigrator(settings);
+    }
+
+    /**
+     * Test of migrate method, of class SchemaMigrator.
+     */
+    @Test
+    public void testMigrateIsRepeatable() {
+        final int latest = SchemaMigrator.MIGRATIONS.get(SchemaMigrator.MIGRATIONS.size() - 1).getVersion();
+        assertEquals(latest, migrator.migrate());
+        // a second run should be a no-op
+        assertEquals(latest, migrator.migrate());
+        assertEquals(latest, migrator.getSchemaVersion());
+    }
+
+    /**
+     * Test that every migration script can be found on the classpath.
+     */
+    @Test
+    public void testMigrationScriptsExist() {
+        for (SchemaMigrator.Migration migration : SchemaMigrator.MIGRATIONS) {
+            migration.loadScript();
+        }
+    }
+
+    /**
+     * Test that every migration script under db/migration is registered with the version in its name.
+     */
+    @Test
+    public void testEveryScriptRegistered() {
+        Set<String> registered = new HashSet<>();
+        for (SchemaMigrator.Migration migration : SchemaMigrator.MIGRATIONS) {
+            registered.add("V" + migration.getVersion() + "__" + migration.getResource());
+        }
+        Pattern script = Pattern.compile("V(\\d+)__.*\\.sql");
+        File[] files = FileUtils.getFile("src", "main", "resources", "db", "migration").listFiles();
+        assertTrue(files != null && files.length > 0);
+        for (File file : files) {
+            Matcher matcher = script.matcher(file.getName());
+            if (matcher.matches()) {
+                assertTrue(file.getName() + " is not registered as version " + matcher.group(1),
+                        registered.contains("V" + matcher.group(1) + "__" + file.getName()));
+            }
+        }
+    }
+
+    /**
+     * Test that repeatable migrations put back what hibernate's hbm2ddl create mode drops along with the tables.
+     */
+    @Test
+    public void testRepeatableMigrationsReapplied() {
+        migrator.migrate();
+        Schema schema = new Schema(settings);
+        schema.update("drop index job_status_idx");
+        schema.update("drop trigger job_state_notify on job");
+        migrator.migrate();
+        assertEquals(Long.valueOf(1), schema.count("select count(*) from pg_indexes where indexname = 'job_status_idx'"));
+        assertEquals(Long.valueOf(1), schema.count("select count(*) from pg_trigger where tgname = 'job_state_notify'"));
+    }
+
+    /**
+     * Changes the schema behind the migrator's back.
+     */
+    private static final class Schema extends BasicPostgreSQL {
+        Schema(HierarchicalINIConfiguration settings) {
+            super(settings);
+        }
+
+        void update(String statement) {
+            runUpdateStatement(statement);
+        }
+
+        Long count(String query) {
+            return runSelectStatement(query, new ScalarHandler<>());
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.persistence;
+
+import io.consonance.arch.beans.Job;
+import io.consonance.arch.beans.JobState;
+import io.consonance.common.CommonTestUtilities;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the state change triggers and the listener work together.
+ */
+public class StateChangeListenerIT {
+    private static final long TIMEOUT = 10000;
+
+    private PostgreSQL postgres;
+    private StateChangeListener listener;
+
+    @Before
+    public void setUp() throws InterruptedException {
+        File configFile = FileUtils.getFile("src", "test", "resources", "config");
+        HierarchicalINIConfiguration parseConfig = CommonTestUtilities.parseConfig(configFile.getAbsolutePath());
+        new SchemaMigrator(parseConfig).migrate();
+        this.postgres = new PostgreSQL(parseConfig);
+        postgres.clearDatabase();
+        this.listener = new StateChangeListener(parseConfig, StateChangeListener.JOB_CHANNEL);
+        // start listening
+        listener.awaitChanges(0);
+    }
+
+    @After
+    public void tearDown() {
+        listener.close();
+    }
+
+    @Test
+    public void testJobStateChangesAreNotified() throws InterruptedException {
+        Job job = new Job(UUID.randomUUID().toString());
+        String uuid = postgres.createJob(job);
+        List<StateChangeListener.StateChange> changes = listener.awaitChanges(TIMEOUT);
+        assertEquals(1, changes.size());
+        assertEquals(StateChangeListener.JOB_CHANNEL, changes.get(0).getChannel());
+        assertEquals(JobState.START.toString(), changes.get(0).getState());
+        assertEquals(uuid, changes.get(0).getUuid());
+
+        postgres.updateJob(uuid, "vm", JobState.RUNNING);
+        changes = listener.awaitChanges(TIMEOUT);
+        assertEquals(JobState.RUNNING.toString(), changes.get(0).getState());
+
+        // writing the same state again is not a change
+        postgres.updateJob(uuid, "vm", JobState.RUNNING);
+        assertTrue(listener.awaitChanges(1000).isEmpty());
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestBlobs {
+
+    @Test
+    public void testTokens() {
+        String hash = Blobs.hash("content");
+        String token = Blobs.token("key", hash);
+        assertEquals("tokens should be stable across webservices", token, Blobs.token("key", hash));
+        assertTrue(Blobs.isToken("key", hash, token));
+        assertFalse("a token is only good for its own blob", Blobs.isToken("key", Blobs.hash("other"), token));
+        assertFalse("a token is only good under its own key", Blobs.isToken("other key", hash, token));
+        assertFalse(Blobs.isToken("key", hash, null));
+        assertFalse(Blobs.isToken("key", hash, ""));
+        assertNotEquals(token, Blobs.token("other key", hash));
+    }
+}
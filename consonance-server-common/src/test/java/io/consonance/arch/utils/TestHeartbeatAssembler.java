@@ -0,0 +1,79 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.utils;
+
+import io.consonance.arch.beans.Status;
+import io.consonance.arch.beans.StatusState;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestHeartbeatAssembler {
+
+    private static Status heartbeat(String vmUuid, Long sequence, long offset, String stdout) {
+        Status status = new Status(vmUuid, "job1", StatusState.RUNNING, CommonServerTestUtilities.JOB_MESSAGE_TYPE, "running", "10.0.0.1");
+        status.setSequence(sequence);
+        status.setStdout(stdout);
+        status.setStdoutOffset(offset);
+        return status;
+    }
+
+    @Test
+    public void testDuplicateLinesDropped() {
+        HeartbeatAssembler assembler = new HeartbeatAssembler(HeartbeatAssembler.DEFAULT_TAIL_LINES);
+        assembler.assemble(heartbeat("vm1", 1L, 0, "a\nb"));
+        // the first heartbeat was not confirmed in time, so its lines are sent again
+        Status assembled = assembler.assemble(heartbeat("vm1", 2L, 0, "a\nb\nc"));
+        assertEquals("a\nb\nc", assembled.getStdout());
+        assertEquals("", assembled.getStderr());
+        // redelivered heartbeats change nothing
+        assertEquals("a\nb\nc", assembler.assemble(heartbeat("vm1", 2L, 2, "c")).getStdout());
+    }
+
+    @Test
+    public void testGapSkipped() {
+        HeartbeatAssembler assembler = new HeartbeatAssembler(HeartbeatAssembler.DEFAULT_TAIL_LINES);
+        assembler.assemble(heartbeat("vm1", 1L, 0, "a"));
+        assertEquals("a\nd", assembler.assemble(heartbeat("vm1", 3L, 3, "d")).getStdout());
+    }
+
+    @Test
+    public void testTailIsBounded() {
+        HeartbeatAssembler assembler = new HeartbeatAssembler(2);
+        assertEquals("b\nc", assembler.assemble(heartbeat("vm1", 1L, 0, "a\nb\nc")).getStdout());
+    }
+
+    @Test
+    public void testSnapshotReplacesTail() {
+        HeartbeatAssembler assembler = new HeartbeatAssembler(HeartbeatAssembler.DEFAULT_TAIL_LINES);
+        assembler.assemble(heartbeat("vm1", 1L, 0, "a"));
+        // workers from before delta heartbeats send the whole tail without a sequence
+        assertEquals("x\ny", assembler.assemble(heartbeat("vm1", null, 0, "x\ny")).getStdout());
+    }
+
+    @Test
+    public void testNewVmResetsTail() {
+        HeartbeatAssembler assembler = new HeartbeatAssembler(HeartbeatAssembler.DEFAULT_TAIL_LINES);
+        assembler.assemble(heartbeat("vm1", 5L, 0, "a\nb"));
+        assertEquals("c", assembler.assemble(heartbeat("vm2", 1L, 0, "c")).getStdout());
+        assembler.forget("job1");
+        assertEquals("d", assembler.assemble(heartbeat("vm2", 1L, 0, "d")).getStdout());
+    }
+}
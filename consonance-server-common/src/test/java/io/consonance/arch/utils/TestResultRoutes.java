@@ -0,0 +1,40 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.utils;
+
+import io.consonance.arch.beans.Status;
+import io.consonance.arch.beans.StatusState;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestResultRoutes {
+
+    @Test
+    public void testRoutingKeys() {
+        Status status = new Status("vm1", "job1", StatusState.SUCCESS, CommonServerTestUtilities.JOB_MESSAGE_TYPE, "done", "10.0.0.1");
+        assertEquals("job.success.m1.xlarge", ResultRoutes.jobKey(status, "m1.xlarge"));
+        assertEquals("job.success", ResultRoutes.jobKey(status, null));
+        assertEquals("heartbeat.m1.xlarge", ResultRoutes.heartbeatKey("m1.xlarge"));
+        assertEquals("heartbeat", ResultRoutes.heartbeatKey(""));
+        assertEquals("job.lost.#", ResultRoutes.jobUpdates(StatusState.LOST));
+        assertEquals("consonance_arch_result_routes", ResultRoutes.exchange("consonance_arch"));
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.utils;
+
+import com.rabbitmq.client.AMQP;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestRetryTopology {
+
+    @Test
+    public void testDelaysGrow() {
+        assertEquals(5000, RetryTopology.delayMillis(0));
+        for (int tier = 1; tier < RetryTopology.DEFAULT_TIERS; tier++) {
+            assertTrue(RetryTopology.delayMillis(tier) > RetryTopology.delayMillis(tier - 1));
+        }
+    }
+
+    @Test
+    public void testAttempts() {
+        assertEquals(0, RetryTopology.attempts(null));
+        assertEquals(0, RetryTopology.attempts(new AMQP.BasicProperties.Builder().build()));
+        AMQP.BasicProperties retried = new AMQP.BasicProperties.Builder()
+                .headers(Collections.singletonMap(RetryTopology.ATTEMPTS_HEADER, 3)).build();
+        assertEquals(3, RetryTopology.attempts(retried));
+        assertEquals("orders_quarantine", RetryTopology.quarantineQueue("orders"));
+    }
+
+    @Test
+    public void testBackoffIsBounded() {
+        Backoff backoff = new Backoff(100, 1000);
+        long delay = 0;
+        for (int i = 0; i < 10; i++) {
+            delay = backoff.nextDelay();
+            assertTrue(delay > 0 && delay <= 1000);
+        }
+        assertTrue("should have reached the maximum", delay > 700);
+        backoff.reset();
+        assertTrue(backoff.nextDelay() <= 100);
+    }
+}
@@ -19,6 +19,7 @@
 package io.consonance.arch.utils;
 
 import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.MessageProperties;
 import io.consonance.common.CommonTestUtilities;
 import org.apache.commons.configuration.HierarchicalINIConfiguration;
 import org.apache.commons.io.FileUtils;
@@ -28,8 +29,18 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -80,6 +91,52 @@ public class UtilitiesIT {
         result.close();
     }
 
+    @Test
+    public void testChannelsShareConnection() throws IOException, TimeoutException, InterruptedException {
+        Channel first = CommonServerTestUtilities.setupQueue(getSettings(), "testing_queue");
+        Channel second = CommonServerTestUtilities.setupExchange(getSettings(), "testing_exchange");
+        assertSame("channels should share one connection", first.getConnection(), second.getConnection());
+        CommonServerTestUtilities.closeChannel(first);
+        assertTrue("closing a channel should leave the connection open", second.getConnection().isOpen());
+        CommonServerTestUtilities.closeChannel(second);
+    }
+
+    @Test
+    public void testLeaseExchange() throws Exception {
+        Channel leased = CommonServerTestUtilities.leaseExchange(getSettings(), "testing_exchange", "fanout");
+        assertSame("a thread should keep its channel", leased, CommonServerTestUtilities.leaseExchange(getSettings(), "testing_exchange", "fanout"));
+
+        // another thread gets a channel of its own while this one holds the lease
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Channel other = executor.submit(() -> CommonServerTestUtilities.leaseExchange(getSettings(), "testing_exchange", "fanout")).get();
+        assertNotSame(leased, other);
+        executor.submit(AmqpConnectionManager::releaseThreadChannels).get();
+
+        // once released, the channel goes back to the pool
+        AmqpConnectionManager.releaseThreadChannels();
+        Channel reused = CommonServerTestUtilities.leaseExchange(getSettings(), "testing_exchange", "fanout");
+        assertTrue("released channel should be reused", reused == leased || reused == other);
+        AmqpConnectionManager.releaseThreadChannels();
+        executor.shutdown();
+    }
+
+    @Test
+    public void testPublisherConfirms() throws Exception {
+        ConfirmingPublisher publisher = CommonServerTestUtilities.publisherForQueue(getSettings(), "testing_queue");
+        List<CompletableFuture<Void>> confirms = new ArrayList<>();
+        for (int i = 0; i < ConfirmingPublisher.DEFAULT_MAX_IN_FLIGHT * 2; i++) {
+            confirms.add(publisher.publish("", "testing_queue", MessageProperties.PERSISTENT_TEXT_PLAIN,
+                    ("message " + i).getBytes(StandardCharsets.UTF_8)));
+        }
+        // more messages than the window holds means publish had to wait for earlier confirms
+        CompletableFuture.allOf(confirms.toArray(new CompletableFuture[confirms.size()])).get(1, TimeUnit.MINUTES);
+        assertTrue("nothing should be left in flight", publisher.awaitConfirms(0));
+        assertEquals(0, publisher.inFlight());
+        Channel channel = CommonServerTestUtilities.setupQueue(getSettings(), "testing_queue");
+        channel.queuePurge("testing_queue");
+        CommonServerTestUtilities.closeChannel(channel);
+    }
+
     /**
      * Test of randInRangeInc method, of class CommonServerTestUtilities.
      */
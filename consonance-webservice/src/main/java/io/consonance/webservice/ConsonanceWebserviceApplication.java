@@ -22,10 +22,16 @@ import com.fasterxml.jackson.databind.PropertyNamingStrategy;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import io.consonance.arch.beans.Job;
 import io.consonance.arch.beans.Provision;
+import io.consonance.arch.persistence.SchemaMigrator;
+import io.consonance.common.CommonTestUtilities;
+import io.consonance.common.Constants;
 import io.consonance.webservice.core.ConsonanceUser;
+import io.consonance.webservice.jdbi.BlobDAO;
 import io.consonance.webservice.jdbi.ConsonanceUserDAO;
 import io.consonance.webservice.jdbi.JobDAO;
+import io.consonance.webservice.jdbi.OrderOutboxDAO;
 import io.consonance.webservice.jdbi.ProvisionDAO;
+import io.consonance.webservice.resources.BlobResource;
 import io.consonance.webservice.resources.ConfigurationResource;
 import io.consonance.webservice.resources.OrderResource;
 import io.consonance.webservice.resources.TemplateHealthCheck;
@@ -53,6 +59,7 @@ import io.swagger.workflow.api.JobsApi;
 import io.swagger.workflow.api.RunApi;
 import io.swagger.workflow.api.impl.JobsApiServiceImpl;
 import io.swagger.workflow.api.impl.RunApiServiceImpl;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
 import org.eclipse.jetty.servlets.CrossOriginFilter;
 import org.glassfish.jersey.media.multipart.MultiPartFeature;
 import org.glassfish.jersey.server.filter.RolesAllowedDynamicFeature;
@@ -121,18 +128,31 @@ public class ConsonanceWebserviceApplication extends Application<ConsonanceWebse
         final TemplateHealthCheck healthCheck = new TemplateHealthCheck(configuration.getTemplate());
         environment.healthChecks().register("template", healthCheck);
 
+        // the hibernate bundle has already created or validated the tables, bring indexes and other extras up to date
+        final HierarchicalINIConfiguration consonanceSettings = CommonTestUtilities.parseConfig(configuration.getConsonanceConfig());
+        new SchemaMigrator(consonanceSettings).migrate();
+
         final JobDAO dao = new JobDAO(hibernate.getSessionFactory());
         final ProvisionDAO provisionDAO = new ProvisionDAO(hibernate.getSessionFactory());
         final ConsonanceUserDAO userDAO = new ConsonanceUserDAO(hibernate.getSessionFactory());
+        final OrderOutboxDAO outboxDAO = new OrderOutboxDAO(hibernate.getSessionFactory());
+        final BlobDAO blobDAO = new BlobDAO(hibernate.getSessionFactory());
 
         environment.getObjectMapper().setPropertyNamingStrategy(PropertyNamingStrategy.CAMEL_CASE_TO_LOWER_CASE_WITH_UNDERSCORES);
         environment.getObjectMapper().disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
         environment.getObjectMapper().enable(SerializationFeature.WRITE_ENUMS_USING_TO_STRING);
         environment.getObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
 
-        final OrderResource orderResource = new OrderResource(dao, provisionDAO, configuration.getConsonanceConfig());
+        final JobLogRelay logRelay = new JobLogRelay(consonanceSettings, consonanceSettings.getString(Constants.RABBIT_QUEUE_NAME));
+        environment.lifecycle().manage(logRelay);
+        final OrderSecrets secrets = new OrderSecrets();
+        final OrderResource orderResource = new OrderResource(dao, provisionDAO, outboxDAO, blobDAO, logRelay, secrets,
+                configuration.getConsonanceConfig());
         environment.jersey().register(orderResource);
+        environment.lifecycle().manage(new OrderOutboxRelay(consonanceSettings, consonanceSettings.getString(Constants.RABBIT_QUEUE_NAME) + "_orders",
+                secrets));
         environment.jersey().register(new UserResource(userDAO));
+        environment.jersey().register(new BlobResource(blobDAO, consonanceSettings.getString(Constants.WEBSERVICE_BLOB_SIGNING_KEY)));
         environment.jersey().register(new ConfigurationResource(configuration));
 
         environment.jersey().register(MultiPartFeature.class);
@@ -0,0 +1,369 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.webservice;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import io.consonance.arch.beans.Job;
+import io.consonance.arch.beans.JobState;
+import io.consonance.arch.beans.LogChunk;
+import io.consonance.arch.beans.MessageCodecs;
+import io.consonance.arch.persistence.PostgreSQL;
+import io.consonance.arch.persistence.StateChangeListener;
+import io.consonance.arch.utils.AmqpConnectionManager;
+import io.consonance.arch.utils.Backoff;
+import io.consonance.arch.utils.CommonServerTestUtilities;
+import io.consonance.arch.utils.LogRoutes;
+import io.dropwizard.lifecycle.Managed;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.glassfish.jersey.server.ChunkedOutput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Relays the output that workers stream for running jobs to clients following those jobs through
+ * {@link io.consonance.webservice.resources.OrderResource}.
+ *
+ * This process consumes from a queue of its own on the log exchange and only binds it to the jobs someone is following, the output of
+ * every other job is dropped by the broker. A follow is closed when the worker sends the last of the output, or a little while after the
+ * job is seen to be done in case that last chunk went missing.
+ */
+public class JobLogRelay implements Managed {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JobLogRelay.class);
+    /** how long a follow stays open after its job is done, for the last of the output to arrive */
+    private static final long FINISH_GRACE_IN_MILLISECONDS = 10000;
+    /** state changes can be missed while the listener reconnects, look the jobs up now and then as well */
+    private static final long RECONCILE_INTERVAL_IN_MILLISECONDS = 30000;
+    private static final long WAIT_IN_MILLISECONDS = 1000;
+    private static final long STOP_TIMEOUT_IN_MILLISECONDS = 5000;
+
+    private final HierarchicalINIConfiguration settings;
+    private final String exchange;
+    private final PostgreSQL db;
+    private final ConcurrentMap<String, Set<Follower>> followers = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "job-log-relay");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean running = false;
+    private volatile Channel channel = null;
+    private volatile String queue = null;
+
+    public JobLogRelay(HierarchicalINIConfiguration settings, String queueName) {
+        this.settings = settings;
+        this.exchange = LogRoutes.exchange(queueName);
+        this.db = new PostgreSQL(settings);
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        executor.submit(this::relay);
+    }
+
+    @Override
+    public void stop() throws Exception {
+        running = false;
+        executor.shutdownNow();
+        executor.awaitTermination(STOP_TIMEOUT_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+        followers.values().forEach(set -> set.forEach(Follower::close));
+        followers.clear();
+        CommonServerTestUtilities.closeChannel(channel);
+    }
+
+    /**
+     * Start following the output of a job. Output that arrives before {@link Follower#start(String)} is held back so that it comes after
+     * what the caller already knows.
+     *
+     * @param jobUuid the job
+     * @param stream which output, stdout or stderr
+     * @return the follow, null if output cannot be relayed right now
+     */
+    public synchronized Follower follow(String jobUuid, String stream) {
+        final Channel current = channel;
+        if (current == null || !current.isOpen()) {
+            return null;
+        }
+        final Set<Follower> jobFollowers = followers.computeIfAbsent(jobUuid, key -> ConcurrentHashMap.newKeySet());
+        if (jobFollowers.isEmpty()) {
+            try {
+                current.queueBind(queue, exchange, LogRoutes.jobKey(jobUuid));
+            } catch (IOException e) {
+                LOG.warn("Could not follow the output of " + jobUuid + ": " + e.getMessage());
+                followers.remove(jobUuid);
+                return null;
+            }
+        }
+        final Follower follower = new Follower(jobUuid, stream);
+        jobFollowers.add(follower);
+        return follower;
+    }
+
+    private synchronized void unfollow(Follower follower) {
+        final Set<Follower> jobFollowers = followers.get(follower.jobUuid);
+        if (jobFollowers == null || !jobFollowers.remove(follower) || !jobFollowers.isEmpty()) {
+            return;
+        }
+        followers.remove(follower.jobUuid);
+        final Channel current = channel;
+        if (current != null && current.isOpen()) {
+            try {
+                current.queueUnbind(queue, exchange, LogRoutes.jobKey(follower.jobUuid));
+            } catch (IOException e) {
+                LOG.debug("Could not stop following the output of " + follower.jobUuid + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void relay() {
+        try {
+            connect();
+            final Map<String, Long> finishedAt = new HashMap<>();
+            long lastReconcile = System.currentTimeMillis();
+            try (StateChangeListener listener = new StateChangeListener(settings, StateChangeListener.JOB_CHANNEL)) {
+                while (running) {
+                    final long now = System.currentTimeMillis();
+                    for (StateChangeListener.StateChange change : listener.awaitChanges(WAIT_IN_MILLISECONDS)) {
+                        if (change.getUuid() != null && followers.containsKey(change.getUuid()) && isDone(change.getState())) {
+                            finishedAt.putIfAbsent(change.getUuid(), now);
+                        }
+                    }
+                    if (now - lastReconcile > RECONCILE_INTERVAL_IN_MILLISECONDS) {
+                        lastReconcile = now;
+                        reconcile(finishedAt, now);
+                    }
+                    closeFinished(finishedAt, now);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void connect() throws InterruptedException {
+        final Backoff backoff = new Backoff();
+        while (running) {
+            Channel opened = null;
+            try {
+                final AmqpConnectionManager manager = AmqpConnectionManager.getInstance(settings);
+                opened = manager.openChannel();
+                manager.declareExchange(opened, exchange, LogRoutes.EXCHANGE_TYPE);
+                // a queue of our own that goes away with this process, nothing is kept for output nobody follows. It is named here
+                // rather than by the broker so that it keeps its name when the connection recovers
+                queue = opened.queueDeclare(exchange + "_" + UUID.randomUUID(), false, true, true, null).getQueue();
+                opened.basicConsume(queue, true, new ChunkConsumer(opened));
+                channel = opened;
+                LOG.info("Relaying job output from " + exchange);
+                return;
+            } catch (IOException | TimeoutException e) {
+                LOG.warn("Could not consume job output, retrying: " + e.getMessage());
+                CommonServerTestUtilities.closeChannel(opened);
+                backoff.sleep();
+            }
+        }
+    }
+
+    private void reconcile(Map<String, Long> finishedAt, long now) {
+        for (String jobUuid : new ArrayList<>(followers.keySet())) {
+            if (finishedAt.containsKey(jobUuid)) {
+                continue;
+            }
+            try {
+                final Job job = db.getJob(jobUuid);
+                if (job == null || isDone(job.getState().name())) {
+                    finishedAt.put(jobUuid, now);
+                }
+            } catch (RuntimeException e) {
+                LOG.warn("Could not look up job " + jobUuid + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void closeFinished(Map<String, Long> finishedAt, long now) {
+        finishedAt.entrySet().removeIf(entry -> {
+            if (!followers.containsKey(entry.getKey())) {
+                return true;
+            }
+            if (now - entry.getValue() < FINISH_GRACE_IN_MILLISECONDS) {
+                return false;
+            }
+            final Set<Follower> jobFollowers = followers.get(entry.getKey());
+            if (jobFollowers != null) {
+                new ArrayList<>(jobFollowers).forEach(follower -> {
+                    follower.close();
+                    unfollow(follower);
+                });
+            }
+            return true;
+        });
+    }
+
+    private static boolean isDone(String state) {
+        return JobState.SUCCESS.name().equals(state) || JobState.FAILED.name().equals(state) || JobState.LOST.name().equals(state);
+    }
+
+    /**
+     * Hands each chunk to the followers of its job, on the connection's consumer thread.
+     */
+    private final class ChunkConsumer extends DefaultConsumer {
+
+        ChunkConsumer(Channel channel) {
+            super(channel);
+        }
+
+        @Override
+        public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+            final LogChunk chunk;
+            try {
+                chunk = MessageCodecs.decode(properties, body, LogChunk.class);
+            } catch (IOException e) {
+                LOG.warn("Dropping job output that could not be decoded: " + e.getMessage());
+                return;
+            }
+            final Set<Follower> jobFollowers = followers.get(chunk.getJobUuid());
+            if (jobFollowers == null) {
+                return;
+            }
+            for (Follower follower : jobFollowers) {
+                if (!follower.accept(chunk)) {
+                    unfollow(follower);
+                }
+            }
+        }
+    }
+
+    /**
+     * One client following one stream of output of a job.
+     */
+    public final class Follower {
+
+        private final String jobUuid;
+        private final String stream;
+        private final ChunkedOutput<String> output = new ChunkedOutput<>(String.class);
+        private List<LogChunk> held = new ArrayList<>();
+        private String vmUuid = null;
+        private long sequence = 0;
+
+        private Follower(String jobUuid, String stream) {
+            this.jobUuid = jobUuid;
+            this.stream = stream;
+        }
+
+        /**
+         * @return what to hand to Jersey as the entity of the response
+         */
+        public ChunkedOutput<String> getOutput() {
+            return output;
+        }
+
+        /**
+         * Write what the caller already knows, then the output held back since {@link #follow(String, String)}, then pass output on as
+         * it arrives.
+         *
+         * @param tail the output known so far, may be null
+         */
+        public synchronized void start(String tail) {
+            final List<LogChunk> pending = held;
+            held = null;
+            boolean open = tail == null || tail.isEmpty() || write(tail.endsWith("\n") ? tail : tail + '\n');
+            for (LogChunk chunk : pending) {
+                open = open && accept(chunk);
+            }
+            if (!open) {
+                close();
+                unfollow(this);
+            }
+        }
+
+        /**
+         * @param chunk output of the job
+         * @return false once there is nothing more to send this follower
+         */
+        private synchronized boolean accept(LogChunk chunk) {
+            if (output.isClosed()) {
+                return false;
+            }
+            if (held != null) {
+                held.add(chunk);
+                return true;
+            }
+            // the sequence counts the chunks of both streams, a rerun on another vm starts over
+            if (chunk.getVmUuid() != null && !chunk.getVmUuid().equals(vmUuid)) {
+                vmUuid = chunk.getVmUuid();
+                sequence = 0;
+            }
+            if (chunk.getSequence() <= sequence) {
+                return true;
+            }
+            if (sequence > 0 && chunk.getSequence() > sequence + 1) {
+                LOG.debug("Missed " + (chunk.getSequence() - sequence - 1) + " chunks of output of " + jobUuid);
+            }
+            sequence = chunk.getSequence();
+            if (!stream.equals(chunk.getStream())) {
+                return true;
+            }
+            if (chunk.getLines() != null && !chunk.getLines().isEmpty() && !write(chunk.getLines() + '\n')) {
+                return false;
+            }
+            if (chunk.isLast()) {
+                close();
+                return false;
+            }
+            return true;
+        }
+
+        private boolean write(String text) {
+            try {
+                output.write(text);
+                return true;
+            } catch (IOException e) {
+                // the client went away
+                LOG.debug("Stopped relaying output of " + jobUuid + ": " + e.getMessage());
+                return false;
+            }
+        }
+
+        private synchronized void close() {
+            try {
+                output.close();
+            } catch (IOException e) {
+                LOG.debug("Could not close the output of " + jobUuid + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package io.consonance.webservice;
+
+import io.consonance.arch.beans.JobState;
+import io.consonance.arch.beans.MessageCodec;
+import io.consonance.arch.beans.MessageCodecs;
+import io.consonance.arch.beans.Order;
+import io.consonance.arch.beans.OutboxEntry;
+import io.consonance.arch.persistence.PostgreSQL;
+import io.consonance.arch.persistence.StateChangeListener;
+import io.consonance.arch.utils.CommonServerTestUtilities;
+import io.consonance.arch.utils.ConfirmingPublisher;
+import io.dropwizard.lifecycle.Managed;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Publishes the orders that {@link io.consonance.webservice.resources.OrderResource} leaves in the order outbox.
+ *
+ * Orders are published in batches through the shared {@link ConfirmingPublisher}, so one round trip to the broker covers a whole batch.
+ * Only orders the broker acknowledged are removed from the outbox, orders it gave up on stay and are retried on the next pass.
+ * The outbox keeps orders as JSON without the contents of extra files that are not kept, these are put back from {@link OrderSecrets}
+ * right before an order is encoded for publishing.
+ */
+public class OrderOutboxRelay implements Managed {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OrderOutboxRelay.class);
+    private static final int BATCH_SIZE = 100;
+    private static final long CONFIRM_TIMEOUT_IN_MILLISECONDS = 30000;
+    private static final long IDLE_WAIT_IN_MILLISECONDS = 5000;
+    /** an order still missing withheld contents after this long was accepted by a webservice that stopped before publishing it */
+    static final long HANDOFF_TIMEOUT_IN_MILLISECONDS = 10 * 60 * 1000;
+
+    private final HierarchicalINIConfiguration settings;
+    private final String ordersQueue;
+    private final PostgreSQL db;
+    private final MessageCodec codec;
+    private final OrderSecrets secrets;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "order-outbox-relay");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean running = false;
+
+    public OrderOutboxRelay(HierarchicalINIConfiguration settings, String ordersQueue, OrderSecrets secrets) {
+        this(settings, ordersQueue, new PostgreSQL(settings), MessageCodecs.fromSettings(settings), secrets);
+    }
+
+    OrderOutboxRelay(HierarchicalINIConfiguration settings, String ordersQueue, PostgreSQL db, MessageCodec codec, OrderSecrets secrets) {
+        this.settings = settings;
+        this.ordersQueue = ordersQueue;
+        this.db = db;
+        this.codec = codec;
+        this.secrets = secrets;
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        executor.submit(this::relay);
+    }
+
+    @Override
+    public void stop() throws Exception {
+        running = false;
+        executor.shutdownNow();
+        executor.awaitTermination(CONFIRM_TIMEOUT_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+    }
+
+    private void relay() {
+        try (StateChangeListener listener = new StateChangeListener(settings, StateChangeListener.ORDER_OUTBOX_CHANNEL)) {
+            // start listening before the first pass so that nothing falls in between
+            listener.awaitChanges(0);
+            final ConfirmingPublisher publisher = CommonServerTestUtilities.publisherForQueue(settings, ordersQueue);
+            while (running) {
+                secrets.expire(HANDOFF_TIMEOUT_IN_MILLISECONDS);
+                int relayed = 0;
+                try {
+                    relayed = relayBatch(publisher);
+                } catch (RuntimeException e) {
+                    LOG.error("Could not relay orders, will retry: " + e.getMessage(), e);
+                }
+                // a full batch probably means there is more waiting
+                if (relayed < BATCH_SIZE) {
+                    listener.awaitChanges(IDLE_WAIT_IN_MILLISECONDS);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Claim a batch of orders from the outbox, publish them and remove the ones that are done with.
+     *
+     * @param publisher where to publish
+     * @return the number of orders removed from the outbox
+     */
+    int relayBatch(ConfirmingPublisher publisher) {
+        return db.relayOutbox(BATCH_SIZE, entries -> publish(publisher, entries));
+    }
+
+    /**
+     * Publish a batch and wait for the broker to confirm it.
+     *
+     * @param publisher where to publish
+     * @param entries orders to publish
+     * @return the outbox ids of the orders that are done with, acknowledged by the broker or failed for good
+     */
+    private Collection<Long> publish(ConfirmingPublisher publisher, List<OutboxEntry> entries) {
+        final Map<Long, CompletableFuture<Void>> published = new LinkedHashMap<>();
+        final Map<Long, String> jobs = new HashMap<>();
+        final List<Long> done = new ArrayList<>();
+        try {
+            for (OutboxEntry entry : entries) {
+                final Order order;
+                final byte[] body;
+                try {
+                    order = MessageCodecs.JSON.decode(entry.getPayload().getBytes(StandardCharsets.UTF_8), Order.class);
+                    if (!secrets.restore(order)) {
+                        if (abandoned(entry)) {
+                            failOrder(order);
+                            done.add(entry.getId());
+                        }
+                        // otherwise the webservice that accepted the order holds what is missing and will publish it
+                        continue;
+                    }
+                    body = codec.encode(order);
+                } catch (IOException e) {
+                    LOG.error("Could not encode order " + entry.getId() + ", leaving it in the outbox: " + e.getMessage(), e);
+                    continue;
+                }
+                published.put(entry.getId(), publisher.publish("", entry.getQueue(), MessageCodecs.properties(codec), body));
+                jobs.put(entry.getId(), order.getJob().getUuid());
+            }
+            CompletableFuture.allOf(published.values().toArray(new CompletableFuture[published.size()]))
+                    .get(CONFIRM_TIMEOUT_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            LOG.warn("Some orders were not confirmed, they will be published again: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        published.forEach((id, future) -> {
+            if (future.isDone() && !future.isCompletedExceptionally()) {
+                done.add(id);
+                secrets.release(jobs.get(id));
+            }
+        });
+        LOG.debug("relayed " + done.size() + " orders");
+        return done;
+    }
+
+    private static boolean abandoned(OutboxEntry entry) {
+        return entry.getCreated() == null
+                || System.currentTimeMillis() - entry.getCreated().getTime() > HANDOFF_TIMEOUT_IN_MILLISECONDS;
+    }
+
+    private void failOrder(Order order) {
+        final String uuid = order.getJob().getUuid();
+        LOG.error("Order for job " + uuid + " lost its extra files that are not kept before it was published, failing the job");
+        db.updateJobMessage(uuid, null, "The webservice that accepted this job stopped before sending it out, its extra files tagged "
+                + "with keep=false were lost with it. Please submit the job again.");
+        db.updateJob(uuid, null, JobState.FAILED);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.webservice;
+
+import io.consonance.arch.beans.Job;
+import io.consonance.arch.beans.Order;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Holds the contents of extra files tagged with keep=false in memory from when an order is accepted until the {@link OrderOutboxRelay}
+ * publishes it. These are usually credentials, so they are kept out of the order outbox and with it out of the database, its WAL and its
+ * backups.
+ *
+ * Contents held here are lost if the webservice stops before the order is published, the relay fails such orders rather than run a job
+ * without its credentials. With several webservices, an order waits in the outbox for the one that accepted it.
+ */
+public class OrderSecrets {
+
+    private final ConcurrentMap<String, Withheld> withheld = new ConcurrentHashMap<>();
+
+    /**
+     * Take the contents of the extra files that are not kept out of an order.
+     *
+     * @param order the order about to go into the outbox, changed in place
+     */
+    public void withhold(Order order) {
+        final Map<String, String> contents = new HashMap<>();
+        for (Map.Entry<String, Job.ExtraFile> entry : order.getJob().getExtraFiles().entrySet()) {
+            final Job.ExtraFile file = entry.getValue();
+            if (!file.isKeep()) {
+                if (file.getContents() != null) {
+                    contents.put(entry.getKey(), file.getContents());
+                }
+                // an empty file is written either way, this tells it apart from one whose contents are withheld
+                file.setContents(file.getContents() == null ? "" : null);
+            }
+        }
+        if (!contents.isEmpty()) {
+            withheld.put(order.getJob().getUuid(), new Withheld(contents));
+        }
+    }
+
+    /**
+     * Put the withheld contents back into an order taken from the outbox.
+     *
+     * @param order the order about to be published, changed in place
+     * @return false if the order is missing contents this process does not hold
+     */
+    public boolean restore(Order order) {
+        final Withheld held = withheld.get(order.getJob().getUuid());
+        boolean complete = true;
+        for (Map.Entry<String, Job.ExtraFile> entry : order.getJob().getExtraFiles().entrySet()) {
+            final Job.ExtraFile file = entry.getValue();
+            if (!file.isKeep() && file.getContents() == null) {
+                final String contents = held == null ? null : held.contents.get(entry.getKey());
+                complete &= contents != null;
+                file.setContents(contents);
+            }
+        }
+        return complete;
+    }
+
+    /**
+     * Forget the contents withheld from an order once it has been published.
+     *
+     * @param jobUuid the job of the order
+     */
+    public void release(String jobUuid) {
+        withheld.remove(jobUuid);
+    }
+
+    /**
+     * Forget contents that have been held for too long, such as those of an order whose transaction rolled back.
+     *
+     * @param maxAgeMillis how long contents may be held
+     */
+    public void expire(long maxAgeMillis) {
+        final long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        withheld.values().removeIf(held -> held.since < cutoff);
+    }
+
+    /**
+     * @return the number of orders with contents held back
+     */
+    int size() {
+        return withheld.size();
+    }
+
+    private static final class Withheld {
+        private final Map<String, String> contents;
+        private final long since = System.currentTimeMillis();
+
+        Withheld(Map<String, String> contents) {
+            this.contents = contents;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.webservice.jdbi;
+
+import org.hibernate.SessionFactory;
+
+/**
+ * Stores content-addressed blobs inside the current unit of work, so that a blob an order refers to is committed along with the order.
+ */
+public class BlobDAO {
+    private final SessionFactory factory;
+
+    public BlobDAO(SessionFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * @param hash the SHA-256 of the content
+     * @param content the content, stored once no matter how many orders refer to it
+     */
+    public void store(String hash, String content) {
+        factory.getCurrentSession().createSQLQuery(
+                "insert into blob (hash, content) values (:hash, :content) on conflict (hash) do nothing")
+                .setString("hash", hash).setString("content", content).executeUpdate();
+    }
+
+    /**
+     * @param hash the SHA-256 of the content
+     * @return the content, null if there is no such blob
+     */
+    public String find(String hash) {
+        return (String) factory.getCurrentSession().createSQLQuery("select content from blob where hash = :hash").setString("hash", hash)
+                .uniqueResult();
+    }
+}
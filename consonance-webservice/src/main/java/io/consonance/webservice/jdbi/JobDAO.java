@@ -49,6 +49,16 @@ public class JobDAO extends AbstractDAO<Job> {
         return uniqueResult(namedQuery("io.consonance.arch.beans.core.Job.findByJobUUID").setString("jobuuid",uuid));
     }
 
+    /**
+     * Look up who owns a job without loading its logs and descriptors.
+     *
+     * @param uuid the job
+     * @return the job uuid and end user, null if there is no such job
+     */
+    public Object[] findEndUserByUUID(String uuid) {
+        return (Object[]) namedQuery("io.consonance.arch.beans.core.Job.findEndUserByJobUUID").setString("jobuuid", uuid).uniqueResult();
+    }
+
     public List<Job> findAll(String endUser) {
         return list(namedQuery("io.consonance.arch.beans.core.Job.findAllByUser").setString("endUser",endUser));
     }
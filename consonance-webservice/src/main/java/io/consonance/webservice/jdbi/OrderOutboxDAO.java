@@ -0,0 +1,38 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package io.consonance.webservice.jdbi;
+
+import org.hibernate.SessionFactory;
+
+/**
+ * Writes to the order outbox inside the current unit of work, so that an order is only queued for publishing if the job it belongs
+ * to is committed as well.
+ */
+public class OrderOutboxDAO {
+    private final SessionFactory factory;
+
+    public OrderOutboxDAO(SessionFactory factory) {
+        this.factory = factory;
+    }
+
+    public void enqueue(String queue, String payload) {
+        factory.getCurrentSession().createSQLQuery("insert into order_outbox (queue, payload) values (:queue, :payload)")
+                .setString("queue", queue).setString("payload", payload).executeUpdate();
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.webservice.resources;
+
+import com.codahale.metrics.annotation.Timed;
+import io.consonance.arch.utils.Blobs;
+import io.consonance.webservice.jdbi.BlobDAO;
+import io.dropwizard.hibernate.UnitOfWork;
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiParam;
+import io.swagger.annotations.ApiResponse;
+import io.swagger.annotations.ApiResponses;
+import org.apache.http.HttpStatus;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Hands out the descriptors and extra files that orders refer to by SHA-256, for workers filling their cache. Blobs are not tied to a
+ * user, a request is allowed by the token for the blob that came with the order (see {@link Blobs}).
+ */
+@Path("/blob")
+@Api(value = "/blob", tags = "blob")
+@Produces(MediaType.APPLICATION_OCTET_STREAM)
+public class BlobResource {
+    private final BlobDAO dao;
+    private final String signingKey;
+
+    /**
+     * @param dao where blobs are stored
+     * @param signingKey key the blob tokens in orders are signed with, null if orders do not refer to blobs
+     */
+    public BlobResource(BlobDAO dao, String signingKey) {
+        this.dao = dao;
+        this.signingKey = signingKey;
+    }
+
+    @GET
+    @Path("/{hash}")
+    @Timed
+    @UnitOfWork
+    @ApiOperation(value = "Get a blob", notes = "Get the content of a descriptor or extra file by its SHA-256, with the token from an order")
+    @ApiResponses(value = { @ApiResponse(code = HttpStatus.SC_BAD_REQUEST, message = "Invalid hash supplied"),
+            @ApiResponse(code = HttpStatus.SC_FORBIDDEN, message = "Missing or wrong token"),
+            @ApiResponse(code = HttpStatus.SC_NOT_FOUND, message = "Blob not found") })
+    public Response getBlob(@ApiParam(value = "lower case hex SHA-256 of the content", required = true) @PathParam("hash") String hash,
+            @ApiParam(value = "token for the blob from the order that refers to it") @HeaderParam(Blobs.TOKEN_HEADER) String token) {
+        if (!Blobs.isHash(hash)) {
+            throw new WebApplicationException(HttpStatus.SC_BAD_REQUEST);
+        }
+        if (signingKey == null || !Blobs.isToken(signingKey, hash, token)) {
+            throw new WebApplicationException(HttpStatus.SC_FORBIDDEN);
+        }
+        final String content = dao.find(hash);
+        if (content == null) {
+            throw new WebApplicationException(HttpStatus.SC_NOT_FOUND);
+        }
+        // a blob never changes, but it may be a credential that should not sit in shared caches
+        final CacheControl cacheControl = new CacheControl();
+        cacheControl.setPrivate(true);
+        return Response.ok(content.getBytes(StandardCharsets.UTF_8)).cacheControl(cacheControl).build();
+    }
+}
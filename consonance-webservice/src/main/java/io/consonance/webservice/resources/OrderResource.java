@@ -19,17 +19,20 @@
 package io.consonance.webservice.resources;
 
 import com.codahale.metrics.annotation.Timed;
-import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.MessageProperties;
 import io.consonance.arch.beans.Job;
 import io.consonance.arch.beans.JobState;
 import io.consonance.arch.beans.Order;
 import io.consonance.arch.beans.Provision;
-import io.consonance.arch.utils.CommonServerTestUtilities;
+import io.consonance.arch.persistence.PostgreSQL;
+import io.consonance.arch.utils.Blobs;
 import io.consonance.common.CommonTestUtilities;
 import io.consonance.common.Constants;
+import io.consonance.webservice.JobLogRelay;
+import io.consonance.webservice.OrderSecrets;
 import io.consonance.webservice.core.ConsonanceUser;
+import io.consonance.webservice.jdbi.BlobDAO;
 import io.consonance.webservice.jdbi.JobDAO;
+import io.consonance.webservice.jdbi.OrderOutboxDAO;
 import io.consonance.webservice.jdbi.ProvisionDAO;
 import io.dropwizard.auth.Auth;
 import io.dropwizard.hibernate.UnitOfWork;
@@ -44,25 +47,26 @@ import org.apache.http.HttpStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
-import javax.ws.rs.InternalServerErrorException;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
-import java.io.BufferedWriter;
-import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 /**
@@ -82,15 +86,39 @@ public class OrderResource {
     private final HierarchicalINIConfiguration settings;
     private final String queueName;
     private final ProvisionDAO provisionDAO;
-    private Channel jchannel = null;
+    private final PostgreSQL postgres;
+    private final OrderOutboxDAO outboxDAO;
+    private final JobLogRelay logRelay;
+    private final BlobDAO blobDAO;
+    private final OrderSecrets secrets;
+    private final boolean blobReferences;
+    private final String blobSigningKey;
 
     private static final Logger LOG = LoggerFactory.getLogger(OrderResource.class);
+    private static final String RANGE = "Range";
+    private static final String CONTENT_RANGE = "Content-Range";
+    private static final String ACCEPT_RANGES = "Accept-Ranges";
+    private static final Pattern BYTE_RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+    /** what {@link #parseRange} returns for a range that does not overlap the log */
+    static final long[] UNSATISFIABLE_RANGE = new long[0];
 
-    public OrderResource(JobDAO dao, ProvisionDAO provisionDAO, String consonanceConfigFile) {
+    public OrderResource(JobDAO dao, ProvisionDAO provisionDAO, OrderOutboxDAO outboxDAO, BlobDAO blobDAO, JobLogRelay logRelay,
+            OrderSecrets secrets, String consonanceConfigFile) {
         this.dao = dao;
+        this.secrets = secrets;
+        this.blobDAO = blobDAO;
+        this.logRelay = logRelay;
         this.provisionDAO = provisionDAO;
+        this.outboxDAO = outboxDAO;
         this.settings = CommonTestUtilities.parseConfig(consonanceConfigFile);
         this.queueName = settings.getString(Constants.RABBIT_QUEUE_NAME);
+        this.postgres = new PostgreSQL(settings);
+        this.blobSigningKey = settings.getString(Constants.WEBSERVICE_BLOB_SIGNING_KEY);
+        if (settings.getBoolean(Constants.WEBSERVICE_BLOB_REFERENCES, false) && blobSigningKey == null) {
+            LOG.warn(Constants.WEBSERVICE_BLOB_REFERENCES + " needs " + Constants.WEBSERVICE_BLOB_SIGNING_KEY
+                    + " so that workers can fetch blobs, sending orders with their content inline");
+        }
+        this.blobReferences = settings.getBoolean(Constants.WEBSERVICE_BLOB_REFERENCES, false) && blobSigningKey != null;
     }
 
     @GET
@@ -132,29 +160,129 @@ public class OrderResource {
     @Path("/{jobUUID}/log")
     @Timed
     @UnitOfWork
-    @ApiOperation(value = "List a specific job", notes = "List a specific job", response = Job.class, authorizations = @Authorization(value = "api_key"))
+    @ApiOperation(value = "Get the output of a specific job", notes = "Streams the output of a specific job, supports byte ranges through the Range header or an offset. "
+            + "With follow, output of a running job is sent as it is written until the job is done", authorizations = @Authorization(value = "api_key"))
     @ApiResponses(value = { @ApiResponse(code = HttpStatus.SC_BAD_REQUEST, message = "Invalid ID supplied"),
-            @ApiResponse(code = HttpStatus.SC_NOT_FOUND, message = "Job not found") })
-    public Response getWorkflowRunStreamingLog(@ApiParam(hidden=true) @Auth ConsonanceUser consonanceUser, @ApiParam(value = "UUID of job that needs to be fetched", required = true) @PathParam("jobUUID") String uuid) {
-        final Job jobByUUID = dao.findJobByUUID(uuid);
-        if (consonanceUser.isAdmin() || consonanceUser.getName().equals(jobByUUID.getEndUser())){
-            StreamingOutput stream = os -> {
-                Writer writer = new BufferedWriter(new OutputStreamWriter(os));
-                writer.write(jobByUUID.getStdout() == null? "": jobByUUID.getStdout());
-                writer.flush();
-            };
-            return Response.ok(stream).build();
+            @ApiResponse(code = HttpStatus.SC_NOT_FOUND, message = "Job not found"),
+            @ApiResponse(code = HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE, message = "Range not satisfiable") })
+    public Response getWorkflowRunStreamingLog(@ApiParam(hidden=true) @Auth ConsonanceUser consonanceUser, @ApiParam(value = "UUID of job that needs to be fetched", required = true) @PathParam("jobUUID") String uuid,
+            @ApiParam(value = "which output to return, stdout or stderr") @QueryParam("stream") @DefaultValue(PostgreSQL.LOG_STREAM_STDOUT) String logStream,
+            @ApiParam(value = "byte offset to start from, ignored when a Range header is given") @QueryParam("offset") @DefaultValue("0") long offset,
+            @ApiParam(value = "keep the response open and send output of a running job as it is written") @QueryParam("follow") @DefaultValue("false") boolean follow,
+            @ApiParam(hidden = true) @HeaderParam(RANGE) String range) {
+        // only look up the owner here, the log itself is streamed in chunks from the database
+        final Object[] owner = dao.findEndUserByUUID(uuid);
+        if (owner == null || !(consonanceUser.isAdmin() || consonanceUser.getName().equals(owner[1]))) {
+            throw new WebApplicationException(HttpStatus.SC_NOT_FOUND);
+        }
+        if (!PostgreSQL.LOG_STREAM_STDOUT.equals(logStream) && !PostgreSQL.LOG_STREAM_STDERR.equals(logStream)) {
+            throw new WebApplicationException(HttpStatus.SC_BAD_REQUEST);
+        }
+        if (follow && range == null) {
+            final Response following = followLog(uuid, logStream);
+            if (following != null) {
+                return following;
+            }
+        }
+
+        long length = postgres.getJobLogLength(uuid, logStream);
+        byte[] legacyLog = null;
+        if (length == 0) {
+            // output recorded before logs were chunked only lives on the job row
+            final Job jobByUUID = dao.findJobByUUID(uuid);
+            String text = PostgreSQL.LOG_STREAM_STDOUT.equals(logStream) ? jobByUUID.getStdout() : jobByUUID.getStderr();
+            if (text == null) {
+                // still running, the coordinator keeps the last lines from its heartbeats
+                text = postgres.getJobTail(uuid, logStream);
+            }
+            legacyLog = (text == null ? "" : text).getBytes(StandardCharsets.UTF_8);
+            length = legacyLog.length;
+        }
+
+        final long[] bounds = range == null ? null : parseRange(range, length);
+        if (bounds == UNSATISFIABLE_RANGE) {
+            return Response.status(HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE).header(CONTENT_RANGE, "bytes */" + length).build();
+        }
+        final boolean partial = bounds != null;
+        final long from = partial ? bounds[0] : Math.min(Math.max(offset, 0), length);
+        final long to = partial ? bounds[1] : length;
+        final byte[] finalLegacyLog = legacyLog;
+        StreamingOutput stream = os -> {
+            if (finalLegacyLog != null) {
+                os.write(finalLegacyLog, (int) from, (int) (to - from));
+            } else {
+                postgres.streamJobLog(uuid, logStream, from, to, os);
+            }
+            os.flush();
+        };
+        Response.ResponseBuilder builder = partial ? Response.status(HttpStatus.SC_PARTIAL_CONTENT).entity(stream)
+                .header(CONTENT_RANGE, "bytes " + from + "-" + (to - 1) + "/" + length) : Response.ok(stream);
+        return builder.header(ACCEPT_RANGES, "bytes").build();
+    }
+
+    /**
+     * Follow the output of a running job, starting from the last lines the heartbeats brought in. Lines written around the time the
+     * follow starts can show up twice or not at all, the complete log is there once the job is done.
+     *
+     * @param uuid the job
+     * @param logStream which output, stdout or stderr
+     * @return the response, null if the job is done or output cannot be relayed right now
+     */
+    private Response followLog(String uuid, String logStream) {
+        final JobState state = dao.findJobByUUID(uuid).getState();
+        if (state == JobState.SUCCESS || state == JobState.FAILED || state == JobState.LOST) {
+            return null;
+        }
+        final JobLogRelay.Follower follower = logRelay.follow(uuid, logStream);
+        if (follower == null) {
+            return null;
+        }
+        // follow before reading the tail so that nothing written in between is lost
+        follower.start(postgres.getJobTail(uuid, logStream));
+        return Response.ok(follower.getOutput()).type(MediaType.TEXT_PLAIN_TYPE).build();
+    }
+
+    /**
+     * Parse a single byte range, "bytes=first-last", "bytes=first-" or "bytes=-suffix".
+     *
+     * @param range the Range header
+     * @param length the size of the whole log
+     * @return the first byte inclusive and the last byte exclusive, {@link #UNSATISFIABLE_RANGE} if the range cannot be satisfied, null
+     * for ranges we do not understand or support, which are answered with the whole log as if there were no Range header
+     */
+    static long[] parseRange(String range, long length) {
+        final Matcher matcher = BYTE_RANGE.matcher(range.trim());
+        if (!matcher.matches() || matcher.group(1).isEmpty() && matcher.group(2).isEmpty()) {
+            return null;
+        }
+        try {
+            if (matcher.group(1).isEmpty()) {
+                final long suffix = Long.parseLong(matcher.group(2));
+                return suffix == 0 || length == 0 ? UNSATISFIABLE_RANGE : new long[] { Math.max(0, length - suffix), length };
+            }
+            final long first = Long.parseLong(matcher.group(1));
+            final long last = matcher.group(2).isEmpty() ? Long.MAX_VALUE : Long.parseLong(matcher.group(2));
+            if (last < first) {
+                return null;
+            }
+            return first >= length ? UNSATISFIABLE_RANGE : new long[] { first, Math.min(last, length - 1) + 1 };
+        } catch (NumberFormatException e) {
+            // too large for a long
+            return null;
         }
-        throw new WebApplicationException(HttpStatus.SC_NOT_FOUND);
     }
 
     @POST
     @Timed
     @UnitOfWork
     @ApiOperation(value = "Schedule a new order")
-    @ApiResponses(value = { @ApiResponse(code = HttpStatus.SC_METHOD_NOT_ALLOWED, message = "Invalid input") })
+    @ApiResponses(value = { @ApiResponse(code = HttpStatus.SC_METHOD_NOT_ALLOWED, message = "Invalid input"),
+            @ApiResponse(code = HttpStatus.SC_BAD_REQUEST, message = "Priority out of range") })
     public Job addOrder(@ApiParam(hidden = true) @Auth ConsonanceUser consonanceUser,
             @ApiParam(value = "Order that needs to be added to the store", required = true) Job job) {
+        if (job.getPriority() < 0 || job.getPriority() > Job.MAX_PRIORITY) {
+            throw new WebApplicationException(HttpStatus.SC_BAD_REQUEST);
+        }
         // enforce that users schedule jobs as themselves
         job.setEndUser(consonanceUser.getName());
 
@@ -184,35 +312,60 @@ public class OrderResource {
      */
     protected Job persistAndPublishJob(@ApiParam(value = "Order that needs to be added to the store", required = true) Job job,
             Order newOrder, Provision provision) {
-        if (jchannel == null || !jchannel.isOpen()) {
-            try {
-                this.jchannel = CommonServerTestUtilities.setupQueue(settings, queueName + "_orders");
-            } catch (InterruptedException ex) {
-                throw new InternalServerErrorException();
-            }
-        }
-
         final int jobId = dao.create(job);
         Job createdJob = dao.findById(jobId);
         provisionDAO.create(provision);
         LOG.debug("created job with " + createdJob.getExtraFiles().size() + " entries");
 
-        try {
-            LOG.info("\nSENDING JOB:\n '" + job + "'\n" + this.jchannel + " \n");
-            this.jchannel.basicPublish("", queueName + "_orders", MessageProperties.PERSISTENT_TEXT_PLAIN,
-                    newOrder.toJSON().getBytes(StandardCharsets.UTF_8));
-            jchannel.waitForConfirms();
+        // the order commits together with the job, the outbox relay publishes it afterwards
+        LOG.info("\nQUEUEING JOB:\n '" + job + "'\n");
+        final Order outgoing = new Order().fromJSON(newOrder.toJSON());
+        // extra files tagged with keep=false stay in memory until the relay publishes the order, they never reach the database
+        secrets.withhold(outgoing);
+        if (blobReferences) {
+            referenceBlobs(outgoing);
+        }
+        outboxDAO.enqueue(queueName + "_orders", outgoing.toJSON());
 
-            // censor the extra files with isKeep set to false after the message is sent
-            // censor extra files tagged with keep=false
-            job.setExtraFiles(job.getExtraFiles().entrySet().stream().filter(e -> e.getValue().isKeep())
-                    .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)));
-            LOG.debug("job in DB should be updated to " + job.getExtraFiles().size() + " entries");
+        // censor extra files tagged with keep=false
+        job.setExtraFiles(job.getExtraFiles().entrySet().stream().filter(e -> e.getValue().isKeep())
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)));
+        LOG.debug("job in DB should be updated to " + job.getExtraFiles().size() + " entries");
+        return createdJob;
+    }
 
-        } catch (IOException | InterruptedException ex) {
-            LOG.error(ex.toString());
+    /**
+     * Store the descriptors and the extra files that are kept as blobs, and leave only their hashes in the order, so that content shared
+     * by many jobs goes to each worker once. The order gets a token for each blob that lets the worker fetch it. Extra files that are not
+     * kept are left alone, they must not outlive the order.
+     *
+     * @param order the order to send, changed in place
+     */
+    private void referenceBlobs(Order order) {
+        final Job job = order.getJob();
+        final Map<String, String> tokens = new HashMap<>();
+        if (job.getContainerImageDescriptor() != null) {
+            job.setContainerImageDescriptorHash(storeBlob(job.getContainerImageDescriptor(), tokens));
+            job.setContainerImageDescriptor(null);
         }
-        return createdJob;
+        if (job.getContainerRuntimeDescriptor() != null) {
+            job.setContainerRuntimeDescriptorHash(storeBlob(job.getContainerRuntimeDescriptor(), tokens));
+            job.setContainerRuntimeDescriptor(null);
+        }
+        for (Job.ExtraFile file : job.getExtraFiles().values()) {
+            if (file.isKeep() && file.getContents() != null) {
+                file.setContentsHash(storeBlob(file.getContents(), tokens));
+                file.setContents(null);
+            }
+        }
+        job.setBlobTokens(tokens.isEmpty() ? null : tokens);
+    }
+
+    private String storeBlob(String content, Map<String, String> tokens) {
+        final String hash = Blobs.hash(content);
+        blobDAO.store(hash, content);
+        tokens.put(hash, Blobs.token(blobSigningKey, hash));
+        return hash;
     }
 
 }
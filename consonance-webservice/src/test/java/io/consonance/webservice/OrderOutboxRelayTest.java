@@ -0,0 +1,149 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.webservice;
+
+import com.rabbitmq.client.AMQP;
+import io.consonance.arch.beans.JobState;
+import io.consonance.arch.beans.MessageCodecs;
+import io.consonance.arch.beans.Order;
+import io.consonance.arch.beans.OutboxEntry;
+import io.consonance.arch.persistence.PostgreSQL;
+import io.consonance.arch.utils.ConfirmingPublisher;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs the relay against an outbox kept in a list, the claim and delete against the database are covered by PostgreSQLIT.
+ */
+public class OrderOutboxRelayTest {
+
+    private static final String QUEUE = "test_orders";
+
+    private final List<OutboxEntry> outbox = new ArrayList<>();
+    private final List<Order> sent = new ArrayList<>();
+    private final OrderSecrets secrets = new OrderSecrets();
+    private PostgreSQL db;
+    private ConfirmingPublisher publisher;
+    private OrderOutboxRelay relay;
+    private boolean nack = false;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        db = mock(PostgreSQL.class);
+        when(db.relayOutbox(anyInt(), any(Function.class))).thenAnswer(invocation -> {
+            final Function<List<OutboxEntry>, Collection<Long>> publish = (Function<List<OutboxEntry>, Collection<Long>>) invocation
+                    .getArguments()[1];
+            final Collection<Long> delivered = publish.apply(new ArrayList<>(outbox));
+            outbox.removeIf(entry -> delivered.contains(entry.getId()));
+            return delivered.size();
+        });
+        publisher = mock(ConfirmingPublisher.class);
+        when(publisher.publish(eq(""), eq(QUEUE), any(AMQP.BasicProperties.class), any(byte[].class))).thenAnswer(invocation -> {
+            sent.add(MessageCodecs.JSON.decode((byte[]) invocation.getArguments()[3], Order.class));
+            final CompletableFuture<Void> confirm = new CompletableFuture<>();
+            if (nack) {
+                confirm.completeExceptionally(new IOException("nacked"));
+            } else {
+                confirm.complete(null);
+            }
+            return confirm;
+        });
+        relay = new OrderOutboxRelay(null, QUEUE, db, MessageCodecs.JSON, secrets);
+    }
+
+    private void enqueue(Order order, long ageInMillis) {
+        outbox.add(new OutboxEntry(outbox.size() + 1, QUEUE, order.toJSON(), new Timestamp(System.currentTimeMillis() - ageInMillis)));
+    }
+
+    private Order accept(String uuid) {
+        Order order = OrderSecretsTest.order(uuid);
+        secrets.withhold(order);
+        return order;
+    }
+
+    @Test
+    public void testPublishedOrdersLeaveTheOutbox() {
+        enqueue(accept("first"), 0);
+        enqueue(accept("second"), 0);
+        assertEquals(2, relay.relayBatch(publisher));
+        assertTrue(outbox.isEmpty());
+        assertEquals(Arrays.asList("first", "second"), sent.stream().map(order -> order.getJob().getUuid()).collect(Collectors.toList()));
+        assertEquals("withheld contents go out with the order", "secret",
+                sent.get(0).getJob().getExtraFiles().get("/root/.aws/credentials").getContents());
+        assertEquals("and are forgotten once it is published", 0, secrets.size());
+    }
+
+    @Test
+    public void testUnconfirmedOrdersStay() {
+        enqueue(accept("job"), 0);
+        nack = true;
+        assertEquals(0, relay.relayBatch(publisher));
+        assertEquals(1, outbox.size());
+        assertEquals("contents are kept for the next try", 1, secrets.size());
+
+        nack = false;
+        assertEquals(1, relay.relayBatch(publisher));
+        assertTrue(outbox.isEmpty());
+        assertEquals("secret", sent.get(1).getJob().getExtraFiles().get("/root/.aws/credentials").getContents());
+    }
+
+    @Test
+    public void testOrderOfAnotherWebserviceWaits() {
+        Order order = OrderSecretsTest.order("elsewhere");
+        new OrderSecrets().withhold(order);
+        enqueue(order, 0);
+        assertEquals(0, relay.relayBatch(publisher));
+        assertEquals(1, outbox.size());
+        assertTrue(sent.isEmpty());
+        verify(db, never()).updateJob(any(), any(), any());
+    }
+
+    @Test
+    public void testAbandonedOrderFails() {
+        Order order = OrderSecretsTest.order("lost");
+        new OrderSecrets().withhold(order);
+        enqueue(order, OrderOutboxRelay.HANDOFF_TIMEOUT_IN_MILLISECONDS + 1);
+        assertEquals(1, relay.relayBatch(publisher));
+        assertTrue(outbox.isEmpty());
+        assertTrue("a job must not run without its credentials", sent.isEmpty());
+        verify(db).updateJob(eq("lost"), any(), eq(JobState.FAILED));
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.webservice;
+
+import io.consonance.arch.beans.Job;
+import io.consonance.arch.beans.Order;
+import io.consonance.arch.beans.Provision;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OrderSecretsTest {
+
+    static Order order(String uuid) {
+        Job job = new Job();
+        job.setUuid(uuid);
+        job.getExtraFiles().put("/root/.aws/credentials", new Job.ExtraFile("secret", false));
+        job.getExtraFiles().put("/tmp/reference.txt", new Job.ExtraFile("reference", true));
+        job.getExtraFiles().put("/tmp/empty.txt", new Job.ExtraFile(null, false));
+        Order order = new Order();
+        order.setJob(job);
+        order.setProvision(new Provision());
+        return order;
+    }
+
+    @Test
+    public void testWithholdAndRestore() {
+        OrderSecrets secrets = new OrderSecrets();
+        Order accepted = order("job");
+        secrets.withhold(accepted);
+        String outbox = accepted.toJSON();
+        assertFalse("the outbox must not see what is not kept", outbox.contains("secret"));
+        assertTrue(outbox.contains("reference"));
+
+        Order published = new Order().fromJSON(outbox);
+        assertTrue(secrets.restore(published));
+        assertEquals("secret", published.getJob().getExtraFiles().get("/root/.aws/credentials").getContents());
+        assertEquals("", published.getJob().getExtraFiles().get("/tmp/empty.txt").getContents());
+
+        secrets.release("job");
+        assertEquals(0, secrets.size());
+    }
+
+    @Test
+    public void testMissingAfterRestart() {
+        Order accepted = order("job");
+        new OrderSecrets().withhold(accepted);
+        Order published = new Order().fromJSON(accepted.toJSON());
+        assertFalse(new OrderSecrets().restore(published));
+        assertNull(published.getJob().getExtraFiles().get("/root/.aws/credentials").getContents());
+    }
+
+    @Test
+    public void testOrderWithEverythingInline() {
+        // orders that were put in the outbox before contents were withheld still carry them
+        Order order = order("job");
+        order.getJob().getExtraFiles().get("/tmp/empty.txt").setContents("");
+        assertTrue(new OrderSecrets().restore(order));
+    }
+
+    @Test
+    public void testExpire() throws InterruptedException {
+        OrderSecrets secrets = new OrderSecrets();
+        secrets.withhold(order("job"));
+        secrets.expire(Long.MAX_VALUE / 2);
+        assertEquals(1, secrets.size());
+        Thread.sleep(2);
+        secrets.expire(1);
+        assertEquals(0, secrets.size());
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.webservice.resources;
+
+import io.consonance.arch.utils.Blobs;
+import io.consonance.webservice.jdbi.BlobDAO;
+import org.apache.http.HttpStatus;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class BlobResourceTest {
+
+    private static final String KEY = "signing key";
+    private static final String CONTENT = "#!/usr/bin/env cwl-runner";
+
+    private final String hash = Blobs.hash(CONTENT);
+    private BlobDAO dao;
+
+    @Before
+    public void setUp() {
+        dao = mock(BlobDAO.class);
+        when(dao.find(hash)).thenReturn(CONTENT);
+    }
+
+    @Test
+    public void testValidToken() {
+        Response response = new BlobResource(dao, KEY).getBlob(hash, Blobs.token(KEY, hash));
+        assertEquals(HttpStatus.SC_OK, response.getStatus());
+        assertArrayEquals(CONTENT.getBytes(StandardCharsets.UTF_8), (byte[]) response.getEntity());
+    }
+
+    @Test
+    public void testMissingOrWrongToken() {
+        BlobResource resource = new BlobResource(dao, KEY);
+        assertStatus(HttpStatus.SC_FORBIDDEN, resource, hash, null);
+        assertStatus(HttpStatus.SC_FORBIDDEN, resource, hash, Blobs.token("another key", hash));
+        assertStatus(HttpStatus.SC_FORBIDDEN, resource, hash, Blobs.token(KEY, Blobs.hash("another blob")));
+    }
+
+    @Test
+    public void testNoSigningKey() {
+        assertStatus(HttpStatus.SC_FORBIDDEN, new BlobResource(dao, null), hash, Blobs.token(KEY, hash));
+    }
+
+    @Test
+    public void testBadHashOrMissingBlob() {
+        BlobResource resource = new BlobResource(dao, KEY);
+        assertStatus(HttpStatus.SC_BAD_REQUEST, resource, "../etc/passwd", null);
+        String missing = Blobs.hash("missing");
+        assertStatus(HttpStatus.SC_NOT_FOUND, resource, missing, Blobs.token(KEY, missing));
+    }
+
+    private static void assertStatus(int status, BlobResource resource, String hash, String token) {
+        try {
+            resource.getBlob(hash, token);
+            fail("expected " + status);
+        } catch (WebApplicationException e) {
+            assertEquals(status, e.getResponse().getStatus());
+        }
+    }
+}
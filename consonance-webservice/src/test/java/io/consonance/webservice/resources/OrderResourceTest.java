@@ -0,0 +1,78 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.webservice.resources;
+
+import org.junit.Test;
+
+import static io.consonance.webservice.resources.OrderResource.UNSATISFIABLE_RANGE;
+import static io.consonance.webservice.resources.OrderResource.parseRange;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class OrderResourceTest {
+
+    private static final long LENGTH = 100;
+
+    @Test
+    public void testClosedRange() {
+        assertArrayEquals(new long[] { 10, 20 }, parseRange("bytes=10-19", LENGTH));
+        assertArrayEquals("the end is clamped to the log", new long[] { 90, LENGTH }, parseRange("bytes=90-200", LENGTH));
+        assertArrayEquals(new long[] { 0, 1 }, parseRange(" bytes=0-0 ", LENGTH));
+    }
+
+    @Test
+    public void testOpenEndedRange() {
+        assertArrayEquals(new long[] { 40, LENGTH }, parseRange("bytes=40-", LENGTH));
+        assertArrayEquals(new long[] { LENGTH - 1, LENGTH }, parseRange("bytes=99-", LENGTH));
+    }
+
+    @Test
+    public void testSuffixRange() {
+        assertArrayEquals(new long[] { 70, LENGTH }, parseRange("bytes=-30", LENGTH));
+        assertArrayEquals("a suffix longer than the log is the whole log", new long[] { 0, LENGTH }, parseRange("bytes=-500", LENGTH));
+        assertSame(UNSATISFIABLE_RANGE, parseRange("bytes=-0", LENGTH));
+    }
+
+    @Test
+    public void testOutOfRange() {
+        assertSame(UNSATISFIABLE_RANGE, parseRange("bytes=100-", LENGTH));
+        assertSame(UNSATISFIABLE_RANGE, parseRange("bytes=150-200", LENGTH));
+    }
+
+    @Test
+    public void testMalformedRangeIgnored() {
+        assertNull(parseRange("items=0-10", LENGTH));
+        assertNull("multiple ranges are not supported", parseRange("bytes=0-10,20-30", LENGTH));
+        assertNull(parseRange("bytes=a-b", LENGTH));
+        assertNull(parseRange("bytes=-", LENGTH));
+        assertNull(parseRange("bytes=10", LENGTH));
+        assertNull(parseRange("bytes=--5", LENGTH));
+        assertNull("last before first is not a valid range", parseRange("bytes=20-10", LENGTH));
+        assertNull(parseRange("bytes=99999999999999999999-", LENGTH));
+    }
+
+    @Test
+    public void testEmptyLog() {
+        assertSame(UNSATISFIABLE_RANGE, parseRange("bytes=0-", 0));
+        assertSame(UNSATISFIABLE_RANGE, parseRange("bytes=-10", 0));
+        assertNull(parseRange("bytes=x-", 0));
+    }
+}
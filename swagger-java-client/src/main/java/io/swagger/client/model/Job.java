@@ -44,6 +44,7 @@ public enum StateEnum {
   private String stderr = null;
   private String endUser = null;
   private String flavour = null;
+  private Integer priority = null;
   private String jobUuid = null;
   private String vmUuid = null;
   private String containerImageDescriptor = null;
@@ -191,6 +192,19 @@ public enum StateEnum {
   }
 
   
+  /**
+   * how urgent a job is, from 0 (the default) to 10, higher priority jobs run first
+   **/
+  @ApiModelProperty(value = "how urgent a job is, from 0 (the default) to 10, higher priority jobs run first")
+  @JsonProperty("priority")
+  public Integer getPriority() {
+    return priority;
+  }
+  public void setPriority(Integer priority) {
+    this.priority = priority;
+  }
+
+  
   /**
    * consonance will assign a uuid to jobs
    **/
@@ -260,6 +274,7 @@ public enum StateEnum {
     sb.append("    stderr: ").append(StringUtil.toIndentedString(stderr)).append("\n");
     sb.append("    endUser: ").append(StringUtil.toIndentedString(endUser)).append("\n");
     sb.append("    flavour: ").append(StringUtil.toIndentedString(flavour)).append("\n");
+    sb.append("    priority: ").append(StringUtil.toIndentedString(priority)).append("\n");
     sb.append("    jobUuid: ").append(StringUtil.toIndentedString(jobUuid)).append("\n");
     sb.append("    vmUuid: ").append(StringUtil.toIndentedString(vmUuid)).append("\n");
     sb.append("    containerImageDescriptor: ").append(StringUtil.toIndentedString(containerImageDescriptor)).append("\n");